@@ -17,23 +17,48 @@ import java.nio.charset.StandardCharsets;
 /**
  * 簡易的なAPIキー認証フィルター。/api/sync/ 配下にアクセスされた際に
  * X-API-Key ヘッダーの値を検証し、設定値と一致しない場合は401を返す。
+ * /actuator/ 配下 (/actuator/health を除く) はメトリクス用のキーで保護する。
+ * Prometheus から取得できるよう、Authorization: Bearer ヘッダーでのキー指定も受け付ける。
  */
 @Component
 public class ApiKeyAuthFilter extends OncePerRequestFilter {
 
     private static final String SYNC_ENDPOINT_PREFIX = "/api/sync/";
+    private static final String ACTUATOR_PREFIX = "/actuator/";
+    private static final String HEALTH_ENDPOINT = "/actuator/health";
     private static final String API_KEY_HEADER = "X-API-Key";
+    private static final String BEARER_PREFIX = "Bearer ";
 
     private final String expectedApiKey;
+    private final String expectedMetricsApiKey;
 
-    public ApiKeyAuthFilter(@Value("${SECURITY_SYNC_API_KEY:}") String expectedApiKey) {
+    public ApiKeyAuthFilter(
+            @Value("${SECURITY_SYNC_API_KEY:}") String expectedApiKey,
+            @Value("${SECURITY_METRICS_API_KEY:${SECURITY_SYNC_API_KEY:}}") String expectedMetricsApiKey
+    ) {
         this.expectedApiKey = expectedApiKey;
+        this.expectedMetricsApiKey = expectedMetricsApiKey;
     }
 
     @Override
     protected void doFilterInternal(@NonNull HttpServletRequest request,
                                     @NonNull HttpServletResponse response,
                                     @NonNull FilterChain filterChain) throws ServletException, IOException {
+        if (requiresMetricsProtection(request)) {
+            if (!StringUtils.hasText(expectedMetricsApiKey)) {
+                respondWithError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "SECURITY_METRICS_API_KEY is not configured");
+                return;
+            }
+            if (!expectedMetricsApiKey.equals(providedKey(request))) {
+                respondWithError(response, HttpServletResponse.SC_UNAUTHORIZED,
+                        "Missing or invalid API key");
+                return;
+            }
+            filterChain.doFilter(request, response);
+            return;
+        }
+
         if (!requiresProtection(request)) {
             filterChain.doFilter(request, response);
             return;
@@ -65,6 +90,24 @@ public class ApiKeyAuthFilter extends OncePerRequestFilter {
         return path != null && path.startsWith(SYNC_ENDPOINT_PREFIX);
     }
 
+    private boolean requiresMetricsProtection(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        return path != null && path.startsWith(ACTUATOR_PREFIX)
+                && !path.equals(HEALTH_ENDPOINT) && !path.startsWith(HEALTH_ENDPOINT + "/");
+    }
+
+    private String providedKey(HttpServletRequest request) {
+        String key = request.getHeader(API_KEY_HEADER);
+        if (key != null) {
+            return key;
+        }
+        String authorization = request.getHeader("Authorization");
+        if (authorization != null && authorization.startsWith(BEARER_PREFIX)) {
+            return authorization.substring(BEARER_PREFIX.length()).trim();
+        }
+        return null;
+    }
+
     private void respondWithError(HttpServletResponse response, int status, String message) throws IOException {
         response.setStatus(status);
         response.setCharacterEncoding(StandardCharsets.UTF_8.name());
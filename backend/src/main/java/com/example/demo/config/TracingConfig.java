@@ -0,0 +1,39 @@
+package com.example.demo.config;
+
+import com.example.demo.monitoring.JsonLinesSpanExporter;
+import io.opentelemetry.exporter.logging.otlp.OtlpJsonLoggingSpanExporter;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.nio.file.Path;
+
+/**
+ * 同期ジョブのトレース (OpenTelemetry) の出力先を設定する。
+ * tracing.exporter で切り替える:
+ * - none (既定): このクラスでは出力先を登録しない (他の SpanExporter Bean を定義した場合はそちらが使われる)
+ * - file: tracing.file.path に1行1スパンのJSONを追記する (JsonLinesSpanExporter)
+ * - log: OTLP形式のJSONをログに出力する
+ * 全てのスパンをディスクに書き続けないよう、file と log は明示的に指定した場合のみ有効にする。
+ * Spring Boot は登録された全ての SpanExporter Bean にスパンを渡すため、出力先は Bean を追加するだけで差し替えられる。
+ */
+@Configuration
+public class TracingConfig {
+
+    @Bean
+    @ConditionalOnProperty(name = "tracing.exporter", havingValue = "file")
+    public SpanExporter fileSpanExporter(
+            @Value("${tracing.file.path:traces/spans.jsonl}") String path,
+            @Value("${tracing.file.max-size-mb:100}") long maxSizeMb
+    ) {
+        return new JsonLinesSpanExporter(Path.of(path), maxSizeMb * 1024 * 1024);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "tracing.exporter", havingValue = "log")
+    public SpanExporter logSpanExporter() {
+        return OtlpJsonLoggingSpanExporter.create();
+    }
+}
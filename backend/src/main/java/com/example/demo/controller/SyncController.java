@@ -3,15 +3,30 @@ package com.example.demo.controller;
 import com.example.demo.dto.AssignmentEntry;
 import com.example.demo.dto.CourseEntry;
 import com.example.demo.dto.NextClassCard;
+import com.example.demo.dto.SyncDelta;
 import com.example.demo.dto.SyncResult;
+import com.example.demo.service.AuthService;
 import com.example.demo.service.JobManagerService;
 import com.example.demo.service.JobManagerService.LoginJob;
+import com.example.demo.service.NextClassService;
+import com.example.demo.service.RefreshScheduleService;
+import com.example.demo.service.SyncRateLimiter;
+import com.example.demo.service.SyncSnapshotService;
+import com.example.demo.service.SyncSnapshotService.StoredSyncResult;
+import com.example.demo.service.UpstreamHealthTracker;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import java.time.Duration;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 
 /**
  * フロントエンドからの非同期同期リクエストを受け付けるAPIコントローラ。
@@ -20,11 +35,34 @@ import java.util.List;
 @RequestMapping("/api/sync") // このコントローラは "/api/sync" で始まるURLを処理します
 public class SyncController {
 
+    // ジョブの結果は完了後に変化しないため、ジョブの保持期間 (10分) だけブラウザにキャッシュさせる
+    private static final CacheControl JOB_RESULT_CACHE_CONTROL = CacheControl.maxAge(Duration.ofMinutes(10)).cachePrivate();
+    // 保存済み結果は再同期で変わり得るため、毎回ETagで再検証させる
+    private static final CacheControl CACHED_RESULT_CACHE_CONTROL = CacheControl.noCache().cachePrivate();
+
     private final JobManagerService jobManagerService;
+    private final SyncSnapshotService syncSnapshotService;
+    private final NextClassService nextClassService;
+    private final RefreshScheduleService refreshScheduleService;
+    private final UpstreamHealthTracker upstreamHealth;
+    private final SyncRateLimiter syncRateLimiter;
+    private final AuthService authService;
 
-    // JobManagerServiceを注入
-    public SyncController(JobManagerService jobManagerService) {
+    // JobManagerService, SyncSnapshotService, NextClassService, RefreshScheduleService, UpstreamHealthTracker, SyncRateLimiter, AuthServiceを注入
+    public SyncController(JobManagerService jobManagerService,
+                          SyncSnapshotService syncSnapshotService,
+                          NextClassService nextClassService,
+                          RefreshScheduleService refreshScheduleService,
+                          UpstreamHealthTracker upstreamHealth,
+                          SyncRateLimiter syncRateLimiter,
+                          AuthService authService) {
         this.jobManagerService = jobManagerService;
+        this.syncSnapshotService = syncSnapshotService;
+        this.nextClassService = nextClassService;
+        this.refreshScheduleService = refreshScheduleService;
+        this.upstreamHealth = upstreamHealth;
+        this.syncRateLimiter = syncRateLimiter;
+        this.authService = authService;
     }
 
     // フロントエンドから受け取るJSONの形式を定義
@@ -32,10 +70,12 @@ public class SyncController {
     /**
      * 同期ジョブを開始するAPIエンドポイント。
      * リクエストを受け取ったら、すぐにJob IDを返します。
+     * 開始回数はユーザーごと・全体で制限され (SyncRateLimiter)、超えた場合は 429 と Retry-After を返します。
+     * 保存済みの結果があるユーザーには、その取得先 (resultRef) もあわせて返します。
      * POST http://localhost:8080/api/sync/start
      */
    @PostMapping("/start")
-    public ResponseEntity<Map<String, String>> startSync(@RequestBody SyncRequest request) {
+    public ResponseEntity<?> startSync(@RequestBody SyncRequest request) {
         String userId = request.userId();
         String username = request.username();
 
@@ -58,6 +98,21 @@ public class SyncController {
 
         boolean rememberMeFlag = !isRememberMeFalse;
 
+        // Seleniumでのログインになり得る場合 (パスワードが送られてきた、または保存済みCookieで認証できない場合) は、
+        // 上限の厳しいパスワード認証の枠を使う。パスワードが送られてこなくても、保存済みパスワードでログインするため
+        boolean hasPassword = request.password() != null && !request.password().isBlank();
+        Optional<AuthService.SyncAccount> account = authService.resolveAccount(userId, username);
+        SyncRateLimiter.AuthPath authPath = !hasPassword && account.map(AuthService.SyncAccount::cookiesUsable).orElse(false)
+                ? SyncRateLimiter.AuthPath.COOKIE
+                : SyncRateLimiter.AuthPath.PASSWORD;
+        // ログインするアカウント (大学ID) ごとに数える (userId はクライアントが自由に変えられ、新しい値ごとに枠が増えるため)
+        // アカウントを特定できない場合は、同期も失敗するため指定された値で数える
+        String rateLimitKey = account.map(AuthService.SyncAccount::universityId).orElse(hasUsername ? username : userId);
+        SyncRateLimiter.Decision decision = syncRateLimiter.tryAcquire(rateLimitKey, authPath);
+        if (!decision.allowed()) {
+            return tooManyRequests(decision, hasUserId ? userId : null);
+        }
+
         LoginJob job = jobManagerService.startNewSyncJob(userId, username, request.password(), rememberMeFlag);
 
         // ステータス202 ACCEPTED（受理された）で、Job IDを返す
@@ -67,6 +122,7 @@ public class SyncController {
     /**
      * ジョブの現在のステータスを確認するAPIエンドポイント。
      * フロントエンドはこれを数秒おきに呼び出します。
+     * 進捗に関する小さなフィールドのみを返し、成功時は結果の取得先 (resultRef) を返します。
      * GET http://localhost:8080/api/sync/status/{jobId}
      */
     @GetMapping("/status/{jobId}")
@@ -79,8 +135,144 @@ public class SyncController {
         return ResponseEntity.ok(toResponse(job));
     }
 
+    /**
+     * 成功したジョブの結果を返すAPIエンドポイント。ステータスの resultRef が指す先。
+     * 強いETagとCache-Controlを付与するため、ブラウザは結果を一度だけダウンロードします。
+     * since にクライアントが保持している結果のバージョンを指定すると、差分 (delta) のみを返します。
+     * GET http://localhost:8080/api/sync/status/{jobId}/result?since={version}
+     */
+    @GetMapping("/status/{jobId}/result")
+    public ResponseEntity<?> getJobResult(@PathVariable String jobId,
+                                          @RequestParam(name = "since", required = false) String since,
+                                          WebRequest webRequest) {
+        LoginJob job = jobManagerService.getJob(jobId);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        SyncResult result = job.getResult();
+        if (result == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", "ジョブはまだ完了していません。"));
+        }
+
+        SyncDelta delta = findJobDelta(job, since);
+        String eTag = resultETag(job.getResultVersion(), result.syncedAt(), delta != null ? since : null);
+        if (webRequest.checkNotModified(eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(JOB_RESULT_CACHE_CONTROL).build();
+        }
+        return ResponseEntity.ok()
+            .eTag(eTag)
+            .cacheControl(JOB_RESULT_CACHE_CONTROL)
+            .body(new JobResultResponse(delta == null ? toView(result, job.getResultVersion()) : null, delta));
+    }
+
+    /**
+     * 保存済みの最後の同期結果を即座に返すAPIエンドポイント。
+     * 結果が鮮度の許容範囲を超えている場合は、保存済みCookieで再検証するジョブを開始し、そのJob IDも返します。
+     * Cookieがない・有効期限切れの場合はジョブを開始せず、loginRequired=true を返します (クライアントは対話的な同期を開始する)。
+     * (manabaの障害中は再同期ジョブを開始せず、保存済みの結果のみを返します)
+     * since を指定した場合は、そのバージョンからの差分 (delta) のみを返します。
+     * GET http://localhost:8080/api/sync/result/{userId}?since={version}
+     */
+    @GetMapping("/result/{userId}")
+    public ResponseEntity<?> getCachedResult(@PathVariable String userId,
+                                             @RequestParam(name = "since", required = false) String since,
+                                             WebRequest webRequest) {
+        UUID profileUuid;
+        try {
+            profileUuid = UUID.fromString(userId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "ユーザーIDの形式が正しくありません。"));
+        }
+
+        Optional<StoredSyncResult> storedOpt = syncSnapshotService.find(profileUuid);
+        if (storedOpt.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        // ダッシュボードを開いたユーザーとして記録する (バックグラウンドでの事前取得の対象になる)
+        refreshScheduleService.markActive(profileUuid);
+
+        StoredSyncResult stored = storedOpt.get();
+        boolean stale = syncSnapshotService.isStale(stored);
+        String refreshJobId = null;
+        boolean loginRequired = false;
+        if (stale && upstreamHealth.isAvailable()) {
+            // 再検証はCookieのみで行う。Cookieで取得できない場合は、クライアントに対話的な同期を促す
+            // 開始回数の制限や前回の再検証からの間隔により、開始しない (refreshJobId が null) こともある
+            JobManagerService.RefreshStart refresh = jobManagerService.startOrJoinRefreshJob(profileUuid);
+            refreshJobId = refresh.job() != null ? refresh.job().getId() : null;
+            loginRequired = refresh.loginRequired();
+        }
+        SyncResult result = stored.result();
+        Optional<SyncDelta> delta = syncSnapshotService.findDelta(profileUuid, since, stored.version());
+        // stale / refreshJobId もレスポンスに含まれるため、ETagにも反映する
+        String eTag = resultETag(stored.version(), result.syncedAt(), delta.isPresent() ? since : null)
+            + (stale ? "-stale-" + (loginRequired ? "login" : refreshJobId) : "");
+        if (webRequest.checkNotModified(eTag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(CACHED_RESULT_CACHE_CONTROL).build();
+        }
+        return ResponseEntity.ok()
+            .eTag(eTag)
+            .cacheControl(CACHED_RESULT_CACHE_CONTROL)
+            .body(new CachedResultResponse(
+                result.syncedAt(),
+                stale,
+                refreshJobId,
+                loginRequired,
+                delta.isPresent() ? null : toView(result, stored.version()),
+                delta.orElse(null)
+            ));
+    }
+
+    /**
+     * 保存済みの時間割から、現在時刻以降の授業を開始が早い順に返すAPIエンドポイント。
+     * 同期時ではなくリクエスト時に計算するため、untilStart は常に現在時刻基準になります。
+     * GET http://localhost:8080/api/sync/next/{userId}?count={N}
+     */
+    @GetMapping("/next/{userId}")
+    public ResponseEntity<?> getNextClasses(@PathVariable String userId,
+                                            @RequestParam(name = "count", defaultValue = "1") int count) {
+        UUID profileUuid;
+        try {
+            profileUuid = UUID.fromString(userId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "ユーザーIDの形式が正しくありません。"));
+        }
+
+        Optional<List<NextClassCard>> nextClasses = nextClassService.findNextClasses(profileUuid, count);
+        if (nextClasses.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+            .cacheControl(CacheControl.noStore())
+            .body(nextClasses.get());
+    }
+
+    private ResponseEntity<Map<String, Object>> tooManyRequests(SyncRateLimiter.Decision decision, String userId) {
+        long retryAfterSeconds = Math.max(1, (decision.retryAfter().toMillis() + 999) / 1000);
+        Map<String, Object> body = new HashMap<>();
+        body.put("error", "global".equals(decision.scope())
+                ? "同期のリクエストが集中しています。しばらくしてから再試行してください。"
+                : "同期のリクエストが多すぎます。しばらくしてから再試行してください。");
+        body.put("retryAfterSeconds", retryAfterSeconds);
+        if (userId != null && hasCachedResult(userId)) {
+            body.put("resultRef", "/api/sync/result/" + userId);
+        }
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+            .body(body);
+    }
+
+    private boolean hasCachedResult(String userId) {
+        try {
+            return syncSnapshotService.find(UUID.fromString(userId)).isPresent();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     private JobStatusResponse toResponse(LoginJob job) {
-    SyncResult result = job.getResult();
+    boolean hasResult = job.getResult() != null;
     return new JobStatusResponse(
         job.getId(),
         job.getStatus(),
@@ -92,15 +284,39 @@ public class SyncController {
         job.getUpdatedAt() != null ? job.getUpdatedAt().toString() : null,
         job.getUserId(),
         job.getUsername(),
-        result != null ? new SyncResultView(
+        hasResult ? "/api/sync/status/" + job.getId() + "/result" : null,
+        hasResult ? job.getResultVersion() : null
+    );
+    }
+
+    // バージョン・同期時刻・差分の基点が同じであればレスポンス本文も同じになる
+    private String resultETag(String version, String syncedAt, String deltaBase) {
+        String syncedAtDigits = syncedAt != null ? syncedAt.replaceAll("[^0-9]", "") : "";
+        return version + "-" + syncedAtDigits + (deltaBase != null ? "-since-" + deltaBase : "");
+    }
+
+    // 保存済みスナップショットが存在し、ジョブ結果と同じバージョンの場合のみ差分を返す
+    private SyncDelta findJobDelta(LoginJob job, String since) {
+        if (since == null || since.isBlank() || job.getUserId() == null) {
+            return null;
+        }
+        try {
+            return syncSnapshotService.findDelta(UUID.fromString(job.getUserId()), since, job.getResultVersion()).orElse(null);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private SyncResultView toView(SyncResult result, String version) {
+        return new SyncResultView(
             result.userId(),
             result.username(),
             result.syncedAt(),
+            version,
             result.timetable(),
             result.assignments(),
             result.nextClass()
-        ) : null
-    );
+        );
     }
 
     public record JobStatusResponse(
@@ -114,15 +330,31 @@ public class SyncController {
             String updatedAt,
         String userId,
         String username,
-            SyncResultView result
+            String resultRef,
+            String resultVersion
+    ) {}
+
+    public record JobResultResponse(
+            SyncResultView result,
+            SyncDelta delta
     ) {}
 
     public record SyncResultView(
         String userId,
             String username,
             String syncedAt,
+            String version,
             List<CourseEntry> timetable,
             List<AssignmentEntry> assignments,
             NextClassCard nextClass
     ) {}
+
+    public record CachedResultResponse(
+            String syncedAt,
+            boolean stale,
+            String refreshJobId,
+            boolean loginRequired,
+            SyncResultView result,
+            SyncDelta delta
+    ) {}
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package com.example.demo.dto;
+
+import java.util.List;
+
+/**
+ * クライアントが保持しているバージョン (baseVersion) から最新バージョン (version) への差分。
+ * 追加・変更された項目は全体を、削除された項目はIDのみを保持する。
+ */
+public record SyncDelta(
+    String baseVersion,
+    String version,
+    String syncedAt,
+    List<CourseEntry> addedCourses,
+    List<CourseEntry> changedCourses,
+    List<String> removedCourseIds,
+    List<AssignmentEntry> addedAssignments,
+    List<AssignmentEntry> changedAssignments,
+    List<String> removedAssignmentIds,
+    NextClassCard nextClass
+) {}
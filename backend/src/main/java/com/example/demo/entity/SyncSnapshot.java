@@ -0,0 +1,43 @@
+package com.example.demo.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.time.Instant;
+import java.util.UUID;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * ユーザーごとの最後に成功した同期結果 (SyncResult) を暗号化して保持するエンティティ。
+ * ダッシュボード表示時にスクレイピングを待たずに即座に返却するために使用する。
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "sync_snapshots")
+public class SyncSnapshot {
+
+    @Id // user_profiles.id と同じUUIDを使用する
+    private UUID userId;
+
+    @Column(name = "payload_encrypted", columnDefinition = "TEXT", nullable = false)
+    private String encryptedPayload;
+
+    @Column(name = "saved_at", nullable = false)
+    private Instant savedAt;
+
+    @Column(name = "version", length = 16)
+    private String version; // 時間割・課題の内容から計算したバージョントークン
+
+    // 差分レスポンスを計算するため、内容が変わる直前のバージョンも1世代だけ保持する
+    @Column(name = "previous_version", length = 16)
+    private String previousVersion;
+
+    @Column(name = "previous_payload_encrypted", columnDefinition = "TEXT")
+    private String previousEncryptedPayload;
+}
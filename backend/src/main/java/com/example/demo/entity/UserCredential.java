@@ -3,7 +3,11 @@ package com.example.demo.entity;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
+import org.hibernate.annotations.DynamicUpdate;
+import java.time.Instant;
 import java.util.UUID;
 
 // Lombokアノテーションでゲッター、セッター、コンストラクタを自動生成
@@ -15,7 +19,9 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor // 引数なしのコンストラクタ
 @AllArgsConstructor // 全ての引数を持つコンストラクタ
 @Entity // このクラスがデータベースのテーブルに対応することを示す (JPA)
-@Table(name = "user_profiles") // 対応するテーブル名を指定
+@DynamicUpdate // 変更した列のみを UPDATE する (同期ジョブの保存が、リースや利用時刻を読み込み時点の値で上書きしないように)
+@Table(name = "user_profiles", // 対応するテーブル名を指定
+        indexes = @Index(name = "idx_user_profiles_next_refresh_at", columnList = "next_refresh_at"))
 public class UserCredential {
 
     @Id // このフィールドが主キーであることを示す
@@ -29,4 +35,28 @@ public class UserCredential {
 
     @Column(name = "session_cookie_encrypted", columnDefinition = "TEXT")
     private String encryptedSessionCookie;
+
+    // 次にバックグラウンドでセッションを更新すべき時刻 (NULLはすぐに更新対象)
+    @Column(name = "next_refresh_at")
+    private Instant nextRefreshAt;
+
+    // 最後にセッションを更新した時刻 (対話的な同期を含む)
+    @Column(name = "last_refreshed_at")
+    private Instant lastRefreshedAt;
+
+    // 最後にアプリを利用した時刻 (保存済み結果の取得時に記録)。バックグラウンドでの事前取得の対象判定に使う
+    @Column(name = "last_active_at")
+    private Instant lastActiveAt;
+
+    // バックグラウンドのセッション更新を処理中のノードのIDと、そのリースの有効期限 (複数ノードでの重複更新を防ぐ)
+    @Column(name = "refresh_lease_owner", length = 64)
+    private String refreshLeaseOwner;
+
+    @Column(name = "refresh_lease_until")
+    private Instant refreshLeaseUntil;
+
+    // 楽観ロック用。スクレイピング中はトランザクションを保持しないため、保存時の競合検出に使う
+    @Version
+    @Column(name = "version", nullable = false, columnDefinition = "bigint default 0")
+    private Long version;
 }
\ No newline at end of file
@@ -0,0 +1,91 @@
+package com.example.demo.monitoring;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * 本番でのプロファイリング用に、JDK Flight Recorder の常時記録を開始するコンポーネント。
+ * monitoring.jfr.enabled=true の場合のみ有効で、既定では低負荷の "default" 設定を使う。
+ * 記録は max-age / max-size の範囲でディスク上に保持され、停止時 (シャットダウン時) に destination へ書き出される。
+ * 実行中に取り出す場合は `jcmd <pid> JFR.dump name=schedy-continuous filename=...` を使う。
+ */
+@Component
+public class ContinuousFlightRecording {
+
+    private static final Logger log = LoggerFactory.getLogger(ContinuousFlightRecording.class);
+    private static final String RECORDING_NAME = "schedy-continuous";
+
+    private final boolean enabled;
+    private final String settings;
+    private final Duration maxAge;
+    private final long maxSizeBytes;
+    private final String destination;
+    private Recording recording;
+
+    public ContinuousFlightRecording(
+            @Value("${monitoring.jfr.enabled:false}") boolean enabled,
+            @Value("${monitoring.jfr.settings:default}") String settings,
+            @Value("${monitoring.jfr.max-age:PT6H}") Duration maxAge,
+            @Value("${monitoring.jfr.max-size-mb:250}") long maxSizeMb,
+            @Value("${monitoring.jfr.destination:}") String destination
+    ) {
+        this.enabled = enabled;
+        this.settings = settings;
+        this.maxAge = maxAge;
+        this.maxSizeBytes = maxSizeMb * 1024 * 1024;
+        this.destination = destination;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Recording continuous = new Recording(Configuration.getConfiguration(settings));
+            continuous.setName(RECORDING_NAME);
+            continuous.setToDisk(true);
+            continuous.setMaxAge(maxAge);
+            continuous.setMaxSize(maxSizeBytes);
+            if (StringUtils.hasText(destination)) {
+                Path path = Path.of(destination);
+                if (path.getParent() != null) {
+                    Files.createDirectories(path.getParent());
+                }
+                continuous.setDestination(path);
+            }
+            continuous.start();
+            this.recording = continuous;
+            log.info("JFRの常時記録を開始しました (settings={}, maxAge={}, maxSize={}MB)", settings, maxAge, maxSizeBytes / 1024 / 1024);
+        } catch (Exception e) {
+            // 記録が開始できなくてもアプリケーションの動作には影響させない
+            log.warn("JFRの常時記録を開始できませんでした。", e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (recording == null) {
+            return;
+        }
+        try {
+            recording.stop(); // destination が設定されていれば、ここでファイルに書き出される
+        } catch (Exception e) {
+            log.warn("JFRの常時記録の停止に失敗しました。", e);
+        } finally {
+            recording.close();
+            recording = null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.demo.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * EncryptionService による暗号化・復号1回を表すJFRイベント。
+ */
+@Name("schedy.Encryption")
+@Label("Encryption")
+@Category({"Schedy", "Crypto"})
+@Description("AES-GCM encrypt or decrypt of a credential or cookie")
+@StackTrace(false)
+public class EncryptionEvent extends Event {
+
+    @Label("Operation")
+    @Description("encrypt or decrypt")
+    public String operation;
+
+    @Label("Bytes")
+    @Description("Size of the plain text")
+    @DataAmount
+    public long bytes;
+}
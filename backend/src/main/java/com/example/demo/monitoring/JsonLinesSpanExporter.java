@@ -0,0 +1,105 @@
+package com.example.demo.monitoring;
+
+import com.google.gson.Gson;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 終了したスパンを1行1スパンのJSON (JSON Lines) としてローカルファイルに追記するSpanExporter。
+ * 外部のトレース収集基盤がなくても、ファイルを取り出してジョブごとのタイミング (ウォーターフォール) をオフラインで分析できる。
+ * ファイルが maxBytes を超えたら ".1" に退避して新しいファイルに書き始める (退避は1世代のみ)。
+ */
+public class JsonLinesSpanExporter implements SpanExporter {
+
+    private static final Logger log = LoggerFactory.getLogger(JsonLinesSpanExporter.class);
+
+    // 1スパン分の出力形式。時刻はエポックからのマイクロ秒
+    private record SpanLine(
+            String traceId,
+            String spanId,
+            String parentSpanId,
+            String name,
+            String kind,
+            long startMicros,
+            long durationMicros,
+            String status,
+            Map<String, Object> attributes
+    ) {}
+
+    private final Gson gson = new Gson();
+    private final Path path;
+    private final long maxBytes;
+
+    public JsonLinesSpanExporter(Path path, long maxBytes) {
+        this.path = path;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+        try {
+            rollIfFull();
+            try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (SpanData span : spans) {
+                    writer.write(gson.toJson(toLine(span)));
+                    writer.write('\n');
+                }
+            }
+            return CompletableResultCode.ofSuccess();
+        } catch (IOException e) {
+            log.warn("スパンのファイル出力に失敗しました: {}", path, e);
+            return CompletableResultCode.ofFailure();
+        }
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess(); // export ごとに書き込み済み
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    private SpanLine toLine(SpanData span) {
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        span.getAttributes().forEach((key, value) -> attributes.put(key.getKey(), value));
+        String parentSpanId = span.getParentSpanContext().isValid() ? span.getParentSpanId() : null;
+        return new SpanLine(
+                span.getTraceId(),
+                span.getSpanId(),
+                parentSpanId,
+                span.getName(),
+                span.getKind().name(),
+                span.getStartEpochNanos() / 1_000,
+                (span.getEndEpochNanos() - span.getStartEpochNanos()) / 1_000,
+                span.getStatus().getStatusCode().name(),
+                attributes
+        );
+    }
+
+    private void rollIfFull() throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        if (maxBytes > 0 && Files.exists(path) && Files.size(path) >= maxBytes) {
+            Files.move(path, path.resolveSibling(path.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
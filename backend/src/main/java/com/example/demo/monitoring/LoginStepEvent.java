@@ -0,0 +1,27 @@
+package com.example.demo.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Seleniumによるログイン操作の1段階 (ユーザー名入力、MFA待ちなど) を表すJFRイベント。
+ * イベントの期間は、その段階が始まってから次の段階に進むまで。
+ */
+@Name("schedy.LoginStep")
+@Label("Login Step")
+@Category({"Schedy", "Login"})
+@Description("One Selenium step of the manaba login")
+@StackTrace(false)
+public class LoginStepEvent extends Event {
+
+    @Label("Step")
+    public String step;
+
+    @Label("Succeeded")
+    @Description("False if the login failed during this step")
+    public boolean succeeded;
+}
@@ -0,0 +1,40 @@
+package com.example.demo.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * manabaのページ1件の取得を表すJFRイベント。イベントの期間は取得と解析の合計。
+ */
+@Name("schedy.PageFetch")
+@Label("Page Fetch")
+@Category({"Schedy", "Scraping"})
+@Description("Fetch and parse of a single manaba page")
+@StackTrace(false)
+public class PageFetchEvent extends Event {
+
+    @Label("URL Category")
+    @Description("Kind of page (home_course, course, assignment_list, ...); the URL itself is not recorded")
+    public String urlCategory;
+
+    @Label("Status Code")
+    public int statusCode;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Fetch Duration")
+    @Timespan
+    public long fetchDuration;
+
+    @Label("Parse Duration")
+    @Timespan
+    public long parseDuration;
+}
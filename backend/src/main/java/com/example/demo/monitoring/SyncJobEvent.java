@@ -0,0 +1,31 @@
+package com.example.demo.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JobManagerService の同期ジョブ1件を表すJFRイベント。イベントの期間はジョブの実行時間 (待ち行列での待ち時間を除く)。
+ * 遅いジョブとGC停止やロック競合を突き合わせる際に使う。
+ */
+@Name("schedy.SyncJob")
+@Label("Sync Job")
+@Category({"Schedy", "Sync"})
+@Description("Execution of one sync job")
+public class SyncJobEvent extends Event {
+
+    @Label("Job Id")
+    public String jobId;
+
+    @Label("Queue Wait")
+    @Description("Time the job waited in the executor queue before starting")
+    @Timespan
+    public long queueWait;
+
+    @Label("Outcome")
+    @Description("success or failure")
+    public String outcome;
+}
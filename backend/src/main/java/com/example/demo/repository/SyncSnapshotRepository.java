@@ -0,0 +1,28 @@
+package com.example.demo.repository;
+
+import com.example.demo.entity.SyncSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * SyncSnapshotエンティティのためのリポジトリインターフェース。
+ * 主キーはユーザープロファイルのUUID。
+ */
+@Repository
+public interface SyncSnapshotRepository extends JpaRepository<SyncSnapshot, UUID> {
+
+    /**
+     * 保存時刻のみを取得します (暗号化済みの結果は読み込まない)。
+     * メモリ上のキャッシュが、他のノードが保存した結果より古くなっていないかの確認に使います。
+     * @param userId ユーザープロファイルのUUID
+     * @return 保存時刻。スナップショットが存在しない場合は空のOptional
+     */
+    @Query("SELECT s.savedAt FROM SyncSnapshot s WHERE s.userId = :userId")
+    Optional<Instant> findSavedAt(@Param("userId") UUID userId);
+}
@@ -2,8 +2,13 @@ package com.example.demo.repository;
 
 import com.example.demo.entity.UserCredential;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List; // ★ Listをインポート
 import java.util.Optional;
 import java.util.UUID;
@@ -11,6 +16,13 @@ import java.util.UUID;
 /**
  * UserCredentialエンティティのためのリポジトリインターフェース。
  * Spring Data JPAが、メソッド名に基づいたDB操作を自動的に実装します。
+ *
+ * 一括更新 (JPQLのUPDATE) はエンティティの @Version を確認・更新しないため、次のように扱う。
+ * Cookieや更新時刻 (last_refreshed_at / next_refresh_at) を変える更新は version を1つ進め、
+ * 並行して保存しようとしていた同期ジョブに楽観ロックの競合として検出させる (markRefreshed / postponeDueRefresh)。
+ * リース (refresh_lease_*) と利用時刻 (last_active_at) だけを変える更新は version を進めない。
+ * これらの列は同期ジョブの保存では書き込まない (UserCredential は変更した列のみを UPDATE する) ため、競合しても失われないうえ、
+ * 定期的なリースの延長で同期ジョブの保存を何度も再試行させないためである。
  */
 @Repository // このインターフェースがデータアクセス層のコンポーネントであることを示す
 public interface UserCredentialRepository extends JpaRepository<UserCredential, UUID> {
@@ -23,10 +35,91 @@ public interface UserCredentialRepository extends JpaRepository<UserCredential,
     Optional<UserCredential> findByUniversityId(String universityId);
 
     /**
-     * 暗号化されたパスワードがDBに保存されている（NULLではない）
-     * 全てのユーザー認証情報を検索します。
-     * SessionRefreshServiceがバックグラウンド更新対象のユーザーを見つけるために使用します。
-     * @return パスワードが保存されているUserCredentialのリスト
+     * 更新時刻 (next_refresh_at) を過ぎ、他のノードにリースされていないセッション更新対象のユーザー (パスワード保存済み) を、
+     * 期限の古い順に行ロックを取得して返します。他のトランザクションがロック中の行は待たずに飛ばします (FOR UPDATE SKIP LOCKED)。
+     * 同じトランザクション内で leaseRefresh を呼び出してリースを設定すること。
+     * 暗号化済みのパスワードやCookieなどの大きな列は読み込まず、IDと大学ID、事前取得の対象かどうかのみを射影します。
+     * @param now 現在時刻
+     * @param activeSince この時刻以降にアプリを利用したユーザーを事前取得の対象 (prewarm=true) とする
+     * @param limit 取得する最大件数
+     * @return 更新時刻を過ぎたユーザー (next_refresh_at が NULL のユーザーを含む)
      */
-    List<UserCredential> findByEncryptedPasswordIsNotNull();
-}
\ No newline at end of file
+    @Query(value = "SELECT id AS id, university_id AS universityId, "
+            + "(last_active_at IS NOT NULL AND last_active_at >= :activeSince) AS prewarm FROM user_profiles "
+            + "WHERE university_password_encrypted IS NOT NULL "
+            + "AND (next_refresh_at IS NULL OR next_refresh_at <= :now) "
+            + "AND (refresh_lease_until IS NULL OR refresh_lease_until < :now) "
+            + "ORDER BY next_refresh_at ASC NULLS FIRST, id "
+            + "LIMIT :limit FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<RefreshCandidate> lockDueRefreshCandidates(@Param("now") Instant now, @Param("activeSince") Instant activeSince,
+                                                    @Param("limit") int limit);
+
+    /**
+     * セッション更新のリースを設定・延長します。
+     * @param ids 対象のユーザーID
+     * @param owner リースを保持するノードのID
+     * @param leaseUntil リースの有効期限
+     * @return 更新された行数
+     */
+    @Modifying
+    @Query("UPDATE UserCredential c SET c.refreshLeaseOwner = :owner, c.refreshLeaseUntil = :leaseUntil "
+            + "WHERE c.id IN :ids AND (c.refreshLeaseOwner IS NULL OR c.refreshLeaseOwner = :owner OR c.refreshLeaseUntil < :now)")
+    int leaseRefresh(@Param("ids") Collection<UUID> ids, @Param("owner") String owner,
+                     @Param("leaseUntil") Instant leaseUntil, @Param("now") Instant now);
+
+    /**
+     * 指定ノードが保持しているセッション更新のリースを解放します。
+     * @param ids 対象のユーザーID
+     * @param owner リースを保持するノードのID
+     * @return 更新された行数
+     */
+    @Modifying
+    @Query("UPDATE UserCredential c SET c.refreshLeaseOwner = NULL, c.refreshLeaseUntil = NULL "
+            + "WHERE c.id IN :ids AND c.refreshLeaseOwner = :owner")
+    int releaseRefreshLeases(@Param("ids") Collection<UUID> ids, @Param("owner") String owner);
+
+    /**
+     * 指定ノードが保持している全てのセッション更新のリースを解放します (シャットダウン時)。
+     * @return 更新された行数
+     */
+    @Modifying
+    @Query("UPDATE UserCredential c SET c.refreshLeaseOwner = NULL, c.refreshLeaseUntil = NULL WHERE c.refreshLeaseOwner = :owner")
+    int releaseAllRefreshLeases(@Param("owner") String owner);
+
+    /**
+     * 更新時刻を過ぎたままのユーザー (更新に失敗・スキップされたユーザー) の次回の更新時刻を再試行時刻に設定します。
+     * 更新に成功したユーザーは markRefreshed で更新時刻が先に進んでいるため対象外となります。
+     * @return 更新された行数
+     */
+    @Modifying
+    @Query("UPDATE UserCredential c SET c.nextRefreshAt = :retryAt, c.version = c.version + 1 "
+            + "WHERE c.id = :id AND (c.nextRefreshAt IS NULL OR c.nextRefreshAt <= :now)")
+    int postponeDueRefresh(@Param("id") UUID id, @Param("retryAt") Instant retryAt, @Param("now") Instant now);
+
+    /**
+     * アプリの利用時刻を記録します。
+     * @return 更新された行数
+     */
+    @Modifying
+    @Query("UPDATE UserCredential c SET c.lastActiveAt = :activeAt WHERE c.id = :id")
+    int markActive(@Param("id") UUID id, @Param("activeAt") Instant activeAt);
+
+    /**
+     * セッションの更新完了を記録し、次回の更新時刻を設定します。
+     * @return 更新された行数
+     */
+    @Modifying
+    @Query("UPDATE UserCredential c SET c.lastRefreshedAt = :refreshedAt, c.nextRefreshAt = :nextRefreshAt, "
+            + "c.version = c.version + 1 WHERE c.id = :id")
+    int markRefreshed(@Param("id") UUID id, @Param("refreshedAt") Instant refreshedAt, @Param("nextRefreshAt") Instant nextRefreshAt);
+
+    /**
+     * セッション更新の走査で使用する射影。
+     */
+    interface RefreshCandidate {
+        UUID getId();
+        String getUniversityId();
+        // 最近アプリを利用したユーザーか (セッション更新時に時間割・課題も事前取得する)
+        Boolean getPrewarm();
+    }
+}
@@ -1,7 +1,5 @@
 package com.example.demo.service;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.example.demo.dto.SyncResult;
 import com.example.demo.entity.UserCredential;
 import com.example.demo.repository.UserCredentialRepository;
@@ -9,49 +7,105 @@ import com.example.demo.repository.UserCredentialRepository;
 import com.example.demo.service.ManabaScrapingOrchestrator.InternalSyncOutcome;
 import com.example.demo.service.ManabaScrapingOrchestrator.LoginProgressListener; // ★★★ これを追加 ★★★
 
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException; // ★★★ IOExceptionを追加 ★★★
-import java.lang.reflect.Type;
-import java.util.Collections;
-import java.util.Map;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 /**
  * ユーザー資格情報の永続化（DBとのやり取り）と、
  * スクレイピング実行の司令塔（Orchestrator）の呼び出しを担当するService。
  * JobManagerServiceからバックグラウンドで呼び出されることを想定している。
+ *
+ * Seleniumによるログインは数分かかることがあるため、DBトランザクション（とコネクション）は
+ * スクレイピング中に保持しない。処理は次の3フェーズに分かれる。
+ * 1. 短い読み取りトランザクションで資格情報を読み込む
+ * 2. トランザクションなしでスクレイピングを実行する
+ * 3. 短い書き込みトランザクションで結果を保存する (UserCredential の @Version による楽観ロック)
+ *
+ * 復号済みのCookieは SessionCookieStore にキャッシュされ、Cookieだけが変わった場合のDB保存は
+ * SessionCookieStore が後からまとめて行う。
  */
 @Service
 public class AuthService {
 
     private static final Logger log = LoggerFactory.getLogger(AuthService.class);
+    private static final int MAX_WRITE_ATTEMPTS = 3; // 楽観ロック競合時の書き込み再試行回数
+    private static final Duration MIN_REFRESH_RESET_INTERVAL = Duration.ofMinutes(5); // 更新時刻の再設定を省略する間隔
     private final UserCredentialRepository userCredentialRepository;
     private final EncryptionService encryptionService;
     private final ManabaScrapingOrchestrator scrapingOrchestrator;
-    private final Gson gson = new Gson();
-    private static final Type COOKIE_MAP_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+    private final SyncSnapshotService syncSnapshotService;
+    private final SessionCookieStore sessionCookieStore;
+    private final RefreshScheduleService refreshScheduleService;
+    private final TransactionTemplate readTransaction;
+    private final TransactionTemplate writeTransaction;
+    private final Duration sessionLifetime; // manabaのセッション有効期限
+    private final Tracer tracer;
 
     public AuthService(
             UserCredentialRepository userCredentialRepository,
             EncryptionService encryptionService,
-            ManabaScrapingOrchestrator scrapingOrchestrator
+            ManabaScrapingOrchestrator scrapingOrchestrator,
+            SyncSnapshotService syncSnapshotService,
+            SessionCookieStore sessionCookieStore,
+            RefreshScheduleService refreshScheduleService,
+            PlatformTransactionManager transactionManager,
+            @Value("${session.cookie.ttl:PT90M}") Duration sessionLifetime,
+            Tracer tracer
     ) {
         this.userCredentialRepository = userCredentialRepository;
         this.encryptionService = encryptionService;
         this.scrapingOrchestrator = scrapingOrchestrator;
+        this.syncSnapshotService = syncSnapshotService;
+        this.sessionCookieStore = sessionCookieStore;
+        this.refreshScheduleService = refreshScheduleService;
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.sessionLifetime = sessionLifetime;
+        this.tracer = tracer;
+    }
+
+    /**
+     * フェーズ1で読み込んだ資格情報の値。
+     * 管理状態のエンティティをトランザクションの外に持ち出さないためのスナップショット。
+     */
+    private record StoredCredential(
+            UUID id,
+            String universityId,
+            String encryptedPassword,
+            String encryptedSessionCookie,
+            Instant lastRefreshedAt
+    ) {
+        static StoredCredential of(UserCredential credential) {
+            return new StoredCredential(
+                    credential.getId(),
+                    credential.getUniversityId(),
+                    credential.getEncryptedPassword(),
+                    credential.getEncryptedSessionCookie(),
+                    credential.getLastRefreshedAt()
+            );
+        }
     }
 
     /**
      * JobManagerServiceから呼び出される同期処理の本体。
-     * 1. DBから既存Cookieを読み込み
-     * 2. スクレイピングを実行 (リスナー経由で進捗通知)
-     * 3. 結果をDBに保存
-     * の一連の流れをトランザクション管理下で行う。
+     * 1. 短い読み取りトランザクションでDBから既存Cookieを読み込み
+     * 2. トランザクションの外でスクレイピングを実行 (リスナー経由で進捗通知)
+     * 3. 短い書き込みトランザクションで結果をDBに保存
      *
     * @param userProfileId ユーザープロファイルのUUID（任意）
     * @param universityId 大学のID
@@ -61,49 +115,38 @@ public class AuthService {
      * @return スクレイピング結果 (Cookieを含まないDTO)
      * @throws Exception 処理中に発生した例外
      */
-    @Transactional
     // ★★★ listener引数の型を ManabaScrapingOrchestrator.LoginProgressListener に修正 ★★★
     public SyncResult executeSync(String userProfileId, String universityId, String password, boolean rememberMe, LoginProgressListener listener) throws Exception {
 
-        UUID profileUuid = null;
-        Optional<UserCredential> credentialOpt = Optional.empty();
-
+        UUID requestedUuid = null;
         if (userProfileId != null && !userProfileId.isBlank()) {
             try {
-                profileUuid = UUID.fromString(userProfileId);
-                credentialOpt = userCredentialRepository.findById(profileUuid);
+                requestedUuid = UUID.fromString(userProfileId);
             } catch (IllegalArgumentException e) {
                 log.warn("無効なユーザープロファイルIDが指定されました: {}", userProfileId);
             }
         }
 
-        if (credentialOpt.isEmpty() && universityId != null && !universityId.isBlank()) {
-            credentialOpt = userCredentialRepository.findByUniversityId(universityId);
-            if (credentialOpt.isPresent()) {
-                profileUuid = credentialOpt.get().getId();
-            }
-        }
+        // この時刻より後に他の処理がCookieを保存していた場合は、そちらの方が新しいため上書きしない (フェーズ3)
+        Instant startedAt = Instant.now();
+
+        // --- フェーズ1: 短い読み取りトランザクション ---
+        Optional<StoredCredential> credentialOpt = findCredential(requestedUuid, universityId);
+        UUID profileUuid = credentialOpt.map(StoredCredential::id).orElse(requestedUuid);
 
         if (credentialOpt.isEmpty() && (universityId == null || universityId.isBlank())) {
             throw new IllegalStateException("ユーザーを特定できませんでした。大学IDを指定してください。");
         }
 
-        Map<String, String> existingCookies = Collections.emptyMap();
-        if (credentialOpt.isPresent() && credentialOpt.get().getEncryptedSessionCookie() != null) {
-            log.debug("既存のセッションCookieを復号します。");
-            try {
-                String decryptedCookieJson = encryptionService.decrypt(credentialOpt.get().getEncryptedSessionCookie());
-                existingCookies = gson.fromJson(decryptedCookieJson, COOKIE_MAP_TYPE);
-                log.debug("Cookieの復号に成功しました。");
-            } catch (Exception e) {
-                log.warn("保存済みCookieの復号に失敗しました。Cookieなしで続行します。", e);
-            }
-        }
+        CookieJar existingCookies = credentialOpt
+                .map(credential -> loadCookies(credential).cookies())
+                .orElse(CookieJar.empty());
 
-        if (password == null || password.isBlank()) {
-            if (credentialOpt.isPresent() && credentialOpt.get().getEncryptedPassword() != null) {
+        boolean passwordEntered = password != null && !password.isBlank();
+        if (!passwordEntered) {
+            if (credentialOpt.isPresent() && credentialOpt.get().encryptedPassword() != null) {
                 try {
-                    password = encryptionService.decrypt(credentialOpt.get().getEncryptedPassword());
+                    password = encryptionService.decrypt(credentialOpt.get().encryptedPassword());
                     log.debug("DBからパスワードを復号しました。");
                 } catch (Exception e) {
                     log.error("DBのパスワード復号に失敗しました。", e);
@@ -114,15 +157,24 @@ public class AuthService {
             }
         }
 
+        // 最後にセッションを確認してからmanabaのセッション有効期限を過ぎている場合は、Cookie認証は失敗すると分かっているため、
+        // Jsoupでの確認を省略してパスワード認証に進む (パスワードがない場合はCookieで試すしかないため省略しない)
+        if (password != null && !password.isBlank() && !existingCookies.isEmpty()
+                && credentialOpt.isPresent() && isSessionLifetimeExceeded(credentialOpt.get().lastRefreshedAt())) {
+            log.info("最後のセッション確認から有効期限を過ぎているため、Cookie認証を省略します。");
+            existingCookies = CookieJar.empty();
+        }
+
         String effectiveUniversityId = universityId;
         if ((effectiveUniversityId == null || effectiveUniversityId.isBlank()) && credentialOpt.isPresent()) {
-            effectiveUniversityId = credentialOpt.get().getUniversityId();
+            effectiveUniversityId = credentialOpt.get().universityId();
         }
 
         if (effectiveUniversityId == null || effectiveUniversityId.isBlank()) {
             throw new IllegalStateException("大学IDを特定できませんでした。再度ログインしてください。");
         }
 
+        // --- フェーズ2: トランザクションなしでスクレイピング ---
         log.debug("スクレイピング処理を開始します。");
         InternalSyncOutcome outcome;
         try {
@@ -138,50 +190,100 @@ public class AuthService {
             throw e;
         }
 
-        Map<String, String> newCookies = outcome.cookies();
-
-        UserCredential credentialToUpdate;
-        if (credentialOpt.isPresent()) {
-            credentialToUpdate = credentialOpt.get();
-        } else {
-            UUID newId = profileUuid != null ? profileUuid : UUID.randomUUID();
-            credentialToUpdate = new UserCredential(newId, effectiveUniversityId, null, null);
-        }
-
-        String responseUserId = credentialOpt.map(UserCredential::getId).map(UUID::toString).orElse(null);
-
-        if (rememberMe) {
-            if (password == null || password.isBlank()) {
-                if (credentialToUpdate.getEncryptedPassword() == null) {
+        // --- フェーズ3: 短い書き込みトランザクション ---
+        CookieJar newCookies = outcome.cookies() != null ? outcome.cookies() : CookieJar.empty();
+        String responseUserId = credentialOpt.map(StoredCredential::id).map(UUID::toString).orElse(null);
+
+        boolean credentialUnchanged = credentialOpt.isPresent()
+                && !passwordEntered
+                && effectiveUniversityId.equals(credentialOpt.get().universityId());
+
+        if (rememberMe && credentialUnchanged) {
+            // パスワード・大学IDに変更がなければDBには書かず、Cookieはストア経由で後からまとめて保存する
+            UUID credentialId = credentialOpt.get().id();
+            Instant refreshedAt = SessionCookieStore.refreshTimestamp();
+            sessionCookieStore.update(credentialId, newCookies, refreshedAt);
+            // 対話的な同期でセッションが更新されたため、バックグラウンド更新の時刻を先送りする (直前に設定済みなら省略)
+            Instant lastRefreshedAt = credentialOpt.get().lastRefreshedAt();
+            if (lastRefreshedAt == null || lastRefreshedAt.isBefore(Instant.now().minus(MIN_REFRESH_RESET_INTERVAL))) {
+                refreshScheduleService.markRefreshed(credentialId, newCookies, refreshedAt);
+            }
+            log.debug("ユーザー資格情報 (ID: {}) に変更がないため、Cookieのみ保存待ちにしました。", credentialId);
+            responseUserId = credentialId.toString();
+
+        } else if (rememberMe) {
+            // 暗号化はトランザクションの外で済ませておく
+            String encryptedPassword = password != null && !password.isBlank() ? encryptionService.encrypt(password) : null;
+            String encryptedCookie = !newCookies.isEmpty() ? encryptionService.encrypt(newCookies.toJson()) : null;
+            UUID targetId = profileUuid != null ? profileUuid : UUID.randomUUID();
+            String targetUniversityId = effectiveUniversityId;
+
+            SavedCredential saved = writeWithRetry(() -> {
+                UserCredential credentialToUpdate = userCredentialRepository.findById(targetId)
+                        .or(() -> userCredentialRepository.findByUniversityId(targetUniversityId))
+                        .orElseGet(() -> {
+                            UserCredential created = new UserCredential();
+                            created.setId(targetId);
+                            return created;
+                        });
+
+                if (encryptedPassword != null) {
+                    credentialToUpdate.setEncryptedPassword(encryptedPassword);
+                    log.debug("新しいパスワードを暗号化して保存します。");
+                } else if (credentialToUpdate.getEncryptedPassword() == null) {
                     log.error("rememberMe=trueですが、有効なパスワードがありません。");
                     throw new IllegalStateException("パスワードを保存するには、有効なパスワードが必要です。");
+                } else {
+                    log.debug("rememberMe=trueですがパスワード入力なし。DBの暗号化パスワードを維持します。");
                 }
-                log.debug("rememberMe=trueですがパスワード入力なし。DBの暗号化パスワードを維持します。");
-            } else {
-                String encryptedPassword = encryptionService.encrypt(password);
-                credentialToUpdate.setEncryptedPassword(encryptedPassword);
-                log.debug("新しいパスワードを暗号化して保存します。");
-            }
 
-            credentialToUpdate.setUniversityId(effectiveUniversityId);
+                credentialToUpdate.setUniversityId(targetUniversityId);
 
-            if (newCookies != null && !newCookies.isEmpty()) {
-                String encryptedCookie = encryptionService.encrypt(gson.toJson(newCookies));
-                credentialToUpdate.setEncryptedSessionCookie(encryptedCookie);
-                log.debug("新しいCookieを暗号化して保存します。");
+                // スクレイピング中に他の処理 (バックグラウンド更新・別ノードの同期など) がCookieを保存していた場合は、
+                // そちらの方が新しいため、Cookieと更新時刻は上書きしない (競合で再試行した場合も、読み直した行で判断する)
+                Instant storedRefreshedAt = credentialToUpdate.getLastRefreshedAt();
+                if (storedRefreshedAt != null && storedRefreshedAt.isAfter(startedAt)) {
+                    log.info("ユーザー資格情報 (ID: {}) は同期中に新しいCookieが保存されたため、Cookieは上書きしません。",
+                            credentialToUpdate.getId());
+                    return new SavedCredential(userCredentialRepository.save(credentialToUpdate).getId(), null);
+                }
+
+                // 対話的な同期でセッションが更新されたため、バックグラウンド更新の時刻を先送りする
+                Instant refreshedAt = SessionCookieStore.refreshTimestamp();
+                credentialToUpdate.setLastRefreshedAt(refreshedAt);
+                credentialToUpdate.setNextRefreshAt(refreshScheduleService.nextRefreshAt(refreshedAt, newCookies));
+
+                if (encryptedCookie != null) {
+                    credentialToUpdate.setEncryptedSessionCookie(encryptedCookie);
+                    log.debug("新しいCookieを暗号化して保存します。");
+                } else {
+                    credentialToUpdate.setEncryptedSessionCookie(null);
+                    log.warn("新しいCookieが取得できなかったため、DBのCookieをクリアします。");
+                }
+
+                return new SavedCredential(userCredentialRepository.save(credentialToUpdate).getId(), refreshedAt);
+            });
+            UUID savedId = saved.id();
+            if (saved.cookiesRefreshedAt() != null) {
+                sessionCookieStore.markPersisted(savedId, newCookies, saved.cookiesRefreshedAt());
             } else {
-                credentialToUpdate.setEncryptedSessionCookie(null);
-                log.warn("新しいCookieが取得できなかったため、DBのCookieをクリアします。");
+                // DBの新しいCookieを次回の読み込みで使うよう、手元のCookieは破棄する
+                sessionCookieStore.evict(savedId);
             }
-
-            UserCredential saved = userCredentialRepository.save(credentialToUpdate);
-            log.info("ユーザー資格情報 (ID: {}) を保存しました。", saved.getId());
-            responseUserId = saved.getId().toString();
+            log.info("ユーザー資格情報 (ID: {}) を保存しました。", savedId);
+            responseUserId = savedId.toString();
 
         } else {
             if (credentialOpt.isPresent()) {
-                userCredentialRepository.delete(credentialOpt.get());
-                log.info("rememberMe=false のため、ユーザー資格情報 (ID: {}) を削除しました。", credentialOpt.get().getId());
+                UUID credentialId = credentialOpt.get().id();
+                writeTransaction.executeWithoutResult(status -> {
+                    if (userCredentialRepository.existsById(credentialId)) {
+                        userCredentialRepository.deleteById(credentialId);
+                    }
+                });
+                syncSnapshotService.delete(credentialId);
+                sessionCookieStore.evict(credentialId);
+                log.info("rememberMe=false のため、ユーザー資格情報 (ID: {}) を削除しました。", credentialId);
                 responseUserId = null;
             } else {
                 log.debug("rememberMe=false で、DBにも情報がないため、削除処理はスキップします。");
@@ -189,7 +291,7 @@ public class AuthService {
         }
 
         SyncResult rawResult = outcome.syncResultDto();
-        return new SyncResult(
+        SyncResult result = new SyncResult(
                 responseUserId,
                 rawResult.username(),
                 rawResult.syncedAt(),
@@ -197,40 +299,39 @@ public class AuthService {
                 rawResult.assignments(),
                 rawResult.nextClass()
         );
+
+        // 次回のダッシュボード表示で即座に返せるよう、最後の成功結果を保存しておく
+        if (rememberMe && responseUserId != null) {
+            syncSnapshotService.save(UUID.fromString(responseUserId), result);
+        }
+        return result;
     }
 
-    @Transactional
     public void refreshSessionOnly(UUID userProfileId, LoginProgressListener listener) throws Exception {
-        Optional<UserCredential> credentialOpt = userCredentialRepository.findById(userProfileId);
-        if (credentialOpt.isEmpty()) {
+        // --- フェーズ1: 短い読み取りトランザクション ---
+        StoredCredential credential = readTransaction.execute(status ->
+                userCredentialRepository.findById(userProfileId).map(StoredCredential::of).orElse(null));
+        if (credential == null) {
             throw new IllegalStateException("指定されたユーザーIDの資格情報が見つかりません: " + userProfileId);
         }
 
-        Map<String, String> existingCookies = Collections.emptyMap();
+        LoadedCookies loaded = loadCookies(credential);
+        CookieJar existingCookies = loaded.cookies();
         String password = null;
 
-        UserCredential credential = credentialOpt.get();
-        if (credential.getEncryptedSessionCookie() != null) {
-            try {
-                String decryptedCookieJson = encryptionService.decrypt(credential.getEncryptedSessionCookie());
-                existingCookies = gson.fromJson(decryptedCookieJson, COOKIE_MAP_TYPE);
-            } catch (Exception e) {
-                log.warn("保存済みCookieの復号に失敗しました。Cookieなしでセッション更新を試みます。");
-            }
-        }
-
-        if (credential.getEncryptedPassword() != null) {
+        if (credential.encryptedPassword() != null) {
             try {
-                password = encryptionService.decrypt(credential.getEncryptedPassword());
+                password = encryptionService.decrypt(credential.encryptedPassword());
             } catch (Exception e) {
                 log.error("パスワードの復号に失敗しました。", e);
                 throw new IllegalStateException("有効な認証情報がありません。パスワードを再入力してください。");
             }
         }
 
-        Map<String, String> refreshedCookies;
+        // --- フェーズ2: トランザクションなしでセッション更新 ---
+        CookieJar refreshedCookies;
         try {
-            refreshedCookies = scrapingOrchestrator.refreshSessionOnly(credential.getUniversityId(), password, existingCookies, listener);
+            refreshedCookies = scrapingOrchestrator.refreshSessionOnly(credential.universityId(), password, existingCookies, listener);
         } catch (IOException e) {
             log.error("セッション更新中にエラーが発生しました。", e);
             listener.onStatusUpdate("ERROR", "セッション更新に失敗しました: " + e.getMessage());
@@ -239,13 +340,207 @@ public class AuthService {
 
         if (refreshedCookies == null || refreshedCookies.isEmpty()) {
             listener.onStatusUpdate("SKIP", "有効なCookieがなかったためセッション更新をスキップしました。");
-            log.info("ユーザーID {} のセッション更新はスキップされました (新しいCookieなし)", credential.getId());
+            log.info("ユーザーID {} のセッション更新はスキップされました (新しいCookieなし)", credential.id());
             return;
         }
 
-        String encryptedCookie = encryptionService.encrypt(gson.toJson(refreshedCookies));
-        credential.setEncryptedSessionCookie(encryptedCookie);
-        userCredentialRepository.save(credential);
-        log.info("ユーザー資格情報 (ID: {}) のセッションCookieを更新しました。", credential.getId());
+        // --- フェーズ3: Cookieをストアに登録 (DBへは後からまとめて保存される) ---
+        // 読み込み後に対話的な同期などで更新されていた場合は、そちらのCookieの方が新しいため上書きしない
+        Instant refreshedAt = SessionCookieStore.refreshTimestamp();
+        if (!sessionCookieStore.updateIfUnchanged(credential.id(), loaded.generation(), refreshedCookies, refreshedAt)) {
+            log.info("ユーザー資格情報 (ID: {}) はセッション更新中に別の処理で更新されたため、Cookieの保存をスキップしました。", credential.id());
+            return;
+        }
+        refreshScheduleService.markRefreshed(credential.id(), refreshedCookies, refreshedAt);
+        log.info("ユーザー資格情報 (ID: {}) のセッションCookieを更新しました。", credential.id());
+    }
+
+    /**
+     * バックグラウンドのセッション更新時に、保存済みCookieで時間割と課題も取得してスナップショットを保存します。
+     * 次にユーザーがアプリを開いたときに、スクレイピングを待たずに最新の結果を返せるようにするためのもの。
+     * Cookieが無効な場合はSeleniumでのログインは行わず、何も保存しません。
+     * @param userProfileId ユーザープロファイルのUUID
+     * @param listener 進捗通知を受け取るリスナー
+     * @return 事前取得に成功した場合は true
+     */
+    public boolean prewarmSnapshot(UUID userProfileId, LoginProgressListener listener) throws Exception {
+        try {
+            return revalidateWithCookies(userProfileId, listener).isPresent();
+        } catch (UpstreamUnavailableException e) {
+            log.info("ユーザーID {} の事前取得はスキップされました: {}", userProfileId, e.getMessage());
+            listener.onStatusUpdate("SKIP", "manabaに接続できないため事前取得をスキップしました。");
+            return false;
+        }
+    }
+
+    /**
+     * 保存済みCookieのみで時間割と課題を取得し、スナップショットを保存します (保存済み結果の再検証・事前取得)。
+     * Seleniumでのログインは行いません。Cookieがない・有効期限切れ・manabaに拒否された場合は空を返すため、
+     * 呼び出し元はユーザーに対話的な同期 (MFAの承認を含む) を促すこと。
+     * @param userProfileId ユーザープロファイルのUUID
+     * @param listener 進捗通知を受け取るリスナー
+     * @return 取得した結果。Cookieでは取得できなかった場合は空
+     * @throws UpstreamUnavailableException manabaの障害中のため、リクエストを送らなかった場合
+     */
+    public Optional<SyncResult> revalidateWithCookies(UUID userProfileId, LoginProgressListener listener) throws IOException {
+        // --- フェーズ1: 短い読み取りトランザクション ---
+        StoredCredential credential = readTransaction.execute(status ->
+                userCredentialRepository.findById(userProfileId).map(StoredCredential::of).orElse(null));
+        if (credential == null) {
+            throw new IllegalStateException("指定されたユーザーIDの資格情報が見つかりません: " + userProfileId);
+        }
+        LoadedCookies loaded = loadCookies(credential);
+        if (!isUsable(credential, loaded.cookies())) {
+            listener.onStatusUpdate("SKIP", "有効なCookieがないため、Cookieでの取得をスキップしました。");
+            return Optional.empty();
+        }
+
+        // --- フェーズ2: トランザクションなしでスクレイピング (Cookieのみ) ---
+        InternalSyncOutcome outcome;
+        try {
+            outcome = scrapingOrchestrator.prewarm(credential.universityId(), loaded.cookies(), listener);
+        } catch (UpstreamUnavailableException e) {
+            throw e;
+        } catch (IOException e) {
+            log.info("ユーザーID {} のCookieでの取得はスキップされました: {}", credential.id(), e.getMessage());
+            listener.onStatusUpdate("SKIP", "Cookieが無効なため、Cookieでの取得をスキップしました。");
+            return Optional.empty();
+        }
+
+        // --- フェーズ3: Cookieとスナップショットの保存 ---
+        Instant refreshedAt = SessionCookieStore.refreshTimestamp();
+        if (outcome.cookies() != null && !outcome.cookies().isEmpty()
+                && sessionCookieStore.updateIfUnchanged(credential.id(), loaded.generation(), outcome.cookies(), refreshedAt)) {
+            refreshScheduleService.markRefreshed(credential.id(), outcome.cookies(), refreshedAt);
+        }
+        SyncResult rawResult = outcome.syncResultDto();
+        SyncResult result = new SyncResult(
+                credential.id().toString(),
+                rawResult.username(),
+                rawResult.syncedAt(),
+                rawResult.timetable(),
+                rawResult.assignments(),
+                rawResult.nextClass()
+        );
+        syncSnapshotService.save(credential.id(), result);
+        log.info("ユーザー資格情報 (ID: {}) の時間割・課題を保存済みCookieで取得しました。", credential.id());
+        return Optional.of(result);
+    }
+
+    /**
+     * 同期を開始する前に判定に使う、同期対象のアカウント。
+     * @param universityId Seleniumでログインする場合の大学ID (指定された大学IDを優先し、なければ保存済みの値)
+     * @param cookiesUsable 保存済みCookieで認証できる見込みがあるか (false なら Seleniumでのログインになり得る)
+     */
+    public record SyncAccount(String universityId, boolean cookiesUsable) {}
+
+    /**
+     * 同期対象のアカウントを、executeSync と同じ規則で特定します (ユーザーID、なければ大学IDで資格情報を探す)。
+     * @return 資格情報も大学IDも見つからない場合は空
+     */
+    public Optional<SyncAccount> resolveAccount(String userProfileId, String universityId) {
+        UUID requestedUuid = null;
+        if (userProfileId != null && !userProfileId.isBlank()) {
+            try {
+                requestedUuid = UUID.fromString(userProfileId);
+            } catch (IllegalArgumentException e) {
+                // 無効なユーザーIDは executeSync と同じく無視する
+            }
+        }
+        boolean hasUniversityId = universityId != null && !universityId.isBlank();
+        Optional<StoredCredential> credential = findCredential(requestedUuid, universityId);
+        if (credential.isEmpty()) {
+            return hasUniversityId ? Optional.of(new SyncAccount(universityId, false)) : Optional.empty();
+        }
+        boolean cookiesUsable = isUsable(credential.get(), loadCookies(credential.get()).cookies());
+        return Optional.of(new SyncAccount(hasUniversityId ? universityId : credential.get().universityId(), cookiesUsable));
+    }
+
+    // フェーズ3の保存結果。より新しいCookieが保存済みだったためCookieを書かなかった場合、cookiesRefreshedAt は null
+    private record SavedCredential(UUID id, Instant cookiesRefreshedAt) {}
+
+    // generation はストアから読み込んだ場合の世代番号 (DBから読み込んだ場合は null)
+    private record LoadedCookies(CookieJar cookies, Long generation) {}
+
+    /**
+     * 既存のCookieを読み込みます。ストアに有効なCookieがあればそれを使い、なければDBの値を復号します。
+     * ストアのCookieより後に取得されたCookieがDBに保存されている (他のノードなどが更新した) 場合は、DBの値を使います。
+     */
+    private LoadedCookies loadCookies(StoredCredential credential) {
+        Optional<SessionCookieStore.CachedCookies> cached = sessionCookieStore.get(credential.id(), credential.lastRefreshedAt());
+        if (cached.isPresent()) {
+            log.debug("キャッシュ済みのセッションCookieを使用します。");
+            return new LoadedCookies(cached.get().cookies(), cached.get().generation());
+        }
+        if (credential.encryptedSessionCookie() == null) {
+            return new LoadedCookies(CookieJar.empty(), null);
+        }
+        log.debug("既存のセッションCookieを復号します。");
+        try {
+            // 旧形式 (名前→値のみ) で保存されたCookieも読み込める
+            CookieJar cookies = CookieJar.fromJson(encryptionService.decrypt(credential.encryptedSessionCookie()));
+            log.debug("Cookieの復号に成功しました。");
+            return new LoadedCookies(cookies, null);
+        } catch (Exception e) {
+            log.warn("保存済みCookieの復号に失敗しました。Cookieなしで続行します。", e);
+            return new LoadedCookies(CookieJar.empty(), null);
+        }
+    }
+
+    // Cookieがあり、Cookie自体の有効期限も最後に確認してからのセッション有効期限も過ぎていない
+    private boolean isUsable(StoredCredential credential, CookieJar cookies) {
+        return !cookies.isEmpty() && !cookies.isExpired(Instant.now())
+                && !isSessionLifetimeExceeded(credential.lastRefreshedAt());
+    }
+
+    // 最後にセッションを確認した時刻から、manabaのセッション有効期限を過ぎているか
+    private boolean isSessionLifetimeExceeded(Instant lastRefreshedAt) {
+        return lastRefreshedAt != null && lastRefreshedAt.plus(sessionLifetime).isBefore(Instant.now());
+    }
+
+    private Optional<StoredCredential> findCredential(UUID profileUuid, String universityId) {
+        return inSpan("db.load-credential", () -> readTransaction.execute(status -> {
+            Optional<UserCredential> found = Optional.empty();
+            if (profileUuid != null) {
+                found = userCredentialRepository.findById(profileUuid);
+            }
+            if (found.isEmpty() && universityId != null && !universityId.isBlank()) {
+                found = userCredentialRepository.findByUniversityId(universityId);
+            }
+            return found.map(StoredCredential::of);
+        }));
+    }
+
+    /**
+     * 短い書き込みトランザクションを実行します。
+     * 楽観ロックの競合 (他のジョブが同じユーザーを同時に更新した) の場合は、トランザクションごとやり直します。
+     * work は毎回行を読み直し、読み直した値をもとに何を書くかを判断すること (同じ値で上書きし直すだけでは競合を検出した意味がない)。
+     */
+    private <T> T writeWithRetry(Supplier<T> work) {
+        return inSpan("db.save-credential", () -> {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return writeTransaction.execute(status -> work.get());
+                } catch (ObjectOptimisticLockingFailureException e) {
+                    if (attempt >= MAX_WRITE_ATTEMPTS) {
+                        throw e;
+                    }
+                    log.warn("資格情報の保存で楽観ロックの競合が発生しました。再試行します ({}回目)", attempt);
+                }
+            }
+        });
+    }
+
+    // DBアクセスを同期ジョブのトレースの子スパンとして記録する
+    private <T> T inSpan(String name, Supplier<T> work) {
+        Span span = tracer.nextSpan().name(name).start();
+        try (Tracer.SpanInScope ignored = tracer.withSpan(span)) {
+            return work.get();
+        } catch (RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.end();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,348 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seleniumのログインで起動したヘッドレスChromeとchromedriverのプロセスを監視し、残ったプロセスを強制終了するウォッチドッグ。
+ * driver.quit() が応答しない・スレッドが割り込まれた等で終了されなかったプロセスが、コンテナのメモリを使い続けることを防ぐ。
+ *
+ * ログインごとに専用の --user-data-dir を割り当て、その引数を持つChromeのメインプロセスと子孫、親のchromedriverを1つのツリーとして扱う。
+ * 定期的に /proc からツリーごとのRSSとCPU時間を集計し、次のツリーを強制終了する:
+ * - ジョブの最大実行時間 (chrome.watchdog.max-lifetime) を過ぎたもの
+ * - RSSの合計がメモリ上限 (chrome.watchdog.max-rss-mb) を超えたもの
+ * - ジョブの終了後も残っているもの (孤児)
+ * /proc がない環境 (Linux以外) では監視は行わず、--user-data-dir の割り当てと削除のみ行う。
+ */
+@Service
+public class ChromeProcessWatchdog {
+
+    private static final Logger log = LoggerFactory.getLogger(ChromeProcessWatchdog.class);
+    private static final String USER_DATA_DIR_PREFIX = "schedy-chrome-";
+    private static final String USER_DATA_DIR_ARG = "--user-data-dir=";
+    private static final Path PROC = Path.of("/proc");
+    private static final long CLOCK_TICKS_PER_SECOND = 100; // LinuxのUSER_HZ (/proc/<pid>/stat の utime/stime の単位)
+    private static final Duration ORPHAN_GRACE = Duration.ofMinutes(1); // 起動途中のchromedriverを孤児と誤判定しないための猶予
+    private static final Duration EXIT_GRACE = Duration.ofSeconds(3); // quit() 後にプロセスが終了するまで待つ時間
+
+    private final Path userDataRoot;
+    private final Duration maxLifetime;
+    private final long maxRssBytes;
+    private final boolean procAvailable;
+    private final ConcurrentHashMap<Path, Lease> leases = new ConcurrentHashMap<>(); // user-data-dir → 実行中のログイン
+    private final AtomicLong trackedProcesses = new AtomicLong();
+    private final AtomicLong trackedRssBytes = new AtomicLong();
+    private final AtomicLong trackedCpuMillis = new AtomicLong();
+
+    public ChromeProcessWatchdog(
+            @Value("${chrome.watchdog.user-data-root:${java.io.tmpdir}}") String userDataRoot,
+            @Value("${chrome.watchdog.max-lifetime:PT10M}") Duration maxLifetime,
+            @Value("${chrome.watchdog.max-rss-mb:1024}") long maxRssMb
+    ) {
+        this.userDataRoot = Path.of(userDataRoot).toAbsolutePath();
+        this.maxLifetime = maxLifetime;
+        this.maxRssBytes = maxRssMb * 1024 * 1024;
+        this.procAvailable = Files.isDirectory(PROC.resolve("self"));
+        if (!procAvailable) {
+            log.info("/proc が利用できないため、Chromeプロセスの監視は行いません。");
+        }
+        Gauge.builder("schedy.chrome.trees", leases, Map::size)
+                .description("Number of Chrome process trees owned by running logins")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("schedy.chrome.processes", trackedProcesses, AtomicLong::get)
+                .description("Number of chrome and chromedriver processes found at the last sweep")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("schedy.chrome.rss", trackedRssBytes, AtomicLong::get)
+                .description("Total resident memory of chrome and chromedriver processes at the last sweep")
+                .baseUnit("bytes")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("schedy.chrome.cpu", trackedCpuMillis, value -> value.get() / 1000.0)
+                .description("Total CPU time used by the live chrome and chromedriver processes at the last sweep")
+                .baseUnit("seconds")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 1回のログインで起動するChromeの登録。close() でジョブの終了を通知する。
+     */
+    public final class Lease implements AutoCloseable {
+
+        private final String jobLabel;
+        private final Path userDataDir;
+        private final Instant deadline;
+        private volatile boolean closed;
+
+        private Lease(String jobLabel, Path userDataDir, Instant deadline) {
+            this.jobLabel = jobLabel;
+            this.userDataDir = userDataDir;
+            this.deadline = deadline;
+        }
+
+        /**
+         * ChromeOptions に追加する引数 (このログイン専用のプロファイルディレクトリ)。
+         */
+        public String chromeArgument() {
+            return USER_DATA_DIR_ARG + userDataDir;
+        }
+
+        /**
+         * ジョブの終了を通知します。driver.quit() の後に残っているプロセスは強制終了し、プロファイルディレクトリを削除します。
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            leases.remove(userDataDir, this);
+            if (procAvailable) {
+                ProcessTree tree = awaitExit(userDataDir);
+                if (!tree.isEmpty()) {
+                    log.warn("[{}] driver.quit() 後もChromeのプロセスが残っているため強制終了します ({}個)", jobLabel, tree.pids().size());
+                    kill(tree, "leftover");
+                }
+            }
+            deleteQuietly(userDataDir);
+        }
+    }
+
+    // ツリーを構成するプロセスと、その集計値
+    private record ProcessTree(List<ProcessHandle> processes, long rssBytes, long cpuMillis) {
+        boolean isEmpty() {
+            return processes.isEmpty();
+        }
+
+        List<Long> pids() {
+            return processes.stream().map(ProcessHandle::pid).toList();
+        }
+    }
+
+    /**
+     * Chromeを起動する前に呼び出し、このログイン専用のプロファイルディレクトリを割り当てます。
+     * @param jobLabel ログ出力用の識別子 (ユーザー名など)
+     */
+    public Lease open(String jobLabel) throws IOException {
+        Files.createDirectories(userDataRoot);
+        Path userDataDir = Files.createTempDirectory(userDataRoot, USER_DATA_DIR_PREFIX);
+        Lease lease = new Lease(jobLabel, userDataDir, Instant.now().plus(maxLifetime));
+        leases.put(userDataDir, lease);
+        return lease;
+    }
+
+    /**
+     * 実行中のログインのプロセスを集計し、上限を超えたものと孤児になったものを強制終了します。
+     */
+    @Scheduled(fixedDelayString = "${chrome.watchdog.interval-ms:15000}")
+    public void sweep() {
+        if (!procAvailable) {
+            return;
+        }
+        Instant now = Instant.now();
+        long processes = 0;
+        long rssBytes = 0;
+        long cpuMillis = 0;
+        Set<Long> ownedPids = new HashSet<>();
+
+        for (Lease lease : List.copyOf(leases.values())) {
+            ProcessTree tree = findTree(lease.userDataDir);
+            if (tree.isEmpty()) {
+                continue; // 起動前、または終了済み
+            }
+            if (now.isAfter(lease.deadline)) {
+                log.warn("[{}] Chromeが最大実行時間 ({}) を超えたため強制終了します (pid={})", lease.jobLabel, maxLifetime, tree.pids());
+                kill(tree, "lifetime");
+                continue;
+            }
+            if (tree.rssBytes() > maxRssBytes) {
+                log.warn("[{}] ChromeのRSSが上限を超えたため強制終了します ({}MB, pid={})",
+                        lease.jobLabel, tree.rssBytes() / 1024 / 1024, tree.pids());
+                kill(tree, "memory");
+                continue;
+            }
+            ownedPids.addAll(tree.pids());
+            processes += tree.processes().size();
+            rssBytes += tree.rssBytes();
+            cpuMillis += tree.cpuMillis();
+        }
+
+        // どのログインにも属さないChrome (ジョブの終了後に残ったもの・親が終了して孤児になったもの) を終了する
+        for (ProcessTree orphan : findOrphans(ownedPids, now)) {
+            log.warn("ジョブに属さないChromeのプロセスを強制終了します (pid={}, RSS={}MB)", orphan.pids(), orphan.rssBytes() / 1024 / 1024);
+            kill(orphan, "orphan");
+        }
+
+        trackedProcesses.set(processes);
+        trackedRssBytes.set(rssBytes);
+        trackedCpuMillis.set(cpuMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // アプリケーションの停止時は、実行中のログインのChromeも残さない
+        for (Lease lease : List.copyOf(leases.values())) {
+            lease.close();
+        }
+    }
+
+    // 指定したプロファイルディレクトリを使っているChromeのメインプロセスとその子孫、親のchromedriverを探す
+    private ProcessTree findTree(Path userDataDir) {
+        String marker = USER_DATA_DIR_ARG + userDataDir;
+        List<ProcessHandle> roots = ProcessHandle.allProcesses()
+                .filter(process -> arguments(process.pid()).contains(marker))
+                .toList();
+        return treeOf(roots);
+    }
+
+    // quit() 直後はプロセスの終了処理中のことがあるため、少し待ってから残っているものを返す
+    private ProcessTree awaitExit(Path userDataDir) {
+        long deadline = System.nanoTime() + EXIT_GRACE.toNanos();
+        ProcessTree tree = findTree(userDataDir);
+        while (!tree.isEmpty() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break; // 割り込まれた場合は待たずに強制終了する
+            }
+            tree = findTree(userDataDir);
+        }
+        return tree;
+    }
+
+    private List<ProcessTree> findOrphans(Set<Long> ownedPids, Instant now) {
+        String orphanMarker = USER_DATA_DIR_ARG + userDataRoot.resolve(USER_DATA_DIR_PREFIX);
+        Map<String, List<ProcessHandle>> byProfile = new LinkedHashMap<>();
+        for (ProcessHandle process : ProcessHandle.allProcesses().toList()) {
+            if (ownedPids.contains(process.pid())) {
+                continue;
+            }
+            arguments(process.pid()).stream()
+                    .filter(argument -> argument.startsWith(orphanMarker))
+                    .map(argument -> argument.substring(USER_DATA_DIR_ARG.length()))
+                    .filter(profile -> !leases.containsKey(Path.of(profile)))
+                    .findFirst()
+                    .ifPresent(profile -> byProfile.computeIfAbsent(profile, key -> new ArrayList<>()).add(process));
+        }
+        List<ProcessTree> orphans = new ArrayList<>();
+        byProfile.values().forEach(roots -> orphans.add(treeOf(roots)));
+
+        // Chromeを起動しないまま残ったchromedriver (このJVMの子プロセス)
+        ProcessHandle.current().children()
+                .filter(child -> isChromedriver(child.pid()))
+                .filter(child -> !ownedPids.contains(child.pid()))
+                .filter(child -> child.children().findAny().isEmpty())
+                .filter(child -> child.info().startInstant().map(start -> start.plus(ORPHAN_GRACE).isBefore(now)).orElse(false))
+                .forEach(child -> orphans.add(treeOf(List.of(child))));
+        return orphans;
+    }
+
+    private ProcessTree treeOf(List<ProcessHandle> roots) {
+        // このJVM自身とその祖先は、どのような場合も対象にしない
+        Set<Long> protectedPids = new HashSet<>();
+        for (Optional<ProcessHandle> process = Optional.of(ProcessHandle.current()); process.isPresent(); process = process.get().parent()) {
+            protectedPids.add(process.get().pid());
+        }
+        Map<Long, ProcessHandle> members = new LinkedHashMap<>();
+        for (ProcessHandle root : roots) {
+            if (protectedPids.contains(root.pid())) {
+                continue;
+            }
+            root.descendants().forEach(process -> members.putIfAbsent(process.pid(), process));
+            members.putIfAbsent(root.pid(), root);
+            root.parent()
+                    .filter(parent -> !protectedPids.contains(parent.pid()) && isChromedriver(parent.pid()))
+                    .ifPresent(driver -> members.putIfAbsent(driver.pid(), driver));
+        }
+        long rssBytes = 0;
+        long cpuMillis = 0;
+        for (ProcessHandle process : members.values()) {
+            rssBytes += rssBytes(process.pid());
+            cpuMillis += cpuMillis(process.pid());
+        }
+        return new ProcessTree(List.copyOf(members.values()), rssBytes, cpuMillis);
+    }
+
+    private void kill(ProcessTree tree, String reason) {
+        if (tree.isEmpty()) {
+            return;
+        }
+        for (ProcessHandle process : tree.processes()) {
+            process.destroyForcibly();
+        }
+        Counter.builder("schedy.chrome.killed")
+                .description("Number of Chrome process trees killed by the watchdog")
+                .tag("reason", reason)
+                .register(Metrics.globalRegistry)
+                .increment();
+    }
+
+    // /proc/<pid>/cmdline の引数 (NUL 区切り)。読めない場合は空のリスト
+    private List<String> arguments(long pid) {
+        return readProc(pid, "cmdline")
+                .map(commandLine -> List.of(commandLine.split("\0")))
+                .orElse(List.of());
+    }
+
+    // 実行ファイルが chromedriver か
+    private boolean isChromedriver(long pid) {
+        List<String> arguments = arguments(pid);
+        return !arguments.isEmpty() && Path.of(arguments.get(0)).getFileName().toString().startsWith("chromedriver");
+    }
+
+    // /proc/<pid>/status の VmRSS (kB)
+    private long rssBytes(long pid) {
+        return readProc(pid, "status")
+                .flatMap(status -> status.lines().filter(line -> line.startsWith("VmRSS:")).findFirst())
+                .map(line -> Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024)
+                .orElse(0L);
+    }
+
+    // /proc/<pid>/stat の utime + stime (プロセス名に空白を含むことがあるため、最後の ')' 以降を解析する)
+    private long cpuMillis(long pid) {
+        return readProc(pid, "stat")
+                .map(stat -> stat.substring(stat.lastIndexOf(')') + 2).split(" "))
+                .filter(fields -> fields.length > 12)
+                .map(fields -> (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * 1000 / CLOCK_TICKS_PER_SECOND)
+                .orElse(0L);
+    }
+
+    private Optional<String> readProc(long pid, String file) {
+        try {
+            return Optional.of(new String(Files.readAllBytes(PROC.resolve(Long.toString(pid)).resolve(file)), StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            return Optional.empty(); // 終了済み・権限なし
+        }
+    }
+
+    private void deleteQuietly(Path directory) {
+        try {
+            FileSystemUtils.deleteRecursively(directory);
+        } catch (IOException e) {
+            log.debug("Chromeのプロファイルディレクトリを削除できませんでした: {}", directory, e);
+        }
+    }
+}
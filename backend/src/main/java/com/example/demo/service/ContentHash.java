@@ -0,0 +1,35 @@
+package com.example.demo.service;
+
+/**
+ * 非暗号学的な高速ハッシュ (64bit FNV-1a) で、内容から決定的な識別子を生成するユーティリティ。
+ * 授業・課題のIDや同期結果のバージョントークンに使用する。
+ */
+final class ContentHash {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char FIELD_SEPARATOR = '\u001f';
+
+    private ContentHash() {
+    }
+
+    /**
+     * 複数の文字列を区切り文字付きで連結したものとしてハッシュし、16桁の16進文字列を返します。
+     */
+    static String hex(String... parts) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                hash = (hash ^ FIELD_SEPARATOR) * FNV_PRIME;
+            }
+            String part = parts[i] != null ? parts[i] : "";
+            for (int j = 0; j < part.length(); j++) {
+                char c = part.charAt(j);
+                hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+                hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+            }
+        }
+        String hex = Long.toHexString(hash);
+        return "0".repeat(16 - hex.length()) + hex;
+    }
+}
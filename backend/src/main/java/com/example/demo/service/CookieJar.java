@@ -0,0 +1,223 @@
+package com.example.demo.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.net.HttpCookie;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * manabaのセッションCookieを、有効期限・ドメイン・パスと共に保持する不変のCookieJar。
+ * 単なる Map&lt;String,String&gt; と違い、Cookieの実際の有効期限が分かるため、
+ * ページを取得しなくても期限切れを判定でき、セッション更新の時刻も有効期限から決められる。
+ *
+ * DBには短いキー名のJSON ({"v":2,"c":[{"n":..,"v":..,"d":..,"p":..,"e":..}]}) を暗号化して保存する。
+ * 旧形式 (名前→値のJSONオブジェクト) も読み込める。その場合、有効期限は不明として扱う。
+ */
+public final class CookieJar {
+
+    private static final int FORMAT_VERSION = 2;
+    private static final Gson GSON = new Gson();
+    private static final Type LEGACY_MAP_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+    private static final CookieJar EMPTY = new CookieJar(Collections.emptyMap());
+
+    /**
+     * 1つのCookie。expiresAt が null のものはセッションCookie (ブラウザを閉じるまで有効) を表す。
+     */
+    public record StoredCookie(String name, String value, String domain, String path, Instant expiresAt) {
+        boolean isExpired(Instant now) {
+            return expiresAt != null && !expiresAt.isAfter(now);
+        }
+    }
+
+    // 保存形式。サイズを抑えるためキー名を1文字にしている (e は有効期限のエポック秒)
+    private record CompactCookie(String n, String v, String d, String p, Long e) {}
+    private record CompactJar(int v, List<CompactCookie> c) {}
+
+    private final Map<String, StoredCookie> cookies; // 名前 → Cookie
+
+    private CookieJar(Map<String, StoredCookie> cookies) {
+        this.cookies = cookies;
+    }
+
+    public static CookieJar empty() {
+        return EMPTY;
+    }
+
+    /**
+     * 名前と値のみのCookieから作成します (有効期限・ドメインは不明)。
+     */
+    public static CookieJar fromMap(Map<String, String> values) {
+        if (values == null || values.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, StoredCookie> cookies = new LinkedHashMap<>();
+        values.forEach((name, value) -> cookies.put(name, new StoredCookie(name, value, null, null, null)));
+        return new CookieJar(Collections.unmodifiableMap(cookies));
+    }
+
+    /**
+     * SeleniumのCookieから作成します。
+     */
+    public static CookieJar fromSelenium(Collection<org.openqa.selenium.Cookie> seleniumCookies) {
+        if (seleniumCookies == null || seleniumCookies.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, StoredCookie> cookies = new LinkedHashMap<>();
+        for (org.openqa.selenium.Cookie cookie : seleniumCookies) {
+            Instant expiresAt = cookie.getExpiry() != null ? cookie.getExpiry().toInstant() : null;
+            cookies.put(cookie.getName(), new StoredCookie(cookie.getName(), cookie.getValue(), cookie.getDomain(), cookie.getPath(), expiresAt));
+        }
+        return new CookieJar(Collections.unmodifiableMap(cookies));
+    }
+
+    /**
+     * 保存形式のJSONから復元します。旧形式 (名前→値のJSONオブジェクト) にも対応します。
+     */
+    public static CookieJar fromJson(String json) {
+        if (json == null || json.isBlank()) {
+            return EMPTY;
+        }
+        JsonElement element = JsonParser.parseString(json);
+        if (!element.isJsonObject()) {
+            return EMPTY;
+        }
+        JsonObject object = element.getAsJsonObject();
+        if (!object.has("c") || !object.has("v") || !object.get("v").isJsonPrimitive()
+                || !object.get("v").getAsJsonPrimitive().isNumber()) {
+            return fromMap(GSON.fromJson(object, LEGACY_MAP_TYPE));
+        }
+
+        CompactJar compact = GSON.fromJson(object, CompactJar.class);
+        if (compact.c() == null || compact.c().isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, StoredCookie> cookies = new LinkedHashMap<>();
+        for (CompactCookie cookie : compact.c()) {
+            if (cookie.n() == null) continue;
+            Instant expiresAt = cookie.e() != null ? Instant.ofEpochSecond(cookie.e()) : null;
+            cookies.put(cookie.n(), new StoredCookie(cookie.n(), cookie.v(), cookie.d(), cookie.p(), expiresAt));
+        }
+        return new CookieJar(Collections.unmodifiableMap(cookies));
+    }
+
+    /**
+     * 保存形式のJSONに変換します。
+     */
+    public String toJson() {
+        List<CompactCookie> compact = new ArrayList<>(cookies.size());
+        for (StoredCookie cookie : cookies.values()) {
+            Long expiresAt = cookie.expiresAt() != null ? cookie.expiresAt().getEpochSecond() : null;
+            compact.add(new CompactCookie(cookie.name(), cookie.value(), cookie.domain(), cookie.path(), expiresAt));
+        }
+        return GSON.toJson(new CompactJar(FORMAT_VERSION, compact));
+    }
+
+    /**
+     * レスポンスで受け取ったCookieを反映した新しいJarを返します。
+     * @param responseCookies Jsoupの response.cookies() (リダイレクト中に受け取ったものを含む名前と値)
+     * @param setCookieHeaders 最終レスポンスの Set-Cookie ヘッダー (有効期限・ドメイン・パスの取得に使用)
+     * @param now 受信時刻 (Max-Age の基準)
+     */
+    public CookieJar merge(Map<String, String> responseCookies, List<String> setCookieHeaders, Instant now) {
+        boolean hasResponseCookies = responseCookies != null && !responseCookies.isEmpty();
+        boolean hasHeaders = setCookieHeaders != null && !setCookieHeaders.isEmpty();
+        if (!hasResponseCookies && !hasHeaders) {
+            return this;
+        }
+
+        Map<String, StoredCookie> merged = new LinkedHashMap<>(cookies);
+        if (hasResponseCookies) {
+            responseCookies.forEach((name, value) -> {
+                StoredCookie current = merged.get(name);
+                merged.put(name, current != null
+                        ? new StoredCookie(name, value, current.domain(), current.path(), current.expiresAt())
+                        : new StoredCookie(name, value, null, null, null));
+            });
+        }
+        if (hasHeaders) {
+            for (String header : setCookieHeaders) {
+                List<HttpCookie> parsed;
+                try {
+                    parsed = HttpCookie.parse(header);
+                } catch (IllegalArgumentException e) {
+                    continue; // 解釈できない Set-Cookie は無視する (値は responseCookies 側で反映済み)
+                }
+                for (HttpCookie cookie : parsed) {
+                    if (cookie.getMaxAge() == 0) {
+                        merged.remove(cookie.getName()); // 削除指示
+                        continue;
+                    }
+                    Instant expiresAt = cookie.getMaxAge() > 0 ? now.plusSeconds(cookie.getMaxAge()) : null;
+                    merged.put(cookie.getName(), new StoredCookie(cookie.getName(), cookie.getValue(), cookie.getDomain(), cookie.getPath(), expiresAt));
+                }
+            }
+        }
+        return new CookieJar(Collections.unmodifiableMap(merged));
+    }
+
+    /**
+     * Jsoupに渡すための、期限切れでないCookieの名前と値を返します。
+     */
+    public Map<String, String> toMap() {
+        Instant now = Instant.now();
+        Map<String, String> values = new LinkedHashMap<>();
+        cookies.values().stream()
+                .filter(cookie -> !cookie.isExpired(now))
+                .forEach(cookie -> values.put(cookie.name(), cookie.value()));
+        return values;
+    }
+
+    public boolean isEmpty() {
+        return cookies.isEmpty();
+    }
+
+    /**
+     * Cookieを持っているが、全て有効期限を過ぎている (送っても認証できないことが分かっている) かを判定します。
+     */
+    public boolean isExpired(Instant now) {
+        return !cookies.isEmpty() && cookies.values().stream().allMatch(cookie -> cookie.isExpired(now));
+    }
+
+    /**
+     * 指定時刻より後に切れるCookieのうち、最も早い有効期限を返します。
+     * 全てセッションCookieの場合は空を返します。
+     */
+    public Optional<Instant> earliestExpiryAfter(Instant now) {
+        return cookies.values().stream()
+                .map(StoredCookie::expiresAt)
+                .filter(expiresAt -> expiresAt != null && expiresAt.isAfter(now))
+                .min(Instant::compareTo);
+    }
+
+    public Collection<StoredCookie> cookies() {
+        return cookies.values();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (other instanceof CookieJar jar && cookies.equals(jar.cookies));
+    }
+
+    @Override
+    public int hashCode() {
+        return cookies.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        // 値は秘密情報のため出力しない
+        return "CookieJar" + cookies.keySet();
+    }
+}
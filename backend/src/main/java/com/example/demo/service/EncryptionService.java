@@ -1,17 +1,24 @@
 package com.example.demo.service;
 
+import com.example.demo.monitoring.EncryptionEvent;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Base64;
 
 /**
  * AES/GCM方式で文字列の暗号化・復号を行う責務を持つServiceクラス。
+ *
+ * セッション更新の一括処理では1ユーザーあたり複数回呼ばれるため、
+ * Cipher と IV 用の SecureRandom はスレッドごとに使い回し、中間のバイト配列のコピーも行わない。
+ * 保存形式 (Base64(IV 12バイト + 暗号文 + 認証タグ)) は変更していない。
  */
 @Service
 public class EncryptionService {
@@ -19,7 +26,11 @@ public class EncryptionService {
     private static final String ALGORITHM = "AES/GCM/NoPadding";
     private static final int GCM_TAG_LENGTH = 128; // in bits
     private static final int IV_LENGTH = 12; // in bytes
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    // Cipher.getInstance はプロバイダ検索を伴い重いため、スレッドごとに1つだけ生成する (init で毎回鍵とIVを設定する)
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(EncryptionService::newCipher);
+    // 共有の SecureRandom は高負荷時に競合するため、IVの生成もスレッドごとに行う
+    private static final ThreadLocal<SecureRandom> IV_RANDOMS = ThreadLocal.withInitial(EncryptionService::newIvRandom);
 
     private final SecretKeySpec secretKey;
 
@@ -29,48 +40,86 @@ public class EncryptionService {
     }
 
     public String encrypt(String valueToEnc) {
+        EncryptionEvent event = new EncryptionEvent();
+        event.begin();
         try {
-            byte[] iv = new byte[IV_LENGTH];
-            SECURE_RANDOM.nextBytes(iv);
-
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, parameterSpec);
+            byte[] plainText = valueToEnc.getBytes(StandardCharsets.UTF_8);
+            event.bytes = plainText.length;
+            Cipher cipher = CIPHERS.get();
 
-            byte[] cipherText = cipher.doFinal(valueToEnc.getBytes(StandardCharsets.UTF_8));
-
-            // IV（初期化ベクトル）と暗号文を結合して保存する
-            byte[] payload = new byte[IV_LENGTH + cipherText.length];
+            // IV（初期化ベクトル）と暗号文を1つの配列に直接書き込む
+            byte[] payload = new byte[IV_LENGTH + plainText.length + GCM_TAG_LENGTH / 8];
+            byte[] iv = new byte[IV_LENGTH];
+            IV_RANDOMS.get().nextBytes(iv);
             System.arraycopy(iv, 0, payload, 0, IV_LENGTH);
-            System.arraycopy(cipherText, 0, payload, IV_LENGTH, cipherText.length);
+
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            int written = cipher.doFinal(
+                    ByteBuffer.wrap(plainText),
+                    ByteBuffer.wrap(payload, IV_LENGTH, payload.length - IV_LENGTH)
+            );
+            if (written != payload.length - IV_LENGTH) {
+                throw new IllegalStateException("暗号文の長さが想定と異なります。");
+            }
 
             return Base64.getEncoder().encodeToString(payload);
         } catch (Exception e) {
             throw new RuntimeException("暗号化に失敗しました", e);
+        } finally {
+            commit(event, "encrypt");
         }
     }
 
     public String decrypt(String encryptedValue) {
+        EncryptionEvent event = new EncryptionEvent();
+        event.begin();
         try {
             byte[] payload = Base64.getDecoder().decode(encryptedValue);
             if (payload.length <= IV_LENGTH) {
                 throw new IllegalArgumentException("不正な暗号データです。");
             }
 
-            // IVと暗号文を分離
-            byte[] iv = new byte[IV_LENGTH];
-            byte[] cipherText = new byte[payload.length - IV_LENGTH];
-            System.arraycopy(payload, 0, iv, 0, IV_LENGTH);
-            System.arraycopy(payload, IV_LENGTH, cipherText, 0, cipherText.length);
-
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, parameterSpec);
+            // IVと暗号文は分離せず、payload上の位置を指定して扱う
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, payload, 0, IV_LENGTH));
 
-            byte[] decryptedText = cipher.doFinal(cipherText);
-            return new String(decryptedText, StandardCharsets.UTF_8);
+            // 復号結果は暗号文と同じ領域に上書きする (in-place)
+            int cipherTextLength = payload.length - IV_LENGTH;
+            int decryptedLength = cipher.doFinal(
+                    ByteBuffer.wrap(payload, IV_LENGTH, cipherTextLength),
+                    ByteBuffer.wrap(payload, IV_LENGTH, cipherTextLength)
+            );
+            event.bytes = decryptedLength;
+            return new String(payload, IV_LENGTH, decryptedLength, StandardCharsets.UTF_8);
         } catch (Exception e) {
             throw new RuntimeException("復号に失敗しました", e);
+        } finally {
+            commit(event, "decrypt");
+        }
+    }
+
+    // JFRで記録が有効な場合のみ書き込む (無効時のコストはほぼない)
+    private static void commit(EncryptionEvent event, String operation) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.commit();
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cipherの初期化に失敗しました: " + ALGORITHM, e);
+        }
+    }
+
+    private static SecureRandom newIvRandom() {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
         }
     }
-}
\ No newline at end of file
+}
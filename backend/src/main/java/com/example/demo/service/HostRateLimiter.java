@@ -0,0 +1,72 @@
+package com.example.demo.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接続先ホストごとにリクエストの間隔を一定以上に保つレートリミッター。
+ * セッション更新を並列に実行しても、manabaへのリクエストが一度に集中しないようにする。
+ * 各呼び出しは次の空き時刻を予約し、その時刻まで待機する (予約はロックを使わずCASで行う)。
+ */
+@Component
+public class HostRateLimiter {
+
+    private final long intervalNanos;
+    private final ConcurrentHashMap<String, AtomicLong> nextSlots = new ConcurrentHashMap<>();
+
+    public HostRateLimiter(@Value("${manaba.rate-limit.requests-per-second:5}") double requestsPerSecond) {
+        this.intervalNanos = requestsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond) : 0L;
+    }
+
+    /**
+     * バックグラウンドの処理 (INTERACTIVE 以外) のリクエストのみ、acquire と同じく間隔を制限します。
+     * 事前取得・セッション更新は並列に実行されるため、各ページの取得ごとに呼び出すこと。
+     * 進捗画面で待っている同期は待たせない (同時リクエスト数は OutboundLimiter が制限する)。
+     * @throws IOException 待機中に割り込まれた場合
+     */
+    public void acquireForBackground(WorkPriority priority, String url) throws IOException {
+        if (priority == WorkPriority.INTERACTIVE) {
+            return;
+        }
+        try {
+            acquire(url);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("manabaへのリクエスト間隔の待機中に中断されました。", e);
+        }
+    }
+
+    /**
+     * 指定URLのホストへのリクエスト枠を確保し、確保した時刻まで待機します。
+     * @param url リクエスト先のURL
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    public void acquire(String url) throws InterruptedException {
+        if (intervalNanos <= 0) {
+            return;
+        }
+        String host = URI.create(url).getHost();
+        AtomicLong nextSlot = nextSlots.computeIfAbsent(host != null ? host : url, key -> new AtomicLong(System.nanoTime()));
+
+        long now;
+        long slot;
+        while (true) {
+            now = System.nanoTime();
+            long current = nextSlot.get();
+            slot = Math.max(current, now);
+            if (nextSlot.compareAndSet(current, slot + intervalNanos)) {
+                break;
+            }
+        }
+        long waitNanos = slot - now;
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -1,20 +1,29 @@
 package com.example.demo.service;
 
 import com.example.demo.dto.SyncResult;
+import com.example.demo.monitoring.SyncJobEvent;
 // ★★★ ManabaScrapingOrchestrator の LoginProgressListener をインポート ★★★
 import com.example.demo.service.ManabaScrapingOrchestrator.LoginProgressListener;
+import com.example.demo.service.SyncSnapshotService.StoredSyncResult;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.Iterator;
+import java.util.function.Consumer;
 
 /**
  * 非同期のログイン・スクレイピングジョブを管理するService。
@@ -26,14 +35,35 @@ public class JobManagerService {
 
     private static final Logger log = LoggerFactory.getLogger(JobManagerService.class);
     private static final Duration JOB_TTL = Duration.ofMinutes(10); // 10分間ジョブを保持
-    private final ExecutorService executor = Executors.newFixedThreadPool(5); // 5つのスレッドで並列処理
     private final ConcurrentHashMap<String, LoginJob> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LoginJob> refreshJobsByUser = new ConcurrentHashMap<>(); // userId -> 実行中の再検証ジョブ
+    private final ConcurrentHashMap<String, Instant> refreshAttemptsByUser = new ConcurrentHashMap<>(); // userId -> 最後に再検証を開始した時刻
 
     private final AuthService authService;
+    private final SyncSnapshotService syncSnapshotService;
+    private final Tracer tracer;
+    // 重たい処理は、バックグラウンドのセッション更新と共有のワーカーで優先度順に実行する
+    private final PriorityJobScheduler scheduler;
+    private final SyncRateLimiter syncRateLimiter;
+    private final Duration refreshRetryInterval; // 同じユーザーの再検証を再び開始するまでの間隔
 
-    // AuthServiceをDI (Dependency Injection) する
-    public JobManagerService(AuthService authService) {
+    // AuthServiceとSyncSnapshotServiceをDI (Dependency Injection) する
+    public JobManagerService(AuthService authService, SyncSnapshotService syncSnapshotService, Tracer tracer,
+                             PriorityJobScheduler scheduler, SyncRateLimiter syncRateLimiter,
+                             @Value("${sync.result.freshness:PT30M}") Duration refreshRetryInterval) {
         this.authService = authService;
+        this.syncSnapshotService = syncSnapshotService;
+        this.tracer = tracer;
+        this.scheduler = scheduler;
+        this.syncRateLimiter = syncRateLimiter;
+        this.refreshRetryInterval = refreshRetryInterval;
+        // ワーカーはセッション更新と共有のため、その分も含めた数を公開する (優先度ごとの数は schedy.scheduler.*)
+        Gauge.builder("schedy.sync.executor.queue", scheduler, PriorityJobScheduler::queuedTotal)
+                .description("Number of jobs waiting for a worker thread")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("schedy.sync.executor.active", scheduler, PriorityJobScheduler::runningTotal)
+                .description("Number of jobs currently running on a worker thread")
+                .register(Metrics.globalRegistry);
     }
 
     /**
@@ -44,18 +74,95 @@ public class JobManagerService {
      * @return 開始されたジョブのインスタンス
      */
     public LoginJob startNewSyncJob(String userId, String username, String password, boolean rememberMe) {
+        // ユーザーが進捗画面で待っているため、バックグラウンドの処理より先に実行する
+        return startSyncJob(userId, username, password, rememberMe, WorkPriority.INTERACTIVE);
+    }
+
+    private LoginJob startSyncJob(String userId, String username, String password, boolean rememberMe,
+                                  WorkPriority priority) {
         cleanupExpiredJobs(); // 古いジョブを削除
         String jobId = UUID.randomUUID().toString();
         LoginJob job = new LoginJob(jobId, userId, username, rememberMe);
         jobs.put(jobId, job); // 新しいジョブを登録
         log.debug("新しい同期ジョブを開始しました: jobId={}", jobId);
 
-        // executorを使って、重たい処理をバックグラウンドで実行
-        executor.submit(() -> executeSyncJob(job, password)); // ★ rememberMeはjobオブジェクトから取得するので引数不要
+        // スケジューラーを使って、重たい処理をバックグラウンドで実行
+        long queuedAtNanos = System.nanoTime(); // 待ち行列での待ち時間の計測用
+        // ジョブのスパンを呼び出し元 (HTTPリクエスト) のトレースにつなげるため、スレッドを移る前に親スパンを取得しておく
+        Span parentSpan = tracer.currentSpan();
+        // ジョブは取りやめると完了しないため、中断不可として登録する
+        failIfNotRun(job, scheduler.submit(priority, false, () -> executeJob(job, parentSpan,
+                jobSpan -> runSyncJob(job, password, queuedAtNanos, jobSpan)))); // ★ rememberMeはjobオブジェクトから取得するので引数不要
 
         return job;
     }
 
+    /**
+     * 再検証ジョブの開始結果。job が null の場合は開始していない (loginRequired=true なら対話的な同期が必要)。
+     */
+    public record RefreshStart(LoginJob job, boolean loginRequired) {
+        static final RefreshStart NOT_STARTED = new RefreshStart(null, false);
+    }
+
+    /**
+     * 保存済み結果が古い場合のバックグラウンド再検証ジョブを開始します。
+     * 同じユーザーの再検証ジョブが実行中であれば、新しく開始せずにそのジョブを返します。
+     * ユーザーは保存済み結果を表示しながら待つため、進捗画面で待っている同期より後に実行します (PREWARM)。
+     *
+     * 再検証は保存済みCookieのみで行い、Seleniumでのログインは行いません (MFAの承認を表示する画面がないため)。
+     * Cookieがない・有効期限切れの場合は開始せずに loginRequired=true を返し、Cookieがmanabaに拒否された場合はジョブを
+     * LOGIN_REQUIRED の段階で失敗させます。いずれの場合も、クライアントは対話的な同期を開始すること。
+     *
+     * 開始回数は SyncRateLimiter (Cookie認証の枠、大学IDごと) で制限し、同じユーザーの再検証は前回の開始から
+     * sync.result.freshness の間は再び開始しません (失敗が続いて結果が古いままでも、表示のたびに開始しないように)。
+     * @param userId ユーザープロファイルのUUID
+     */
+    public synchronized RefreshStart startOrJoinRefreshJob(UUID userId) {
+        String key = userId.toString();
+        LoginJob running = refreshJobsByUser.get(key);
+        if (running != null && !running.isFinished()) {
+            log.debug("実行中の再検証ジョブを再利用します: userId={}, jobId={}", userId, running.getId());
+            return new RefreshStart(running, false);
+        }
+        Instant now = Instant.now();
+        Instant lastAttempt = refreshAttemptsByUser.get(key);
+        if (lastAttempt != null && lastAttempt.plus(refreshRetryInterval).isAfter(now)) {
+            log.debug("前回の再検証から間もないため、再検証ジョブは開始しません: userId={}", userId);
+            return RefreshStart.NOT_STARTED;
+        }
+        Optional<AuthService.SyncAccount> account = authService.resolveAccount(key, null);
+        if (account.isEmpty() || !account.get().cookiesUsable()) {
+            log.debug("有効なCookieがないため、再検証ジョブは開始しません: userId={}", userId);
+            return new RefreshStart(null, true);
+        }
+        if (!syncRateLimiter.tryAcquire(account.get().universityId(), SyncRateLimiter.AuthPath.COOKIE).allowed()) {
+            log.debug("同期の開始回数の上限に達しているため、再検証ジョブは開始しません: userId={}", userId);
+            return RefreshStart.NOT_STARTED;
+        }
+        cleanupExpiredJobs();
+        String jobId = UUID.randomUUID().toString();
+        LoginJob job = new LoginJob(jobId, key, null, true);
+        jobs.put(jobId, job);
+        refreshJobsByUser.put(key, job);
+        refreshAttemptsByUser.put(key, now);
+        long queuedAtNanos = System.nanoTime();
+        Span parentSpan = tracer.currentSpan();
+        failIfNotRun(job, scheduler.submit(WorkPriority.PREWARM, false, () -> executeJob(job, parentSpan,
+                jobSpan -> runRevalidateJob(job, userId, queuedAtNanos, jobSpan))));
+        return new RefreshStart(job, false);
+    }
+
+    // ジョブは中断不可として登録するため、実行されずに完了するのはシャットダウンで取りやめた場合のみ
+    // (QUEUED のまま残さず、クライアントが再試行を案内できるよう失敗として記録する)
+    private void failIfNotRun(LoginJob job, CompletableFuture<Boolean> done) {
+        done.thenAccept(ran -> {
+            if (!ran) {
+                log.info("サーバーの停止によりジョブを取りやめました: jobId={}", job.getId());
+                job.fail("FAILED", "サーバーの再起動のため同期を中止しました。しばらくしてからもう一度同期してください。");
+            }
+        });
+    }
+
     /**
      * 指定されたIDのジョブを取得します。
      * @param jobId ジョブID
@@ -73,16 +180,66 @@ public class JobManagerService {
     }
 
     /**
-     * バックグラウンドで同期処理を実行する本体。
-     * LoginProgressListenerを実装し、AuthService経由でOrchestratorに渡す。
+     * バックグラウンドでジョブを実行する本体。
+     * ジョブ1件を1つのスパン (sync-job) とし、段階・ページ取得・DBアクセスはその子スパンとして記録する。
      */
-    private void executeSyncJob(LoginJob job, String password) {
-        job.updateStage("QUEUED", "ログインキューに登録しました");
-        log.debug("ジョブ実行開始: jobId={}", job.getId());
+    private void executeJob(LoginJob job, Span parentSpan, Consumer<Span> body) {
+        Span jobSpan = (parentSpan != null ? tracer.nextSpan(parentSpan) : tracer.nextSpan())
+                .name("sync-job")
+                .tag("job.id", job.getId())
+                .tag("job.remember_me", String.valueOf(job.isRememberMe()))
+                .start();
+        try (Tracer.SpanInScope ignored = tracer.withSpan(jobSpan)) {
+            body.accept(jobSpan);
+        } finally {
+            jobSpan.end();
+        }
+    }
 
-        // ★★★ 正しい型 (ManabaScrapingOrchestrator.LoginProgressListener) を使う ★★★
-        // (importしているので、クラス名を省略して new LoginProgressListener() と書ける)
-        LoginProgressListener listener = new LoginProgressListener() {
+    /**
+     * 保存済みCookieのみで再検証するジョブ。Cookieが拒否された場合は LOGIN_REQUIRED で失敗させる。
+     */
+    private void runRevalidateJob(LoginJob job, UUID userId, long queuedAtNanos, Span jobSpan) {
+        SyncJobEvent jobEvent = new SyncJobEvent();
+        jobEvent.queueWait = System.nanoTime() - queuedAtNanos;
+        jobSpan.tag("job.queue_wait_ms", String.valueOf(TimeUnit.NANOSECONDS.toMillis(jobEvent.queueWait)));
+        jobEvent.begin();
+        StageTimingListener listener = new StageTimingListener(progressListener(job), tracer);
+        try {
+            job.updateStatus("IN_PROGRESS", "保存済みのログイン状態で最新の情報を取得しています...");
+            Optional<SyncResult> result = authService.revalidateWithCookies(userId, listener);
+            if (result.isPresent()) {
+                listener.succeeded();
+                jobEvent.outcome = "success";
+                job.complete(result.get(), syncSnapshotService.versionOf(result.get()), "manabaからの情報取得が完了しました。");
+            } else {
+                jobEvent.outcome = "login-required";
+                job.requireLogin("ログイン状態の有効期限が切れています。最新の情報を取得するには、もう一度同期してください。");
+            }
+        } catch (UpstreamUnavailableException e) {
+            listener.failed(e);
+            jobSpan.error(e);
+            jobEvent.outcome = "failure";
+            log.warn("manabaに接続できないため、再検証ジョブを中止しました: jobId={}", job.getId());
+            job.fail("FAILED", "manabaに接続できない状態が続いています。しばらくしてから再試行してください。");
+        } catch (Exception e) {
+            listener.failed(e);
+            jobSpan.error(e);
+            jobEvent.outcome = "failure";
+            log.error("再検証ジョブの実行中にエラーが発生しました: jobId={}", job.getId(), e);
+            job.fail("FAILED", "エラーが発生しました: " + e.getMessage());
+        } finally {
+            jobEvent.end();
+            if (jobEvent.shouldCommit()) {
+                jobEvent.jobId = job.getId();
+                jobEvent.commit();
+            }
+        }
+    }
+
+    // ジョブの進捗・MFA情報を LoginJob に反映するリスナー
+    private LoginProgressListener progressListener(LoginJob job) {
+        return new LoginProgressListener() {
             @Override
             public void onStatusUpdate(String stage, String message) {
                 log.debug("Job {} Status Update: Stage={}, Message={}", job.getId(), stage, message);
@@ -94,6 +251,20 @@ public class JobManagerService {
                 job.updateMfa(code, message); // JobのMFA情報を更新
             }
         };
+    }
+
+    private void runSyncJob(LoginJob job, String password, long queuedAtNanos, Span jobSpan) {
+        // ジョブ全体を JFR の SyncJobEvent として記録する (待ち行列での待ち時間は queueWait に記録)
+        SyncJobEvent jobEvent = new SyncJobEvent();
+        jobEvent.queueWait = System.nanoTime() - queuedAtNanos;
+        jobSpan.tag("job.queue_wait_ms", String.valueOf(TimeUnit.NANOSECONDS.toMillis(jobEvent.queueWait)));
+        jobEvent.begin();
+        job.updateStage("QUEUED", "ログインキューに登録しました");
+        log.debug("ジョブ実行開始: jobId={}", job.getId());
+
+        LoginProgressListener jobListener = progressListener(job);
+        // 各段階の所要時間をメトリクスとして記録する
+        StageTimingListener listener = new StageTimingListener(jobListener, tracer);
 
         try {
             job.updateStatus("IN_PROGRESS", "manabaに接続しています...");
@@ -102,10 +273,31 @@ public class JobManagerService {
             // ★ job.isRememberMe() で rememberMe フラグを取得する ★
             SyncResult result = authService.executeSync(job.getUserId(), job.getUsername(), password, job.isRememberMe(), listener);
 
-            job.complete(result, "manabaからの情報取得が完了しました。");
+            String resultVersion = result != null ? syncSnapshotService.versionOf(result) : null;
+            listener.succeeded();
+            jobEvent.outcome = "success";
+            job.complete(result, resultVersion, "manabaからの情報取得が完了しました。");
             log.debug("ジョブ実行成功: jobId={}", job.getId());
 
+        } catch (UpstreamUnavailableException e) {
+            // manabaの障害中はスクレイピングせずに失敗したため、保存済みの結果があればそれを返す
+            listener.failed(e);
+            jobSpan.error(e);
+            Optional<StoredSyncResult> cached = findCachedResult(job);
+            if (cached.isPresent()) {
+                jobEvent.outcome = "cached";
+                log.warn("manabaに接続できないため、保存済みの結果を返します: jobId={}", job.getId());
+                job.complete(cached.get().result(), cached.get().version(),
+                        "manabaに接続できないため、前回取得した結果を表示しています。");
+            } else {
+                jobEvent.outcome = "failure";
+                log.warn("manabaに接続できないため、ジョブを中止しました: jobId={}", job.getId());
+                job.fail("FAILED", "manabaに接続できない状態が続いています。しばらくしてから再試行してください。");
+            }
         } catch (Exception e) {
+            listener.failed(e);
+            jobSpan.error(e);
+            jobEvent.outcome = "failure";
             log.error("ジョブ実行中にエラーが発生しました: jobId={}", job.getId(), e);
             // エラー原因を特定し、より分かりやすいメッセージを返す
             String errorMessage = "予期しないエラーが発生しました: " + e.getMessage();
@@ -122,6 +314,24 @@ public class JobManagerService {
                 }
             }
             job.fail("FAILED", errorMessage);
+        } finally {
+            jobEvent.end();
+            if (jobEvent.shouldCommit()) {
+                jobEvent.jobId = job.getId();
+                jobEvent.commit();
+            }
+        }
+    }
+
+    // ジョブのユーザーの保存済み結果 (ログイン状態を記録しているユーザーのみ)
+    private Optional<StoredSyncResult> findCachedResult(LoginJob job) {
+        if (!job.isRememberMe() || job.getUserId() == null || job.getUserId().isBlank()) {
+            return Optional.empty();
+        }
+        try {
+            return syncSnapshotService.find(UUID.fromString(job.getUserId()));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
         }
     }
 
@@ -130,6 +340,9 @@ public class JobManagerService {
      */
     private void cleanupExpiredJobs() {
         Instant expiration = Instant.now().minus(JOB_TTL);
+        refreshJobsByUser.values().removeIf(LoginJob::isFinished);
+        Instant retryable = Instant.now().minus(refreshRetryInterval);
+        refreshAttemptsByUser.values().removeIf(attemptedAt -> attemptedAt.isBefore(retryable));
         int removedCount = 0;
         Iterator<Map.Entry<String, LoginJob>> iterator = jobs.entrySet().iterator();
         while (iterator.hasNext()) {
@@ -160,6 +373,7 @@ public class JobManagerService {
         private volatile String mfaMessage;
         private volatile String error;
         private volatile SyncResult result; // ★ import com.example.demo.dto.SyncResult; が必要
+        private volatile String resultVersion; // 差分レスポンス用のバージョントークン
         private final Instant createdAt;
         private volatile Instant updatedAt;
 
@@ -186,7 +400,9 @@ public class JobManagerService {
         public String getMfaMessage() { return mfaMessage; }
         public String getError() { return error; }
         public SyncResult getResult() { return result; }
+        public String getResultVersion() { return resultVersion; }
         public Instant getUpdatedAt() { return updatedAt; }
+        public boolean isFinished() { return "SUCCESS".equals(status) || "FAILED".equals(status); }
 
         // --- State Update Methods (synchronizedでスレッドセーフを保証) ---
         private synchronized void updateStatus(String newStatus, String newMessage) {
@@ -232,8 +448,9 @@ public class JobManagerService {
             this.updatedAt = Instant.now();
         }
 
-        private synchronized void complete(SyncResult result, String finalMessage) {
+        private synchronized void complete(SyncResult result, String resultVersion, String finalMessage) {
             this.result = result;
+            this.resultVersion = resultVersion;
             this.status = "SUCCESS";
             this.stage = "SUCCESS";
             this.message = finalMessage;
@@ -247,6 +464,12 @@ public class JobManagerService {
             this.updatedAt = Instant.now();
         }
 
+        // Cookieでは取得できず、対話的な同期 (Seleniumでのログイン) が必要なことを表す
+        private synchronized void requireLogin(String errorMessage) {
+            fail("FAILED", errorMessage);
+            this.stage = "LOGIN_REQUIRED";
+        }
+
         private synchronized void fail(String status, String errorMessage) {
             this.status = (status != null && status.equals("FAILED")) ? status : "FAILED"; // 基本はFAILED
             this.stage = this.status; // Stageも合わせる
@@ -255,6 +478,7 @@ public class JobManagerService {
                 this.message = errorMessage; // メインメッセージもエラーで上書き
             }
             this.result = null; // 失敗時は結果をクリア
+            this.resultVersion = null;
             this.mfaCode = null; // 失敗時はMFA情報をクリア
             this.mfaMessage = null;
             this.updatedAt = Instant.now();
@@ -1,14 +1,22 @@
 package com.example.demo.service;
 
 import com.example.demo.dto.*; // DTOパッケージをインポート
+import com.example.demo.monitoring.LoginStepEvent;
+import com.example.demo.monitoring.PageFetchEvent;
 import io.github.bonigarcia.wdm.WebDriverManager;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.openqa.selenium.*;
 import org.openqa.selenium.chrome.ChromeDriver;
 import org.openqa.selenium.chrome.ChromeOptions;
 import org.openqa.selenium.support.ui.ExpectedConditions;
+import org.openqa.selenium.support.ui.ExpectedCondition;
 import org.openqa.selenium.support.ui.WebDriverWait;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.slf4j.Logger; // Loggerを追加
 import org.slf4j.LoggerFactory; // Loggerを追加
@@ -18,6 +26,7 @@ import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 // import java.util.NoSuchElementException; // ← ambiguous なので削除
 
@@ -32,10 +41,9 @@ public class ManabaScrapingOrchestrator {
     private static final Logger log = LoggerFactory.getLogger(ManabaScrapingOrchestrator.class); // Loggerを追加
 
     // --- 定数定義 (省略せず全て記述) ---
-    private static final String LOGIN_URL = "https://ct.ritsumei.ac.jp/ct/login";
-    private static final String HOME_COURSE_URL = "https://ct.ritsumei.ac.jp/ct/home_course";
     private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120 Safari/537.36";
-    private static final int REQUEST_TIMEOUT_MILLIS = 30_000;
+    // 「サインインの状態を維持しますか?」への応答とホーム画面への遷移は、MFAの承認 (人の操作) を含むため計測値から決めず固定にする
+    private static final Duration MFA_APPROVAL_TIMEOUT = Duration.ofSeconds(120);
     private static final ZoneId JAPAN_ZONE = ZoneId.of("Asia/Tokyo");
     private static final DateTimeFormatter ISO_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
 
@@ -51,16 +59,6 @@ public class ManabaScrapingOrchestrator {
             Map.entry("7", new PeriodTime("20:10", "21:45"))
     );
 
-    private static final Map<String, DayOfWeek> DAY_OF_WEEK_MAP = Map.ofEntries(
-            Map.entry("月", DayOfWeek.MONDAY),
-            Map.entry("火", DayOfWeek.TUESDAY),
-            Map.entry("水", DayOfWeek.WEDNESDAY),
-            Map.entry("木", DayOfWeek.THURSDAY),
-            Map.entry("金", DayOfWeek.FRIDAY),
-            Map.entry("土", DayOfWeek.SATURDAY),
-            Map.entry("日", DayOfWeek.SUNDAY)
-    );
-
     private static final DateTimeFormatter[] DEADLINE_PATTERNS = new DateTimeFormatter[]{
             DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm", Locale.JAPANESE),
             DateTimeFormatter.ofPattern("yyyy/MM/dd(EEE) HH:mm", Locale.JAPANESE),
@@ -71,23 +69,54 @@ public class ManabaScrapingOrchestrator {
     // --- 定数定義ここまで ---
 
     private final ScrapingService scrapingService;
-
-    public ManabaScrapingOrchestrator(ScrapingService scrapingService) {
+    private final HostRateLimiter hostRateLimiter;
+    private final SessionKeepAliveProbe keepAliveProbe;
+    private final Tracer tracer;
+    private final ChromeProcessWatchdog chromeWatchdog;
+    private final TimeoutPolicy timeoutPolicy;
+    private final UpstreamHealthTracker upstreamHealth;
+    private final OutboundLimiter outboundLimiter;
+    private final AtomicInteger activeChromeCount = new AtomicInteger(); // 起動中のChromeの数
+    private final String loginUrl;
+    private final String homeCourseUrl;
+
+    public ManabaScrapingOrchestrator(ScrapingService scrapingService, HostRateLimiter hostRateLimiter, SessionKeepAliveProbe keepAliveProbe, Tracer tracer, ChromeProcessWatchdog chromeWatchdog,
+                                      TimeoutPolicy timeoutPolicy, UpstreamHealthTracker upstreamHealth,
+                                      OutboundLimiter outboundLimiter, @Value("${manaba.base-url:https://ct.ritsumei.ac.jp}") String baseUrl) {
         this.scrapingService = scrapingService;
+        this.hostRateLimiter = hostRateLimiter;
+        this.keepAliveProbe = keepAliveProbe;
+        this.tracer = tracer;
+        this.chromeWatchdog = chromeWatchdog;
+        this.timeoutPolicy = timeoutPolicy;
+        this.upstreamHealth = upstreamHealth;
+        this.outboundLimiter = outboundLimiter;
+        this.loginUrl = baseUrl + "/ct/login";
+        this.homeCourseUrl = baseUrl + "/ct/home_course";
+        Gauge.builder("schedy.chrome.active", activeChromeCount, AtomicInteger::get)
+                .description("Number of headless Chrome instances currently running")
+                .register(Metrics.globalRegistry);
     }
 
-    // 内部的な結果とCookieを保持するレコード (変更なし)
-    public record InternalSyncOutcome(SyncResult syncResultDto, Map<String, String> cookies) {}
+    // 内部的な結果とCookieを保持するレコード
+    public record InternalSyncOutcome(SyncResult syncResultDto, CookieJar cookies) {}
 
     /**
      * 同期処理のメインエントリーポイント。LoginProgressListenerを通じて進捗を通知する。
      */
-    public InternalSyncOutcome sync(String username, String password, Map<String, String> existingCookies, LoginProgressListener listener) throws IOException {
+    public InternalSyncOutcome sync(String username, String password, CookieJar existingCookies, LoginProgressListener listener) throws IOException {
         listener.onStatusUpdate("AUTH_START", "認証処理を開始します...");
-        if (existingCookies != null && !existingCookies.isEmpty()) {
+        if (existingCookies != null && existingCookies.isExpired(Instant.now())) {
+            // 有効期限切れが分かっているCookieでは認証できないため、Jsoupでの確認を省略する
+            log.info("保存済みCookieは有効期限切れのため、Cookie認証を省略します。");
+            listener.onStatusUpdate("COOKIE_FAIL", "保存済みCookieの有効期限が切れています。パスワード認証に移行します。");
+        } else if (existingCookies != null && !existingCookies.isEmpty()) {
             try {
                 listener.onStatusUpdate("COOKIE_AUTH", "Cookie認証を試行中...");
-                return scrapeWithExistingCookies(username, existingCookies, listener);
+                return scrapeWithExistingCookies(username, existingCookies, listener, WorkPriority.INTERACTIVE);
+            } catch (UpstreamUnavailableException e) {
+                // manabaの障害中はパスワード認証 (Chromeの起動) に進まずに失敗させる
+                throw e;
             } catch (IOException e) {
                 log.warn("Cookie認証に失敗しました: {}", e.getMessage());
                 listener.onStatusUpdate("COOKIE_FAIL", "Cookie認証失敗。パスワード認証に移行します。");
@@ -100,87 +129,171 @@ public class ManabaScrapingOrchestrator {
         }
 
         listener.onStatusUpdate("PASSWORD_AUTH", "パスワード認証を開始します...");
-        return loginAndScrape(username, password, listener);
+        return loginAndScrape(username, password, listener, WorkPriority.INTERACTIVE);
     }
 
-    public Map<String, String> refreshSessionOnly(String username, String password, Map<String, String> existingCookies, LoginProgressListener listener) throws IOException {
+    public CookieJar refreshSessionOnly(String username, String password, CookieJar existingCookies, LoginProgressListener listener) throws IOException {
         listener.onStatusUpdate("AUTH_START", "セッション更新を開始します...");
+        if (existingCookies != null && existingCookies.isExpired(Instant.now())) {
+            listener.onStatusUpdate("COOKIE_FAIL", "保存済みCookieの有効期限が切れているため更新をスキップします。");
+            return CookieJar.empty();
+        }
         if (existingCookies != null && !existingCookies.isEmpty()) {
             try {
                 listener.onStatusUpdate("COOKIE_AUTH", "保存済みCookieでアクセスを確認中...");
-                return refreshCookiesWithExisting(username, existingCookies, listener);
+                // セッション更新は並列に実行されるため、manabaへのリクエスト間隔を制限する
+                hostRateLimiter.acquire(keepAliveProbe.getKeepAliveUrl());
+                // ページ全体は使わないため、ヘッダーと本文の先頭だけを読む軽量なプローブで確認する
+                CookieJar refreshedCookies = outboundLimiter.call(WorkPriority.KEEPALIVE,
+                        () -> upstreamHealth.call(() -> keepAliveProbe.probe(existingCookies)));
+                listener.onStatusUpdate("FETCH_HOME_SUCCESS", "セッションの有効性を確認しました。");
+                return refreshedCookies;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("セッション更新の待機中に中断されました。", e);
+            } catch (UpstreamUnavailableException e) {
+                throw e;
             } catch (IOException e) {
                 log.warn("Cookieによるセッション確認に失敗しました: {}", e.getMessage());
                 listener.onStatusUpdate("COOKIE_FAIL", "保存済みCookieが無効です。セッション更新をスキップします。");
-                return Collections.emptyMap();
+                return CookieJar.empty();
             }
         }
 
         listener.onStatusUpdate("COOKIE_FAIL", "セッションCookieが存在しないため更新をスキップします。");
-        return Collections.emptyMap();
+        return CookieJar.empty();
+    }
+
+    /**
+     * バックグラウンドでの事前取得用に、保存済みCookieのみで時間割と課題を取得する。
+     * Cookieが無効な場合はSeleniumでのログインは行わずに IOException を投げる。
+     */
+    public InternalSyncOutcome prewarm(String username, CookieJar existingCookies, LoginProgressListener listener) throws IOException {
+        if (existingCookies == null || existingCookies.isEmpty()) {
+            throw new IOException("セッションCookieが存在しないため事前取得できません。");
+        }
+        if (existingCookies.isExpired(Instant.now())) {
+            throw new IOException("保存済みCookieの有効期限が切れているため事前取得できません。");
+        }
+        listener.onStatusUpdate("COOKIE_AUTH", "保存済みCookieで時間割・課題を事前取得中...");
+        // セッション更新と同じく並列に実行されるため、ホーム画面以降の各ページの取得ごとに manabaへのリクエスト間隔を制限する
+        return scrapeWithExistingCookies(username, existingCookies, listener, WorkPriority.PREWARM);
     }
 
-    private InternalSyncOutcome scrapeWithExistingCookies(String username, Map<String, String> cookies, LoginProgressListener listener) throws IOException {
-        Map<String, String> refreshedCookies = refreshCookiesWithExisting(username, cookies, listener);
-        return buildInternalSyncOutcome(username, refreshedCookies, listener);
+    private InternalSyncOutcome scrapeWithExistingCookies(String username, CookieJar cookies, LoginProgressListener listener,
+                                                          WorkPriority priority) throws IOException {
+        CookieJar refreshedCookies = refreshCookiesWithExisting(username, cookies, listener, priority);
+        return buildInternalSyncOutcome(username, refreshedCookies, listener, priority);
     }
 
-    private Map<String, String> refreshCookiesWithExisting(String username, Map<String, String> cookies, LoginProgressListener listener) throws IOException {
+    private CookieJar refreshCookiesWithExisting(String username, CookieJar cookies, LoginProgressListener listener,
+                                                 WorkPriority priority) throws IOException {
         listener.onStatusUpdate("FETCH_HOME", "ホーム画面を取得中...");
 
-        org.jsoup.Connection.Response response = Jsoup.connect(HOME_COURSE_URL)
-                .cookies(cookies)
-                .userAgent(USER_AGENT)
-                .timeout(REQUEST_TIMEOUT_MILLIS)
-                .followRedirects(true)
-                .execute();
-        Document homeDoc = response.parse();
+        PageFetchEvent fetchEvent = new PageFetchEvent();
+        Span span = tracer.nextSpan().name("page-fetch").tag("url.category", "home").start();
+        fetchEvent.begin();
+        org.jsoup.Connection.Response response;
+        Document homeDoc;
+        try (Tracer.SpanInScope ignored = tracer.withSpan(span)) {
+            hostRateLimiter.acquireForBackground(priority, homeCourseUrl);
+            long startNanos = System.nanoTime();
+            response = upstreamHealth.call(() ->
+                    timeoutPolicy.hedged(TimeoutPolicy.Operation.PAGE_FETCH, priority, () -> {
+                        org.jsoup.Connection.Response fetched = Jsoup.connect(homeCourseUrl)
+                                .cookies(cookies.toMap())
+                                .userAgent(USER_AGENT)
+                                .timeout((int) timeoutPolicy.timeout(TimeoutPolicy.Operation.PAGE_FETCH).toMillis())
+                                .followRedirects(true)
+                                .execute();
+                        fetched.bufferUp();
+                        return fetched;
+                    }));
+            long fetchedNanos = System.nanoTime();
+            span.event("fetched");
+            homeDoc = response.parse();
+            fetchEvent.end();
+            span.tag("http.status_code", String.valueOf(response.statusCode()));
+            if (fetchEvent.shouldCommit()) {
+                fetchEvent.urlCategory = "home";
+                fetchEvent.statusCode = response.statusCode();
+                fetchEvent.bytes = response.bodyAsBytes().length;
+                fetchEvent.fetchDuration = fetchedNanos - startNanos;
+                fetchEvent.parseDuration = System.nanoTime() - fetchedNanos;
+                fetchEvent.commit();
+            }
+        } catch (IOException | RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.end();
+        }
 
         if (isLoginPage(homeDoc)) {
             throw new IOException("Cookieの有効期限が切れています。");
         }
         listener.onStatusUpdate("FETCH_HOME_SUCCESS", "ホーム画面の取得成功。");
 
-        Map<String, String> updatedCookies = new HashMap<>(cookies);
-        Map<String, String> responseCookies = response.cookies();
-        if (responseCookies != null && !responseCookies.isEmpty()) {
-            updatedCookies.putAll(responseCookies);
-        }
-
-        return updatedCookies;
+        // 値だけでなく Set-Cookie の有効期限・ドメイン・パスも保持する
+        return cookies.merge(response.cookies(), response.headers("Set-Cookie"), Instant.now());
     }
 
-    private InternalSyncOutcome loginAndScrape(String username, String password, LoginProgressListener listener) throws IOException {
-        Map<String, String> freshCookies = loginAndFetchCookies(username, password, listener);
-        return buildInternalSyncOutcome(username, freshCookies, listener);
+    private InternalSyncOutcome loginAndScrape(String username, String password, LoginProgressListener listener,
+                                               WorkPriority priority) throws IOException {
+        // ログイン画面が表示されない (タイムアウト) 場合は障害として記録され、障害中はChromeを起動せずに失敗する
+        // 記録するのはパスワードの送信結果を確認するまで (MFAの承認待ちは含めない、performLogin を参照)
+        UpstreamHealthTracker.Attempt upstreamAttempt = upstreamHealth.begin();
+        CookieJar freshCookies;
+        try {
+            freshCookies = loginAndFetchCookies(username, password, listener, upstreamAttempt);
+            upstreamAttempt.succeeded();
+        } catch (IOException | RuntimeException e) {
+            upstreamAttempt.failed(e);
+            throw e;
+        }
+        return buildInternalSyncOutcome(username, freshCookies, listener, priority);
     }
 
-    private Map<String, String> loginAndFetchCookies(String username, String password, LoginProgressListener listener) throws IOException {
+    private CookieJar loginAndFetchCookies(String username, String password, LoginProgressListener listener,
+                                           UpstreamHealthTracker.Attempt upstreamAttempt) throws IOException {
         WebDriverManager.chromedriver().setup();
         ChromeOptions options = new ChromeOptions();
         // ★★★ Chromeバイナリのパスを指定する行を追加 ★★★
         options.setBinary("/opt/google/chrome/chrome");
         options.addArguments("--headless", "--disable-gpu", "--window-size=1920,1080", "--no-sandbox", "--disable-dev-shm-usage");
+        // このログイン専用のプロファイルを割り当て、起動したChromeのプロセスをウォッチドッグに監視させる
+        ChromeProcessWatchdog.Lease chromeLease = chromeWatchdog.open(username);
+        options.addArguments(chromeLease.chromeArgument());
         WebDriver driver = null; // finallyで閉じるために外で宣言
-        Map<String, String> freshCookies = Collections.emptyMap(); // 初期化
+        CookieJar freshCookies = CookieJar.empty(); // 初期化
 
         try {
             log.info("ChromeDriverをオプション付きで初期化します..."); // ログ追加
             driver = new ChromeDriver(options); // 修正したoptionsを使う
+            activeChromeCount.incrementAndGet();
             log.info("ChromeDriverの初期化完了。"); // ログ追加
-            performLogin(driver, username, password, listener);
+            performLogin(driver, username, password, listener, upstreamAttempt);
             listener.onStatusUpdate("FETCH_COOKIE_PAGE", "ログイン後のCookie取得ページにアクセス中...");
-            driver.get(HOME_COURSE_URL); // Cookieを取得するためにホーム画面にアクセス
+            driver.get(homeCourseUrl); // Cookieを取得するためにホーム画面にアクセス
             freshCookies = extractCookies(driver);
             listener.onStatusUpdate("FETCH_COOKIE_SUCCESS", "新しいCookieを取得しました。");
         } catch (Exception e) {
             log.error("manabaへのログインまたはCookie取得中にエラーが発生しました。", e);
             throw new IOException("manabaへのログインに失敗しました: " + e.getMessage(), e);
         } finally {
-            if (driver != null) {
-                log.info("WebDriverを終了します..."); // ログ追加
-                driver.quit();
-                log.info("WebDriverを終了しました。"); // ログ追加
+            try {
+                if (driver != null) {
+                    log.info("WebDriverを終了します..."); // ログ追加
+                    try {
+                        driver.quit();
+                    } finally {
+                        activeChromeCount.decrementAndGet();
+                    }
+                    log.info("WebDriverを終了しました。"); // ログ追加
+                }
+            } finally {
+                // quit() が失敗・中断された場合も、残ったプロセスはここで終了される
+                chromeLease.close();
             }
         }
 
@@ -190,16 +303,18 @@ public class ManabaScrapingOrchestrator {
         return freshCookies;
     }
 
-    private InternalSyncOutcome buildInternalSyncOutcome(String username, Map<String, String> cookies, LoginProgressListener listener) throws IOException {
+    private InternalSyncOutcome buildInternalSyncOutcome(String username, CookieJar cookies, LoginProgressListener listener,
+                                                         WorkPriority priority) throws IOException {
         listener.onStatusUpdate("SCRAPE_START", "データのスクレイピングを開始します...");
-        var rawCourses = scrapingService.parseTimetableToList(cookies);
-        var rawAssignments = scrapingService.getAllAssignments(cookies);
+        Map<String, String> cookieValues = cookies.toMap();
+        var rawCourses = scrapingService.parseTimetableToList(cookieValues, priority);
+        var rawAssignments = scrapingService.getAllAssignments(cookieValues, priority);
         listener.onStatusUpdate("SCRAPE_COMPLETE", "データのスクレイピングが完了しました。");
 
         listener.onStatusUpdate("DATA_PROCESSING", "取得データを整形中...");
         List<CourseEntry> timetable = convertCourses(rawCourses);
         List<AssignmentEntry> assignments = convertAssignments(rawAssignments);
-        NextClassCard nextClass = calculateNextClass(timetable);
+        NextClassCard nextClass = WeeklyScheduleIndex.from(timetable).next(LocalDateTime.now(JAPAN_ZONE));
         String syncedAt = LocalDateTime.now(JAPAN_ZONE).format(ISO_FORMATTER);
         listener.onStatusUpdate("DATA_PROCESSING_COMPLETE", "データ整形完了。");
 
@@ -210,27 +325,33 @@ public class ManabaScrapingOrchestrator {
 /**
      * Seleniumを使ってログイン操作を実行します。
      * ログイン失敗（ID/パスワード間違い）も検知します。
+     * パスワードの送信結果を確認した時点で upstreamAttempt に成功を記録し、以降のMFA/KMSIの待機は障害の判定に含めません。
      * @throws IOException ログイン失敗（ID/パスワード間違い、タイムアウトなど）
+     * @throws MfaApprovalTimeoutException MFAの承認を待つ間に時間切れになった場合
      */
-    private void performLogin(WebDriver driver, String username, String password, LoginProgressListener listener) throws IOException{ 
+    private void performLogin(WebDriver driver, String username, String password, LoginProgressListener progressListener,
+                              UpstreamHealthTracker.Attempt upstreamAttempt) throws IOException{ 
         
-        // ★ 待機時間を調整（Renderの遅さを考慮して全体的に長めに）
-        WebDriverWait longWait = new WebDriverWait(driver, Duration.ofSeconds(120)); // タイムアウト対策で120秒
+        // ★ 入力欄・ボタンの待機時間は TimeoutPolicy が直近の所要時間から決める (Renderが遅い日は上限まで広がる)
+        WebDriverWait approvalWait = new WebDriverWait(driver, MFA_APPROVAL_TIMEOUT);
+        // 各段階の所要時間を JFR の LoginStepEvent として記録する
+        LoginStepRecorder listener = new LoginStepRecorder(progressListener);
+        boolean succeeded = false;
+        boolean awaitingApproval = false;
 
         try {
             listener.onStatusUpdate("ACCESS_LOGIN_PAGE", "ログインページにアクセス中...");
-            driver.get(LOGIN_URL);
+            driver.get(loginUrl);
 
             listener.onStatusUpdate("INPUT_USERNAME", "ユーザー名を入力中...");
-            longWait.until(ExpectedConditions.visibilityOfElementLocated(By.id("i0116"))).sendKeys(username);
+            waitForLoginElement(driver, ExpectedConditions.visibilityOfElementLocated(By.id("i0116"))).sendKeys(username);
             listener.onStatusUpdate("CLICK_NEXT_1", "「次へ」をクリック中...");
-            longWait.until(ExpectedConditions.elementToBeClickable(By.id("idSIButton9"))).click();
+            waitForLoginElement(driver, ExpectedConditions.elementToBeClickable(By.id("idSIButton9"))).click();
 
             // ★★★ ユーザー名間違いのチェック ★★★
             boolean usernameError = waitForErrorOrAdvance(
                     driver,
                     By.id("usernameError"),
-                    Duration.ofSeconds(8),
                     drv -> isElementDisplayed(drv, By.id("i0118"))
             );
             if (usernameError) {
@@ -242,16 +363,15 @@ public class ManabaScrapingOrchestrator {
             log.info("ユーザー名エラーは表示されませんでした。パスワード入力に進みます。");
 
             listener.onStatusUpdate("INPUT_PASSWORD", "パスワードを入力中...");
-            longWait.until(ExpectedConditions.visibilityOfElementLocated(By.id("i0118"))).sendKeys(password);
+            waitForLoginElement(driver, ExpectedConditions.visibilityOfElementLocated(By.id("i0118"))).sendKeys(password);
             listener.onStatusUpdate("CLICK_SIGNIN", "「サインイン」をクリック中...");
-            longWait.until(ExpectedConditions.elementToBeClickable(By.id("idSIButton9"))).click();
+            waitForLoginElement(driver, ExpectedConditions.elementToBeClickable(By.id("idSIButton9"))).click();
             listener.onStatusUpdate("PASSWORD_SUBMITTED", "パスワードを送信しました。");
 
             // ★★★ パスワード間違いのチェック ★★★
             boolean passwordError = waitForErrorOrAdvance(
                     driver,
                     By.id("passwordError"),
-                    Duration.ofSeconds(8),
                     drv -> isElementDisplayed(drv, By.id("idRichContext_DisplaySign"))
                             || drv.getCurrentUrl().contains("/ct/home")
                             || isKmsiPromptDisplayed(drv)
@@ -263,27 +383,89 @@ public class ManabaScrapingOrchestrator {
             }
 
             log.info("パスワードエラーは表示されませんでした。MFA/KMSIに進みます。");
+            // ここまででmanabaの応答は確認できた。以降は人の操作を待つだけのため成功として記録し、HALF_OPEN の試行枠を返す
+            upstreamAttempt.succeeded();
+            awaitingApproval = true;
 
             detectMfaPrompt(driver, listener);
-            handleStaySignedInPrompt(driver, listener, longWait); 
+            handleStaySignedInPrompt(driver, listener, approvalWait);
 
             listener.onStatusUpdate("WAITING_HOME", "ホーム画面への遷移を待機中...");
-            longWait.until(ExpectedConditions.urlContains("/ct/home")); 
+            approvalWait.until(ExpectedConditions.urlContains("/ct/home"));
+            succeeded = true;
             listener.onStatusUpdate("LOGIN_SUCCESS", "ログイン成功を確認しました。");
 
         } catch (TimeoutException e) {
+            if (awaitingApproval) {
+                log.warn("MFAの承認またはホーム画面への遷移を待つ間にタイムアウトしました。");
+                throw new MfaApprovalTimeoutException(e);
+            }
             log.error("ログイン操作中にタイムアウトが発生しました。", e);
             // タイムアウトした瞬間のスクリーンショットを撮る (Renderでは難しいかもしれないが、デバッグ用に)
             // saveScreenshot(driver, "timeout_screenshot.png");
             throw new IOException("ログインページが時間内に表示されませんでした。処理が遅延している可能性があります。", e);
+        } finally {
+            listener.finish(succeeded);
+        }
+    }
+
+    /**
+     * 進捗通知を元のリスナーに渡しつつ、段階が切り替わるたびに直前の段階を LoginStepEvent として記録するリスナー。
+     * MFAの承認待ちは "MFA_WAIT" という段階として記録する。
+     */
+    private static final class LoginStepRecorder implements LoginProgressListener {
+
+        private final LoginProgressListener delegate;
+        private LoginStepEvent current;
+
+        LoginStepRecorder(LoginProgressListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onStatusUpdate(String status, String message) {
+            startStep(status);
+            delegate.onStatusUpdate(status, message);
+        }
+
+        @Override
+        public void onMfaRequired(String mfaCode, String message) {
+            startStep("MFA_WAIT");
+            delegate.onMfaRequired(mfaCode, message);
+        }
+
+        void finish(boolean succeeded) {
+            commitCurrent(succeeded);
+        }
+
+        private void startStep(String step) {
+            commitCurrent(true);
+            current = new LoginStepEvent();
+            current.step = step;
+            current.begin();
+        }
+
+        private void commitCurrent(boolean succeeded) {
+            if (current == null) {
+                return;
+            }
+            current.end();
+            if (current.shouldCommit()) {
+                current.succeeded = succeeded;
+                current.commit();
+            }
+            current = null;
         }
     }
 
     private void detectMfaPrompt(WebDriver driver, LoginProgressListener listener) {
-        WebDriverWait mfaWait = new WebDriverWait(driver, Duration.ofSeconds(30)); 
+        WebDriverWait mfaWait = new WebDriverWait(driver, timeoutPolicy.timeout(TimeoutPolicy.Operation.MFA_PROMPT));
+        long startNanos = System.nanoTime();
         try {
             log.info("MFAプロンプトが表示されるか確認中...");
             mfaWait.until(ExpectedConditions.visibilityOfElementLocated(By.id("idRichContext_DisplaySign")));
+            // MFAが不要なアカウントもあるため、表示されなかった場合は記録しない
+            timeoutPolicy.record(TimeoutPolicy.Operation.MFA_PROMPT, System.nanoTime() - startNanos);
             String displayCode = extractTextSafely(driver, By.id("idRichContext_DisplaySign"));
             if (displayCode != null && !displayCode.isBlank()) {
                 String normalized = displayCode.trim();
@@ -333,7 +515,7 @@ public class ManabaScrapingOrchestrator {
         }
     }
 
-    // --- 他のヘルパーメソッド (shouldClickStaySignedIn, containsAffirmative, extractTextSafely, extractCookies, isLoginPage, convertCourses, convertAssignments, normalizeDeadline, calculateNextClass, nextOccurrence, parseTime, extractDigits, formatIsoDuration) は変更なし ---
+    // --- 他のヘルパーメソッド (shouldClickStaySignedIn, containsAffirmative, extractTextSafely, extractCookies, isLoginPage, convertCourses, convertAssignments, normalizeDeadline, extractDigits) は変更なし ---
     private boolean shouldClickStaySignedIn(WebElement button) {
         if (button == null) return false;
         String text = button.getText();
@@ -355,14 +537,14 @@ public class ManabaScrapingOrchestrator {
         }
     }
 
-    private Map<String, String> extractCookies(WebDriver driver) {
-        Map<String, String> cookies = new HashMap<>();
+    private CookieJar extractCookies(WebDriver driver) {
         try {
-            driver.manage().getCookies().forEach(cookie -> cookies.put(cookie.getName(), cookie.getValue()));
+            // 有効期限・ドメイン・パスも含めて取得する
+            return CookieJar.fromSelenium(driver.manage().getCookies());
         } catch (Exception e) {
             log.error("Cookieの抽出中にエラーが発生しました。", e);
+            return CookieJar.empty();
         }
-        return cookies;
     }
 
     private boolean isLoginPage(Document document) {
@@ -380,28 +562,51 @@ public class ManabaScrapingOrchestrator {
     private List<CourseEntry> convertCourses(List<com.example.demo.dto.Course> rawCourses) {
         List<CourseEntry> entries = new ArrayList<>();
         if (rawCourses == null) return entries; // Nullチェック追加
+        Set<String> usedIds = new HashSet<>();
         for (var course : rawCourses) {
             String periodKey = extractDigits(course.period());
             PeriodTime period = PERIOD_TIME_TABLE.get(periodKey);
             String start = (period != null) ? period.start() : null;
             String end = (period != null) ? period.end() : null;
             entries.add(new CourseEntry(
-                    "course-" + UUID.randomUUID().toString().replaceAll("-", ""),
+                    uniqueId(usedIds, stableId("course-", course.name(), course.day(), course.period())),
                     course.day(), course.period(), course.name(), course.location(),
                     start, end, "AUTO"
             ));
         }
         return entries;
     }
-    private boolean waitForErrorOrAdvance(WebDriver driver, By errorLocator, Duration timeout, Predicate<WebDriver> progressCondition) {
-        long deadline = System.nanoTime() + timeout.toNanos();
+    /**
+     * ログイン画面の要素を待ちます。待機時間は TimeoutPolicy (LOGIN_ELEMENT) が決め、かかった時間を記録します。
+     */
+    private <T> T waitForLoginElement(WebDriver driver, ExpectedCondition<T> condition) {
+        long startNanos = System.nanoTime();
+        try {
+            T result = new WebDriverWait(driver, timeoutPolicy.timeout(TimeoutPolicy.Operation.LOGIN_ELEMENT)).until(condition);
+            timeoutPolicy.record(TimeoutPolicy.Operation.LOGIN_ELEMENT, System.nanoTime() - startNanos);
+            return result;
+        } catch (TimeoutException e) {
+            timeoutPolicy.recordTimeout(TimeoutPolicy.Operation.LOGIN_ELEMENT);
+            throw e;
+        }
+    }
+
+    /**
+     * 送信後、エラー表示か次の画面への遷移のどちらかを待ちます。待機時間は TimeoutPolicy (LOGIN_RESPONSE) が決めます。
+     * どちらも起きないまま時間切れになった場合はエラーなしとして扱います (従来どおり)。
+     */
+    private boolean waitForErrorOrAdvance(WebDriver driver, By errorLocator, Predicate<WebDriver> progressCondition) {
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + timeoutPolicy.timeout(TimeoutPolicy.Operation.LOGIN_RESPONSE).toNanos();
         while (System.nanoTime() < deadline) {
             if (isElementDisplayed(driver, errorLocator)) {
+                timeoutPolicy.record(TimeoutPolicy.Operation.LOGIN_RESPONSE, System.nanoTime() - startNanos);
                 return true;
             }
             if (progressCondition != null) {
                 try {
                     if (progressCondition.test(driver)) {
+                        timeoutPolicy.record(TimeoutPolicy.Operation.LOGIN_RESPONSE, System.nanoTime() - startNanos);
                         return false;
                     }
                 } catch (Exception ignored) {
@@ -410,6 +615,7 @@ public class ManabaScrapingOrchestrator {
             }
             sleepSilently(200);
         }
+        timeoutPolicy.recordTimeout(TimeoutPolicy.Operation.LOGIN_RESPONSE);
         return false;
     }
 
@@ -444,9 +650,14 @@ public class ManabaScrapingOrchestrator {
     private List<AssignmentEntry> convertAssignments(List<com.example.demo.dto.Assignment> assignments) {
         List<AssignmentEntry> converted = new ArrayList<>();
         if (assignments == null) return converted; // Nullチェック追加
+        Set<String> usedIds = new HashSet<>();
         for (var assignment : assignments) {
+            // URLは課題ごとに一意なので、それを基にIDを決める (URLがない場合は内容から)
+            String assignmentId = assignment.url() != null && !assignment.url().isBlank()
+                    ? stableId("assignment-", assignment.url())
+                    : stableId("assignment-", assignment.courseName(), assignment.category(), assignment.title());
             converted.add(new AssignmentEntry(
-                    "assignment-" + UUID.randomUUID().toString().replaceAll("-", ""),
+                    uniqueId(usedIds, assignmentId),
                     assignment.courseName(), assignment.category(), assignment.title(),
                     normalizeDeadline(assignment.deadline()), assignment.url()
             ));
@@ -454,6 +665,23 @@ public class ManabaScrapingOrchestrator {
         return converted;
     }
 
+    /**
+     * 内容から決定的なIDを生成します。
+     * 同じ授業・課題であれば同期のたびに同じIDになるため、クライアント側でのキャッシュや差分計算に使える。
+     */
+    private String stableId(String prefix, String... parts) {
+        return prefix + ContentHash.hex(parts);
+    }
+
+    // 同一内容の項目が複数あった場合も、出現順で決まる連番を付けてIDの重複を避ける
+    private String uniqueId(Set<String> usedIds, String baseId) {
+        String id = baseId;
+        for (int n = 2; !usedIds.add(id); n++) {
+            id = baseId + "-" + n;
+        }
+        return id;
+    }
+
     private String normalizeDeadline(String deadline) {
         if (deadline == null) return null;
         String cleaned = deadline.replace('\u3000', ' ').replace("締切", "").replace("まで", "").trim();
@@ -469,87 +697,12 @@ public class ManabaScrapingOrchestrator {
         return cleaned; // 解析できなかった場合は元の文字列(クリーニング後)を返す
     }
 
-    private NextClassCard calculateNextClass(List<CourseEntry> timetable) {
-        if (timetable == null || timetable.isEmpty()) return null;
-        LocalDateTime now = LocalDateTime.now(JAPAN_ZONE);
-        NextClassCard bestCard = null;
-        Duration bestDuration = null;
-
-        for (CourseEntry course : timetable) {
-            DayOfWeek targetDay = DAY_OF_WEEK_MAP.get(course.day());
-            if (targetDay == null) continue;
-
-            LocalTime startTime = parseTime(course.startTime());
-            if (startTime == null) continue;
-
-            LocalDateTime startDateTime = nextOccurrence(now, targetDay, startTime);
-            Duration untilStart = Duration.between(now, startDateTime);
-            if (untilStart.isNegative()) continue;
-
-            if (bestDuration == null || untilStart.compareTo(bestDuration) < 0) {
-                bestDuration = untilStart;
-                LocalTime endTime = parseTime(course.endTime());
-                if (endTime == null) endTime = startTime.plusMinutes(90); // デフォルト90分授業と仮定
-                LocalDateTime endDateTime = LocalDateTime.of(startDateTime.toLocalDate(), endTime);
-
-                bestCard = new NextClassCard(
-                        course.name(), course.day(), course.period(), course.location(),
-                        startDateTime.format(ISO_FORMATTER),
-                        endDateTime.format(ISO_FORMATTER),
-                        formatIsoDuration(untilStart)
-                );
-            }
-        }
-        return bestCard;
-    }
-
-    private LocalDateTime nextOccurrence(LocalDateTime base, DayOfWeek targetDay, LocalTime startTime) {
-        int diff = (targetDay.getValue() - base.getDayOfWeek().getValue() + 7) % 7;
-        LocalDate targetDate = base.toLocalDate().plusDays(diff);
-        LocalDateTime candidate = LocalDateTime.of(targetDate, startTime);
-        // 同じ日の授業で、すでに開始時刻を過ぎている場合は来週にする
-        return (diff == 0 && candidate.isBefore(base)) ? candidate.plusWeeks(1) : candidate;
-    }
-
-    private LocalTime parseTime(String value) {
-        if (value == null || value.isBlank()) return null;
-        try {
-            return LocalTime.parse(value); // HH:mm 形式を想定
-        } catch (DateTimeParseException ignored) {
-            log.warn("不正な時刻フォーマットです: {}", value);
-            return null;
-        }
-    }
-
     private String extractDigits(String value) {
         if (value == null) return null;
         String digits = value.replaceAll("[^0-9]", "");
         return digits.isEmpty() ? value : digits; // 数字がなければ元の値を返す
     }
 
-    private String formatIsoDuration(Duration duration) {
-        if (duration == null || duration.isNegative()) return "PT0M"; // 負の期間は0分とする
-        long days = duration.toDays();
-        duration = duration.minusDays(days);
-        long hours = duration.toHours();
-        duration = duration.minusHours(hours);
-        long minutes = duration.toMinutes();
-
-        StringBuilder builder = new StringBuilder("P");
-        if (days > 0) builder.append(days).append('D');
-        if (hours > 0 || minutes > 0 || builder.length() == 1) { // 時間か分があるか、PしかなければTを追加
-            builder.append('T');
-            if (hours > 0) builder.append(hours).append('H');
-            if (minutes > 0) builder.append(minutes).append('M');
-        }
-        // もし PT のままなら、 PT0M にする
-        if (builder.toString().equals("PT")) return "PT0M";
-        // もし P のままなら（0日の場合）、PT0M にする
-        if (builder.toString().equals("P")) return "PT0M";
-
-        return builder.toString();
-    }
-
     // --- LoginProgressListener インターフェース定義 ---
     public interface LoginProgressListener {
         void onStatusUpdate(String status, String message);
@@ -0,0 +1,14 @@
+package com.example.demo.service;
+
+import java.io.IOException;
+
+/**
+ * パスワード送信後、MFAの承認や「サインインの状態を維持しますか?」への応答 (人の操作) を待つ間に時間切れになったことを表す例外。
+ * manabaは応答しているため、UpstreamHealthTracker では接続障害として数えない。
+ */
+public class MfaApprovalTimeoutException extends IOException {
+
+    public MfaApprovalTimeoutException(Throwable cause) {
+        super("MFAの承認が時間内に完了しませんでした。もう一度同期して、承認してください。", cause);
+    }
+}
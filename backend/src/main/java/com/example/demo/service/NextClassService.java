@@ -0,0 +1,65 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.NextClassCard;
+import com.example.demo.service.SyncSnapshotService.StoredSyncResult;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 保存済みの時間割から「次の授業」をリクエスト時に計算するService。
+ * ユーザーごとに WeeklyScheduleIndex をキャッシュし、時間割のバージョンが変わった場合のみ再構築する。
+ * 再スクレイピングなしで常に現在時刻基準の untilStart を返せる。
+ */
+@Service
+public class NextClassService {
+
+    private static final ZoneId JAPAN_ZONE = ZoneId.of("Asia/Tokyo");
+    private static final int MAX_CACHED_INDEXES = 1000; // インデックスキャッシュの上限件数
+    private static final int MAX_COUNT = 20; // 一度に返す授業数の上限
+
+    private final SyncSnapshotService syncSnapshotService;
+    private final ConcurrentHashMap<UUID, VersionedIndex> indexes = new ConcurrentHashMap<>();
+
+    public NextClassService(SyncSnapshotService syncSnapshotService) {
+        this.syncSnapshotService = syncSnapshotService;
+    }
+
+    private record VersionedIndex(String version, WeeklyScheduleIndex index) {}
+
+    /**
+     * 現在時刻以降の授業を開始が早い順に返します。
+     * @param userId ユーザープロファイルのUUID
+     * @param count 取得する件数 (1〜MAX_COUNT)
+     * @return 次の授業のリスト。保存済みの時間割がない場合は空のOptional
+     */
+    public Optional<List<NextClassCard>> findNextClasses(UUID userId, int count) {
+        Optional<StoredSyncResult> storedOpt = syncSnapshotService.find(userId);
+        if (storedOpt.isEmpty()) {
+            return Optional.empty();
+        }
+        int limit = Math.max(1, Math.min(count, MAX_COUNT));
+        WeeklyScheduleIndex index = indexFor(userId, storedOpt.get());
+        return Optional.of(index.next(LocalDateTime.now(JAPAN_ZONE), limit));
+    }
+
+    private WeeklyScheduleIndex indexFor(UUID userId, StoredSyncResult stored) {
+        VersionedIndex cached = indexes.get(userId);
+        if (cached != null && cached.version().equals(stored.version())) {
+            return cached.index();
+        }
+        WeeklyScheduleIndex index = WeeklyScheduleIndex.from(
+                stored.result().timetable() != null ? stored.result().timetable() : Collections.emptyList());
+        // 上限を超える場合はキャッシュせず、次回も再構築する
+        if (indexes.size() < MAX_CACHED_INDEXES || indexes.containsKey(userId)) {
+            indexes.put(userId, new VersionedIndex(stored.version(), index));
+        }
+        return index;
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.jsoup.HttpStatusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * manabaへの同時リクエスト数を全体で制限するリミッター (Jsoupでのページ取得とセッション確認が対象)。
+ * 上限は AIMD で調整する: 応答が latency-threshold 以内に返り、上限まで使われている間は1往復ごとに約1ずつ増やし、
+ * 429・5xx・タイムアウト・latency-threshold 超過のいずれかが起きたら backoff-ratio 倍に減らす。
+ * 減らした時点で実行中だったリクエストの結果では、続けて減らさない (1回の混雑で何度も半減しないように)。
+ *
+ * 空きを待つリクエストは優先度順 (同じ優先度なら到着順) に通す。
+ * バックグラウンドの処理 (INTERACTIVE 以外) は上限の background-share までしか使わず、残りは対話的な同期のために空けておく。
+ */
+@Component
+public class OutboundLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboundLimiter.class);
+
+    /**
+     * 上限の範囲内で実行するmanabaへのリクエスト。
+     */
+    @FunctionalInterface
+    public interface OutboundCall<T> {
+        T call() throws IOException;
+    }
+
+    private record Waiter(WorkPriority priority, long sequence) {}
+
+    private static final Comparator<Waiter> WAITER_ORDER = Comparator
+            .comparing(Waiter::priority)
+            .thenComparingLong(Waiter::sequence);
+
+    private final double minLimit;
+    private final double maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private final double backgroundShare;
+    private final Duration maxWait;
+    private final LongSupplier nanoClock;
+
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(WAITER_ORDER);
+    private double limit;
+    private int inFlight;
+    private long sequence;
+    private long lastDecreaseNanos;
+
+    private final Map<WorkPriority, Counter> rejected = new EnumMap<>(WorkPriority.class);
+    private final Map<WorkPriority, Timer> queueWait = new EnumMap<>(WorkPriority.class);
+    private final Counter decreases;
+
+    @Autowired
+    public OutboundLimiter(
+            @Value("${outbound.limit.initial:4}") int initialLimit,
+            @Value("${outbound.limit.min:1}") int minLimit,
+            @Value("${outbound.limit.max:16}") int maxLimit,
+            @Value("${outbound.latency-threshold:PT5S}") Duration latencyThreshold,
+            @Value("${outbound.backoff-ratio:0.5}") double backoffRatio,
+            @Value("${outbound.background-share:0.75}") double backgroundShare,
+            @Value("${outbound.max-wait:PT30S}") Duration maxWait
+    ) {
+        this(initialLimit, minLimit, maxLimit, latencyThreshold, backoffRatio, backgroundShare, maxWait, System::nanoTime);
+    }
+
+    /**
+     * 時刻の取得元を指定して作成します (テスト用)。
+     */
+    OutboundLimiter(int initialLimit, int minLimit, int maxLimit, Duration latencyThreshold,
+                    double backoffRatio, double backgroundShare, Duration maxWait, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.latencyThresholdNanos = latencyThreshold.toNanos();
+        this.backoffRatio = Math.max(0.1, Math.min(0.9, backoffRatio));
+        this.backgroundShare = Math.max(0, Math.min(1, backgroundShare));
+        this.maxWait = maxWait;
+        this.lastDecreaseNanos = nanoClock.getAsLong();
+
+        Gauge.builder("schedy.outbound.limit", this, OutboundLimiter::currentLimit)
+                .description("Current AIMD concurrency limit for requests to manaba")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("schedy.outbound.inflight", this, OutboundLimiter::currentInFlight)
+                .description("Requests to manaba currently in flight")
+                .register(Metrics.globalRegistry);
+        Gauge.builder("schedy.outbound.waiting", this, OutboundLimiter::currentWaiting)
+                .description("Requests to manaba waiting for a free slot")
+                .register(Metrics.globalRegistry);
+        for (WorkPriority priority : WorkPriority.values()) {
+            rejected.put(priority, Counter.builder("schedy.outbound.rejected")
+                    .description("Requests to manaba given up after waiting max-wait for a free slot")
+                    .tag("priority", priority.tag())
+                    .register(Metrics.globalRegistry));
+            queueWait.put(priority, Timer.builder("schedy.outbound.queue.wait")
+                    .description("Time spent waiting for a free slot before sending a request to manaba")
+                    .tag("priority", priority.tag())
+                    .register(Metrics.globalRegistry));
+        }
+        this.decreases = Counter.builder("schedy.outbound.limit.decreases")
+                .description("Times the concurrency limit for manaba was decreased")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 空きができるまで待ってからリクエストを実行し、その結果で上限を調整します。
+     * @throws IOException max-wait を過ぎても空きができなかった場合、またはリクエストが失敗した場合
+     */
+    public <T> T call(WorkPriority priority, OutboundCall<T> request) throws IOException {
+        return acquire(priority).call(request);
+    }
+
+    /**
+     * 空きができるまで待ってから、リクエスト1本分の枠を確保します。
+     * 確保した枠は、別のスレッドで実行する場合も含めて必ず Permit.call で1回だけ使うこと。
+     * @throws IOException max-wait を過ぎても空きができなかった場合
+     */
+    public Permit acquire(WorkPriority priority) throws IOException {
+        awaitSlot(priority);
+        return new Permit();
+    }
+
+    /**
+     * 待たずに枠を確保します。空きがない場合や、空きを待っているリクエストがある場合は null を返します。
+     * (追加のリクエストなど、送らなくても結果が変わらないリクエストに使う)
+     */
+    public synchronized Permit tryAcquire(WorkPriority priority) {
+        if (!waiters.isEmpty() || inFlight >= capacity(priority)) {
+            return null;
+        }
+        inFlight++;
+        return new Permit();
+    }
+
+    /**
+     * 確保済みのリクエスト1本分の枠。call の終了時に枠を返し、その結果で上限を調整する。
+     */
+    public final class Permit {
+        private boolean used;
+
+        private Permit() {}
+
+        public <T> T call(OutboundCall<T> request) throws IOException {
+            if (!use()) {
+                throw new IllegalStateException("確保した枠は1回しか使えません。");
+            }
+            long startNanos = nanoClock.getAsLong();
+            try {
+                T result = request.call();
+                release(startNanos, false);
+                return result;
+            } catch (IOException | RuntimeException e) {
+                if (e instanceof UpstreamUnavailableException) {
+                    // リクエストを送っていないため、上限の調整には使わない
+                    releaseWithoutFeedback();
+                } else {
+                    release(startNanos, isCongestion(e));
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * リクエストを送らずに枠を返します (まだ call していない場合のみ)。
+         */
+        public void discard() {
+            if (use()) {
+                releaseWithoutFeedback();
+            }
+        }
+
+        private synchronized boolean use() {
+            if (used) {
+                return false;
+            }
+            used = true;
+            return true;
+        }
+    }
+
+    synchronized double currentLimit() {
+        return limit;
+    }
+
+    synchronized int currentInFlight() {
+        return inFlight;
+    }
+
+    synchronized int currentWaiting() {
+        return waiters.size();
+    }
+
+    private synchronized void awaitSlot(WorkPriority priority) throws IOException {
+        Waiter waiter = new Waiter(priority, sequence++);
+        waiters.add(waiter);
+        long startNanos = nanoClock.getAsLong();
+        long deadline = startNanos + maxWait.toNanos();
+        try {
+            while (waiters.peek() != waiter || inFlight >= capacity(priority)) {
+                long remaining = deadline - nanoClock.getAsLong();
+                if (remaining <= 0) {
+                    rejected.get(priority).increment();
+                    throw new IOException("manabaへの同時リクエスト数が上限に達しているため、リクエストを中止しました。");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("manabaへのリクエストの待機中に中断されました。", e);
+        } finally {
+            if (waiters.remove(waiter)) {
+                notifyAll(); // 次の待機者が先頭になる
+            }
+        }
+        inFlight++;
+        queueWait.get(priority).record(nanoClock.getAsLong() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private int capacity(WorkPriority priority) {
+        int total = (int) limit;
+        if (priority != WorkPriority.INTERACTIVE) {
+            return Math.max(1, (int) (total * backgroundShare));
+        }
+        return total;
+    }
+
+    private synchronized void release(long startNanos, boolean congestion) {
+        long now = nanoClock.getAsLong();
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        if (congestion || now - startNanos > latencyThresholdNanos) {
+            if (startNanos > lastDecreaseNanos && limit > minLimit) {
+                double previous = limit;
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = now;
+                decreases.increment();
+                log.info("manabaの応答が遅い、または混雑しているため、同時リクエスト数の上限を {} から {} に下げます。",
+                        (int) previous, (int) limit);
+            }
+        } else if (saturated) {
+            // 上限まで使っていたときのみ増やす (使っていない上限を増やしても意味がない)
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    private synchronized void releaseWithoutFeedback() {
+        inFlight--;
+        notifyAll();
+    }
+
+    // 429・5xx・タイムアウトは混雑のサイン (原因をたどって判定する)
+    private static boolean isCongestion(Throwable error) {
+        for (Throwable current = error; current != null; current = current.getCause()) {
+            if (current instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (current instanceof HttpStatusException httpError) {
+                int status = httpError.getStatusCode();
+                return status == 429 || status >= 500;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 同期ジョブとバックグラウンドのセッション更新を、共有のワーカースレッドで優先度順に実行するスケジューラー。
+ * 空いたワーカーは WorkPriority の順 (INTERACTIVE → PREWARM → KEEPALIVE、同じ優先度なら到着順) に次の処理を取り出す。
+ *
+ * 優先度の低い処理が待ち続けないよう、aging-interval 待つごとに1段階ずつ優先度を上げて扱う (最大で INTERACTIVE と同じ)。
+ * バックグラウンドの処理 (INTERACTIVE 以外) が同時に使えるワーカーは background-max-running までとし、
+ * 少なくとも1つのワーカーは対話的な同期のために空けておく。
+ * 対話的な同期が空きワーカーより多く待っている場合、まだ始まっていない中断可能な処理 (preemptible) を待ち行列から外し、
+ * 未実行として完了させる (優先度が上がるほど待った処理は外さない)。
+ *
+ * シャットダウン時は、待ち行列の処理を未実行として完了させ、実行中のバックグラウンドの処理はすぐに割り込む。
+ * 実行中の対話的な同期 (MFAの承認待ちを含む) は shutdown-grace まで終わるのを待ち、それでも終わらなければ割り込む。
+ */
+@Component
+public class PriorityJobScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(PriorityJobScheduler.class);
+
+    private record Entry(WorkPriority priority, boolean preemptible, Runnable work,
+                         long enqueuedNanos, CompletableFuture<Boolean> done) {}
+
+    private final int workerCount;
+    private final int backgroundMaxRunning;
+    private final long agingNanos;
+    private final boolean preemptionEnabled;
+    private final Duration shutdownGrace;
+    private final LongSupplier nanoClock;
+
+    private final Map<WorkPriority, ArrayDeque<Entry>> queues = new EnumMap<>(WorkPriority.class);
+    private final int[] running = new int[WorkPriority.values().length];
+    private final List<Thread> workers = new ArrayList<>();
+    private final Map<Thread, WorkPriority> runningOn = new HashMap<>(); // ワーカー -> 実行中の処理の優先度
+    private boolean shutdown;
+
+    private final Map<WorkPriority, Timer> queueWait = new EnumMap<>(WorkPriority.class);
+    private final Map<WorkPriority, Counter> dispatched = new EnumMap<>(WorkPriority.class);
+    private final Map<WorkPriority, Counter> dispatchedAged = new EnumMap<>(WorkPriority.class);
+    private final Map<WorkPriority, Counter> preempted = new EnumMap<>(WorkPriority.class);
+
+    @Autowired
+    public PriorityJobScheduler(
+            @Value("${scheduler.workers:5}") int workers,
+            @Value("${scheduler.background-max-running:${session.refresh.parallelism:4}}") int backgroundMaxRunning,
+            @Value("${scheduler.aging-interval:PT30S}") Duration agingInterval,
+            @Value("${scheduler.preemption.enabled:true}") boolean preemptionEnabled,
+            @Value("${scheduler.shutdown-grace:PT30S}") Duration shutdownGrace
+    ) {
+        this(workers, backgroundMaxRunning, agingInterval, preemptionEnabled, shutdownGrace, System::nanoTime);
+    }
+
+    /**
+     * 時刻の取得元を指定して作成します (テスト用)。
+     */
+    PriorityJobScheduler(int workers, int backgroundMaxRunning, Duration agingInterval, boolean preemptionEnabled,
+                         Duration shutdownGrace, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.workerCount = Math.max(1, workers);
+        this.backgroundMaxRunning = Math.max(1, Math.min(backgroundMaxRunning, workerCount - 1));
+        this.agingNanos = Math.max(1L, agingInterval.toNanos());
+        this.preemptionEnabled = preemptionEnabled;
+        this.shutdownGrace = shutdownGrace;
+
+        for (WorkPriority priority : WorkPriority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+            Gauge.builder("schedy.scheduler.queued", this, scheduler -> scheduler.queued(priority))
+                    .description("Jobs waiting for a worker thread")
+                    .tag("priority", priority.tag())
+                    .register(Metrics.globalRegistry);
+            Gauge.builder("schedy.scheduler.running", this, scheduler -> scheduler.running(priority))
+                    .description("Jobs currently running on a worker thread")
+                    .tag("priority", priority.tag())
+                    .register(Metrics.globalRegistry);
+            queueWait.put(priority, Timer.builder("schedy.scheduler.queue.wait")
+                    .description("Time a job spent waiting for a worker thread")
+                    .tag("priority", priority.tag())
+                    .register(Metrics.globalRegistry));
+            dispatched.put(priority, dispatchedCounter(priority, false));
+            dispatchedAged.put(priority, dispatchedCounter(priority, true));
+            preempted.put(priority, Counter.builder("schedy.scheduler.preempted")
+                    .description("Queued jobs dropped before starting to make room for interactive syncs")
+                    .tag("priority", priority.tag())
+                    .register(Metrics.globalRegistry));
+        }
+
+        for (int i = 1; i <= workerCount; i++) {
+            Thread thread = new Thread(this::runWorker, "sync-worker-" + i);
+            thread.setDaemon(true);
+            this.workers.add(thread);
+            thread.start();
+        }
+        log.info("ジョブのワーカーを {} 個起動しました (バックグラウンドの処理は最大 {} 個)。", workerCount, this.backgroundMaxRunning);
+    }
+
+    private static Counter dispatchedCounter(WorkPriority priority, boolean aged) {
+        return Counter.builder("schedy.scheduler.dispatched")
+                .description("Jobs taken from the queue by a worker thread; aged=true if waiting raised their priority")
+                .tag("priority", priority.tag())
+                .tag("aged", Boolean.toString(aged))
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 処理を待ち行列に追加します。
+     * @param preemptible 対話的な同期が混雑したときに、実行前に取りやめてよい処理か
+     * @return 実行を終えたら true、実行前に取りやめた (またはシャットダウンした) 場合は false で完了する。
+     *         処理が例外を投げた場合は、その例外で完了する
+     */
+    public CompletableFuture<Boolean> submit(WorkPriority priority, boolean preemptible, Runnable work) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        List<Entry> dropped = List.of();
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("シャットダウン中のため、ジョブを受け付けられません。");
+            }
+            long now = nanoClock.getAsLong();
+            queues.get(priority).addLast(new Entry(priority, preemptible, work, now, done));
+            if (priority == WorkPriority.INTERACTIVE) {
+                dropped = preemptIfCongested(now);
+            }
+            notifyAll();
+        }
+        dropped.forEach(entry -> entry.done().complete(false));
+        return done;
+    }
+
+    synchronized int queued(WorkPriority priority) {
+        return queues.get(priority).size();
+    }
+
+    synchronized int running(WorkPriority priority) {
+        return running[priority.ordinal()];
+    }
+
+    /** 全ての優先度の待ち行列の長さ */
+    public synchronized int queuedTotal() {
+        return queues.values().stream().mapToInt(ArrayDeque::size).sum();
+    }
+
+    /** 全ての優先度の実行中の数 */
+    public synchronized int runningTotal() {
+        int total = 0;
+        for (int count : running) {
+            total += count;
+        }
+        return total;
+    }
+
+    private void runWorker() {
+        while (true) {
+            Entry entry = null;
+            synchronized (this) {
+                try {
+                    while (!shutdown && (entry = takeNext(nanoClock.getAsLong())) == null) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (shutdown) {
+                    return;
+                }
+                running[entry.priority().ordinal()]++;
+                runningOn.put(Thread.currentThread(), entry.priority());
+            }
+            try {
+                entry.work().run();
+                entry.done().complete(true);
+            } catch (Throwable e) {
+                log.error("ジョブの実行中に予期しないエラーが発生しました: {}", e.getMessage(), e);
+                entry.done().completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    running[entry.priority().ordinal()]--;
+                    runningOn.remove(Thread.currentThread());
+                    notifyAll(); // バックグラウンドの上限で待っていた処理が取り出せるようになる (シャットダウン中の待機も終わる)
+                }
+            }
+        }
+    }
+
+    // 呼び出し元が this のロックを保持していること
+    private Entry takeNext(long now) {
+        boolean backgroundFull = runningTotal() - running[WorkPriority.INTERACTIVE.ordinal()] >= backgroundMaxRunning;
+        Entry best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (WorkPriority priority : WorkPriority.values()) {
+            Entry head = queues.get(priority).peekFirst();
+            if (head == null || (backgroundFull && priority != WorkPriority.INTERACTIVE)) {
+                continue;
+            }
+            int rank = effectiveRank(head, now);
+            if (rank < bestRank || (rank == bestRank && head.enqueuedNanos() < best.enqueuedNanos())) {
+                best = head;
+                bestRank = rank;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        queues.get(best.priority()).pollFirst();
+        boolean aged = bestRank < best.priority().ordinal();
+        (aged ? dispatchedAged : dispatched).get(best.priority()).increment();
+        queueWait.get(best.priority()).record(now - best.enqueuedNanos(), TimeUnit.NANOSECONDS);
+        return best;
+    }
+
+    // 待った時間に応じて上がった優先度 (小さいほど優先)
+    private int effectiveRank(Entry entry, long now) {
+        long steps = (now - entry.enqueuedNanos()) / agingNanos;
+        return (int) Math.max(0, entry.priority().ordinal() - steps);
+    }
+
+    // 呼び出し元が this のロックを保持していること。取りやめた処理を返す (完了はロックの外で行う)
+    private List<Entry> preemptIfCongested(long now) {
+        int idleWorkers = workerCount - runningTotal();
+        if (!preemptionEnabled || queues.get(WorkPriority.INTERACTIVE).size() <= idleWorkers) {
+            return List.of();
+        }
+        List<Entry> dropped = new ArrayList<>();
+        for (WorkPriority priority : WorkPriority.values()) {
+            if (priority == WorkPriority.INTERACTIVE) {
+                continue;
+            }
+            Iterator<Entry> it = queues.get(priority).iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.preemptible() && effectiveRank(entry, now) == priority.ordinal()) {
+                    it.remove();
+                    preempted.get(priority).increment();
+                    dropped.add(entry);
+                }
+            }
+        }
+        if (!dropped.isEmpty()) {
+            log.info("対話的な同期が混雑しているため、実行前のバックグラウンド処理を {} 件取りやめました。", dropped.size());
+        }
+        return dropped;
+    }
+
+    /**
+     * 待ち行列の処理を未実行 (false) として完了させ、ワーカーを止めます。
+     * 実行中のバックグラウンドの処理はすぐに割り込み、実行中の対話的な同期は shutdown-grace まで終わるのを待ちます。
+     */
+    @PreDestroy
+    public void shutdown() {
+        List<Entry> pending = new ArrayList<>();
+        synchronized (this) {
+            shutdown = true;
+            queues.values().forEach(queue -> {
+                pending.addAll(queue);
+                queue.clear();
+            });
+            notifyAll();
+            runningOn.forEach((worker, priority) -> {
+                if (priority != WorkPriority.INTERACTIVE) {
+                    worker.interrupt();
+                }
+            });
+        }
+        // 呼び出し元がジョブを失敗として記録できるよう、待機の前に完了させる
+        pending.forEach(entry -> entry.done().complete(false));
+        if (!pending.isEmpty()) {
+            log.info("シャットダウンのため、実行前のジョブを {} 件取りやめました。", pending.size());
+        }
+
+        long deadline = nanoClock.getAsLong() + shutdownGrace.toNanos();
+        synchronized (this) {
+            try {
+                while (running[WorkPriority.INTERACTIVE.ordinal()] > 0) {
+                    long remaining = deadline - nanoClock.getAsLong();
+                    if (remaining <= 0) {
+                        log.warn("対話的な同期が {} 以内に終わらなかったため、中断します ({} 件)。",
+                                shutdownGrace, running[WorkPriority.INTERACTIVE.ordinal()]);
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.forEach(Thread::interrupt);
+    }
+}
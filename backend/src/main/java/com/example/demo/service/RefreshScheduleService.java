@@ -0,0 +1,230 @@
+package com.example.demo.service;
+
+import com.example.demo.repository.UserCredentialRepository;
+import com.example.demo.repository.UserCredentialRepository.RefreshCandidate;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ユーザーごとのセッション更新時刻 (user_profiles.next_refresh_at) を管理するService。
+ * 全員を一斉に更新するのではなく、最後の更新から一定時間 + ランダムな揺らぎ (jitter) 後に
+ * 更新時刻を迎えたユーザーだけを少しずつ取得 (claim) する。
+ *
+ * 複数ノードで動かした場合も同じユーザーを重複して更新しないよう、取得時に FOR UPDATE SKIP LOCKED で行ロックを取り、
+ * ノードIDと有効期限を持つリース (refresh_lease_owner / refresh_lease_until) を設定する。
+ * 処理中のリースは定期的に延長し、シャットダウン時に解放する。
+ * ノードが異常終了した場合は、リースの有効期限 (session.refresh.lease-duration) が切れた時点で他のノードが取得する。
+ */
+@Service
+public class RefreshScheduleService {
+
+    private static final Logger log = LoggerFactory.getLogger(RefreshScheduleService.class);
+    private static final Duration ACTIVITY_RECORD_INTERVAL = Duration.ofHours(1); // 利用時刻を書き込む最小間隔
+    private static final int MAX_TRACKED_ACTIVITY = 10_000; // 利用時刻の書き込み済み記録の上限件数
+    private static final Duration COOKIE_EXPIRY_MARGIN = Duration.ofMinutes(5); // Cookieの有効期限の何分前に更新するか
+    private static final Duration MIN_REFRESH_INTERVAL = Duration.ofMinutes(10); // 更新間隔の下限
+
+    private final UserCredentialRepository userCredentialRepository;
+    private final TransactionTemplate writeTransaction;
+    private final Duration refreshInterval;
+    private final Duration refreshJitter;
+    private final Duration retryDelay;
+    private final Duration leaseDuration;
+    private final String nodeId;
+    private final Duration prewarmActiveWithin;
+    private final Set<UUID> leasedUserIds = ConcurrentHashMap.newKeySet(); // このノードが処理中のユーザー
+    private final ConcurrentHashMap<UUID, Instant> recordedActivity = new ConcurrentHashMap<>(); // 利用時刻の書き込みを間引くため
+
+    public RefreshScheduleService(
+            UserCredentialRepository userCredentialRepository,
+            PlatformTransactionManager transactionManager,
+            @Value("${session.refresh.interval:PT75M}") Duration refreshInterval,
+            @Value("${session.refresh.jitter:PT10M}") Duration refreshJitter,
+            @Value("${session.refresh.retry-delay:PT15M}") Duration retryDelay,
+            @Value("${session.refresh.lease-duration:PT2M}") Duration leaseDuration,
+            @Value("${session.refresh.node-id:}") String nodeId,
+            @Value("${session.refresh.prewarm.active-within:P3D}") Duration prewarmActiveWithin
+    ) {
+        this.userCredentialRepository = userCredentialRepository;
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.refreshInterval = refreshInterval;
+        this.refreshJitter = refreshJitter;
+        this.retryDelay = retryDelay;
+        this.leaseDuration = leaseDuration;
+        this.prewarmActiveWithin = prewarmActiveWithin;
+        this.nodeId = nodeId != null && !nodeId.isBlank() ? nodeId : defaultNodeId();
+        log.info("セッション更新のノードID: {}", this.nodeId);
+    }
+
+    /**
+     * 更新時刻を過ぎ、他のノードが処理していないユーザーを最大 batchSize 件取得し、このノードのリースを設定します。
+     * 取得したユーザーの処理が終わったら、成否にかかわらず complete を呼び出すこと。
+     * @param batchSize 取得する最大件数
+     * @return 取得したユーザー
+     */
+    public List<RefreshCandidate> claimDue(int batchSize) {
+        List<RefreshCandidate> claimed = writeTransaction.execute(status -> {
+            Instant now = Instant.now();
+            // 行ロックはコミットまで保持されるため、他のノードは同じユーザーを飛ばして次のユーザーを取得する
+            List<RefreshCandidate> due = userCredentialRepository.lockDueRefreshCandidates(now, now.minus(prewarmActiveWithin), batchSize);
+            if (!due.isEmpty()) {
+                List<UUID> ids = due.stream().map(RefreshCandidate::getId).toList();
+                userCredentialRepository.leaseRefresh(ids, nodeId, now.plus(leaseDuration), now);
+                leasedUserIds.addAll(ids);
+            }
+            return due;
+        });
+        return claimed != null ? claimed : Collections.emptyList();
+    }
+
+    /**
+     * 取得したユーザーの処理完了を記録し、リースを解放します。
+     * 更新に成功していない (更新時刻が進んでいない) 場合は、再試行時刻まで次回の更新を延期します。
+     * @param userId ユーザープロファイルのUUID
+     */
+    public void complete(UUID userId) {
+        try {
+            writeTransaction.executeWithoutResult(status -> {
+                Instant now = Instant.now();
+                userCredentialRepository.postponeDueRefresh(userId, now.plus(retryDelay), now);
+                userCredentialRepository.releaseRefreshLeases(List.of(userId), nodeId);
+            });
+        } finally {
+            leasedUserIds.remove(userId);
+        }
+    }
+
+    /**
+     * 処理を始めずに取得したユーザーのリースを解放します。次回の更新時刻は変えないため、次の取得ですぐに再取得されます。
+     * (対話的な同期を優先するために、実行前のセッション更新を取りやめた場合に使う)
+     * @param userId ユーザープロファイルのUUID
+     */
+    public void release(UUID userId) {
+        try {
+            writeTransaction.executeWithoutResult(status ->
+                    userCredentialRepository.releaseRefreshLeases(List.of(userId), nodeId));
+        } finally {
+            leasedUserIds.remove(userId);
+        }
+    }
+
+    /**
+     * このノードが処理中のユーザーのリースを延長します。
+     * 延長の間隔はリースの有効期限より十分短くすること。
+     */
+    @Scheduled(fixedDelayString = "${session.refresh.lease-renew-interval-ms:30000}")
+    public void renewLeases() {
+        if (leasedUserIds.isEmpty()) {
+            return;
+        }
+        List<UUID> ids = List.copyOf(leasedUserIds);
+        Integer renewed = writeTransaction.execute(status -> {
+            Instant now = Instant.now();
+            return userCredentialRepository.leaseRefresh(ids, nodeId, now.plus(leaseDuration), now);
+        });
+        log.debug("セッション更新のリースを延長しました: {}/{}件", renewed, ids.size());
+    }
+
+    /**
+     * シャットダウン時に、このノードが保持しているリースを解放します (他のノードがすぐに取得できるようにする)。
+     */
+    @PreDestroy
+    public void releaseLeases() {
+        try {
+            Integer released = writeTransaction.execute(status -> userCredentialRepository.releaseAllRefreshLeases(nodeId));
+            leasedUserIds.clear();
+            if (released != null && released > 0) {
+                log.info("シャットダウンのため、セッション更新のリースを{}件解放しました。", released);
+            }
+        } catch (Exception e) {
+            log.warn("セッション更新のリース解放に失敗しました。有効期限切れ後に他のノードが取得します。", e);
+        }
+    }
+
+    /**
+     * アプリの利用時刻を記録します。同じユーザーの書き込みは ACTIVITY_RECORD_INTERVAL に1回に間引きます。
+     * @param userId ユーザープロファイルのUUID
+     */
+    public void markActive(UUID userId) {
+        Instant now = Instant.now();
+        Instant recorded = recordedActivity.get(userId);
+        if (recorded != null && recorded.isAfter(now.minus(ACTIVITY_RECORD_INTERVAL))) {
+            return;
+        }
+        if (recordedActivity.size() >= MAX_TRACKED_ACTIVITY) {
+            recordedActivity.clear();
+        }
+        recordedActivity.put(userId, now);
+        try {
+            writeTransaction.executeWithoutResult(status -> userCredentialRepository.markActive(userId, now));
+        } catch (Exception e) {
+            recordedActivity.remove(userId);
+            log.warn("利用時刻の記録に失敗しました: userId={}", userId, e);
+        }
+    }
+
+    /**
+     * セッションの更新完了を記録し、次回の更新時刻を設定します (対話的な同期の成功時にも呼び出す)。
+     * @param userId ユーザープロファイルのUUID
+     * @param cookies 更新後のCookie (有効期限が分かる場合は、切れる前に更新されるよう更新時刻を早める)
+     * @param refreshedAt Cookieを取得した時刻 (SessionCookieStore に登録した値と同じにすること)
+     */
+    public void markRefreshed(UUID userId, CookieJar cookies, Instant refreshedAt) {
+        Instant next = nextRefreshAt(refreshedAt, cookies);
+        writeTransaction.executeWithoutResult(status -> userCredentialRepository.markRefreshed(userId, refreshedAt, next));
+        log.debug("次回のセッション更新時刻を設定しました: userId={}, nextRefreshAt={}", userId, next);
+    }
+
+    /**
+     * 更新時刻から次回の更新時刻を計算します。ユーザーごとの更新が同じ時刻に集中しないよう揺らぎを加えます。
+     * Cookieの有効期限がそれより早く切れる場合は、有効期限の少し前 (COOKIE_EXPIRY_MARGIN) を更新時刻とします。
+     */
+    public Instant nextRefreshAt(Instant refreshedAt, CookieJar cookies) {
+        Instant scheduled = scheduledRefreshAt(refreshedAt);
+        if (cookies == null) {
+            return scheduled;
+        }
+        return cookies.earliestExpiryAfter(refreshedAt)
+                .map(expiresAt -> expiresAt.minus(COOKIE_EXPIRY_MARGIN))
+                .map(beforeExpiry -> beforeExpiry.isBefore(refreshedAt.plus(MIN_REFRESH_INTERVAL))
+                        ? refreshedAt.plus(MIN_REFRESH_INTERVAL) // 短命なCookieで更新が連続しないよう下限を設ける
+                        : beforeExpiry)
+                .filter(beforeExpiry -> beforeExpiry.isBefore(scheduled))
+                .orElse(scheduled);
+    }
+
+    private Instant scheduledRefreshAt(Instant refreshedAt) {
+        long jitterMillis = refreshJitter.toMillis() > 0
+                ? ThreadLocalRandom.current().nextLong(refreshJitter.toMillis() + 1)
+                : 0L;
+        return refreshedAt.plus(refreshInterval).plusMillis(jitterMillis);
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "node";
+        }
+        String suffix = UUID.randomUUID().toString().substring(0, 8);
+        String id = host + "-" + suffix;
+        return id.length() > 64 ? id.substring(id.length() - 64) : id;
+    }
+}
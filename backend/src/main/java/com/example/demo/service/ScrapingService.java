@@ -2,12 +2,17 @@ package com.example.demo.service;
 
 import com.example.demo.dto.Assignment;
 import com.example.demo.dto.Course;
+import com.example.demo.monitoring.PageFetchEvent;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
+import org.jsoup.Connection;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
@@ -24,30 +29,45 @@ public class ScrapingService {
 
     private static final Logger log = LoggerFactory.getLogger(ScrapingService.class);
 
+    private final Tracer tracer;
+    private final TimeoutPolicy timeoutPolicy;
+    private final UpstreamHealthTracker upstreamHealth;
+    private final HostRateLimiter hostRateLimiter;
+    private final String homeCourseUrl;
+
+    public ScrapingService(Tracer tracer, TimeoutPolicy timeoutPolicy, UpstreamHealthTracker upstreamHealth, HostRateLimiter hostRateLimiter,
+                           @Value("${manaba.base-url:https://ct.ritsumei.ac.jp}") String baseUrl) {
+        this.tracer = tracer;
+        this.timeoutPolicy = timeoutPolicy;
+        this.upstreamHealth = upstreamHealth;
+        this.hostRateLimiter = hostRateLimiter;
+        this.homeCourseUrl = baseUrl + "/ct/home_course";
+    }
+
     /**
      * 指定されたCookieを使用してログイン後のホームページから未提出の課題を全て取得します。
      * @param cookies ログイン後のセッションCookie
+     * @param priority manabaへのリクエストの優先度
      * @return 課題のリスト
      * @throws IOException ページの取得に失敗した場合
      */
-    public List<Assignment> getAllAssignments(Map<String, String> cookies) throws IOException {
+    public List<Assignment> getAllAssignments(Map<String, String> cookies, WorkPriority priority) throws IOException {
         List<Assignment> allAssignments = new ArrayList<>();
-        String homeCourseUrl = "https://ct.ritsumei.ac.jp/ct/home_course";
-        
-        Document homeDoc = Jsoup.connect(homeCourseUrl).cookies(cookies).get();
+
+        Document homeDoc = fetch(homeCourseUrl, "home_course", cookies, priority);
         log.debug("マイページ取得成功！ タイトル: {}", homeDoc.title());
 
         List<String> courseUrls = findCourseUrlsWithAssignments(homeDoc);
         for (String courseUrl : courseUrls) {
             log.debug("詳細を取得中: {}", courseUrl);
-            Document coursePageDoc = Jsoup.connect(courseUrl).cookies(cookies).get();
+            Document coursePageDoc = fetch(courseUrl, "course", cookies, priority);
             String courseName = coursePageDoc.selectFirst("#coursename").text();
             Map<String, String> categoryUrls = findAssignmentCategoryUrls(coursePageDoc);
 
             for (Map.Entry<String, String> category : categoryUrls.entrySet()) {
                 String categoryName = category.getKey();
                 String categoryUrl = category.getValue();
-                Document assignmentListDoc = Jsoup.connect(categoryUrl).cookies(cookies).get();
+                Document assignmentListDoc = fetch(categoryUrl, "assignment_list", cookies, priority);
                 List<Assignment> details = extractAssignmentDetails(assignmentListDoc, courseName, categoryName);
                 allAssignments.addAll(details);
             }
@@ -58,13 +78,13 @@ public class ScrapingService {
     /**
      * 指定されたCookieを使用して時間割ページを解析し、授業のリストを返します。
      * @param cookies ログイン後のセッションCookie
+     * @param priority manabaへのリクエストの優先度
      * @return 授業のリスト
      * @throws IOException ページの取得に失敗した場合
      */
-    public List<Course> parseTimetableToList(Map<String, String> cookies) throws IOException {
-        // 時間割ページのURLは実際のURLに合わせてください
-        String timetableUrl = "https://ct.ritsumei.ac.jp/ct/home_course";
-        Document doc = Jsoup.connect(timetableUrl).cookies(cookies).get();
+    public List<Course> parseTimetableToList(Map<String, String> cookies, WorkPriority priority) throws IOException {
+        // 時間割はマイページ (コース一覧の曜日表示) に含まれている
+        Document doc = fetch(homeCourseUrl, "timetable", cookies, priority);
 
         log.debug("【時間割の解析を開始】");
         List<Course> courseList = new ArrayList<>();
@@ -136,6 +156,55 @@ public class ScrapingService {
 
     // --- Private Helper Methods (元のコードから移植) ---
 
+    /**
+     * ページを取得して解析します。取得・解析の時間と転送量は JFR の PageFetchEvent として記録し、
+     * 同期ジョブのトレースには子スパン (page-fetch) として記録します。
+     * タイムアウトは TimeoutPolicy が直近の取得時間から決め、応答が遅い場合は同じリクエストをもう1本送ります (hedged)。
+     * 成否は UpstreamHealthTracker に記録し、manabaの障害中は送らずに UpstreamUnavailableException を投げます。
+     * 同時リクエスト数は OutboundLimiter が priority の順に制限します (追加のリクエストも1本として数える)。
+     * バックグラウンドの処理 (INTERACTIVE 以外) は、HostRateLimiter でページごとにリクエスト間隔も制限します。
+     * @param urlCategory ページの種類 (URLそのものは記録しない)
+     */
+    private Document fetch(String url, String urlCategory, Map<String, String> cookies, WorkPriority priority) throws IOException {
+        PageFetchEvent event = new PageFetchEvent();
+        Span span = tracer.nextSpan().name("page-fetch").tag("url.category", urlCategory).start();
+        event.begin();
+        try (Tracer.SpanInScope ignored = tracer.withSpan(span)) {
+            hostRateLimiter.acquireForBackground(priority, url);
+            long startNanos = System.nanoTime();
+            Connection.Response response = upstreamHealth.call(() ->
+                    timeoutPolicy.hedged(TimeoutPolicy.Operation.PAGE_FETCH, priority, () -> {
+                        Connection.Response fetched = Jsoup.connect(url)
+                                .cookies(cookies)
+                                .timeout((int) timeoutPolicy.timeout(TimeoutPolicy.Operation.PAGE_FETCH).toMillis())
+                                .execute();
+                        fetched.bufferUp(); // 本文の受信を取得時間に含める
+                        return fetched;
+                    }));
+            long fetchedNanos = System.nanoTime();
+            span.event("fetched");
+            Document document = response.parse();
+            event.end();
+            int bytes = response.bodyAsBytes().length;
+            span.tag("http.status_code", String.valueOf(response.statusCode()));
+            span.tag("http.response.bytes", String.valueOf(bytes));
+            if (event.shouldCommit()) {
+                event.urlCategory = urlCategory;
+                event.statusCode = response.statusCode();
+                event.bytes = bytes;
+                event.fetchDuration = fetchedNanos - startNanos;
+                event.parseDuration = System.nanoTime() - fetchedNanos;
+                event.commit();
+            }
+            return document;
+        } catch (IOException | RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
     private List<String> findCourseUrlsWithAssignments(Document homeDoc) {
         log.debug("【ステップ1】未提出課題があるコースのURLを検索中...");
         List<String> courseUrls = new ArrayList<>();
@@ -0,0 +1,296 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.UserCredential;
+import com.example.demo.repository.UserCredentialRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 復号済みのmanabaセッションCookieをユーザーごとにメモリ上で保持するストア。
+ * 同じユーザーの同期が繰り返される場合に、DB読み込み・復号・JSONのパースを省略する。
+ *
+ * 変更されたCookieはすぐにはDBへ書かず (write-behind)、定期的にまとめて user_profiles に保存する。
+ * 内容が変わっていないCookieは保存しない。
+ * エントリの有効期限はmanabaのセッション有効期限 (90分) に合わせ、期限切れのエントリは返さない。
+ *
+ * 各エントリはCookieを取得した時刻 (user_profiles.last_refreshed_at に書く値と同じ) を持つ。
+ * 他のノードや AuthService の保存でDBにより新しいCookieが保存された場合 (DBの last_refreshed_at の方が新しい場合)、
+ * 読み込み時にはエントリを破棄してDBの値を使わせ、保存時には古いCookieでDBを上書きしない。
+ */
+@Service
+public class SessionCookieStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionCookieStore.class);
+    private static final int MAX_CACHED_SESSIONS = 1000; // メモリ上に保持するセッションの上限件数
+    private static final int FLUSH_BATCH_SIZE = 50; // 1トランザクションで保存する件数
+
+    /**
+     * Cookieを取得した時刻として、ストアと last_refreshed_at の両方に書く値を返します。
+     * DB (timestamp はマイクロ秒まで) に保存しても同じ値のまま比較できるよう、マイクロ秒に切り捨てる。
+     */
+    public static Instant refreshTimestamp() {
+        return Instant.now().truncatedTo(ChronoUnit.MICROS);
+    }
+
+    private final UserCredentialRepository userCredentialRepository;
+    private final EncryptionService encryptionService;
+    private final TransactionTemplate writeTransaction;
+    private final Duration sessionTtl;
+    private final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong generations = new AtomicLong();
+
+    public SessionCookieStore(
+            UserCredentialRepository userCredentialRepository,
+            EncryptionService encryptionService,
+            PlatformTransactionManager transactionManager,
+            @Value("${session.cookie.ttl:PT90M}") Duration sessionTtl
+    ) {
+        this.userCredentialRepository = userCredentialRepository;
+        this.encryptionService = encryptionService;
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.sessionTtl = sessionTtl;
+    }
+
+    /**
+     * キャッシュ済みのCookieと、その世代番号。
+     * 世代番号は更新のたびに変わるため、読み込み後に別の処理で更新されたかの判定に使う。
+     */
+    public record CachedCookies(CookieJar cookies, long generation) {}
+
+    // dirty=true はDBへの保存待ち。refreshedAt はCookieを取得した時刻
+    private record Entry(CookieJar cookies, long generation, Instant refreshedAt, Instant expiresAt, boolean dirty) {
+        boolean isExpired(Instant now) {
+            return expiresAt.isBefore(now);
+        }
+
+        // DBに、このエントリより後に取得されたCookieが保存されているか
+        boolean isOlderThan(Instant storedRefreshedAt) {
+            return storedRefreshedAt != null && storedRefreshedAt.isAfter(refreshedAt);
+        }
+    }
+
+    // 空のCookieは null (DBのCookieをクリア) として保存する
+    private record PendingWrite(UUID userId, String encryptedCookie, Instant refreshedAt) {}
+
+    /**
+     * 有効期限内のCookieを返します。
+     * @param userId ユーザープロファイルのUUID
+     * @param storedRefreshedAt 呼び出し側が読み込んだ行の last_refreshed_at。これより前に取得したCookieは古いため破棄する
+     * @return キャッシュ済みのCookie。存在しない・期限切れ・DBの方が新しい場合は空のOptional (呼び出し側はDBから読み込むこと)
+     */
+    public Optional<CachedCookies> get(UUID userId, Instant storedRefreshedAt) {
+        if (userId == null) {
+            return Optional.empty();
+        }
+        Entry entry = entries.get(userId);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (entry.isOlderThan(storedRefreshedAt)) {
+            // 他のノードなどがより新しいCookieを保存済み。保存待ちの内容も古いため破棄する
+            entries.remove(userId, entry);
+            log.debug("DBに新しいセッションCookieが保存されているため、キャッシュを破棄しました: userId={}", userId);
+            return Optional.empty();
+        }
+        if (entry.isExpired(Instant.now())) {
+            // 保存待ちでなければ破棄する (保存待ちのものは次回のflushで保存してから破棄)
+            if (!entry.dirty()) {
+                entries.remove(userId, entry);
+            }
+            return Optional.empty();
+        }
+        return Optional.of(new CachedCookies(entry.cookies(), entry.generation()));
+    }
+
+    /**
+     * スクレイピング後のCookieを登録します。
+     * 内容が変わっていなければ有効期限だけを延長し、DBへの保存は行いません。
+     * 変わっていれば保存待ちとして、次回のflushでDBに保存します。
+     * @param refreshedAt Cookieを取得した時刻 (refreshTimestamp の値。last_refreshed_at にも同じ値を書くこと)
+     */
+    public void update(UUID userId, CookieJar cookies, Instant refreshedAt) {
+        entries.compute(userId, (key, current) -> merge(current, cookies, refreshedAt));
+        evictIfFull(userId);
+    }
+
+    /**
+     * 読み込み時点から別の処理で更新されていない場合に限りCookieを登録します。
+     * バックグラウンドのセッション更新が、対話的な同期で得られた新しいCookieを上書きしないために使用します。
+     * @param expectedGeneration 読み込み時の世代番号 (キャッシュになかった場合は null)
+     * @param refreshedAt Cookieを取得した時刻 (refreshTimestamp の値。last_refreshed_at にも同じ値を書くこと)
+     * @return 登録した場合は true
+     */
+    public boolean updateIfUnchanged(UUID userId, Long expectedGeneration, CookieJar cookies, Instant refreshedAt) {
+        boolean[] updated = {false};
+        entries.compute(userId, (key, current) -> {
+            long currentGeneration = current != null ? current.generation() : -1;
+            long expected = expectedGeneration != null ? expectedGeneration : -1;
+            if (currentGeneration != expected) {
+                return current;
+            }
+            updated[0] = true;
+            return merge(current, cookies, refreshedAt);
+        });
+        if (updated[0]) {
+            evictIfFull(userId);
+        }
+        return updated[0];
+    }
+
+    /**
+     * 既にDBへ保存済みのCookieを登録します (新規ユーザーの保存時など)。
+     * @param refreshedAt DBに保存した last_refreshed_at
+     */
+    public void markPersisted(UUID userId, CookieJar cookies, Instant refreshedAt) {
+        entries.put(userId, new Entry(copyOf(cookies), generations.incrementAndGet(), refreshedAt,
+                Instant.now().plus(sessionTtl), false));
+        evictIfFull(userId);
+    }
+
+    /**
+     * ユーザーのCookieを破棄します (資格情報の削除時など)。保存待ちの内容も破棄されます。
+     */
+    public void evict(UUID userId) {
+        if (userId != null) {
+            entries.remove(userId);
+        }
+    }
+
+    /**
+     * 保存待ちのCookieをまとめてDBに保存し、期限切れのエントリを破棄します。
+     */
+    @Scheduled(fixedDelayString = "${session.cookie.flush-interval-ms:30000}")
+    public void flush() {
+        Instant now = Instant.now();
+        List<Map.Entry<UUID, Entry>> pending = new ArrayList<>();
+        entries.forEach((userId, entry) -> {
+            if (entry.dirty()) {
+                pending.add(Map.entry(userId, entry));
+            } else if (entry.isExpired(now)) {
+                entries.remove(userId, entry);
+            }
+        });
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        int saved = 0;
+        int superseded = 0;
+        for (int from = 0; from < pending.size(); from += FLUSH_BATCH_SIZE) {
+            List<Map.Entry<UUID, Entry>> batch = pending.subList(from, Math.min(from + FLUSH_BATCH_SIZE, pending.size()));
+            Set<UUID> stale;
+            try {
+                stale = flushBatch(batch);
+                saved += batch.size() - stale.size();
+                superseded += stale.size();
+            } catch (Exception e) {
+                // 保存できなかったエントリは dirty のまま残し、次回のflushで再試行する
+                log.error("セッションCookieの一括保存に失敗しました ({}件)", batch.size(), e);
+                continue;
+            }
+            for (Map.Entry<UUID, Entry> flushed : batch) {
+                entries.computeIfPresent(flushed.getKey(), (key, current) -> {
+                    if (current.generation() != flushed.getValue().generation()) {
+                        return current; // 保存中に更新されたものは次回保存する
+                    }
+                    if (stale.contains(key)) {
+                        return null; // DBの方が新しいため、次回の読み込みでDBの値を使わせる
+                    }
+                    return current.isExpired(now)
+                            ? null
+                            : new Entry(current.cookies(), current.generation(), current.refreshedAt(), current.expiresAt(), false);
+                });
+            }
+        }
+        log.debug("セッションCookieを{}件保存しました (DBの方が新しいため破棄: {}件)。", saved, superseded);
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        log.info("シャットダウン前に保存待ちのセッションCookieを保存します。");
+        flush();
+    }
+
+    /**
+     * 1トランザクション分のCookieを保存します。
+     * @return DBにより新しいCookieが保存されていたため、保存しなかったユーザー
+     */
+    private Set<UUID> flushBatch(List<Map.Entry<UUID, Entry>> batch) {
+        // 暗号化はトランザクションの外で済ませておく
+        List<PendingWrite> encrypted = new ArrayList<>(batch.size());
+        for (Map.Entry<UUID, Entry> pending : batch) {
+            CookieJar cookies = pending.getValue().cookies();
+            String encryptedCookie = cookies.isEmpty() ? null : encryptionService.encrypt(cookies.toJson());
+            encrypted.add(new PendingWrite(pending.getKey(), encryptedCookie, pending.getValue().refreshedAt()));
+        }
+        Set<UUID> stale = writeTransaction.execute(status -> {
+            // 1回のSELECTでまとめて読み込み、UPDATEはコミット時にHibernateのJDBCバッチで送信される
+            // (資格情報が削除済みのユーザーは読み込まれず、そのまま破棄される)
+            Map<UUID, UserCredential> credentials = new HashMap<>();
+            userCredentialRepository.findAllById(encrypted.stream().map(PendingWrite::userId).toList())
+                    .forEach(credential -> credentials.put(credential.getId(), credential));
+            Set<UUID> superseded = new HashSet<>();
+            for (PendingWrite item : encrypted) {
+                UserCredential credential = credentials.get(item.userId());
+                if (credential == null) {
+                    continue;
+                }
+                Instant storedRefreshedAt = credential.getLastRefreshedAt();
+                if (storedRefreshedAt != null && storedRefreshedAt.isAfter(item.refreshedAt())) {
+                    // キャッシュした後に他のノードなどが新しいCookieを保存している。古いCookieで上書きしない
+                    superseded.add(item.userId());
+                    continue;
+                }
+                credential.setEncryptedSessionCookie(item.encryptedCookie());
+            }
+            return superseded;
+        });
+        return stale != null ? stale : Set.of();
+    }
+
+    private Entry merge(Entry current, CookieJar cookies, Instant refreshedAt) {
+        CookieJar copy = copyOf(cookies);
+        Instant expiresAt = Instant.now().plus(sessionTtl);
+        if (current != null && current.cookies().equals(copy)) {
+            // 内容が同じなら有効期限と取得時刻のみ更新 (保存待ちの状態は引き継ぐ)
+            return new Entry(current.cookies(), current.generation(), refreshedAt, expiresAt, current.dirty());
+        }
+        return new Entry(copy, generations.incrementAndGet(), refreshedAt, expiresAt, true);
+    }
+
+    private CookieJar copyOf(CookieJar cookies) {
+        return cookies != null ? cookies : CookieJar.empty(); // CookieJarは不変のためコピー不要
+    }
+
+    // 上限を超えた場合は保存済みのエントリから破棄する (保存待ちのエントリは破棄しない)
+    private void evictIfFull(UUID keep) {
+        if (entries.size() <= MAX_CACHED_SESSIONS) {
+            return;
+        }
+        entries.forEach((userId, entry) -> {
+            if (entries.size() > MAX_CACHED_SESSIONS && !userId.equals(keep) && !entry.dirty()) {
+                entries.remove(userId, entry);
+            }
+        });
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.jsoup.Connection;
+import org.jsoup.HttpStatusException;
+import org.jsoup.Jsoup;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 保存済みCookieでmanabaにアクセスし、セッションを延長するための軽量なプローブ。
+ * ページ全体をダウンロード・パースせず、レスポンスヘッダーと本文の先頭数KBだけを読んで
+ * ログイン画面へのリダイレクトかどうかを判定し、残りの本文は読まずに接続を閉じる。
+ * 転送量と判定にかかった時間は Micrometer に記録する。
+ * タイムアウトは TimeoutPolicy (KEEPALIVE_PROBE) が直近の応答時間から決める。
+ */
+@Component
+public class SessionKeepAliveProbe {
+
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120 Safari/537.36";
+    private static final int MAX_PROBE_BODY_BYTES = 4 * 1024; // ログイン画面の判定に読む本文の最大バイト数
+    private static final List<String> LOGIN_MARKERS = List.of("<title>sign in", "<title>login", "サインイン", "action=\"/ct/login", "action=\"login");
+
+    private final String keepAliveUrl;
+    private final TimeoutPolicy timeoutPolicy;
+    private final DistributionSummary transferredBytes;
+    private final Timer parseTimer;
+
+    public SessionKeepAliveProbe(@Value("${manaba.keep-alive-url:${manaba.base-url:https://ct.ritsumei.ac.jp}/ct/home_course}") String keepAliveUrl,
+                                 TimeoutPolicy timeoutPolicy) {
+        this.keepAliveUrl = keepAliveUrl;
+        this.timeoutPolicy = timeoutPolicy;
+        this.transferredBytes = DistributionSummary.builder("schedy.session.keepalive.bytes")
+                .description("Bytes read per session keep-alive probe (headers and partial body)")
+                .baseUnit("bytes")
+                .register(Metrics.globalRegistry);
+        this.parseTimer = Timer.builder("schedy.session.keepalive.parse.time")
+                .description("Time to read and inspect the partial body of a session keep-alive probe")
+                .register(Metrics.globalRegistry);
+    }
+
+    public String getKeepAliveUrl() {
+        return keepAliveUrl;
+    }
+
+    /**
+     * 保存済みCookieでセッションが有効かを確認し、延長後のCookieを返します。
+     * @param cookies 保存済みのCookie
+     * @return レスポンスのSet-Cookie (有効期限を含む) を反映したCookie
+     * @throws IOException 通信に失敗した場合、またはCookieの有効期限が切れている場合
+     */
+    public CookieJar probe(CookieJar cookies) throws IOException {
+        // リダイレクトは追わない (ログイン画面へのリダイレクト自体が期限切れの判定材料になる)
+        long requestNanos = System.nanoTime();
+        Connection.Response response;
+        try {
+            response = Jsoup.connect(keepAliveUrl)
+                    .cookies(cookies.toMap())
+                    .userAgent(USER_AGENT)
+                    .timeout((int) timeoutPolicy.timeout(TimeoutPolicy.Operation.KEEPALIVE_PROBE).toMillis())
+                    .followRedirects(false)
+                    .ignoreHttpErrors(true)
+                    .execute();
+        } catch (SocketTimeoutException e) {
+            timeoutPolicy.recordTimeout(TimeoutPolicy.Operation.KEEPALIVE_PROBE);
+            throw e;
+        }
+        timeoutPolicy.record(TimeoutPolicy.Operation.KEEPALIVE_PROBE, System.nanoTime() - requestNanos);
+
+        long headerBytes = estimateHeaderBytes(response);
+        long startNanos = System.nanoTime();
+        byte[] head = new byte[0];
+        boolean expired;
+        try {
+            int status = response.statusCode();
+            if (status >= 300 && status < 400) {
+                String location = response.header("Location");
+                expired = location == null || location.toLowerCase(Locale.ROOT).contains("login");
+            } else if (status >= 400) {
+                throw new HttpStatusException("セッション確認でHTTPエラーが返されました: " + status, status, keepAliveUrl);
+            } else {
+                head = readHead(response);
+                expired = looksLikeLoginPage(head);
+            }
+        } finally {
+            parseTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            transferredBytes.record(headerBytes + head.length);
+        }
+
+        if (expired) {
+            throw new IOException("Cookieの有効期限が切れています。");
+        }
+
+        return cookies.merge(response.cookies(), response.headers("Set-Cookie"), Instant.now());
+    }
+
+    // 本文の先頭だけを読み、残りはダウンロードせずに接続を閉じる
+    private byte[] readHead(Connection.Response response) throws IOException {
+        try (BufferedInputStream body = response.bodyStream()) {
+            return body.readNBytes(MAX_PROBE_BODY_BYTES);
+        }
+    }
+
+    private boolean looksLikeLoginPage(byte[] head) {
+        String text = new String(head, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+        return LOGIN_MARKERS.stream().anyMatch(text::contains);
+    }
+
+    private long estimateHeaderBytes(Connection.Response response) {
+        long bytes = 0;
+        for (Map.Entry<String, List<String>> header : response.multiHeaders().entrySet()) {
+            for (String value : header.getValue()) {
+                bytes += header.getKey().length() + value.length() + 4; // "Name: value\r\n"
+            }
+        }
+        return bytes;
+    }
+}
@@ -1,32 +1,65 @@
 package com.example.demo.service;
 
-import com.example.demo.entity.UserCredential;
-import com.example.demo.repository.UserCredentialRepository;
+import com.example.demo.repository.UserCredentialRepository.RefreshCandidate;
 import com.example.demo.service.ManabaScrapingOrchestrator.LoginProgressListener; // ★ LoginProgressListenerをインポート
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled; // ★ Springのスケジューラー
 import org.springframework.stereotype.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * バックグラウンドで定期的に全ユーザーのmanabaセッション(A)を
+ * バックグラウンドで定期的に、更新時刻を迎えたユーザーのmanabaセッション(A)を
  * 更新（再取得）するためのスケジューラー。
- * サーバーのメモリクラッシュを防ぐため、
- * ユーザー1人ずつの処理を「順番に」実行（直列処理）する。
+ * セッション更新はCookieを使ったJsoupのGETのみで、Seleniumは起動しない (Cookieが無効なユーザーはスキップされる)。
+ * そのため、同期ジョブと共有のワーカー (PriorityJobScheduler) で並列に実行し、manabaへのリクエスト間隔は HostRateLimiter で制限する。
+ * ワーカーでは対話的な同期より後に実行され、対話的な同期が混雑すると実行前の更新は取りやめて次回に持ち越す。
+ * (メモリを大きく消費するSeleniumによるログインは、この処理では一切行わない)
  */
 @Service
 public class SessionRefreshService {
 
     private static final Logger log = LoggerFactory.getLogger(SessionRefreshService.class);
-    private final UserCredentialRepository userCredentialRepository;
+    private final RefreshScheduleService refreshScheduleService;
     private final AuthService authService;
     private final LoginProgressListener dummyListener; // ★ LoginProgressListener 型に変更
+    private final int batchSize; // 1回に取得するユーザー数
+    private final PriorityJobScheduler scheduler; // Cookieのみのセッション更新を、同期ジョブと共有のワーカーで並列に実行する
+    private final boolean prewarmEnabled; // 最近利用したユーザーの時間割・課題も事前取得するか
+    private final Duration prewarmBudget; // 1回の更新で事前取得に使う時間の上限 (全スレッドの合計)
+    private final Tracer tracer;
+    private final UpstreamHealthTracker upstreamHealth;
 
-    public SessionRefreshService(UserCredentialRepository userCredentialRepository, AuthService authService) {
-        this.userCredentialRepository = userCredentialRepository;
+    public SessionRefreshService(
+            RefreshScheduleService refreshScheduleService,
+            AuthService authService,
+            @Value("${session.refresh.batch-size:10}") int batchSize,
+            @Value("${session.refresh.parallelism:4}") int parallelism,
+            @Value("${session.refresh.prewarm.enabled:false}") boolean prewarmEnabled,
+            @Value("${session.refresh.prewarm.budget:PT5M}") Duration prewarmBudget,
+            Tracer tracer,
+            UpstreamHealthTracker upstreamHealth,
+            PriorityJobScheduler scheduler
+    ) {
+        this.tracer = tracer;
+        this.scheduler = scheduler;
+        this.upstreamHealth = upstreamHealth;
+        this.refreshScheduleService = refreshScheduleService;
         this.authService = authService;
+        this.prewarmEnabled = prewarmEnabled;
+        this.prewarmBudget = prewarmBudget;
+        int threads = Math.max(1, parallelism);
+        // バックグラウンドで使えるワーカー (既定では並列数と同じ数) が全て処理できるよう、1回に取得するユーザー数は並列数以上にする
+        this.batchSize = Math.max(threads, batchSize);
         
         // ★★★ エラー（functional interface）の修正 ★★★
         // lambda式ではなく、2つのメソッドを持つインターフェースを
@@ -56,45 +89,134 @@ public class SessionRefreshService {
     }
 
     /**
-     * 80分ごと（4,800,000ミリ秒）に実行するスケジューラー。
-     * （manabaのセッションが90分で切れるため、その前に実行する）
+     * 定期的に (既定では1分ごと) 更新時刻を過ぎたユーザーだけを取得してセッションを更新するスケジューラー。
+     * （manabaのセッションが90分で切れるため、各ユーザーの更新時刻は最後の更新から75〜85分後に設定される）
+     * 全員を一斉に更新せず、少人数ずつ取得して処理することで、manabaとサーバーへの負荷の集中を避ける。
+     * 対話的な同期で最近Cookieが更新されたユーザーは更新時刻が延びるため、ここでは取得されない。
+     * manabaの障害中 (UpstreamHealthTracker の回路が開いている間) はユーザーを取得せずに中断し、次回に持ち越す。
+     * 対話的な同期を優先するために実行前の更新が取りやめられた場合も、そのユーザーのリースを解放して中断し、次回に持ち越す。
      * * fixedDelay は、前のタスクが完了してから次のタスクが始まるまでの待機時間。
-     * これにより、処理が80分以上かかってもジョブが重複起動しません。
+     * これにより、処理に時間がかかってもジョブが重複起動しません。
      */
-    @Scheduled(fixedDelay = 4800000) 
-    public void refreshAllUserSessions() {
-        log.info("--- バックグラウンド セッション更新ジョブを開始します (90分有効期限のため) ---");
-        
-        // 1. パスワードをDBに保存している全ユーザー（rememberMe=trueのユーザー）を取得
-        // (★注意: UserCredentialRepository.java に findByEncryptedPasswordIsNotNull() の定義が必要です)
-        List<UserCredential> usersToRefresh = userCredentialRepository.findByEncryptedPasswordIsNotNull();
-        
-        if (usersToRefresh.isEmpty()) {
-            log.info("更新対象のユーザー（パスワード保存済）がいません。ジョブを終了します。");
-            return;
+    @Scheduled(fixedDelayString = "${session.refresh.poll-interval-ms:60000}")
+    public void refreshDueUserSessions() {
+        int total = 0;
+        // 事前取得の残り時間 (ナノ秒)。使い切った後はCookieの確認のみを行う
+        AtomicLong remainingPrewarmNanos = new AtomicLong(prewarmEnabled ? prewarmBudget.toNanos() : 0L);
+        List<RefreshCandidate> batch;
+        // 1. 更新時刻を過ぎたユーザーを少人数ずつ取得 (IDと大学IDのみを射影)
+        while (true) {
+            if (!upstreamHealth.isAvailable()) {
+                log.warn("manabaに接続できない状態のため、バックグラウンド セッション更新を一時停止します。");
+                break;
+            }
+            if ((batch = refreshScheduleService.claimDue(batchSize)).isEmpty()) {
+                break;
+            }
+            if (total == 0) {
+                log.info("--- バックグラウンド セッション更新を開始します (90分有効期限のため) ---");
+            }
+            // 2. Cookieのみの更新なので、共有のワーカーで並列に実行し、全員の完了を待つ
+            //    事前取得するユーザーはセッション延長のみのユーザーより先に実行する
+            List<CompletableFuture<Boolean>> tasks = batch.stream()
+                    .map(user -> scheduler.submit(priorityOf(user, remainingPrewarmNanos), true,
+                            () -> refreshUser(user, remainingPrewarmNanos)))
+                    .toList();
+            int preempted = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    if (!tasks.get(i).get()) {
+                        preempted++;
+                        releaseUnstarted(batch.get(i));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("バックグラウンド セッション更新が中断されました。");
+                    return;
+                } catch (ExecutionException e) {
+                    // refreshUser 内でエラーは処理済み。予期しないエラーはスケジューラーが記録し、リースは complete で解放済み
+                }
+            }
+            total += batch.size() - preempted;
+            if (preempted > 0) {
+                log.info("対話的な同期を優先するため、{} 人のセッション更新を次回に持ち越します。", preempted);
+                break;
+            }
+        }
+        if (total > 0) {
+            log.info("--- バックグラウンド セッション更新が完了しました ({} 人) ---", total);
         }
+    }
 
-        log.info("{} 人のユーザーセッションを「順番に」更新します。", usersToRefresh.size());
+    // 予算が残っている間の事前取得は PREWARM、それ以外はセッション延長のみのため KEEPALIVE
+    private WorkPriority priorityOf(RefreshCandidate user, AtomicLong remainingPrewarmNanos) {
+        return Boolean.TRUE.equals(user.getPrewarm()) && remainingPrewarmNanos.get() > 0
+                ? WorkPriority.PREWARM
+                : WorkPriority.KEEPALIVE;
+    }
 
-        // 2. ★★★ 1人ずつ、順番に実行する ★★★
-        // (メモリクラッシュを防ぐため、並列実行は絶対にしない)
-        for (UserCredential user : usersToRefresh) {
-            String universityId = user.getUniversityId();
-            try {
-                log.info("[{}] (profile:{}) のセッション更新処理を開始...", universityId, user.getId());
-                
-                // 3. 既存のAuthService.executeSyncを呼び出す
-                // これにより、(A)のセッションが有効ならJsoupで高速に終わり、
-                // (A)が切れていたらSelenium (performLogin) で再取得が実行される。
-                authService.refreshSessionOnly(user.getId(), dummyListener);
+    // 実行前に取りやめた更新は、更新時刻を変えずにリースだけを解放する (次回すぐに再取得される)
+    private void releaseUnstarted(RefreshCandidate user) {
+        try {
+            refreshScheduleService.release(user.getId());
+        } catch (Exception e) {
+            log.warn("[{}] (profile:{}) のセッション更新リースの解放に失敗しました。有効期限切れ後に再取得されます。",
+                    user.getUniversityId(), user.getId(), e);
+        }
+    }
+
+    private void refreshUser(RefreshCandidate user, AtomicLong remainingPrewarmNanos) {
+        // 1ユーザー分の更新を1つのトレースとし、ページ取得やDBアクセスはその子スパンとして記録する
+        Span span = tracer.nextSpan().name("session-refresh").start();
+        try (Tracer.SpanInScope ignored = tracer.withSpan(span)) {
+            refreshUserInSpan(user, remainingPrewarmNanos);
+        } finally {
+            span.end();
+        }
+    }
 
-                log.info("[{}] (profile:{}) のセッションCookie更新に成功しました。", universityId, user.getId());
+    private void refreshUserInSpan(RefreshCandidate user, AtomicLong remainingPrewarmNanos) {
+        UUID userId = user.getId();
+        String universityId = user.getUniversityId();
+        try {
+            log.info("[{}] (profile:{}) のセッション更新処理を開始...", universityId, userId);
 
+            // 最近アプリを利用したユーザーは、Cookieの確認を兼ねて時間割・課題も取得しておく (予算の範囲内のみ)
+            if (Boolean.TRUE.equals(user.getPrewarm()) && remainingPrewarmNanos.get() > 0) {
+                long startNanos = System.nanoTime();
+                boolean prewarmed;
+                try {
+                    prewarmed = authService.prewarmSnapshot(userId, dummyListener);
+                } finally {
+                    remainingPrewarmNanos.addAndGet(-(System.nanoTime() - startNanos));
+                }
+                if (prewarmed) {
+                    log.info("[{}] (profile:{}) の時間割・課題を事前取得しました。", universityId, userId);
+                    return;
+                }
+                // 事前取得できなかった (Cookieが無効など) 場合も、通常のセッション更新は試みる
+            }
+
+            // 3. AuthService.refreshSessionOnlyを呼び出す (資格情報はここで1人分だけ読み込まれる)
+            // 成功すると次回の更新時刻が設定される
+            // (A)のセッションが有効ならJsoupで高速に終わり、(A)が切れていたらスキップされる (Seleniumは起動しない)
+            authService.refreshSessionOnly(userId, dummyListener);
+
+            log.info("[{}] (profile:{}) のセッションCookie更新に成功しました。", universityId, userId);
+
+        } catch (UpstreamUnavailableException e) {
+            // manabaの障害中はリクエストを送らずに失敗する。再試行時刻まで延期される
+            log.warn("[{}] (profile:{}) のセッション更新を見送りました: {}", universityId, userId, e.getMessage());
+        } catch (Exception e) {
+            // 一人の更新が失敗しても、次の人のためにループは止めない
+            log.error("[{}] (profile:{}) のセッション更新中にエラーが発生しました: {}", universityId, userId, e.getMessage(), e);
+        } finally {
+            // 成否にかかわらずリースを解放する (失敗した場合は再試行時刻まで延期される)
+            try {
+                refreshScheduleService.complete(userId);
             } catch (Exception e) {
-                // 一人の更新が失敗しても、次の人のためにループは止めない
-                log.error("[{}] (profile:{}) のセッション更新中にエラーが発生しました: {}", universityId, user.getId(), e.getMessage(), e);
+                log.warn("[{}] (profile:{}) のセッション更新リースの解放に失敗しました。有効期限切れ後に再取得されます。", universityId, userId, e);
             }
         }
-        log.info("--- バックグラウンド セッション更新ジョブが完了しました ---");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+package com.example.demo.service;
+
+import com.example.demo.service.ManabaScrapingOrchestrator.LoginProgressListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LoginProgressListener をラップし、同期ジョブの各段階の所要時間を Micrometer に記録するデコレーター。
+ * 通知はそのまま元のリスナーに渡す。1つのジョブ (1スレッド) 専用で、ジョブごとに生成すること。
+ * 各段階はトレースの子スパン (stage:段階名) としても記録し、段階中のページ取得などはその子スパンになる。
+ *
+ * 記録するメトリクス:
+ * - schedy.sync.stage.time: 段階 (stage) が始まってから次の段階に進むまでの時間
+ * - schedy.sync.job.time: ジョブ全体の時間 (auth=cookie/password、outcome=success/failure)
+ * - schedy.sync.mfa.wait: MFAコードを通知してから次の段階に進むまで (承認を待っていた時間)
+ * - schedy.sync.failures: 失敗したジョブ数 (失敗時点の段階ごと)
+ */
+public final class StageTimingListener implements LoginProgressListener {
+
+    private static final String AUTH_COOKIE = "cookie";
+    private static final String AUTH_PASSWORD = "password";
+
+    private final LoginProgressListener delegate;
+    private final Tracer tracer;
+    private final long startNanos;
+    private String currentStage = "QUEUED";
+    private long stageStartNanos;
+    private long mfaStartNanos = -1; // MFAの承認待ちでなければ -1
+    private String authPath = AUTH_COOKIE; // PASSWORD_AUTH を通ったら password
+    private boolean finished;
+    private Span stageSpan; // 実行中の段階のスパン
+    private Tracer.SpanInScope stageScope;
+
+    public StageTimingListener(LoginProgressListener delegate, Tracer tracer) {
+        this.delegate = delegate;
+        this.tracer = tracer;
+        this.startNanos = System.nanoTime();
+        this.stageStartNanos = startNanos;
+    }
+
+    @Override
+    public void onStatusUpdate(String stage, String message) {
+        long now = System.nanoTime();
+        if (stage != null && !stage.equals(currentStage)) {
+            recordStage(currentStage, now - stageStartNanos);
+            endMfaWait(now);
+            if ("PASSWORD_AUTH".equals(stage)) {
+                authPath = AUTH_PASSWORD;
+            }
+            currentStage = stage;
+            stageStartNanos = now;
+            endStageSpan(null);
+            startStageSpan(stage);
+        }
+        delegate.onStatusUpdate(stage, message);
+    }
+
+    @Override
+    public void onMfaRequired(String mfaCode, String message) {
+        if (mfaStartNanos < 0) {
+            mfaStartNanos = System.nanoTime();
+            if (stageSpan != null) {
+                stageSpan.event("mfa-required");
+            }
+        }
+        delegate.onMfaRequired(mfaCode, message);
+    }
+
+    /**
+     * ジョブの成功を記録します。
+     */
+    public void succeeded() {
+        if (finish("success")) {
+            endStageSpan(null);
+        }
+    }
+
+    /**
+     * ジョブの失敗を記録します。失敗時点の段階もあわせて記録されます。
+     */
+    public void failed(Throwable error) {
+        if (finish("failure")) {
+            endStageSpan(error);
+            Counter.builder("schedy.sync.failures")
+                    .description("Number of failed sync jobs by the stage they failed in")
+                    .tag("stage", currentStage)
+                    .register(Metrics.globalRegistry)
+                    .increment();
+        }
+    }
+
+    private boolean finish(String outcome) {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        long now = System.nanoTime();
+        recordStage(currentStage, now - stageStartNanos);
+        endMfaWait(now);
+        Timer.builder("schedy.sync.job.time")
+                .description("Total time of a sync job by authentication path")
+                .tag("auth", authPath)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry)
+                .record(now - startNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    private void startStageSpan(String stage) {
+        stageSpan = tracer.nextSpan().name("stage:" + stage).tag("stage", stage).start();
+        stageScope = tracer.withSpan(stageSpan);
+    }
+
+    private void endStageSpan(Throwable error) {
+        if (stageSpan == null) {
+            return;
+        }
+        stageScope.close();
+        if (error != null) {
+            stageSpan.error(error);
+        }
+        stageSpan.end();
+        stageSpan = null;
+        stageScope = null;
+    }
+
+    private void endMfaWait(long now) {
+        if (mfaStartNanos < 0) {
+            return;
+        }
+        if (stageSpan != null) {
+            stageSpan.event("mfa-approved");
+        }
+        Timer.builder("schedy.sync.mfa.wait")
+                .description("Time spent waiting for the user to approve MFA")
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry)
+                .record(now - mfaStartNanos, TimeUnit.NANOSECONDS);
+        mfaStartNanos = -1;
+    }
+
+    private void recordStage(String stage, long elapsedNanos) {
+        // 段階名は固定の識別子のみのため、そのままタグにしてよい
+        Timer.builder("schedy.sync.stage.time")
+                .description("Time from the start of a sync stage until the next stage begins")
+                .tag("stage", stage)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+}
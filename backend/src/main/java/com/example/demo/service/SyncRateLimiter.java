@@ -0,0 +1,211 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 同期ジョブの開始をユーザーごと・全体で制限するトークンバケット。
+ * パスワード認証 (Seleniumでのログイン) はCookie認証よりはるかに重いため、認証方式ごとに別々の上限を持つ。
+ *
+ * 各バケットは「次にバケットが満杯に戻る時刻」(theoretical arrival time) を1つの AtomicLong に持ち、CASで更新する (ロックを使わない)。
+ * 満杯に戻っているバケットは新しく作ったものと区別できないため、一定時間使われていないユーザーのバケットは削除し、
+ * 保持するユーザー数は max-keys を上限とする (上限に達した場合、新しいユーザーは共有のバケットを使う)。
+ */
+@Component
+public class SyncRateLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(SyncRateLimiter.class);
+    private static final String OVERFLOW_KEY = "*overflow*"; // 上限を超えたユーザーが共有するバケットのキー
+
+    /**
+     * 同期ジョブの認証方式。Seleniumでのログインになり得る場合 (パスワードが送られてきた、または保存済みCookieで
+     * 認証できない場合) は PASSWORD とみなす。
+     */
+    public enum AuthPath {
+        COOKIE("cookie"),
+        PASSWORD("password");
+
+        private final String tag;
+
+        AuthPath(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * 判定結果。拒否された場合は retryAfter に次に受け付けられるまでの時間が入る。
+     */
+    public record Decision(boolean allowed, Duration retryAfter, String scope) {
+        static final Decision ALLOWED = new Decision(true, Duration.ZERO, null);
+    }
+
+    /** 1分あたりの回数とバースト (連続して受け付ける回数) から決まるバケットの設定 */
+    private record Limit(long intervalNanos, long toleranceNanos) {
+        static Limit of(double perMinute, int burst) {
+            if (perMinute <= 0) {
+                return null;
+            }
+            long interval = (long) (TimeUnit.MINUTES.toNanos(1) / perMinute);
+            return new Limit(interval, interval * (Math.max(1, burst) - 1L));
+        }
+    }
+
+    private final boolean enabled;
+    private final int maxKeys;
+    private final long idleNanos;
+    private final Limit[] userLimits = new Limit[AuthPath.values().length];
+    private final Limit[] globalLimits = new Limit[AuthPath.values().length];
+    private final AtomicLong[] globalBuckets = new AtomicLong[AuthPath.values().length];
+    private final ConcurrentHashMap<String, AtomicLong> userBuckets = new ConcurrentHashMap<>();
+    private final LongSupplier nanoClock;
+
+    @Autowired
+    public SyncRateLimiter(
+            @Value("${sync.rate-limit.enabled:true}") boolean enabled,
+            @Value("${sync.rate-limit.cookie.per-user-per-minute:6}") double cookiePerUser,
+            @Value("${sync.rate-limit.cookie.per-user-burst:3}") int cookiePerUserBurst,
+            @Value("${sync.rate-limit.cookie.global-per-minute:120}") double cookieGlobal,
+            @Value("${sync.rate-limit.cookie.global-burst:30}") int cookieGlobalBurst,
+            @Value("${sync.rate-limit.password.per-user-per-minute:2}") double passwordPerUser,
+            @Value("${sync.rate-limit.password.per-user-burst:2}") int passwordPerUserBurst,
+            @Value("${sync.rate-limit.password.global-per-minute:10}") double passwordGlobal,
+            @Value("${sync.rate-limit.password.global-burst:5}") int passwordGlobalBurst,
+            @Value("${sync.rate-limit.max-keys:10000}") int maxKeys,
+            @Value("${sync.rate-limit.idle-eviction:PT10M}") Duration idleEviction
+    ) {
+        this(enabled, cookiePerUser, cookiePerUserBurst, cookieGlobal, cookieGlobalBurst,
+                passwordPerUser, passwordPerUserBurst, passwordGlobal, passwordGlobalBurst,
+                maxKeys, idleEviction, System::nanoTime);
+    }
+
+    /**
+     * 時刻の取得元を指定して作成します (テスト用)。
+     */
+    SyncRateLimiter(boolean enabled,
+                    double cookiePerUser, int cookiePerUserBurst, double cookieGlobal, int cookieGlobalBurst,
+                    double passwordPerUser, int passwordPerUserBurst, double passwordGlobal, int passwordGlobalBurst,
+                    int maxKeys, Duration idleEviction, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.enabled = enabled;
+        this.maxKeys = Math.max(1, maxKeys);
+        this.idleNanos = idleEviction.toNanos();
+        userLimits[AuthPath.COOKIE.ordinal()] = Limit.of(cookiePerUser, cookiePerUserBurst);
+        globalLimits[AuthPath.COOKIE.ordinal()] = Limit.of(cookieGlobal, cookieGlobalBurst);
+        userLimits[AuthPath.PASSWORD.ordinal()] = Limit.of(passwordPerUser, passwordPerUserBurst);
+        globalLimits[AuthPath.PASSWORD.ordinal()] = Limit.of(passwordGlobal, passwordGlobalBurst);
+        long now = nanoClock.getAsLong();
+        for (AuthPath path : AuthPath.values()) {
+            globalBuckets[path.ordinal()] = new AtomicLong(now);
+        }
+        Gauge.builder("schedy.sync.rate-limit.keys", userBuckets, ConcurrentHashMap::size)
+                .description("Number of per-user rate limit buckets currently held")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * 同期ジョブの開始を1回分受け付けられるかを判定し、受け付ける場合はバケットから1回分を消費します。
+     * ユーザーごとの上限を先に判定し、全体の上限で拒否された場合はユーザーの分を戻します。
+     * @param userKey ユーザーを識別するキー (同期対象のアカウントの大学ID。前後の空白と大文字・小文字は区別しない)
+     */
+    public Decision tryAcquire(String userKey, AuthPath path) {
+        if (!enabled) {
+            return Decision.ALLOWED;
+        }
+        long now = nanoClock.getAsLong();
+        Limit userLimit = userLimits[path.ordinal()];
+        AtomicLong userBucket = userLimit != null ? userBucket(path, userKey, now) : null;
+        if (userBucket != null) {
+            long wait = take(userBucket, userLimit, now);
+            if (wait > 0) {
+                return reject(path, "user", wait);
+            }
+        }
+        Limit globalLimit = globalLimits[path.ordinal()];
+        if (globalLimit != null) {
+            long wait = take(globalBuckets[path.ordinal()], globalLimit, now);
+            if (wait > 0) {
+                if (userBucket != null) {
+                    userBucket.addAndGet(-userLimit.intervalNanos());
+                }
+                return reject(path, "global", wait);
+            }
+        }
+        return Decision.ALLOWED;
+    }
+
+    /**
+     * 一定時間使われていないユーザーのバケットを削除します。
+     * 満杯に戻っているバケットは削除しても判定が変わらないため、削除するのはそのようなバケットのみです。
+     */
+    @Scheduled(fixedDelayString = "${sync.rate-limit.eviction-interval-ms:60000}")
+    public void evictIdle() {
+        int before = userBuckets.size();
+        evictIdle(nanoClock.getAsLong());
+        int removed = before - userBuckets.size();
+        if (removed > 0) {
+            log.debug("使われていないレート制限のバケットを {} 件削除しました。", removed);
+        }
+    }
+
+    private void evictIdle(long now) {
+        userBuckets.values().removeIf(bucket -> now - bucket.get() >= idleNanos);
+    }
+
+    private AtomicLong userBucket(AuthPath path, String userKey, long now) {
+        String key = path.tag + ":" + (userKey != null ? userKey.trim().toLowerCase(Locale.ROOT) : "");
+        AtomicLong bucket = userBuckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (userBuckets.size() >= maxKeys) {
+            evictIdle(now);
+            if (userBuckets.size() >= maxKeys) {
+                // 保持できるユーザー数を超えたため、新しいユーザーは共有のバケットで制限する
+                key = path.tag + ":" + OVERFLOW_KEY;
+            }
+        }
+        return userBuckets.computeIfAbsent(key, ignored -> new AtomicLong(now));
+    }
+
+    /**
+     * GCRA (バケットが満杯に戻る時刻を1つの値で持つトークンバケット) で1回分を消費します。
+     * @return 受け付けた場合は 0、拒否した場合は次に受け付けられるまでのナノ秒
+     */
+    private static long take(AtomicLong bucket, Limit limit, long now) {
+        while (true) {
+            long current = bucket.get();
+            long tat = Math.max(current, now);
+            long wait = tat - now - limit.toleranceNanos();
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(current, tat + limit.intervalNanos())) {
+                return 0;
+            }
+        }
+    }
+
+    private Decision reject(AuthPath path, String scope, long waitNanos) {
+        Counter.builder("schedy.sync.rate-limit.rejected")
+                .description("Sync job starts rejected by the rate limiter")
+                .tag("auth", path.tag)
+                .tag("scope", scope)
+                .register(Metrics.globalRegistry)
+                .increment();
+        return new Decision(false, Duration.ofNanos(waitNanos), scope);
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.AssignmentEntry;
+import com.example.demo.dto.CourseEntry;
+import com.example.demo.dto.SyncDelta;
+import com.example.demo.dto.SyncResult;
+import com.example.demo.entity.SyncSnapshot;
+import com.example.demo.repository.SyncSnapshotRepository;
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * ユーザーごとの最後に成功した同期結果を保持するService。
+ * DBには暗号化して保存し、読み込んだ結果はメモリ上にもキャッシュする。
+ * ダッシュボードを開くたびにスクレイピングを待たせないための stale-while-revalidate 用。
+ * 内容が変わる直前のバージョンも1世代保持し、クライアントへの差分レスポンスの計算に使う。
+ *
+ * 複数ノードで動かした場合、他のノード (バックグラウンドの事前取得や別ノードでの同期) が新しい結果を保存することがある。
+ * そのため、キャッシュを返す前に保存時刻のみをDBから読み、キャッシュと異なる場合は読み込み直す
+ * (復号とJSONのパースを省略するためのキャッシュであり、主キーで1列を読むだけの確認は毎回行う)。
+ */
+@Service
+public class SyncSnapshotService {
+
+    private static final Logger log = LoggerFactory.getLogger(SyncSnapshotService.class);
+    private static final int MAX_CACHED_SNAPSHOTS = 1000; // メモリキャッシュの上限件数
+    private static final int MAX_SAVE_ATTEMPTS = 3; // 初回の保存が同時に行われた場合の再試行回数
+
+    private final SyncSnapshotRepository syncSnapshotRepository;
+    private final EncryptionService encryptionService;
+    private final Duration freshness;
+    private final TransactionTemplate writeTransaction;
+    private final Gson gson = new Gson();
+    private final ConcurrentHashMap<UUID, CachedSnapshot> cache = new ConcurrentHashMap<>();
+
+    public SyncSnapshotService(
+            SyncSnapshotRepository syncSnapshotRepository,
+            EncryptionService encryptionService,
+            PlatformTransactionManager transactionManager,
+            @Value("${sync.result.freshness:PT30M}") Duration freshness
+    ) {
+        this.syncSnapshotRepository = syncSnapshotRepository;
+        this.encryptionService = encryptionService;
+        this.freshness = freshness;
+        // 主キーの重複でトランザクションが中断された場合にやり直せるよう、呼び出し元のトランザクションとは分ける
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.writeTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * 保存済みの同期結果と、その保存時刻・バージョントークン。
+     */
+    public record StoredSyncResult(SyncResult result, Instant savedAt, String version) {}
+
+    // previous は未読込の場合 null (previousVersion があればDBから遅延読込する)
+    private record CachedSnapshot(StoredSyncResult current, String previousVersion, SyncResult previous) {}
+
+    /**
+     * 時間割と課題の内容からバージョントークンを計算します。
+     * 同期時刻や次の授業は含めないため、内容が変わらなければ同じ値になります。
+     */
+    public String versionOf(SyncResult result) {
+        return ContentHash.hex(gson.toJson(result.timetable()), gson.toJson(result.assignments()));
+    }
+
+    /**
+     * 同期結果を暗号化してDBに保存し、キャッシュも更新します。
+     * 内容が前回から変わっている場合は、前回の結果を1世代前として保持します。
+     * 同じユーザーの初回の保存が同時に行われ、主キーが重複した場合は、トランザクションごとやり直します (読み直した行を更新する)。
+     * @param userId ユーザープロファイルのUUID
+     * @param result 保存する同期結果
+     */
+    public void save(UUID userId, SyncResult result) {
+        // DB (timestamp はマイクロ秒まで) に保存した値とキャッシュの値を比較できるよう、マイクロ秒に切り捨てる
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        String version = versionOf(result);
+        String encryptedPayload = encryptionService.encrypt(gson.toJson(result));
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                CachedSnapshot saved = writeTransaction.execute(status -> write(userId, result, now, version, encryptedPayload));
+                putCache(userId, saved);
+                log.debug("同期結果のスナップショットを保存しました: userId={}, version={}", userId, version);
+                return;
+            } catch (DataIntegrityViolationException e) {
+                if (attempt >= MAX_SAVE_ATTEMPTS) {
+                    throw e;
+                }
+                log.info("同期結果のスナップショットが同時に作成されたため、保存をやり直します: userId={}", userId);
+            }
+        }
+    }
+
+    // 行を読み直し、その行をもとに保存する内容を決める。1世代前の結果は、キャッシュの内容が読み直した行と同じバージョンの場合のみ使う
+    // (他のノードが間に保存していた場合などに、差分の基点と1世代前のバージョンが食い違わないように)
+    private CachedSnapshot write(UUID userId, SyncResult result, Instant now, String version, String encryptedPayload) {
+        SyncSnapshot snapshot = syncSnapshotRepository.findById(userId).orElse(null);
+        CachedSnapshot cached = cache.get(userId);
+        String previousVersion = null;
+        SyncResult previous = null;
+
+        if (snapshot == null) {
+            snapshot = new SyncSnapshot(userId, encryptedPayload, now, version, null, null);
+            syncSnapshotRepository.saveAndFlush(snapshot);
+        } else {
+            if (version.equals(snapshot.getVersion())) {
+                previousVersion = snapshot.getPreviousVersion();
+                if (cached != null && previousVersion != null && previousVersion.equals(cached.previousVersion())) {
+                    previous = cached.previous();
+                }
+            } else {
+                snapshot.setPreviousVersion(snapshot.getVersion());
+                snapshot.setPreviousEncryptedPayload(snapshot.getEncryptedPayload());
+                previousVersion = snapshot.getVersion();
+                if (cached != null && previousVersion != null && previousVersion.equals(cached.current().version())) {
+                    previous = cached.current().result();
+                }
+            }
+            // previous が null の場合、差分が必要になった時点で previousEncryptedPayload から読み込む (loadPrevious)
+            snapshot.setEncryptedPayload(encryptedPayload);
+            snapshot.setSavedAt(now);
+            snapshot.setVersion(version);
+            syncSnapshotRepository.save(snapshot);
+        }
+        return new CachedSnapshot(new StoredSyncResult(result, now, version), previousVersion, previous);
+    }
+
+    /**
+     * 保存済みの同期結果を取得します。キャッシュになければDBから復号して読み込みます。
+     * @param userId ユーザープロファイルのUUID
+     * @return 保存済みの同期結果。存在しない・復号できない場合は空のOptional
+     */
+    @Transactional(readOnly = true)
+    public Optional<StoredSyncResult> find(UUID userId) {
+        return loadSnapshot(userId).map(CachedSnapshot::current);
+    }
+
+    /**
+     * クライアントが保持しているバージョンから、保存済みの最新結果への差分を計算します。
+     * クライアントのバージョンが最新または1世代前と一致する場合のみ差分を返し、
+     * それ以外 (不明なバージョン、targetVersionと最新が一致しない等) は空を返すため、呼び出し側は全体を返すこと。
+     * @param userId ユーザープロファイルのUUID
+     * @param sinceVersion クライアントが保持しているバージョン
+     * @param targetVersion 差分の到達先として期待するバージョン (nullの場合は保存済みの最新)
+     * @return 差分。計算できない場合は空のOptional
+     */
+    @Transactional(readOnly = true)
+    public Optional<SyncDelta> findDelta(UUID userId, String sinceVersion, String targetVersion) {
+        if (sinceVersion == null || sinceVersion.isBlank()) {
+            return Optional.empty();
+        }
+        Optional<CachedSnapshot> cachedOpt = loadSnapshot(userId);
+        if (cachedOpt.isEmpty()) {
+            return Optional.empty();
+        }
+
+        CachedSnapshot cached = cachedOpt.get();
+        StoredSyncResult current = cached.current();
+        if (targetVersion != null && !targetVersion.equals(current.version())) {
+            return Optional.empty();
+        }
+
+        if (sinceVersion.equals(current.version())) {
+            return Optional.of(diff(sinceVersion, current.result(), current));
+        }
+        if (sinceVersion.equals(cached.previousVersion())) {
+            SyncResult previous = loadPrevious(userId, cached);
+            if (previous != null) {
+                return Optional.of(diff(sinceVersion, previous, current));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * 保存済みの同期結果を削除します (rememberMe=false のユーザーなど)。
+     * @param userId ユーザープロファイルのUUID
+     */
+    @Transactional
+    public void delete(UUID userId) {
+        cache.remove(userId);
+        if (syncSnapshotRepository.existsById(userId)) {
+            syncSnapshotRepository.deleteById(userId);
+            log.debug("同期結果のスナップショットを削除しました: userId={}", userId);
+        }
+    }
+
+    /**
+     * 保存時刻が鮮度の許容範囲 (sync.result.freshness) を超えているかを判定します。
+     */
+    public boolean isStale(StoredSyncResult stored) {
+        return stored.savedAt().isBefore(Instant.now().minus(freshness));
+    }
+
+    private Optional<CachedSnapshot> loadSnapshot(UUID userId) {
+        CachedSnapshot cached = cache.get(userId);
+        if (cached != null) {
+            Optional<Instant> storedSavedAt = syncSnapshotRepository.findSavedAt(userId);
+            if (storedSavedAt.isPresent() && storedSavedAt.get().equals(cached.current().savedAt())) {
+                return Optional.of(cached);
+            }
+            // 他のノードが新しい結果を保存した (または削除した) ため、キャッシュを破棄して読み込み直す
+            cache.remove(userId, cached);
+            if (storedSavedAt.isEmpty()) {
+                return Optional.empty();
+            }
+        }
+
+        Optional<SyncSnapshot> snapshotOpt = syncSnapshotRepository.findById(userId);
+        if (snapshotOpt.isEmpty()) {
+            return Optional.empty();
+        }
+
+        SyncSnapshot snapshot = snapshotOpt.get();
+        try {
+            SyncResult result = gson.fromJson(encryptionService.decrypt(snapshot.getEncryptedPayload()), SyncResult.class);
+            String version = snapshot.getVersion() != null ? snapshot.getVersion() : versionOf(result);
+            CachedSnapshot loaded = new CachedSnapshot(
+                    new StoredSyncResult(result, snapshot.getSavedAt(), version),
+                    snapshot.getPreviousVersion(),
+                    null
+            );
+            putCache(userId, loaded);
+            return Optional.of(loaded);
+        } catch (Exception e) {
+            log.warn("同期結果スナップショットの復号に失敗しました: userId={}", userId, e);
+            return Optional.empty();
+        }
+    }
+
+    private SyncResult loadPrevious(UUID userId, CachedSnapshot cached) {
+        if (cached.previous() != null) {
+            return cached.previous();
+        }
+        SyncSnapshot snapshot = syncSnapshotRepository.findById(userId).orElse(null);
+        if (snapshot == null || snapshot.getPreviousEncryptedPayload() == null
+                || !cached.previousVersion().equals(snapshot.getPreviousVersion())) {
+            return null;
+        }
+        try {
+            SyncResult previous = gson.fromJson(encryptionService.decrypt(snapshot.getPreviousEncryptedPayload()), SyncResult.class);
+            cache.computeIfPresent(userId, (key, entry) -> entry.current() == cached.current()
+                    ? new CachedSnapshot(entry.current(), entry.previousVersion(), previous)
+                    : entry);
+            return previous;
+        } catch (Exception e) {
+            log.warn("1世代前の同期結果の復号に失敗しました: userId={}", userId, e);
+            return null;
+        }
+    }
+
+    private SyncDelta diff(String baseVersion, SyncResult base, StoredSyncResult current) {
+        SyncResult latest = current.result();
+        List<CourseEntry> addedCourses = new ArrayList<>();
+        List<CourseEntry> changedCourses = new ArrayList<>();
+        List<String> removedCourseIds = new ArrayList<>();
+        diffEntries(base.timetable(), latest.timetable(), CourseEntry::id, addedCourses, changedCourses, removedCourseIds);
+
+        List<AssignmentEntry> addedAssignments = new ArrayList<>();
+        List<AssignmentEntry> changedAssignments = new ArrayList<>();
+        List<String> removedAssignmentIds = new ArrayList<>();
+        diffEntries(base.assignments(), latest.assignments(), AssignmentEntry::id, addedAssignments, changedAssignments, removedAssignmentIds);
+
+        return new SyncDelta(
+                baseVersion,
+                current.version(),
+                latest.syncedAt(),
+                addedCourses,
+                changedCourses,
+                removedCourseIds,
+                addedAssignments,
+                changedAssignments,
+                removedAssignmentIds,
+                latest.nextClass()
+        );
+    }
+
+    private <T> void diffEntries(List<T> base, List<T> latest, Function<T, String> idOf,
+                                 List<T> added, List<T> changed, List<String> removedIds) {
+        Map<String, T> baseById = new LinkedHashMap<>();
+        if (base != null) {
+            base.forEach(entry -> baseById.put(idOf.apply(entry), entry));
+        }
+        if (latest != null) {
+            for (T entry : latest) {
+                T previous = baseById.remove(idOf.apply(entry));
+                if (previous == null) {
+                    added.add(entry);
+                } else if (!previous.equals(entry)) {
+                    changed.add(entry);
+                }
+            }
+        }
+        removedIds.addAll(baseById.keySet());
+    }
+
+    private void putCache(UUID userId, CachedSnapshot snapshot) {
+        // 上限を超える場合はキャッシュせず、次回もDBから読み込む
+        if (cache.size() < MAX_CACHED_SNAPSHOTS || cache.containsKey(userId)) {
+            cache.put(userId, snapshot);
+        }
+    }
+}
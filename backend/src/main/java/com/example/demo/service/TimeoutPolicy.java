@@ -0,0 +1,308 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通信・待機のタイムアウトを、操作の種類ごとに直近の所要時間から決めるポリシー。
+ * 操作ごとに直近 WINDOW_SIZE 件の所要時間を保持し、タイムアウトは p99 × factor を操作ごとの下限・上限に収めた値とする。
+ * 計測が min-samples 件に満たない間は、従来の固定値 (defaultTimeout) を使う。
+ *
+ * 待機がタイムアウトした場合は、その時点のタイムアウト値を所要時間として記録できる (recordTimeout)。
+ * 応答が遅い日には記録が上限側に寄るため、タイムアウトが上限まで自然に広がる。
+ *
+ * ページ取得には hedged を使うと、直近の p95 を過ぎても終わらない場合に同じリクエストをもう1本送り、
+ * 先に返った方の結果を使う (同時に送る追加リクエストの数は max-in-flight まで)。
+ * 最初のリクエストも追加のリクエストも、それぞれ OutboundLimiter の枠を1本ずつ使う。
+ * 追加のリクエストは枠の空きを待たず、空きがなければ送らない (混雑を増やさないため)。
+ * リクエストを実行するスレッドは max-in-flight + ワーカー数 (scheduler.workers) までとする。
+ */
+@Component
+public class TimeoutPolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(TimeoutPolicy.class);
+    private static final int WINDOW_SIZE = 256; // 操作ごとに保持する直近の所要時間の件数
+    private static final Duration MIN_HEDGE_DELAY = Duration.ofMillis(500); // これより早くは追加リクエストを送らない
+
+    /**
+     * タイムアウトを決める操作の種類。defaultTimeout はこれまでの固定値。
+     */
+    public enum Operation {
+        /** Jsoupでのページ取得 (本文の受信まで) */
+        PAGE_FETCH("page-fetch", Duration.ofSeconds(30), Duration.ofSeconds(5), Duration.ofSeconds(60)),
+        /** セッション延長のプローブ (ヘッダーと本文の先頭) */
+        KEEPALIVE_PROBE("keepalive-probe", Duration.ofSeconds(30), Duration.ofSeconds(3), Duration.ofSeconds(30)),
+        /** Seleniumでログイン画面の入力欄・ボタンが操作できるようになるまで */
+        LOGIN_ELEMENT("login-element", Duration.ofSeconds(120), Duration.ofSeconds(15), Duration.ofSeconds(180)),
+        /** ユーザー名・パスワードを送信してから、エラー表示または次の画面に進むまで */
+        LOGIN_RESPONSE("login-response", Duration.ofSeconds(8), Duration.ofSeconds(3), Duration.ofSeconds(30)),
+        /** パスワード送信後にMFAのコードが表示されるまで */
+        MFA_PROMPT("mfa-prompt", Duration.ofSeconds(30), Duration.ofSeconds(5), Duration.ofSeconds(60));
+
+        private final String tag;
+        private final Duration defaultTimeout;
+        private final Duration min;
+        private final Duration max;
+
+        Operation(String tag, Duration defaultTimeout, Duration min, Duration max) {
+            this.tag = tag;
+            this.defaultTimeout = defaultTimeout;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    private final double factor;
+    private final int minSamples;
+    private final boolean hedgeEnabled;
+    private final Semaphore hedgePermits;
+    private final Map<Operation, LatencyWindow> windows = new EnumMap<>(Operation.class);
+    private final OutboundLimiter outboundLimiter;
+    private final ThreadPoolExecutor hedgeExecutor;
+    private final Counter hedgesWon;
+    private final Counter hedgesLost;
+    private final Counter hedgesSkipped;
+
+    public TimeoutPolicy(
+            OutboundLimiter outboundLimiter,
+            @Value("${timeout.factor:3.0}") double factor,
+            @Value("${timeout.min-samples:20}") int minSamples,
+            @Value("${timeout.hedge.enabled:true}") boolean hedgeEnabled,
+            @Value("${timeout.hedge.max-in-flight:2}") int hedgeMaxInFlight,
+            @Value("${scheduler.workers:5}") int workers
+    ) {
+        this.outboundLimiter = outboundLimiter;
+        this.factor = factor;
+        this.minSamples = Math.max(1, minSamples);
+        this.hedgeEnabled = hedgeEnabled && hedgeMaxInFlight > 0;
+        this.hedgePermits = new Semaphore(Math.max(0, hedgeMaxInFlight));
+        // ページ取得はワーカーのスレッドから呼ばれるため、最初のリクエストはワーカー数、追加のリクエストは max-in-flight 本まで同時に動く
+        int threads = Math.max(1, workers) + Math.max(0, hedgeMaxInFlight);
+        this.hedgeExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "hedged-fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hedgeExecutor.allowCoreThreadTimeOut(true);
+        for (Operation operation : Operation.values()) {
+            windows.put(operation, new LatencyWindow());
+            Gauge.builder("schedy.timeout.current", this, policy -> policy.timeout(operation).toMillis() / 1000.0)
+                    .description("Timeout currently derived from recent latency for each operation")
+                    .tag("operation", operation.tag)
+                    .baseUnit("seconds")
+                    .register(Metrics.globalRegistry);
+        }
+        this.hedgesWon = hedgeCounter("won");
+        this.hedgesLost = hedgeCounter("lost");
+        this.hedgesSkipped = hedgeCounter("skipped");
+    }
+
+    /**
+     * 操作の現在のタイムアウトを返します。
+     */
+    public Duration timeout(Operation operation) {
+        long p99 = windows.get(operation).percentileNanos(99, minSamples);
+        if (p99 < 0) {
+            return operation.defaultTimeout;
+        }
+        long derived = (long) (p99 * factor);
+        return Duration.ofNanos(Math.max(operation.min.toNanos(), Math.min(operation.max.toNanos(), derived)));
+    }
+
+    /**
+     * 操作が完了するまでにかかった時間を記録します。
+     */
+    public void record(Operation operation, long elapsedNanos) {
+        windows.get(operation).add(elapsedNanos);
+    }
+
+    /**
+     * 操作がタイムアウトしたことを記録します (その時点のタイムアウト値を所要時間として扱う)。
+     */
+    public void recordTimeout(Operation operation) {
+        record(operation, timeout(operation).toNanos());
+    }
+
+    /**
+     * 追加のリクエストを送るまでの待ち時間 (直近の p95)。計測が足りない場合や無効な場合は null
+     */
+    Duration hedgeDelay(Operation operation) {
+        if (!hedgeEnabled) {
+            return null;
+        }
+        long p95 = windows.get(operation).percentileNanos(95, minSamples);
+        if (p95 < 0) {
+            return null;
+        }
+        return Duration.ofNanos(Math.max(MIN_HEDGE_DELAY.toNanos(), p95));
+    }
+
+    /**
+     * OutboundLimiter の枠を確保してリクエストを実行し、直近の p95 を過ぎても終わらなければ同じリクエストをもう1本送って、
+     * 先に成功した方の結果を返します。追加のリクエストは枠に空きがある場合のみ送ります。
+     * 読み取り専用 (何度送っても結果が変わらない) のリクエストにのみ使うこと。
+     * 所要時間 (枠を確保してから呼び出し元に返るまで) とタイムアウト (SocketTimeoutException) は自動で記録します。
+     * @param priority OutboundLimiter で枠を待つときの優先度
+     * @throws IOException 枠が確保できなかった場合、または全てのリクエストが失敗した場合 (最後の失敗を投げる)
+     */
+    public <T> T hedged(Operation operation, WorkPriority priority, Callable<T> request) throws IOException {
+        OutboundLimiter.Permit primary = outboundLimiter.acquire(priority);
+        long startNanos = System.nanoTime();
+        Duration delay = hedgeDelay(operation);
+        if (delay == null) {
+            try {
+                T result = primary.call(() -> call(request));
+                record(operation, System.nanoTime() - startNanos);
+                return result;
+            } catch (SocketTimeoutException e) {
+                recordTimeout(operation);
+                throw e;
+            }
+        }
+
+        // 負けた方のリクエストは取り消さずに結果を捨てる (実行中のI/Oは割り込みでは止まらず、各自のタイムアウトで終わる)
+        CompletionService<T> completion = new ExecutorCompletionService<>(hedgeExecutor);
+        submit(completion, primary, request);
+        Future<T> hedge = null;
+        int pending = 1;
+        Throwable lastError = null;
+        try {
+            Future<T> done = completion.poll(delay.toNanos(), TimeUnit.NANOSECONDS);
+            if (done == null && hedgePermits.tryAcquire()) {
+                OutboundLimiter.Permit extra = outboundLimiter.tryAcquire(priority);
+                if (extra == null) {
+                    hedgePermits.release();
+                    hedgesSkipped.increment();
+                    log.debug("{} が {}ms を過ぎても完了していませんが、manabaへの同時リクエスト数に空きがないため追加のリクエストは送りません。",
+                            operation.tag, delay.toMillis());
+                } else {
+                    log.debug("{} が {}ms を過ぎても完了しないため、追加のリクエストを送ります。", operation.tag, delay.toMillis());
+                    hedge = submit(completion, extra, () -> {
+                        try {
+                            return request.call();
+                        } finally {
+                            hedgePermits.release();
+                        }
+                    });
+                    pending++;
+                }
+            }
+            while (pending > 0) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    record(operation, System.nanoTime() - startNanos);
+                    if (hedge != null) {
+                        (done == hedge ? hedgesWon : hedgesLost).increment();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    lastError = e.getCause();
+                }
+                done = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("リクエストの待機中に中断されました。", e);
+        }
+        if (lastError instanceof SocketTimeoutException) {
+            recordTimeout(operation);
+        }
+        throw asIOException(lastError);
+    }
+
+    // 確保した枠でリクエストを実行する。実行を受け付けられなかった場合は枠を返す
+    private <T> Future<T> submit(CompletionService<T> completion, OutboundLimiter.Permit permit, Callable<T> request) {
+        try {
+            return completion.submit(() -> permit.call(() -> call(request)));
+        } catch (RejectedExecutionException e) {
+            permit.discard();
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hedgeExecutor.shutdownNow();
+    }
+
+    private Counter hedgeCounter(String outcome) {
+        return Counter.builder("schedy.fetch.hedges")
+                .description("Hedged duplicate requests by whether the duplicate finished first; skipped if no outbound slot was free")
+                .tag("outcome", outcome)
+                .register(Metrics.globalRegistry);
+    }
+
+    private static <T> T call(Callable<T> request) throws IOException {
+        try {
+            return request.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static IOException asIOException(Throwable error) {
+        if (error instanceof IOException io) {
+            return io;
+        }
+        if (error instanceof RuntimeException runtime) {
+            throw runtime;
+        }
+        return new IOException(error != null ? error.getMessage() : "リクエストに失敗しました。", error);
+    }
+
+    /**
+     * 直近 WINDOW_SIZE 件の所要時間を保持するリングバッファ。
+     * パーセンタイルは読み出しのたびに並べ替えて求める (件数が少ないため、集計構造を持つより安い)。
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int next;
+        private int size;
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+        }
+
+        /** 件数が minSamples 未満なら -1 */
+        synchronized long percentileNanos(double percentile, int minSamples) {
+            if (size < minSamples) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100.0 * size);
+            return sorted[Math.max(0, Math.min(size - 1, rank - 1))];
+        }
+    }
+}
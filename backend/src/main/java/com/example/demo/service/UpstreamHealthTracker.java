@@ -0,0 +1,289 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.jsoup.HttpStatusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * manabaへのリクエストの成否を全ユーザー分まとめて記録し、障害が続いている間はリクエストを送らせないサーキットブレーカー。
+ *
+ * CLOSED: 直近 window の間のリクエストのうち、接続障害 (タイムアウト・接続失敗・5xx・ログイン画面が表示されない) の割合が
+ *         failure-rate-threshold 以上になったら (minimum-calls 件以上ある場合のみ) OPEN にする。
+ * OPEN: open-duration の間はリクエストを送らずに UpstreamUnavailableException で失敗させる。
+ * HALF_OPEN: open-duration を過ぎたら half-open-probes 件だけ試しに通し、全て成功したら CLOSED に戻す (1件でも失敗したら OPEN)。
+ *
+ * ログイン画面へのリダイレクトやパスワード間違いなど、manabaが応答した結果の失敗は障害として数えない。
+ * MFAの承認待ちの時間切れ (MfaApprovalTimeoutException) も、人の操作を待った結果のため数えない。
+ */
+@Component
+public class UpstreamHealthTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamHealthTracker.class);
+    private static final int WINDOW_CAPACITY = 200; // 保持するリクエスト結果の最大件数 (window より古いものは数えない)
+    private static final int MAX_CAUSE_DEPTH = 8;
+
+    public enum State { CLOSED, HALF_OPEN, OPEN }
+
+    /**
+     * manabaへのリクエスト。
+     */
+    @FunctionalInterface
+    public interface UpstreamCall<T> {
+        T call() throws IOException;
+    }
+
+    private final double failureRateThreshold;
+    private final int minimumCalls;
+    private final long windowNanos;
+    private final Duration openDuration;
+    private final int halfOpenProbes;
+    private final LongSupplier nanoClock;
+
+    // 直近のリクエスト結果のリングバッファ (完了時刻と障害かどうか)
+    private final long[] completedAt = new long[WINDOW_CAPACITY];
+    private final boolean[] failed = new boolean[WINDOW_CAPACITY];
+    private int next;
+    private int size;
+
+    private State state = State.CLOSED;
+    private long openedAtNanos;
+    private int probesIssued;
+    private int probesSucceeded;
+
+    private final Counter succeededCalls;
+    private final Counter failedCalls;
+    private final Counter rejectedCalls;
+
+    @Autowired
+    public UpstreamHealthTracker(
+            @Value("${upstream.circuit.failure-rate-threshold:0.5}") double failureRateThreshold,
+            @Value("${upstream.circuit.minimum-calls:10}") int minimumCalls,
+            @Value("${upstream.circuit.window:PT2M}") Duration window,
+            @Value("${upstream.circuit.open-duration:PT30S}") Duration openDuration,
+            @Value("${upstream.circuit.half-open-probes:3}") int halfOpenProbes
+    ) {
+        this(failureRateThreshold, minimumCalls, window, openDuration, halfOpenProbes, System::nanoTime);
+    }
+
+    /**
+     * 時刻の取得元を指定して作成します (テスト用)。
+     */
+    UpstreamHealthTracker(double failureRateThreshold, int minimumCalls, Duration window, Duration openDuration,
+                          int halfOpenProbes, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumCalls = Math.max(1, Math.min(WINDOW_CAPACITY, minimumCalls));
+        this.windowNanos = window.toNanos();
+        this.openDuration = openDuration;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        Gauge.builder("schedy.upstream.circuit.state", this, tracker -> tracker.state().ordinal())
+                .description("Circuit breaker state for manaba (0=closed, 1=half-open, 2=open)")
+                .register(Metrics.globalRegistry);
+        this.succeededCalls = callCounter("success");
+        this.failedCalls = callCounter("failure");
+        this.rejectedCalls = callCounter("rejected");
+    }
+
+    /**
+     * 回路が閉じていればリクエストを実行し、結果を記録します。
+     * @throws UpstreamUnavailableException 回路が開いているため、リクエストを送らなかった場合
+     * @throws IOException リクエストが失敗した場合 (そのまま投げる)
+     */
+    public <T> T call(UpstreamCall<T> request) throws IOException {
+        Attempt attempt = begin();
+        try {
+            T result = request.call();
+            attempt.succeeded();
+            return result;
+        } catch (IOException | RuntimeException e) {
+            attempt.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 回路が閉じていれば試行を始めます。結果は succeeded / failed で記録すること (最初の1回だけが記録される)。
+     * 処理の途中で結果が決まる場合 (Seleniumのログインで、manabaの応答を確認できた後はMFAの承認を待つだけの場合など) に使い、
+     * 結果が決まった時点で記録して HALF_OPEN の試行枠を返します。
+     * @throws UpstreamUnavailableException 回路が開いているため、試行を始められない場合
+     */
+    public Attempt begin() throws UpstreamUnavailableException {
+        return new Attempt(acquire());
+    }
+
+    /**
+     * begin で始めた試行。
+     */
+    public final class Attempt {
+        private final boolean probe;
+        private boolean completed;
+
+        private Attempt(boolean probe) {
+            this.probe = probe;
+        }
+
+        public void succeeded() {
+            complete(false);
+        }
+
+        public void failed(Throwable error) {
+            complete(isUpstreamFailure(error));
+        }
+
+        private void complete(boolean upstreamFailure) {
+            synchronized (UpstreamHealthTracker.this) {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                onCompleted(probe, upstreamFailure);
+            }
+        }
+    }
+
+    /**
+     * リクエストを送れる状態か (OPEN で、試行を再開する時刻になっていない場合は false)。
+     * バックグラウンドのセッション更新など、回路が開いている間は始めなくてよい処理の判定に使います。
+     */
+    public synchronized boolean isAvailable() {
+        return state != State.OPEN || nanoClock.getAsLong() - openedAtNanos >= openDuration.toNanos();
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    /**
+     * 接続障害として数える例外か (原因をたどって判定する)。
+     */
+    static boolean isUpstreamFailure(Throwable error) {
+        Throwable current = error;
+        for (int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++) {
+            if (current instanceof UpstreamUnavailableException || current instanceof MfaApprovalTimeoutException) {
+                return false;
+            }
+            if (current instanceof SocketTimeoutException
+                    || current instanceof SocketException
+                    || current instanceof UnknownHostException
+                    || current instanceof org.openqa.selenium.TimeoutException) {
+                return true;
+            }
+            if (current instanceof HttpStatusException httpError) {
+                return httpError.getStatusCode() >= 500;
+            }
+            current = current.getCause();
+        }
+        return false;
+    }
+
+    // リクエストを通すかを判定する。HALF_OPEN の試行として通した場合は true
+    private synchronized boolean acquire() throws UpstreamUnavailableException {
+        long now = nanoClock.getAsLong();
+        if (state == State.OPEN) {
+            long remaining = openDuration.toNanos() - (now - openedAtNanos);
+            if (remaining > 0) {
+                rejectedCalls.increment();
+                throw new UpstreamUnavailableException(Duration.ofNanos(remaining));
+            }
+            transition(State.HALF_OPEN);
+            probesIssued = 0;
+            probesSucceeded = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesIssued >= halfOpenProbes) {
+                rejectedCalls.increment();
+                throw new UpstreamUnavailableException(openDuration);
+            }
+            probesIssued++;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void onCompleted(boolean probe, boolean upstreamFailure) {
+        (upstreamFailure ? failedCalls : succeededCalls).increment();
+        long now = nanoClock.getAsLong();
+        if (probe) {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            if (upstreamFailure) {
+                open(now);
+            } else if (++probesSucceeded >= halfOpenProbes) {
+                next = 0;
+                size = 0;
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        // 回路が開く前に始まったリクエストの結果は、OPEN / HALF_OPEN の判定には使わない
+        if (state != State.CLOSED) {
+            return;
+        }
+        completedAt[next] = now;
+        failed[next] = upstreamFailure;
+        next = (next + 1) % WINDOW_CAPACITY;
+        size = Math.min(size + 1, WINDOW_CAPACITY);
+        if (upstreamFailure && failureRateExceeded(now)) {
+            open(now);
+        }
+    }
+
+    private boolean failureRateExceeded(long now) {
+        int calls = 0;
+        int failures = 0;
+        for (int i = 0; i < size; i++) {
+            if (now - completedAt[i] <= windowNanos) {
+                calls++;
+                if (failed[i]) {
+                    failures++;
+                }
+            }
+        }
+        return calls >= minimumCalls && failures >= failureRateThreshold * calls;
+    }
+
+    private void open(long now) {
+        openedAtNanos = now;
+        transition(State.OPEN);
+    }
+
+    private void transition(State target) {
+        if (state == target) {
+            return;
+        }
+        State previous = state;
+        state = target;
+        if (target == State.OPEN) {
+            log.warn("manabaへの接続障害が続いているため、{} の間リクエストを停止します ({} -> OPEN)。", openDuration, previous);
+        } else {
+            log.info("manabaへの接続状態が変わりました: {} -> {}", previous, target);
+        }
+        Counter.builder("schedy.upstream.circuit.transitions")
+                .description("Circuit breaker state transitions for manaba")
+                .tag("to", target.name().toLowerCase(Locale.ROOT))
+                .register(Metrics.globalRegistry)
+                .increment();
+    }
+
+    private Counter callCounter(String outcome) {
+        return Counter.builder("schedy.upstream.calls")
+                .description("Requests to manaba by outcome (rejected = not sent because the circuit was open)")
+                .tag("outcome", outcome)
+                .register(Metrics.globalRegistry);
+    }
+}
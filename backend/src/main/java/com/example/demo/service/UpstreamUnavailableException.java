@@ -0,0 +1,23 @@
+package com.example.demo.service;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * manabaへの接続障害が続いているため (UpstreamHealthTracker の回路が開いているため)、
+ * リクエストを送らずに失敗させたことを表す例外。
+ */
+public class UpstreamUnavailableException extends IOException {
+
+    private final Duration retryAfter;
+
+    public UpstreamUnavailableException(Duration retryAfter) {
+        super("manabaに接続できない状態が続いているため、リクエストを中止しました。");
+        this.retryAfter = retryAfter;
+    }
+
+    /** 次に接続を試すまでの目安 */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.CourseEntry;
+import com.example.demo.dto.NextClassCard;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 1ユーザー分の時間割を「週の何分目に始まるか」(minute-of-week) でソートした配列として保持するインデックス。
+ * 次の授業は二分探索で O(log n) で求められるため、同期時ではなくリクエスト時に計算できる。
+ * 生成後は不変で、スレッドセーフ。
+ */
+final class WeeklyScheduleIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(WeeklyScheduleIndex.class);
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    private static final int DEFAULT_CLASS_MINUTES = 90; // 終了時刻が不明な場合は90分授業と仮定
+    private static final DateTimeFormatter ISO_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    static final Map<String, DayOfWeek> DAY_OF_WEEK_MAP = Map.ofEntries(
+            Map.entry("月", DayOfWeek.MONDAY),
+            Map.entry("火", DayOfWeek.TUESDAY),
+            Map.entry("水", DayOfWeek.WEDNESDAY),
+            Map.entry("木", DayOfWeek.THURSDAY),
+            Map.entry("金", DayOfWeek.FRIDAY),
+            Map.entry("土", DayOfWeek.SATURDAY),
+            Map.entry("日", DayOfWeek.SUNDAY)
+    );
+
+    private final int[] startMinutes; // 昇順
+    private final int[] durationMinutes;
+    private final CourseEntry[] courses;
+
+    private WeeklyScheduleIndex(int[] startMinutes, int[] durationMinutes, CourseEntry[] courses) {
+        this.startMinutes = startMinutes;
+        this.durationMinutes = durationMinutes;
+        this.courses = courses;
+    }
+
+    /**
+     * 時間割からインデックスを構築します。曜日や開始時刻が不明な授業は除外されます。
+     */
+    static WeeklyScheduleIndex from(List<CourseEntry> timetable) {
+        if (timetable == null || timetable.isEmpty()) {
+            return new WeeklyScheduleIndex(new int[0], new int[0], new CourseEntry[0]);
+        }
+
+        record Slot(int start, int duration, CourseEntry course) {}
+        List<Slot> slots = new ArrayList<>(timetable.size());
+        for (CourseEntry course : timetable) {
+            DayOfWeek day = DAY_OF_WEEK_MAP.get(course.day());
+            LocalTime start = parseTime(course.startTime());
+            if (day == null || start == null) continue;
+
+            LocalTime end = parseTime(course.endTime());
+            int startOfDay = start.getHour() * 60 + start.getMinute();
+            int duration = end != null
+                    ? Math.max(0, end.getHour() * 60 + end.getMinute() - startOfDay)
+                    : DEFAULT_CLASS_MINUTES;
+            slots.add(new Slot((day.getValue() - 1) * MINUTES_PER_DAY + startOfDay, duration, course));
+        }
+        slots.sort(Comparator.comparingInt(Slot::start));
+
+        int[] starts = new int[slots.size()];
+        int[] durations = new int[slots.size()];
+        CourseEntry[] entries = new CourseEntry[slots.size()];
+        for (int i = 0; i < slots.size(); i++) {
+            starts[i] = slots.get(i).start();
+            durations[i] = slots.get(i).duration();
+            entries[i] = slots.get(i).course();
+        }
+        return new WeeklyScheduleIndex(starts, durations, entries);
+    }
+
+    /**
+     * 指定時刻以降に始まる直近の授業を返します。
+     */
+    NextClassCard next(LocalDateTime now) {
+        List<NextClassCard> cards = next(now, 1);
+        return cards.isEmpty() ? null : cards.get(0);
+    }
+
+    /**
+     * 指定時刻以降に始まる授業を開始が早い順に最大 count 件返します (翌週分にも回り込む)。
+     * 開始時刻ちょうどの授業は「これから始まる」ものとして含めます。
+     */
+    List<NextClassCard> next(LocalDateTime now, int count) {
+        if (startMinutes.length == 0 || count <= 0) {
+            return Collections.emptyList();
+        }
+
+        LocalDateTime weekStart = now.toLocalDate()
+                .with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY))
+                .atStartOfDay();
+        long secondsIntoWeek = Duration.between(weekStart, now).getSeconds();
+        // 秒単位で開始を過ぎていれば次の分から探す (開始済みの授業は来週扱い)
+        int nowMinute = (int) ((secondsIntoWeek + 59) / 60);
+
+        int first = Arrays.binarySearch(startMinutes, nowMinute);
+        if (first < 0) {
+            first = -first - 1;
+        } else {
+            while (first > 0 && startMinutes[first - 1] == nowMinute) first--; // 同時刻の授業は先頭から
+        }
+
+        int limit = Math.min(count, startMinutes.length);
+        List<NextClassCard> cards = new ArrayList<>(limit);
+        for (int i = 0; i < limit; i++) {
+            int position = first + i;
+            int weekOffset = position / startMinutes.length;
+            int index = position % startMinutes.length;
+            LocalDateTime start = weekStart.plusMinutes(startMinutes[index] + (long) weekOffset * MINUTES_PER_WEEK);
+            LocalDateTime end = start.plusMinutes(durationMinutes[index]);
+            CourseEntry course = courses[index];
+            cards.add(new NextClassCard(
+                    course.name(), course.day(), course.period(), course.location(),
+                    start.format(ISO_FORMATTER),
+                    end.format(ISO_FORMATTER),
+                    formatIsoDuration(Duration.between(now, start))
+            ));
+        }
+        return cards;
+    }
+
+    private static LocalTime parseTime(String value) {
+        if (value == null || value.isBlank()) return null;
+        try {
+            return LocalTime.parse(value); // HH:mm 形式を想定
+        } catch (DateTimeParseException ignored) {
+            log.warn("不正な時刻フォーマットです: {}", value);
+            return null;
+        }
+    }
+
+    private static String formatIsoDuration(Duration duration) {
+        if (duration == null || duration.isNegative()) return "PT0M"; // 負の期間は0分とする
+        long days = duration.toDays();
+        duration = duration.minusDays(days);
+        long hours = duration.toHours();
+        duration = duration.minusHours(hours);
+        long minutes = duration.toMinutes();
+
+        StringBuilder builder = new StringBuilder("P");
+        if (days > 0) builder.append(days).append('D');
+        if (hours > 0 || minutes > 0) {
+            builder.append('T');
+            if (hours > 0) builder.append(hours).append('H');
+            if (minutes > 0) builder.append(minutes).append('M');
+        }
+        // 0日0時間0分の場合は PT0M にする
+        if (builder.length() == 1) return "PT0M";
+
+        return builder.toString();
+    }
+}
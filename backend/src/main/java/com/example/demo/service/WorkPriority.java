@@ -0,0 +1,25 @@
+package com.example.demo.service;
+
+/**
+ * 処理の優先度クラス (宣言順に優先度が高い)。
+ * PriorityJobScheduler のジョブの順序と、OutboundLimiter でのmanabaへのリクエストの順序に使う。
+ */
+public enum WorkPriority {
+    /** ユーザーが進捗画面で待っている同期 */
+    INTERACTIVE("interactive"),
+    /** 保存済み結果の再検証と、バックグラウンドでの時間割・課題の事前取得 */
+    PREWARM("prewarm"),
+    /** バックグラウンドでのセッション延長 */
+    KEEPALIVE("keepalive");
+
+    private final String tag;
+
+    WorkPriority(String tag) {
+        this.tag = tag;
+    }
+
+    /** メトリクスのタグに使う名前 */
+    public String tag() {
+        return tag;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.service.EncryptionService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EncryptionService のスループットを計測するJMHベンチマーク。
+ * セッション更新の一括処理を想定し、Cookie JSON程度のサイズの暗号化・復号を複数スレッドで実行する。
+ *
+ * 実行方法 (テストクラスパスで main を起動):
+ * <pre>
+ * mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.example.demo.benchmark.EncryptionServiceBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class EncryptionServiceBenchmark {
+
+    // AES-256 のマスターキー (32バイト)。ベンチマーク専用の値
+    private static final String MASTER_KEY = "0123456789abcdef0123456789abcdef";
+
+    private EncryptionService encryptionService;
+    private String cookieJson;
+    private String encryptedCookieJson;
+
+    @Setup
+    public void setUp() {
+        encryptionService = new EncryptionService(MASTER_KEY);
+        // manabaのセッションCookie (JSON) 程度のサイズ
+        cookieJson = "{\"sessionid\":\"" + "a".repeat(64) + "\",\"manaba_token\":\"" + "b".repeat(128) + "\",\"path\":\"/ct/\"}";
+        encryptedCookieJson = encryptionService.encrypt(cookieJson);
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return encryptionService.encrypt(cookieJson);
+    }
+
+    @Benchmark
+    public String decrypt() {
+        return encryptionService.decrypt(encryptedCookieJson);
+    }
+
+    // セッション更新1人分 (Cookieとパスワードの復号2回 + Cookieの暗号化1回)
+    @Benchmark
+    public String refreshSweepPerUser() {
+        encryptionService.decrypt(encryptedCookieJson);
+        encryptionService.decrypt(encryptedCookieJson);
+        return encryptionService.encrypt(cookieJson);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(EncryptionServiceBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
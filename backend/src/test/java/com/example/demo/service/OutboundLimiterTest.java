@@ -0,0 +1,145 @@
+package com.example.demo.service;
+
+import org.jsoup.HttpStatusException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * OutboundLimiter の枠の配分と AIMD による上限の調整を、時刻を進めながら確認するテスト。
+ * 空きを待つと実時間で待機するため、max-wait は 0 (空きがなければすぐに失敗) とする。
+ */
+class OutboundLimiterTest {
+
+    private static final Duration LATENCY_THRESHOLD = Duration.ofSeconds(5);
+
+    private final AtomicLong now = new AtomicLong(Duration.ofHours(1).toNanos());
+
+    private OutboundLimiter limiter(int initialLimit, double backgroundShare) {
+        OutboundLimiter limiter = new OutboundLimiter(initialLimit, 1, 16, LATENCY_THRESHOLD,
+                0.5, backgroundShare, Duration.ZERO, now::get);
+        advance(Duration.ofMillis(1)); // 作成した時刻より後に始まったリクエストのみ上限を下げる
+        return limiter;
+    }
+
+    private void advance(Duration duration) {
+        now.addAndGet(duration.toNanos());
+    }
+
+    @Test
+    void capsBackgroundWorkAtBackgroundShare() {
+        OutboundLimiter limiter = limiter(4, 0.5);
+
+        OutboundLimiter.Permit first = limiter.tryAcquire(WorkPriority.KEEPALIVE);
+        OutboundLimiter.Permit second = limiter.tryAcquire(WorkPriority.PREWARM);
+        assertThat(first).isNotNull();
+        assertThat(second).isNotNull();
+        assertThat(limiter.tryAcquire(WorkPriority.PREWARM)).isNull();
+
+        // 残りの枠は対話的な同期のために空けてある
+        assertThat(limiter.tryAcquire(WorkPriority.INTERACTIVE)).isNotNull();
+        assertThat(limiter.tryAcquire(WorkPriority.INTERACTIVE)).isNotNull();
+        assertThat(limiter.tryAcquire(WorkPriority.INTERACTIVE)).isNull();
+        assertThat(limiter.currentInFlight()).isEqualTo(4);
+
+        // バックグラウンドの上限は全体の実行中の数に対して判定する
+        first.discard();
+        second.discard();
+        assertThat(limiter.currentInFlight()).isEqualTo(2);
+        assertThat(limiter.tryAcquire(WorkPriority.KEEPALIVE)).isNull();
+    }
+
+    @Test
+    void leavesAtLeastOneSlotForBackgroundWork() {
+        OutboundLimiter limiter = limiter(1, 0.5);
+
+        assertThat(limiter.tryAcquire(WorkPriority.KEEPALIVE)).isNotNull();
+        assertThat(limiter.tryAcquire(WorkPriority.INTERACTIVE)).isNull();
+    }
+
+    @Test
+    void rejectsAfterMaxWaitWhenFull() throws IOException {
+        OutboundLimiter limiter = limiter(1, 1);
+        OutboundLimiter.Permit held = limiter.acquire(WorkPriority.INTERACTIVE);
+
+        assertThatThrownBy(() -> limiter.acquire(WorkPriority.INTERACTIVE)).isInstanceOf(IOException.class);
+        assertThat(limiter.currentWaiting()).isZero();
+
+        held.discard();
+        assertThat(limiter.call(WorkPriority.INTERACTIVE, () -> "ok")).isEqualTo("ok");
+    }
+
+    @Test
+    void increasesOnlyWhileSaturated() throws IOException {
+        OutboundLimiter limiter = limiter(2, 1);
+
+        // 上限まで使っていない間は増やさない
+        limiter.call(WorkPriority.INTERACTIVE, () -> "ok");
+        assertThat(limiter.currentLimit()).isEqualTo(2.0);
+
+        OutboundLimiter.Permit other = limiter.acquire(WorkPriority.INTERACTIVE);
+        limiter.call(WorkPriority.INTERACTIVE, () -> "ok");
+        assertThat(limiter.currentLimit()).isEqualTo(2.5);
+        other.discard();
+    }
+
+    @Test
+    void decreasesOnceForRequestsStartedBeforeTheDecrease() throws IOException {
+        OutboundLimiter limiter = limiter(8, 1);
+        OutboundLimiter.Permit earlier = limiter.acquire(WorkPriority.INTERACTIVE);
+        OutboundLimiter.Permit later = limiter.acquire(WorkPriority.INTERACTIVE);
+
+        String result = earlier.call(() -> {
+            advance(Duration.ofMillis(1));
+            assertThatThrownBy(() -> later.call(() -> {
+                throw new HttpStatusException("Service Unavailable", 503, "https://example.com");
+            })).isInstanceOf(HttpStatusException.class);
+            assertThat(limiter.currentLimit()).isEqualTo(4.0);
+            advance(LATENCY_THRESHOLD.plusSeconds(1));
+            return "slow";
+        });
+        // 下げる前に始まっていたリクエストの遅延では、続けて下げない
+        assertThat(result).isEqualTo("slow");
+        assertThat(limiter.currentLimit()).isEqualTo(4.0);
+
+        // 下げた後に始まったリクエストのタイムアウトでは、さらに下げる
+        assertThatThrownBy(() -> limiter.call(WorkPriority.INTERACTIVE, () -> {
+            throw new SocketTimeoutException("Read timed out");
+        })).isInstanceOf(SocketTimeoutException.class);
+        assertThat(limiter.currentLimit()).isEqualTo(2.0);
+        assertThat(limiter.currentInFlight()).isZero();
+    }
+
+    @Test
+    void ignoresFailuresThatAreNotCongestion() {
+        OutboundLimiter limiter = limiter(4, 1);
+
+        assertThatThrownBy(() -> limiter.call(WorkPriority.INTERACTIVE, () -> {
+            throw new HttpStatusException("Not Found", 404, "https://example.com");
+        })).isInstanceOf(HttpStatusException.class);
+        assertThatThrownBy(() -> limiter.call(WorkPriority.INTERACTIVE, () -> {
+            advance(LATENCY_THRESHOLD.plusSeconds(1)); // リクエストを送っていないため、遅くても数えない
+            throw new UpstreamUnavailableException(Duration.ofSeconds(30));
+        })).isInstanceOf(UpstreamUnavailableException.class);
+
+        assertThat(limiter.currentLimit()).isEqualTo(4.0);
+        assertThat(limiter.currentInFlight()).isZero();
+    }
+
+    @Test
+    void permitCanBeUsedOnlyOnce() throws IOException {
+        OutboundLimiter limiter = limiter(2, 1);
+        OutboundLimiter.Permit permit = limiter.acquire(WorkPriority.INTERACTIVE);
+
+        permit.call(() -> "ok");
+        permit.discard(); // 使用済みの枠は二重に返さない
+        assertThat(limiter.currentInFlight()).isZero();
+        assertThatThrownBy(() -> permit.call(() -> "again")).isInstanceOf(IllegalStateException.class);
+    }
+}
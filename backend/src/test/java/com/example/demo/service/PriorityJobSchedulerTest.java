@@ -0,0 +1,220 @@
+package com.example.demo.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * PriorityJobScheduler の取り出し順 (優先度と待ち時間による繰り上げ)、混雑時の取りやめ、シャットダウンを確認するテスト。
+ * 待ち時間は時刻を進めて再現し、ワーカーはラッチで止めておく (ワーカーが処理を取り出すのは、処理の追加か完了の時点のみ)。
+ */
+class PriorityJobSchedulerTest {
+
+    private static final Duration AGING = Duration.ofSeconds(30);
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final AtomicLong now = new AtomicLong(Duration.ofHours(1).toNanos());
+    private final CountDownLatch releaseAll = new CountDownLatch(1);
+    private final List<CountDownLatch> blockers = new ArrayList<>();
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+    private PriorityJobScheduler scheduler;
+
+    private PriorityJobScheduler scheduler(int workers, boolean preemptionEnabled, Duration shutdownGrace) {
+        scheduler = new PriorityJobScheduler(workers, workers, AGING, preemptionEnabled, shutdownGrace, now::get);
+        return scheduler;
+    }
+
+    @AfterEach
+    void shutdown() {
+        releaseAll.countDown();
+        blockers.forEach(CountDownLatch::countDown); // 時刻を進めないため、実行中の対話的な同期を終わらせてから止める
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private void advance(Duration duration) {
+        now.addAndGet(duration.toNanos());
+    }
+
+    // 開始したら名前を記録し、release が開くまで止まる処理
+    private Runnable blocking(String name, CountDownLatch release) {
+        return () -> {
+            started.add(name);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    private Runnable recording(String name, CountDownLatch startedLatch) {
+        return () -> {
+            started.add(name);
+            startedLatch.countDown();
+        };
+    }
+
+    // ワーカーを全て対話的な同期で埋める。返したラッチを開くと1つずつ空く
+    private List<CountDownLatch> occupyWorkers(int workers) throws InterruptedException {
+        List<CountDownLatch> releases = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            CountDownLatch release = new CountDownLatch(1);
+            releases.add(release);
+            blockers.add(release);
+            scheduler.submit(WorkPriority.INTERACTIVE, false, blocking("blocker-" + i, release));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (scheduler.running(WorkPriority.INTERACTIVE) < workers) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(5);
+        }
+        started.clear();
+        return releases;
+    }
+
+    @Test
+    void runsHigherPriorityFirst() throws Exception {
+        scheduler(2, true, AGING);
+        List<CountDownLatch> releases = occupyWorkers(2);
+        CountDownLatch first = new CountDownLatch(1);
+
+        scheduler.submit(WorkPriority.KEEPALIVE, false, recording("keepalive", first));
+        scheduler.submit(WorkPriority.INTERACTIVE, false, recording("interactive", first));
+        releases.get(0).countDown();
+
+        assertThat(first.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        assertThat(started.get(0)).isEqualTo("interactive");
+    }
+
+    @Test
+    void agedBackgroundWorkRunsBeforeLaterInteractiveWork() throws Exception {
+        scheduler(2, true, AGING);
+        List<CountDownLatch> releases = occupyWorkers(2);
+        CountDownLatch first = new CountDownLatch(1);
+
+        // KEEPALIVE は aging-interval 2回分待つと INTERACTIVE と同じ優先度になり、先に待っていた方から取り出す
+        scheduler.submit(WorkPriority.KEEPALIVE, false, recording("keepalive", first));
+        advance(AGING.multipliedBy(2));
+        scheduler.submit(WorkPriority.INTERACTIVE, false, recording("interactive", first));
+        releases.get(0).countDown();
+
+        assertThat(first.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        assertThat(started.get(0)).isEqualTo("keepalive");
+    }
+
+    @Test
+    void keepsOneWorkerForInteractiveWork() throws Exception {
+        scheduler(2, true, AGING);
+        CountDownLatch background = new CountDownLatch(1);
+        scheduler.submit(WorkPriority.PREWARM, false, blocking("prewarm-1", background));
+        scheduler.submit(WorkPriority.PREWARM, false, blocking("prewarm-2", background));
+
+        CountDownLatch interactive = new CountDownLatch(1);
+        scheduler.submit(WorkPriority.INTERACTIVE, false, recording("interactive", interactive));
+
+        assertThat(interactive.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        // バックグラウンドの処理はワーカー数 - 1 個までしか同時に実行しない
+        assertThat(scheduler.running(WorkPriority.PREWARM)).isEqualTo(1);
+        assertThat(scheduler.queued(WorkPriority.PREWARM)).isEqualTo(1);
+        background.countDown();
+    }
+
+    @Test
+    void preemptsQueuedBackgroundWorkWhenInteractiveWorkIsCongested() throws Exception {
+        scheduler(2, true, AGING);
+        occupyWorkers(2);
+
+        CompletableFuture<Boolean> aged = scheduler.submit(WorkPriority.PREWARM, true, () -> {});
+        advance(AGING);
+        CompletableFuture<Boolean> preemptible = scheduler.submit(WorkPriority.KEEPALIVE, true, () -> {});
+        CompletableFuture<Boolean> required = scheduler.submit(WorkPriority.KEEPALIVE, false, () -> {});
+
+        // 空きワーカーがないため、優先度が上がっていない中断可能な処理だけを取りやめる
+        scheduler.submit(WorkPriority.INTERACTIVE, false, () -> {});
+        assertThat(preemptible.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isFalse();
+        assertThat(aged).isNotDone();
+        assertThat(required).isNotDone();
+        assertThat(scheduler.queued(WorkPriority.PREWARM)).isEqualTo(1);
+        assertThat(scheduler.queued(WorkPriority.KEEPALIVE)).isEqualTo(1);
+    }
+
+    @Test
+    void doesNotPreemptWhenDisabled() throws Exception {
+        scheduler(2, false, AGING);
+        occupyWorkers(2);
+
+        CompletableFuture<Boolean> preemptible = scheduler.submit(WorkPriority.KEEPALIVE, true, () -> {});
+        scheduler.submit(WorkPriority.INTERACTIVE, false, () -> {});
+
+        assertThat(preemptible).isNotDone();
+        assertThat(scheduler.queued(WorkPriority.KEEPALIVE)).isEqualTo(1);
+    }
+
+    @Test
+    void shutdownCompletesQueuedWorkAsNotRunAndInterruptsBackgroundWork() throws Exception {
+        scheduler(2, true, Duration.ZERO);
+        AtomicBoolean backgroundInterrupted = new AtomicBoolean();
+        CountDownLatch backgroundStarted = new CountDownLatch(1);
+        scheduler.submit(WorkPriority.KEEPALIVE, false, () -> {
+            backgroundStarted.countDown();
+            try {
+                releaseAll.await();
+            } catch (InterruptedException e) {
+                backgroundInterrupted.set(true);
+            }
+        });
+        assertThat(backgroundStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        scheduler.submit(WorkPriority.INTERACTIVE, false, blocking("interactive", releaseAll));
+        CompletableFuture<Boolean> queued = scheduler.submit(WorkPriority.INTERACTIVE, false, () -> {});
+
+        scheduler.shutdown();
+
+        assertThat(queued.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isFalse();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!backgroundInterrupted.get()) {
+            assertThat(System.nanoTime()).isLessThan(deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void shutdownWaitsForRunningInteractiveWorkWithinGrace() throws Exception {
+        scheduler(2, true, AGING);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> interactive = scheduler.submit(WorkPriority.INTERACTIVE, false, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        while (scheduler.running(WorkPriority.INTERACTIVE) == 0) {
+            Thread.sleep(5);
+        }
+
+        CompletableFuture<Void> shutdown = CompletableFuture.runAsync(scheduler::shutdown);
+        Thread.sleep(100);
+        // 時刻を進めていないため、shutdown-grace の間は割り込まずに終わるのを待っている
+        assertThat(shutdown).isNotDone();
+        assertThat(interrupted).isFalse();
+
+        release.countDown();
+        shutdown.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertThat(interactive.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        assertThat(interrupted).isFalse();
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.demo.service;
+
+import com.example.demo.DemoApplication;
+import com.example.demo.entity.UserCredential;
+import com.example.demo.repository.UserCredentialRepository;
+import com.example.demo.repository.UserCredentialRepository.RefreshCandidate;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 2つのノード (アプリケーションコンテキスト) で同じDBを使い、セッション更新のリースを確認するテスト。
+ * テストのコンテキストをノードA、テスト内で起動するもう1つのコンテキストをノードBとする。
+ * 同時に取得したユーザーが重複しないこと、リースを延長しなくなったノードのユーザーを有効期限後に他のノードが引き継ぐことを確認する。
+ * (ノードAはリースを延長しない設定にして、処理が止まったノードを再現する)
+ *
+ * FOR UPDATE SKIP LOCKED を使うため PostgreSQL が必要で、SCHEDY_TEST_DATABASE_URL を設定した場合のみ実行される。
+ * 更新時刻を過ぎたユーザーは全て取得の対象になるため、テスト専用のDBを指定すること。
+ * <pre>
+ * SCHEDY_TEST_DATABASE_URL=jdbc:postgresql://localhost:5432/schedy_test \
+ * SCHEDY_TEST_DATABASE_USERNAME=postgres SCHEDY_TEST_DATABASE_PASSWORD=postgres \
+ *     mvn -q test -Dtest=RefreshLeaseClusterTest
+ * </pre>
+ */
+@SpringBootTest(properties = {
+        "spring.jpa.hibernate.ddl-auto=update",
+        "spring.jpa.show-sql=false",
+        "SECURITY_MASTER_KEY=" + RefreshLeaseClusterTest.MASTER_KEY,
+        "SECURITY_SYNC_API_KEY=lease-test",
+        "JWT_SECRET=lease-test",
+        "session.refresh.poll-interval-ms=3600000",
+        "manaba.base-url=http://127.0.0.1:9",
+        "session.refresh.node-id=node-a",
+        "session.refresh.lease-duration=PT2S",
+        "session.refresh.lease-renew-interval-ms=3600000"
+})
+@EnabledIfEnvironmentVariable(named = "SCHEDY_TEST_DATABASE_URL", matches = "jdbc:postgresql:.+")
+class RefreshLeaseClusterTest {
+
+    static final String MASTER_KEY = "0123456789abcdef0123456789abcdef"; // テスト専用の値
+    private static final int USERS = 20;
+    private static final long LEASE_MILLIS = 2000; // 両ノードのリースの有効期限
+
+    private static ConfigurableApplicationContext nodeB;
+    private static final List<UUID> userIds = new ArrayList<>();
+
+    @Autowired
+    private RefreshScheduleService scheduleA;
+
+    @Autowired
+    private UserCredentialRepository repository;
+
+    @DynamicPropertySource
+    static void database(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> System.getenv("SCHEDY_TEST_DATABASE_URL"));
+        registry.add("spring.datasource.username", () -> env("SCHEDY_TEST_DATABASE_USERNAME", "postgres"));
+        registry.add("spring.datasource.password", () -> env("SCHEDY_TEST_DATABASE_PASSWORD", ""));
+    }
+
+    @BeforeAll
+    static void startNodeB() {
+        nodeB = new SpringApplicationBuilder(DemoApplication.class)
+                .properties(
+                        "spring.datasource.url=" + System.getenv("SCHEDY_TEST_DATABASE_URL"),
+                        "spring.datasource.username=" + env("SCHEDY_TEST_DATABASE_USERNAME", "postgres"),
+                        "spring.datasource.password=" + env("SCHEDY_TEST_DATABASE_PASSWORD", ""),
+                        "spring.jpa.hibernate.ddl-auto=update",
+                        "spring.jpa.show-sql=false",
+                        "SECURITY_MASTER_KEY=" + MASTER_KEY,
+                        "SECURITY_SYNC_API_KEY=lease-test",
+                        "JWT_SECRET=lease-test",
+                        "server.port=0",
+                        // 起動直後の1回を除き、バックグラウンドの更新はテスト中に動かさない。manabaにはつながないURLを指定する
+                        "session.refresh.poll-interval-ms=3600000",
+                        "manaba.base-url=http://127.0.0.1:9",
+                        "session.refresh.node-id=node-b",
+                        "session.refresh.lease-duration=PT2S")
+                .run();
+    }
+
+    @AfterAll
+    static void stopNodeB() {
+        if (nodeB != null) {
+            nodeB.getBean(UserCredentialRepository.class).deleteAllById(userIds);
+            nodeB.close();
+        }
+    }
+
+    @Test
+    void claimsAreDisjointAndExpiredLeasesAreTakenOver() throws Exception {
+        for (int i = 0; i < USERS; i++) {
+            UserCredential credential = new UserCredential();
+            credential.setId(UUID.randomUUID());
+            credential.setUniversityId("lease-test-" + UUID.randomUUID());
+            credential.setEncryptedPassword("dummy"); // パスワード保存済みのユーザーのみが対象
+            repository.save(credential);
+            userIds.add(credential.getId());
+        }
+        RefreshScheduleService scheduleB = nodeB.getBean(RefreshScheduleService.class);
+
+        // 1. 両ノードが同時に取得しても、同じユーザーを取得しない
+        Set<UUID> claimedByA = new HashSet<>();
+        Set<UUID> claimedByB = new HashSet<>();
+        while (true) {
+            CompletableFuture<Set<UUID>> a = CompletableFuture.supplyAsync(() -> testIds(scheduleA.claimDue(7)));
+            CompletableFuture<Set<UUID>> b = CompletableFuture.supplyAsync(() -> testIds(scheduleB.claimDue(7)));
+            Set<UUID> batchA = a.get();
+            Set<UUID> batchB = b.get();
+            if (batchA.isEmpty() && batchB.isEmpty()) {
+                break;
+            }
+            claimedByA.addAll(batchA);
+            claimedByB.addAll(batchB);
+        }
+        assertThat(claimedByA).doesNotContainAnyElementsOf(claimedByB);
+        assertThat(union(claimedByA, claimedByB)).containsExactlyInAnyOrderElementsOf(userIds);
+        assertThat(claimedByA).isNotEmpty();
+
+        // 2. リースの有効期限内は、他のノードは取得しない
+        assertThat(testIds(scheduleB.claimDue(USERS))).doesNotContainAnyElementsOf(claimedByA);
+
+        // 3. ノードAがリースを延長しないまま有効期限を過ぎると、ノードBが引き継ぐ
+        Thread.sleep(LEASE_MILLIS + 500);
+        Set<UUID> takenOver = testIds(scheduleB.claimDue(USERS));
+        assertThat(takenOver).containsAll(claimedByA);
+        for (UUID id : claimedByA) {
+            assertThat(repository.findById(id).orElseThrow().getRefreshLeaseOwner()).isEqualTo("node-b");
+        }
+    }
+
+    private static String env(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? value : defaultValue;
+    }
+
+    // テスト用のユーザー以外 (DBに残っていたユーザー) は判定から除く
+    private static Set<UUID> testIds(List<RefreshCandidate> claimed) {
+        return claimed.stream().map(RefreshCandidate::getId).filter(userIds::contains).collect(Collectors.toSet());
+    }
+
+    private static Set<UUID> union(Set<UUID> a, Set<UUID> b) {
+        Set<UUID> all = new HashSet<>(a);
+        all.addAll(b);
+        return all;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.demo.service;
+
+import com.example.demo.service.SyncRateLimiter.AuthPath;
+import com.example.demo.service.SyncRateLimiter.Decision;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * SyncRateLimiter (GCRA) の判定を、時刻を進めながら確認するテスト。
+ */
+class SyncRateLimiterTest {
+
+    private final AtomicLong now = new AtomicLong(Duration.ofHours(1).toNanos());
+
+    private SyncRateLimiter limiter(double cookiePerUser, int cookiePerUserBurst,
+                                    double cookieGlobal, int cookieGlobalBurst, int maxKeys) {
+        return new SyncRateLimiter(true,
+                cookiePerUser, cookiePerUserBurst, cookieGlobal, cookieGlobalBurst,
+                2, 1, 10, 5,
+                maxKeys, Duration.ofMinutes(10), now::get);
+    }
+
+    private void advance(Duration duration) {
+        now.addAndGet(duration.toNanos());
+    }
+
+    @Test
+    void allowsBurstThenRejectsUntilNextInterval() {
+        SyncRateLimiter limiter = limiter(60, 3, 0, 1, 100); // 1秒に1回、3回まで連続で受け付ける
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(limiter.tryAcquire("s1234567", AuthPath.COOKIE).allowed()).isTrue();
+        }
+        Decision rejected = limiter.tryAcquire("s1234567", AuthPath.COOKIE);
+        assertThat(rejected.allowed()).isFalse();
+        assertThat(rejected.scope()).isEqualTo("user");
+        assertThat(rejected.retryAfter()).isEqualTo(Duration.ofSeconds(1));
+
+        advance(Duration.ofMillis(999));
+        assertThat(limiter.tryAcquire("s1234567", AuthPath.COOKIE).allowed()).isFalse();
+        advance(Duration.ofMillis(1));
+        assertThat(limiter.tryAcquire("s1234567", AuthPath.COOKIE).allowed()).isTrue();
+        assertThat(limiter.tryAcquire("s1234567", AuthPath.COOKIE).allowed()).isFalse();
+    }
+
+    @Test
+    void normalizesUserKeys() {
+        SyncRateLimiter limiter = limiter(1, 1, 0, 1, 100);
+
+        assertThat(limiter.tryAcquire(" S1234567 ", AuthPath.COOKIE).allowed()).isTrue();
+        assertThat(limiter.tryAcquire("s1234567", AuthPath.COOKIE).allowed()).isFalse();
+        assertThat(limiter.tryAcquire("s7654321", AuthPath.COOKIE).allowed()).isTrue();
+    }
+
+    @Test
+    void keepsSeparateBucketsPerAuthPath() {
+        SyncRateLimiter limiter = limiter(1, 1, 0, 1, 100);
+
+        assertThat(limiter.tryAcquire("s1234567", AuthPath.COOKIE).allowed()).isTrue();
+        assertThat(limiter.tryAcquire("s1234567", AuthPath.PASSWORD).allowed()).isTrue();
+        assertThat(limiter.tryAcquire("s1234567", AuthPath.PASSWORD).allowed()).isFalse();
+    }
+
+    @Test
+    void refundsUserBucketWhenGlobalBucketRejects() {
+        // ユーザーごとは1分に1回・2回まで連続、全体は1秒に1回・2回まで連続
+        SyncRateLimiter limiter = limiter(1, 2, 60, 2, 100);
+
+        assertThat(limiter.tryAcquire("a", AuthPath.COOKIE).allowed()).isTrue();
+        assertThat(limiter.tryAcquire("b", AuthPath.COOKIE).allowed()).isTrue();
+
+        Decision global = limiter.tryAcquire("a", AuthPath.COOKIE);
+        assertThat(global.allowed()).isFalse();
+        assertThat(global.scope()).isEqualTo("global");
+
+        // 全体の拒否で戻した分があるため、全体に空きができれば a は2回目を使える
+        advance(Duration.ofSeconds(1));
+        assertThat(limiter.tryAcquire("a", AuthPath.COOKIE).allowed()).isTrue();
+
+        advance(Duration.ofSeconds(1));
+        Decision user = limiter.tryAcquire("a", AuthPath.COOKIE);
+        assertThat(user.allowed()).isFalse();
+        assertThat(user.scope()).isEqualTo("user");
+    }
+
+    @Test
+    void sharesOverflowBucketAboveMaxKeysUntilIdleBucketsAreEvicted() {
+        SyncRateLimiter limiter = limiter(1, 1, 0, 1, 1);
+
+        assertThat(limiter.tryAcquire("a", AuthPath.COOKIE).allowed()).isTrue();
+        // 保持できるのは1ユーザーまでのため、b と c は共有のバケットを使う
+        assertThat(limiter.tryAcquire("b", AuthPath.COOKIE).allowed()).isTrue();
+        assertThat(limiter.tryAcquire("c", AuthPath.COOKIE).allowed()).isFalse();
+
+        // 満杯に戻り、idle-eviction を過ぎたバケットは削除され、新しいユーザーも自分のバケットを持てる
+        advance(Duration.ofMinutes(11));
+        limiter.evictIdle();
+        assertThat(limiter.tryAcquire("c", AuthPath.COOKIE).allowed()).isTrue();
+        assertThat(limiter.tryAcquire("c", AuthPath.COOKIE).allowed()).isFalse();
+    }
+
+    @Test
+    void allowsEverythingWhenDisabled() {
+        SyncRateLimiter limiter = new SyncRateLimiter(false, 1, 1, 1, 1, 1, 1, 1, 1,
+                100, Duration.ofMinutes(10), now::get);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.tryAcquire("s1234567", AuthPath.PASSWORD).allowed()).isTrue();
+        }
+    }
+}
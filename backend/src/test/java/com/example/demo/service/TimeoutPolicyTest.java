@@ -0,0 +1,172 @@
+package com.example.demo.service;
+
+import com.example.demo.service.TimeoutPolicy.Operation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * TimeoutPolicy のタイムアウトの算出と、追加リクエスト (hedged request) を送る条件を確認するテスト。
+ * 追加リクエストは直近の p95 (下限 500ms) を過ぎてから送るため、hedged のテストは実時間で 0.5〜1 秒かかる。
+ */
+class TimeoutPolicyTest {
+
+    private static final int MIN_SAMPLES = 5;
+
+    private TimeoutPolicy policy;
+
+    private TimeoutPolicy policy(OutboundLimiter limiter, boolean hedgeEnabled) {
+        policy = new TimeoutPolicy(limiter, 3.0, MIN_SAMPLES, hedgeEnabled, 1, 1);
+        return policy;
+    }
+
+    private static OutboundLimiter limiter(int limit) {
+        return new OutboundLimiter(limit, 1, limit, Duration.ofSeconds(5), 0.5, 1, Duration.ofSeconds(1), System::nanoTime);
+    }
+
+    private static void recordSamples(TimeoutPolicy policy, Duration latency, int count) {
+        for (int i = 0; i < count; i++) {
+            policy.record(Operation.PAGE_FETCH, latency.toNanos());
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        if (policy != null) {
+            policy.shutdown();
+        }
+    }
+
+    @Test
+    void usesDefaultTimeoutUntilMinSamples() {
+        TimeoutPolicy policy = policy(limiter(4), true);
+
+        recordSamples(policy, Duration.ofSeconds(4), MIN_SAMPLES - 1);
+        assertThat(policy.timeout(Operation.PAGE_FETCH)).isEqualTo(Duration.ofSeconds(30));
+
+        recordSamples(policy, Duration.ofSeconds(4), 1);
+        assertThat(policy.timeout(Operation.PAGE_FETCH)).isEqualTo(Duration.ofSeconds(12));
+        assertThat(policy.timeout(Operation.KEEPALIVE_PROBE)).isEqualTo(Duration.ofSeconds(30));
+    }
+
+    @Test
+    void clampsDerivedTimeoutToOperationBounds() {
+        TimeoutPolicy fast = policy(limiter(4), true);
+        recordSamples(fast, Duration.ofMillis(100), MIN_SAMPLES);
+        assertThat(fast.timeout(Operation.PAGE_FETCH)).isEqualTo(Duration.ofSeconds(5));
+        fast.shutdown();
+
+        TimeoutPolicy slow = policy(limiter(4), true);
+        recordSamples(slow, Duration.ofSeconds(30), MIN_SAMPLES);
+        assertThat(slow.timeout(Operation.PAGE_FETCH)).isEqualTo(Duration.ofSeconds(60));
+    }
+
+    @Test
+    void recordTimeoutWidensTowardsTheUpperBound() {
+        TimeoutPolicy policy = policy(limiter(4), true);
+        recordSamples(policy, Duration.ofSeconds(4), MIN_SAMPLES);
+
+        // タイムアウトは p99 から決まるため、タイムアウトを記録するたびに広がり、上限で止まる
+        Duration previous = policy.timeout(Operation.PAGE_FETCH);
+        for (int i = 0; i < 2; i++) {
+            policy.recordTimeout(Operation.PAGE_FETCH);
+            Duration current = policy.timeout(Operation.PAGE_FETCH);
+            assertThat(current).isGreaterThan(previous);
+            previous = current;
+        }
+        policy.recordTimeout(Operation.PAGE_FETCH);
+        assertThat(policy.timeout(Operation.PAGE_FETCH)).isEqualTo(Duration.ofSeconds(60));
+    }
+
+    @Test
+    void hedgeDelayIsP95WithFloorAndOnlyWhenEnabled() {
+        TimeoutPolicy disabled = policy(limiter(4), false);
+        recordSamples(disabled, Duration.ofSeconds(2), MIN_SAMPLES);
+        assertThat(disabled.hedgeDelay(Operation.PAGE_FETCH)).isNull();
+        disabled.shutdown();
+
+        TimeoutPolicy policy = policy(limiter(4), true);
+        assertThat(policy.hedgeDelay(Operation.PAGE_FETCH)).isNull();
+        recordSamples(policy, Duration.ofMillis(10), MIN_SAMPLES);
+        assertThat(policy.hedgeDelay(Operation.PAGE_FETCH)).isEqualTo(Duration.ofMillis(500));
+        recordSamples(policy, Duration.ofSeconds(2), MIN_SAMPLES);
+        assertThat(policy.hedgeDelay(Operation.PAGE_FETCH)).isEqualTo(Duration.ofSeconds(2));
+    }
+
+    @Test
+    void runsOnceAndRecordsWithoutEnoughSamples() throws IOException {
+        OutboundLimiter limiter = limiter(4);
+        TimeoutPolicy policy = policy(limiter, true);
+        AtomicInteger calls = new AtomicInteger();
+
+        for (int i = 0; i < MIN_SAMPLES; i++) {
+            assertThat(policy.hedged(Operation.PAGE_FETCH, WorkPriority.INTERACTIVE, () -> calls.incrementAndGet()))
+                    .isEqualTo(i + 1);
+        }
+        assertThat(limiter.currentInFlight()).isZero();
+        // 所要時間が記録されたため、次からは追加リクエストを送る対象になる
+        assertThat(policy.hedgeDelay(Operation.PAGE_FETCH)).isNotNull();
+    }
+
+    @Test
+    void recordsSocketTimeoutAsTimeout() {
+        TimeoutPolicy policy = policy(limiter(4), true);
+        recordSamples(policy, Duration.ofSeconds(4), MIN_SAMPLES - 1);
+
+        assertThatThrownBy(() -> policy.hedged(Operation.PAGE_FETCH, WorkPriority.INTERACTIVE, () -> {
+            throw new SocketTimeoutException("Read timed out");
+        })).isInstanceOf(SocketTimeoutException.class);
+        // その時点のタイムアウト (既定値の30秒) が記録され、p99 × 3 が上限の60秒に収まる
+        assertThat(policy.timeout(Operation.PAGE_FETCH)).isEqualTo(Duration.ofSeconds(60));
+    }
+
+    @Test
+    void returnsHedgeWhenPrimaryIsSlow() throws Exception {
+        OutboundLimiter limiter = limiter(4);
+        TimeoutPolicy policy = policy(limiter, true);
+        recordSamples(policy, Duration.ofMillis(10), MIN_SAMPLES);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch releasePrimary = new CountDownLatch(1);
+
+        String result = policy.hedged(Operation.PAGE_FETCH, WorkPriority.INTERACTIVE, () -> {
+            if (calls.incrementAndGet() == 1) {
+                releasePrimary.await(10, TimeUnit.SECONDS);
+                return "primary";
+            }
+            return "hedge";
+        });
+
+        assertThat(result).isEqualTo("hedge");
+        assertThat(calls).hasValue(2);
+        releasePrimary.countDown();
+    }
+
+    @Test
+    void skipsHedgeWhenNoOutboundSlotIsFree() throws IOException {
+        OutboundLimiter limiter = limiter(1);
+        TimeoutPolicy policy = policy(limiter, true);
+        recordSamples(policy, Duration.ofMillis(10), MIN_SAMPLES);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch never = new CountDownLatch(1);
+
+        // 最初のリクエストが唯一の枠を使っているため、500ms を過ぎても追加リクエストは送らない
+        String result = policy.hedged(Operation.PAGE_FETCH, WorkPriority.INTERACTIVE, () -> {
+            calls.incrementAndGet();
+            never.await(1, TimeUnit.SECONDS);
+            return "primary";
+        });
+
+        assertThat(result).isEqualTo("primary");
+        assertThat(calls).hasValue(1);
+        assertThat(limiter.currentInFlight()).isZero();
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.demo.service;
+
+import com.example.demo.service.UpstreamHealthTracker.Attempt;
+import com.example.demo.service.UpstreamHealthTracker.State;
+import org.jsoup.HttpStatusException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * UpstreamHealthTracker の状態遷移 (CLOSED → OPEN → HALF_OPEN → CLOSED / OPEN) を、時刻を進めながら確認するテスト。
+ */
+class UpstreamHealthTrackerTest {
+
+    private static final int MINIMUM_CALLS = 4;
+    private static final Duration WINDOW = Duration.ofMinutes(2);
+    private static final Duration OPEN_DURATION = Duration.ofSeconds(30);
+    private static final int PROBES = 2;
+
+    private final AtomicLong now = new AtomicLong(Duration.ofHours(1).toNanos());
+    private final UpstreamHealthTracker tracker =
+            new UpstreamHealthTracker(0.5, MINIMUM_CALLS, WINDOW, OPEN_DURATION, PROBES, now::get);
+
+    private void advance(Duration duration) {
+        now.addAndGet(duration.toNanos());
+    }
+
+    private void succeed() throws IOException {
+        tracker.call(() -> "ok");
+    }
+
+    private void fail(IOException error) {
+        assertThatThrownBy(() -> tracker.call(() -> {
+            throw error;
+        })).isSameAs(error);
+    }
+
+    private void open() throws IOException {
+        for (int i = 0; i < MINIMUM_CALLS; i++) {
+            fail(new SocketTimeoutException("Read timed out"));
+        }
+        assertThat(tracker.state()).isEqualTo(State.OPEN);
+    }
+
+    @Test
+    void opensOnceFailureRateIsReachedWithMinimumCalls() throws IOException {
+        succeed();
+        fail(new SocketTimeoutException("Read timed out"));
+        succeed();
+        assertThat(tracker.state()).isEqualTo(State.CLOSED); // minimum-calls に満たない
+
+        fail(new HttpStatusException("Bad Gateway", 502, "https://example.com"));
+        assertThat(tracker.state()).isEqualTo(State.OPEN);
+        assertThat(tracker.isAvailable()).isFalse();
+
+        advance(Duration.ofSeconds(10));
+        assertThatThrownBy(() -> tracker.call(() -> "ok"))
+                .isInstanceOfSatisfying(UpstreamUnavailableException.class,
+                        e -> assertThat(e.getRetryAfter()).isEqualTo(Duration.ofSeconds(20)));
+    }
+
+    @Test
+    void forgetsResultsOlderThanWindow() throws IOException {
+        for (int i = 0; i < MINIMUM_CALLS - 1; i++) {
+            fail(new SocketTimeoutException("Read timed out"));
+        }
+        advance(WINDOW.plusSeconds(1));
+
+        fail(new SocketTimeoutException("Read timed out"));
+        assertThat(tracker.state()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    void ignoresFailuresWhereManabaResponded() throws IOException {
+        fail(new HttpStatusException("Not Found", 404, "https://example.com"));
+        fail(new IOException("ログインに失敗しました。"));
+        // MFAの承認待ちの時間切れは、原因がタイムアウトでも数えない
+        fail(new MfaApprovalTimeoutException(new SocketTimeoutException("Read timed out")));
+        fail(new UpstreamUnavailableException(OPEN_DURATION));
+        succeed();
+
+        assertThat(tracker.state()).isEqualTo(State.CLOSED);
+        assertThat(UpstreamHealthTracker.isUpstreamFailure(new IOException(new SocketTimeoutException()))).isTrue();
+    }
+
+    @Test
+    void allowsOnlyConfiguredProbesWhileHalfOpen() throws IOException {
+        open();
+        advance(OPEN_DURATION);
+        assertThat(tracker.isAvailable()).isTrue();
+
+        Attempt first = tracker.begin();
+        assertThat(tracker.state()).isEqualTo(State.HALF_OPEN);
+        Attempt second = tracker.begin();
+        assertThatThrownBy(tracker::begin).isInstanceOf(UpstreamUnavailableException.class);
+
+        // 成功した試行の枠は再利用しない (half-open-probes 件の成功がそろうまで HALF_OPEN のまま)
+        first.succeeded();
+        assertThat(tracker.state()).isEqualTo(State.HALF_OPEN);
+        assertThatThrownBy(tracker::begin).isInstanceOf(UpstreamUnavailableException.class);
+
+        second.succeeded();
+        assertThat(tracker.state()).isEqualTo(State.CLOSED);
+        succeed();
+    }
+
+    @Test
+    void reopensWhenAProbeFails() throws IOException {
+        open();
+        advance(OPEN_DURATION);
+
+        Attempt probe = tracker.begin();
+        probe.failed(new SocketTimeoutException("Read timed out"));
+        assertThat(tracker.state()).isEqualTo(State.OPEN);
+        assertThat(tracker.isAvailable()).isFalse();
+
+        // 再び open-duration を過ぎると、試行の数え直しから始める
+        advance(OPEN_DURATION);
+        tracker.begin().succeeded();
+        tracker.begin().succeeded();
+        assertThat(tracker.state()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    void recordsOnlyTheFirstResultOfAnAttempt() throws IOException {
+        open();
+        advance(OPEN_DURATION);
+
+        Attempt probe = tracker.begin();
+        probe.succeeded();
+        probe.failed(new SocketTimeoutException("Read timed out")); // 結果が決まった後の失敗は記録しない
+        assertThat(tracker.state()).isEqualTo(State.HALF_OPEN);
+    }
+
+    @Test
+    void ignoresResultsOfRequestsStartedBeforeOpening() throws IOException {
+        Attempt inFlight = tracker.begin();
+        open();
+        advance(OPEN_DURATION);
+        Attempt probe = tracker.begin();
+
+        // 回路が開く前に始まったリクエストの結果は、試行の成否として数えない
+        inFlight.failed(new SocketTimeoutException("Read timed out"));
+        assertThat(tracker.state()).isEqualTo(State.HALF_OPEN);
+        probe.succeeded();
+        tracker.begin().succeeded();
+        assertThat(tracker.state()).isEqualTo(State.CLOSED);
+    }
+}
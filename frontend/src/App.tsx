@@ -13,6 +13,9 @@ import {
 } from "./types"; // 型定義をimport
 import {
   sync,
+  waitForJob,
+  fetchCachedResult,
+  fetchNextClasses,
   invalidateToken,
   addManualClass,
   fetchTimetable,
@@ -21,6 +24,8 @@ import getMockSession from "./mock/mockData";
 
 // localStorageに保存するキー
 const STORAGE_KEY_USER_ID = "schedyNabiUserProfileId";
+// 次の授業カードをサーバーで再計算する間隔
+const NEXT_CLASS_REFRESH_INTERVAL_MS = 60 * 1000;
 
 function App() {
   const [showWelcome, setShowWelcome] = useState(true); // Welcome画面の表示状態
@@ -38,6 +43,45 @@ function App() {
   const API_BASE_URL =
     import.meta.env.VITE_API_BASE_URL || "http://localhost:8080";
 
+  // --- 保存済みユーザーでの対話的な同期 (進捗・MFAの承認を進捗画面に表示する) ---
+  // Cookieが切れている場合はサーバーが保存済みパスワードでログインするため、MFAの承認が必要になることがある
+  const syncStoredUser = async (
+    storedProfileId: string,
+    hasCachedResult: boolean
+  ) => {
+    setLoading(true); // 自動同期中を示す
+    setStatusMessage(`保存されたユーザーで自動同期を試みています...`);
+    try {
+      // ★ rememberMe を true に修正 ★
+      const response = await sync(
+        {
+          userId: storedProfileId,
+          username: "",
+          password: "",
+          rememberMe: true,
+        },
+        (progress) => setLoginProgress(progress)
+      );
+      setSession(response);
+      showSuccess(
+        hasCachedResult ? "最新の情報に更新しました。" : "自動同期に成功しました。"
+      );
+    } catch (err: any) {
+      // Cookieが無効などの理由で失敗した場合
+      console.error("自動同期失敗:", err);
+      if (hasCachedResult) {
+        // 前回の結果は表示したまま、更新に失敗したことだけを伝える
+        setError(err.message || "最新の情報に更新できませんでした。");
+      } else {
+        setError("自動同期に失敗しました。再度ログインしてください。");
+        localStorage.removeItem(STORAGE_KEY_USER_ID); // 失敗したらIDも消す
+      }
+    } finally {
+      setLoading(false);
+      setLoginProgress(null);
+    }
+  };
+
   // --- 自動同期処理 ---
   useEffect(() => {
     const attemptAutoSync = async () => {
@@ -47,30 +91,45 @@ function App() {
       const storedProfileId = localStorage.getItem(STORAGE_KEY_USER_ID);
       if (storedProfileId) {
         setShowWelcome(false); // IDがあればWelcomeは表示しない
-        setLoading(true); // 自動同期中を示す
-        setStatusMessage(`保存されたユーザーで自動同期を試みています...`);
+
+        // ★ まずサーバーに保存された前回の結果を即座に表示する
         try {
-          // ★ rememberMe を true に修正 ★
-          const response = await sync(
-            {
-              userId: storedProfileId,
-              username: "",
-              password: "",
-              rememberMe: true,
-            },
-            (progress) => setLoginProgress(progress)
-          );
-          setSession(response);
-          showSuccess("自動同期に成功しました。");
+          const cached = await fetchCachedResult(storedProfileId);
+          if (cached?.result) {
+            const cachedResult = cached.result;
+            setSession(cachedResult);
+            setAutoSyncLoading(false);
+            if (cached.loginRequired) {
+              // 保存済みCookieでは更新できないため、進捗画面を表示して同期する
+              syncStoredUser(storedProfileId, true);
+            } else if (cached.refreshJobId) {
+              // 結果が古い場合はバックグラウンドで (Cookieのみで) 再同期し、差分を適用して差し替える
+              const refresh = { lastProgress: null as SyncJobResponse | null };
+              waitForJob(
+                cached.refreshJobId,
+                (progress) => (refresh.lastProgress = progress),
+                cachedResult
+              )
+                .then((fresh) => {
+                  setSession(fresh);
+                  showSuccess("最新の情報に更新しました。");
+                })
+                .catch((err) => {
+                  if (refresh.lastProgress?.stage === "LOGIN_REQUIRED") {
+                    // Cookieがmanabaに拒否された。ログインが必要なため、進捗画面を表示して同期する
+                    syncStoredUser(storedProfileId, true);
+                  } else {
+                    console.warn("バックグラウンド再同期失敗:", err);
+                  }
+                });
+            }
+            return;
+          }
         } catch (err: any) {
-          // Cookieが無効などの理由で失敗した場合
-          console.error("自動同期失敗:", err);
-          setError("自動同期に失敗しました。再度ログインしてください。");
-          localStorage.removeItem(STORAGE_KEY_USER_ID); // 失敗したらIDも消す
-        } finally {
-          setLoading(false);
-          setLoginProgress(null);
+          console.warn("保存済み結果の取得に失敗しました:", err);
         }
+
+        await syncStoredUser(storedProfileId, false);
       } else {
         // IDがなければWelcomeを表示するか、ログインフォームへ
         setShowWelcome(true); // 必要に応じて調整
@@ -82,6 +141,32 @@ function App() {
     // eslint-disable-next-line react-hooks/exhaustive-deps
   }, []); // 初回マウント時にのみ実行
 
+  // --- 次の授業カードの定期更新 (保存済み時間割からサーバーで計算) ---
+  const sessionUserId = session?.userId;
+  useEffect(() => {
+    if (!sessionUserId || sessionUserId === getMockSession().userId) {
+      return;
+    }
+    const refreshNextClass = async () => {
+      try {
+        const nextClasses = await fetchNextClasses(sessionUserId, 1);
+        if (nextClasses) {
+          setSession((current) =>
+            current ? { ...current, nextClass: nextClasses[0] ?? null } : current
+          );
+        }
+      } catch (err) {
+        console.warn("次の授業の更新に失敗しました:", err);
+      }
+    };
+    refreshNextClass();
+    const timer = window.setInterval(
+      refreshNextClass,
+      NEXT_CLASS_REFRESH_INTERVAL_MS
+    );
+    return () => window.clearInterval(timer);
+  }, [sessionUserId]);
+
   // --- ログイン処理 (成功時にIDを保存) ---
   const handleLogin = async (payload: LoginPayload) => {
     setLoading(true);
@@ -169,6 +254,11 @@ function App() {
     );
   }
 
+  // ログイン処理中の進捗画面表示 (前回の結果を表示中でも、MFAの承認が必要になり得るため進捗画面を優先する)
+  if (loginProgress && loading) {
+    return <LoginProgressScreen progress={loginProgress} />;
+  }
+
   // セッションがあればダッシュボード表示
   if (session) {
     return (
@@ -185,11 +275,6 @@ function App() {
     );
   }
 
-  // ログイン処理中の進捗画面表示
-  if (loginProgress && loading) {
-    return <LoginProgressScreen progress={loginProgress} />;
-  }
-
   // 上記以外（IDなし、自動同期失敗など）はログインフォーム表示
   return (
     <main className="container">
@@ -1,6 +1,14 @@
 // src/api/client.ts
 
-import { LoginPayload, SyncJobResponse, SyncResponse } from "../types";
+import {
+  CachedSyncResponse,
+  LoginPayload,
+  NextClassCard,
+  SyncDelta,
+  SyncJobResponse,
+  SyncJobResultResponse,
+  SyncResponse,
+} from "../types";
 
 const API_BASE_URL =
   import.meta.env.VITE_API_BASE_URL || "http://localhost:8080";
@@ -49,6 +57,17 @@ export async function sync(
     if (startResponse.status === 401) {
       throw new Error("APIキーが無効です。環境変数を確認してください。");
     }
+    // 同期の開始回数の上限 (ユーザーごと・全体) を超えた
+    if (startResponse.status === 429) {
+      const body = await startResponse.json().catch(() => null);
+      const retryAfter =
+        body?.retryAfterSeconds ?? startResponse.headers.get("Retry-After");
+      const message =
+        body?.error ?? "同期のリクエストが多すぎます。しばらくしてから再試行してください。";
+      throw new Error(
+        retryAfter ? `${message} (${retryAfter}秒後に再試行できます)` : message
+      );
+    }
     throw new Error(
       `サーバーエラー: ジョブの開始に失敗しました (HTTP ${startResponse.status})`
     );
@@ -60,6 +79,51 @@ export async function sync(
   }
 
   // --- 2. "jobId" を使ってステータスをポーリング（繰り返し確認） ---
+  return waitForJob(jobId, onProgress);
+}
+
+/**
+ * サーバーから受け取った差分を手元の結果に適用する
+ * @param base クライアントが保持している結果 (delta.baseVersion と同じバージョン)
+ * @param delta サーバーが計算した差分
+ * @returns 差分適用後の結果
+ */
+export function applyDelta(base: SyncResponse, delta: SyncDelta): SyncResponse {
+  const removedCourses = new Set(delta.removedCourseIds);
+  const changedCourses = new Map(delta.changedCourses.map((c) => [c.id, c]));
+  const removedAssignments = new Set(delta.removedAssignmentIds);
+  const changedAssignments = new Map(
+    delta.changedAssignments.map((a) => [a.id, a])
+  );
+
+  return {
+    ...base,
+    syncedAt: delta.syncedAt,
+    version: delta.version,
+    nextClass: delta.nextClass,
+    timetable: base.timetable
+      .filter((c) => !removedCourses.has(c.id))
+      .map((c) => changedCourses.get(c.id) ?? c)
+      .concat(delta.addedCourses),
+    assignments: base.assignments
+      .filter((a) => !removedAssignments.has(a.id))
+      .map((a) => changedAssignments.get(a.id) ?? a)
+      .concat(delta.addedAssignments),
+  };
+}
+
+/**
+ * 既存ジョブの完了をポーリングで待つ
+ * @param jobId 対象のジョブID
+ * @param onProgress 進捗更新時に呼び出されるコールバック関数
+ * @param base 手元に結果があれば渡す。サーバーは差分のみを返す
+ * @returns 成功時の同期結果
+ */
+export async function waitForJob(
+  jobId: string,
+  onProgress: (progress: SyncJobResponse) => void,
+  base?: SyncResponse | null
+): Promise<SyncResponse> {
   for (let i = 0; i < 60; i++) {
     // 最大60回 (約2分) 確認
     const statusResponse = await fetch(
@@ -87,10 +151,13 @@ export async function sync(
     // App.tsxに進捗を通知する
     onProgress(jobStatus);
 
-    if (jobStatus.status === "SUCCESS") {
-      // ★ 成功！ resultを返して処理を終了
+    if (jobStatus.status === "SUCCESS" && jobStatus.resultRef) {
+      // ★ 成功！ 結果は別エンドポイントから一度だけ取得する
       // resultにはCookieが含まれていないことを想定
-      return jobStatus.result as SyncResponse;
+      if (base?.version && base.version === jobStatus.resultVersion) {
+        return base; // 手元の結果がすでに最新
+      }
+      return fetchJobResult(jobStatus.resultRef, base);
     }
 
     if (jobStatus.status === "FAILED") {
@@ -108,6 +175,98 @@ export async function sync(
   );
 }
 
+/**
+ * 成功したジョブの結果 (ステータスの resultRef) を取得する
+ * サーバーはETagとCache-Controlを返すため、同じ結果はブラウザのキャッシュから再利用される
+ * @param resultRef ステータスに含まれる結果のパス
+ * @param base 手元に結果があれば渡す。サーバーは差分のみを返す
+ */
+async function fetchJobResult(
+  resultRef: string,
+  base?: SyncResponse | null
+): Promise<SyncResponse> {
+  const since = base?.version
+    ? `?since=${encodeURIComponent(base.version)}`
+    : "";
+  const response = await fetch(`${API_BASE_URL}${resultRef}${since}`, {
+    method: "GET",
+    headers: buildHeaders(false),
+  });
+  if (!response.ok) {
+    throw new Error(
+      `サーバーエラー: 同期結果の取得に失敗しました (HTTP ${response.status})`
+    );
+  }
+  const body: SyncJobResultResponse = await response.json();
+  if (body.delta && base) {
+    return applyDelta(base, body.delta);
+  }
+  if (!body.result) {
+    throw new Error("サーバーから同期結果を取得できませんでした。");
+  }
+  return body.result;
+}
+
+/**
+ * サーバーに保存された最後の同期結果を取得する (stale-while-revalidate)
+ * 結果が古い場合、サーバーはバックグラウンドで再同期を開始し refreshJobId を返す
+ * @param userId ユーザープロファイルID
+ * @returns 保存済みの結果。存在しない場合は null
+ */
+export async function fetchCachedResult(
+  userId: string
+): Promise<CachedSyncResponse | null> {
+  const response = await fetch(
+    `${API_BASE_URL}/api/sync/result/${encodeURIComponent(userId)}`,
+    {
+      method: "GET",
+      headers: buildHeaders(false),
+    }
+  );
+
+  if (response.status === 404) {
+    return null;
+  }
+  if (!response.ok) {
+    if (response.status === 401) {
+      throw new Error("APIキーが無効です。環境変数を確認してください。");
+    }
+    throw new Error(
+      `サーバーエラー: 保存済み結果の取得に失敗しました (HTTP ${response.status})`
+    );
+  }
+  return (await response.json()) as CachedSyncResponse;
+}
+
+/**
+ * 保存済みの時間割から、現在時刻以降の授業をサーバーで計算して取得する
+ * 同期を待たずに常に最新の「開始まで」を表示するために使う
+ * @param userId ユーザープロファイルID
+ * @param count 取得する件数
+ * @returns 次の授業のリスト。保存済みの時間割がない場合は null
+ */
+export async function fetchNextClasses(
+  userId: string,
+  count = 1
+): Promise<NextClassCard[] | null> {
+  const response = await fetch(
+    `${API_BASE_URL}/api/sync/next/${encodeURIComponent(userId)}?count=${count}`,
+    {
+      method: "GET",
+      headers: buildHeaders(false),
+    }
+  );
+  if (response.status === 404) {
+    return null;
+  }
+  if (!response.ok) {
+    throw new Error(
+      `サーバーエラー: 次の授業の取得に失敗しました (HTTP ${response.status})`
+    );
+  }
+  return (await response.json()) as NextClassCard[];
+}
+
 // --- 以下の関数は変更なし ---
 
 export async function invalidateToken(username: string) {
@@ -34,11 +34,35 @@ export interface SyncResponse {
   userId?: string | null;
   username: string;
   syncedAt: string;
+  version?: string | null;
   nextClass: NextClassCard | null;
   timetable: CourseEntry[];
   assignments: AssignmentEntry[];
 }
 
+export interface SyncDelta {
+  baseVersion: string;
+  version: string;
+  syncedAt: string;
+  addedCourses: CourseEntry[];
+  changedCourses: CourseEntry[];
+  removedCourseIds: string[];
+  addedAssignments: AssignmentEntry[];
+  changedAssignments: AssignmentEntry[];
+  removedAssignmentIds: string[];
+  nextClass: NextClassCard | null;
+}
+
+export interface CachedSyncResponse {
+  syncedAt: string;
+  stale: boolean;
+  refreshJobId?: string | null;
+  // 保存済みCookieでは再検証できない (対話的な同期が必要)
+  loginRequired?: boolean;
+  result?: SyncResponse | null;
+  delta?: SyncDelta | null;
+}
+
 export interface LoginPayload {
   userId?: string;
   username: string;
@@ -86,6 +110,12 @@ export interface SyncJobResponse {
   updatedAt: string;
   userId?: string | null;
   username?: string | null;
-  result?: SyncResponse;
+  resultRef?: string | null;
+  resultVersion?: string | null;
   error?: string | null;
 }
+
+export interface SyncJobResultResponse {
+  result?: SyncResponse | null;
+  delta?: SyncDelta | null;
+}
@@ -0,0 +1,55 @@
+package com.example.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * 計測した所要時間 (ミリ秒) をすべて保持し、パーセンタイルを正確に計算する。
+ * 1段階で記録する件数は多くても数万件のため、ヒストグラムにまとめずに生の値を持つ。
+ */
+public final class LatencyRecorder {
+
+    private long[] values = new long[256];
+    private int count;
+
+    public synchronized void record(long millis) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = millis;
+    }
+
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * 記録した値のスナップショットを返します。
+     */
+    public synchronized Summary summarize() {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return new Summary(sorted);
+    }
+
+    /**
+     * 並べ替え済みの値。パーセンタイルは最近傍順位法 (nearest-rank) で求める。
+     */
+    public record Summary(long[] sorted) {
+
+        public int count() {
+            return sorted.length;
+        }
+
+        public long percentile(double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+        }
+
+        public long max() {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.loadtest;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * 段階ごとの計測結果をMarkdownの表にまとめ、同期ジョブの待ち行列とHikariのコネクションプールが
+ * 飽和し始めた段階を判定する。
+ */
+final class LoadReport {
+
+    private static final String STAGE_HISTOGRAM = "schedy_sync_stage_time_seconds";
+    private static final String JOB_HISTOGRAM = "schedy_sync_job_time_seconds";
+    // スループットの伸びがこの割合を下回ったら、同時実行数を増やしても処理量が増えなくなったとみなす
+    private static final double THROUGHPUT_GAIN_THRESHOLD = 1.10;
+
+    private final LoadTestOptions options;
+    private final int preparedUsers;
+    private final List<LoadRunner.StepResult> steps;
+
+    LoadReport(LoadTestOptions options, int preparedUsers, List<LoadRunner.StepResult> steps) {
+        this.options = options;
+        this.preparedUsers = preparedUsers;
+        this.steps = steps;
+    }
+
+    String render() {
+        StringBuilder out = new StringBuilder();
+        out.append("# 同期API 負荷試験レポート\n\n");
+        out.append("- バックエンド: ").append(options.apiBaseUrl()).append('\n');
+        out.append("- シナリオ比率: ").append(options.mix()).append('\n');
+        out.append("- Cookie保存済みユーザー: ").append(preparedUsers).append(" / ").append(options.users()).append('\n');
+        out.append("- 1段階の長さ: ").append(options.stepDuration()).append(", think-time: ").append(options.thinkTime())
+                .append(", スタンドインの応答遅延: ").append(options.pageLatency()).append('\n');
+
+        out.append("\n## スループットとジョブ全体の所要時間 (クライアント計測, ms)\n\n");
+        out.append("| 同時実行 | 開始 | 成功 | 失敗 | タイムアウト | 拒否 | 完了/分 | シナリオ | 件数 | p50 | p95 | p99 | 最大 |\n");
+        out.append("|---:|---:|---:|---:|---:|---:|---:|---|---:|---:|---:|---:|---:|\n");
+        for (LoadRunner.StepResult step : steps) {
+            boolean first = true;
+            for (Map.Entry<Scenario, LatencyRecorder.Summary> entry : step.endToEnd().entrySet()) {
+                LatencyRecorder.Summary summary = entry.getValue();
+                if (first) {
+                    out.append(String.format(Locale.ROOT, "| %d | %d | %d | %d | %d | %d | %.1f ",
+                            step.concurrency(), step.started(), step.succeeded(), step.failed(), step.timedOut(),
+                            step.rejected(), step.throughputPerMinute()));
+                } else {
+                    out.append("| | | | | | | ");
+                }
+                out.append(String.format(Locale.ROOT, "| %s | %d | %d | %d | %d | %d |\n", entry.getKey().label(),
+                        summary.count(), summary.percentile(50), summary.percentile(95), summary.percentile(99), summary.max()));
+                first = false;
+            }
+            if (first) {
+                out.append(String.format(Locale.ROOT, "| %d | %d | %d | %d | %d | %d | %.1f | - | 0 | | | | |\n",
+                        step.concurrency(), step.started(), step.succeeded(), step.failed(), step.timedOut(),
+                        step.rejected(), step.throughputPerMinute()));
+            }
+        }
+
+        out.append("\n## APIの応答時間 (クライアント計測, ms)\n\n");
+        out.append("| 同時実行 | start p50 | start p99 | status p50 | status p99 | result p50 | result p99 |\n");
+        out.append("|---:|---:|---:|---:|---:|---:|---:|\n");
+        for (LoadRunner.StepResult step : steps) {
+            out.append(String.format(Locale.ROOT, "| %d | %d | %d | %d | %d | %d | %d |\n", step.concurrency(),
+                    step.startLatency().percentile(50), step.startLatency().percentile(99),
+                    step.statusLatency().percentile(50), step.statusLatency().percentile(99),
+                    step.resultLatency().percentile(50), step.resultLatency().percentile(99)));
+        }
+
+        renderStageLatency(out);
+        renderResources(out);
+        renderSaturation(out);
+        return out.toString();
+    }
+
+    // 段階ごとの所要時間 (サーバー側の schedy.sync.stage.time / schedy.sync.job.time のヒストグラムの差分)
+    private void renderStageLatency(StringBuilder out) {
+        out.append("\n## 段階ごとの所要時間 (サーバー計測, ms)\n\n");
+        Set<String> stages = new TreeSet<>();
+        for (LoadRunner.StepResult step : steps) {
+            stages.addAll(step.metricsAfter().labelValues(STAGE_HISTOGRAM + "_bucket", "stage"));
+        }
+        if (stages.isEmpty()) {
+            out.append("メトリクスを取得できなかったため省略します (/actuator/prometheus と --metrics-key を確認してください)。\n");
+            return;
+        }
+        out.append("| 同時実行 | 段階 | 件数 | p50 | p95 | p99 |\n");
+        out.append("|---:|---|---:|---:|---:|---:|\n");
+        for (LoadRunner.StepResult step : steps) {
+            for (String stage : stages) {
+                Predicate<Map<String, String>> filter = labels -> stage.equals(labels.get("stage"));
+                appendHistogramRow(out, step, STAGE_HISTOGRAM, filter, stage);
+            }
+            for (String auth : List.of("cookie", "password")) {
+                Predicate<Map<String, String>> filter = labels -> auth.equals(labels.get("auth")) && "success".equals(labels.get("outcome"));
+                appendHistogramRow(out, step, JOB_HISTOGRAM, filter, "(ジョブ全体: " + auth + ")");
+            }
+        }
+    }
+
+    private void appendHistogramRow(StringBuilder out, LoadRunner.StepResult step, String histogram,
+                                    Predicate<Map<String, String>> filter, String label) {
+        PrometheusSnapshot before = step.metricsBefore();
+        PrometheusSnapshot after = step.metricsAfter();
+        double count = after.countDelta(before, histogram, filter);
+        if (count <= 0) {
+            return;
+        }
+        out.append(String.format(Locale.ROOT, "| %d | %s | %.0f | %s | %s | %s |\n", step.concurrency(), label, count,
+                millis(after.histogramPercentile(before, histogram, filter, 50)),
+                millis(after.histogramPercentile(before, histogram, filter, 95)),
+                millis(after.histogramPercentile(before, histogram, filter, 99))));
+    }
+
+    private void renderResources(StringBuilder out) {
+        out.append("\n## リソース (段階中の最大値。キューは平均も)\n\n");
+        out.append("| 同時実行 | ジョブキュー平均 | ジョブキュー最大 | 実行中ジョブ | Hikari使用中/最大 | Hikari待ち | ヒープ | 非ヒープ | Direct | Chrome数 | ChromeRSS | プロセスRSS | NMT committed |\n");
+        out.append("|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|\n");
+        for (LoadRunner.StepResult step : steps) {
+            ResourceSampler.Resources r = step.resources();
+            out.append(String.format(Locale.ROOT, "| %d | %s | %s | %s | %s/%s | %s | %s | %s | %s | %s | %s | %s | %s |\n",
+                    step.concurrency(), number(r.executorQueueMean()), number(r.executorQueueMax()), number(r.executorActiveMax()),
+                    number(r.hikariActiveMax()), number(r.hikariMax()), number(r.hikariPendingMax()),
+                    megabytes(r.heapUsedMax()), megabytes(r.nonHeapUsedMax()), megabytes(r.directBufferMax()),
+                    number(r.chromeActiveMax()), megabytes(r.chromeRssMax()), megabytes(r.processRssMax()),
+                    megabytes(r.nativeCommitted())));
+        }
+    }
+
+    private void renderSaturation(StringBuilder out) {
+        out.append("\n## 飽和点\n\n");
+        LoadRunner.StepResult queueSaturated = null;
+        LoadRunner.StepResult poolSaturated = null;
+        LoadRunner.StepResult throughputKnee = null;
+        LoadRunner.StepResult previous = null;
+        for (LoadRunner.StepResult step : steps) {
+            ResourceSampler.Resources r = step.resources();
+            // ジョブが常に待たされている (平均1件以上がキューにある) 段階
+            if (queueSaturated == null && r.executorQueueMean() >= 1) {
+                queueSaturated = step;
+            }
+            // コネクション待ちが発生した、または全コネクションが使用中になった段階
+            if (poolSaturated == null && (r.hikariPendingMax() > 0 || (r.hikariMax() > 0 && r.hikariActiveMax() >= r.hikariMax()))) {
+                poolSaturated = step;
+            }
+            if (throughputKnee == null && previous != null && previous.throughputPerMinute() > 0
+                    && step.throughputPerMinute() < previous.throughputPerMinute() * THROUGHPUT_GAIN_THRESHOLD) {
+                throughputKnee = step;
+            }
+            previous = step;
+        }
+        out.append("- JobManagerService のジョブキュー: ").append(describe(queueSaturated, "キューに平均1件以上のジョブが滞留")).append('\n');
+        out.append("- Hikari コネクションプール: ").append(describe(poolSaturated, "コネクション待ちが発生、または全コネクションが使用中")).append('\n');
+        out.append("- スループット: ").append(describe(throughputKnee, "同時実行数を増やしても完了数が10%以上増えない")).append('\n');
+    }
+
+    private static String describe(LoadRunner.StepResult step, String condition) {
+        if (step == null) {
+            return "計測した範囲では飽和していません";
+        }
+        return "同時実行 " + step.concurrency() + " で飽和 (" + condition + ")";
+    }
+
+    private static String millis(double seconds) {
+        return Double.isNaN(seconds) ? "-" : String.format(Locale.ROOT, "%.0f", seconds * 1000);
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "-" : String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String megabytes(double bytes) {
+        return Double.isNaN(bytes) ? "-" : String.format(Locale.ROOT, "%.0fMB", bytes / 1024 / 1024);
+    }
+}
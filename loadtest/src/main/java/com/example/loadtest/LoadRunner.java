@@ -0,0 +1,269 @@
+package com.example.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 仮想ユーザーを段階的に増やしながら同期ジョブを繰り返し実行する (クローズドモデル)。
+ * 各仮想ユーザーは「ジョブ開始 → ステータスを完了までポーリング → 結果取得 → think-time 待機」を繰り返す。
+ *
+ * Cookie保存済みのユーザーはプールから貸し出し、同じユーザーのジョブが同時に走らないようにする
+ * (Cookie期限切れのシナリオでセッションを失効させても、他の仮想ユーザーのジョブに影響しないように)。
+ */
+final class LoadRunner {
+
+    private static final String STORED_USER_FORMAT = "lt-user-%04d";
+
+    /** 1段階の計測結果 */
+    record StepResult(
+            int concurrency,
+            long elapsedMillis,
+            int started,
+            int succeeded,
+            int failed,
+            int timedOut,
+            int rejected,
+            int completedInWindow,
+            Map<Scenario, LatencyRecorder.Summary> endToEnd,
+            LatencyRecorder.Summary startLatency,
+            LatencyRecorder.Summary statusLatency,
+            LatencyRecorder.Summary resultLatency,
+            ResourceSampler.Resources resources,
+            PrometheusSnapshot metricsBefore,
+            PrometheusSnapshot metricsAfter
+    ) {
+
+        /** 1分あたりの完了ジョブ数 (段階の時間内に完了したもの) */
+        double throughputPerMinute() {
+            return elapsedMillis == 0 ? 0 : completedInWindow * 60_000.0 / elapsedMillis;
+        }
+    }
+
+    private enum Outcome { SUCCESS, FAILED, TIMEOUT, REJECTED }
+
+    private final LoadTestOptions options;
+    private final SyncApiClient client;
+    private final BlockingQueue<String> storedUsers = new LinkedBlockingQueue<>();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong newUserSequence = new AtomicLong();
+
+    LoadRunner(LoadTestOptions options, SyncApiClient client) {
+        this.options = options;
+        this.client = client;
+    }
+
+    /**
+     * Cookie保存済みのユーザーを用意します (パスワードで1回同期してCookieを保存させる)。
+     * @return 用意できたユーザー数
+     */
+    int warmUp() throws InterruptedException {
+        if (!options.mix().usesStoredCookies()) {
+            return 0;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, options.warmupConcurrency()));
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 1; i <= options.users(); i++) {
+            String username = String.format(STORED_USER_FORMAT, i);
+            results.add(pool.submit(() -> {
+                Outcome outcome = runJob(username, null, null);
+                if (outcome == Outcome.SUCCESS) {
+                    storedUsers.add(username);
+                    return true;
+                }
+                LoadTestMain.log("事前ログインに失敗しました: " + username + " (" + outcome + ")");
+                return false;
+            }));
+        }
+        pool.shutdown();
+        int prepared = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (result.get()) {
+                    prepared++;
+                }
+            } catch (ExecutionException e) {
+                LoadTestMain.log("事前ログイン中にエラーが発生しました: " + e.getCause());
+            }
+        }
+        return prepared;
+    }
+
+    /**
+     * 同時実行数 concurrency で stepDuration の間ジョブを実行します。
+     * 時間が過ぎたら新しいジョブは開始せず、実行中のジョブの完了を待ってから返します。
+     */
+    StepResult runStep(int concurrency, ResourceSampler sampler, PrometheusSnapshot metricsBefore) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + options.stepDuration().toNanos();
+        StepCounters counters = new StepCounters(deadlineNanos);
+
+        ExecutorService virtualUsers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "virtual-user");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < concurrency; i++) {
+            virtualUsers.submit(() -> virtualUserLoop(deadlineNanos, counters));
+        }
+        virtualUsers.shutdown();
+        // 段階の終了後、実行中のジョブはタイムアウトまで待つ
+        long drainMillis = options.stepDuration().toMillis() + options.jobTimeout().toMillis() + options.thinkTime().toMillis();
+        if (!virtualUsers.awaitTermination(drainMillis, TimeUnit.MILLISECONDS)) {
+            virtualUsers.shutdownNow();
+        }
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+        ResourceSampler.Resources resources = sampler.finish();
+        Map<Scenario, LatencyRecorder.Summary> endToEnd = new EnumMap<>(Scenario.class);
+        counters.endToEnd.forEach((scenario, recorder) -> {
+            if (recorder.count() > 0) {
+                endToEnd.put(scenario, recorder.summarize());
+            }
+        });
+        return new StepResult(
+                concurrency,
+                Math.min(elapsedMillis, options.stepDuration().toMillis()),
+                counters.started.get(),
+                counters.succeeded.get(),
+                counters.failed.get(),
+                counters.timedOut.get(),
+                counters.rejected.get(),
+                counters.completedInWindow.get(),
+                endToEnd,
+                counters.startLatency.summarize(),
+                counters.statusLatency.summarize(),
+                counters.resultLatency.summarize(),
+                resources,
+                metricsBefore,
+                sampler.latest()
+        );
+    }
+
+    private void virtualUserLoop(long deadlineNanos, StepCounters counters) {
+        try {
+            while (System.nanoTime() < deadlineNanos && !Thread.currentThread().isInterrupted()) {
+                Scenario scenario = options.mix().next();
+                String username = checkOutUser(scenario, deadlineNanos);
+                if (username == null) {
+                    continue;
+                }
+                try {
+                    if (scenario == Scenario.COOKIE_EXPIRED) {
+                        client.expireSessions(username);
+                    }
+                    counters.started.incrementAndGet();
+                    Outcome outcome = runJob(username, counters, scenario);
+                    counters.count(outcome);
+                } catch (IOException e) {
+                    counters.failed.incrementAndGet();
+                    LoadTestMain.log("リクエストに失敗しました: " + e.getMessage());
+                } finally {
+                    if (scenario.needsStoredCookies()) {
+                        storedUsers.add(username);
+                    }
+                }
+                Thread.sleep(options.thinkTime().toMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String checkOutUser(Scenario scenario, long deadlineNanos) throws InterruptedException {
+        if (!scenario.needsStoredCookies()) {
+            return "lt-new-" + runId + "-" + newUserSequence.incrementAndGet();
+        }
+        long waitMillis = Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000);
+        return storedUsers.poll(waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 1つの同期ジョブを開始し、完了するまでステータスをポーリングします。
+     * counters が null の場合 (事前ログイン) は計測しません。
+     */
+    private Outcome runJob(String username, StepCounters counters, Scenario scenario) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        SyncApiClient.StartedJob job = client.startSync(username, options.password());
+        if (counters != null) {
+            counters.startLatency.record(job.latencyMillis());
+        }
+        if (job.jobId() == null) {
+            LoadTestMain.log("ジョブが受け付けられませんでした: HTTP " + job.httpStatus());
+            return Outcome.REJECTED;
+        }
+
+        long timeoutNanos = start + options.jobTimeout().toNanos();
+        while (System.nanoTime() < timeoutNanos) {
+            Thread.sleep(options.pollInterval().toMillis());
+            SyncApiClient.JobStatus status = client.status(job.jobId());
+            if (counters != null) {
+                counters.statusLatency.record(status.latencyMillis());
+            }
+            if (!status.isFinished()) {
+                continue;
+            }
+            if (counters != null) {
+                counters.recordCompletion(scenario, (System.nanoTime() - start) / 1_000_000);
+            }
+            if ("FAILED".equals(status.status())) {
+                LoadTestMain.log("ジョブが失敗しました: " + username + " (" + status.error() + ")");
+                return Outcome.FAILED;
+            }
+            long resultLatency = client.fetchResult(job.jobId());
+            if (counters != null) {
+                counters.resultLatency.record(resultLatency);
+            }
+            return Outcome.SUCCESS;
+        }
+        return Outcome.TIMEOUT;
+    }
+
+    private static final class StepCounters {
+        final long deadlineNanos;
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger timedOut = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger completedInWindow = new AtomicInteger();
+        final Map<Scenario, LatencyRecorder> endToEnd = new EnumMap<>(Scenario.class);
+        final LatencyRecorder startLatency = new LatencyRecorder();
+        final LatencyRecorder statusLatency = new LatencyRecorder();
+        final LatencyRecorder resultLatency = new LatencyRecorder();
+
+        StepCounters(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+            for (Scenario scenario : Scenario.values()) {
+                endToEnd.put(scenario, new LatencyRecorder());
+            }
+        }
+
+        void recordCompletion(Scenario scenario, long millis) {
+            endToEnd.get(scenario).record(millis);
+            if (System.nanoTime() <= deadlineNanos) {
+                completedInWindow.incrementAndGet();
+            }
+        }
+
+        void count(Outcome outcome) {
+            switch (outcome) {
+                case SUCCESS -> succeeded.incrementAndGet();
+                case FAILED -> failed.incrementAndGet();
+                case TIMEOUT -> timedOut.incrementAndGet();
+                case REJECTED -> rejected.incrementAndGet();
+            }
+        }
+    }
+}
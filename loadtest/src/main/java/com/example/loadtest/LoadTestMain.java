@@ -0,0 +1,134 @@
+package com.example.loadtest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 学期はじめの同期の集中を再現する負荷試験のエントリーポイント。
+ *
+ * run: manabaスタンドインを起動し (--standin-port=0 なら既存のものを使う)、Cookie保存済みユーザーを用意してから、
+ *      --steps の同時実行数ごとに同期ジョブを実行してレポートを出力する
+ * standin: manabaスタンドインのみを起動する (別のホストから負荷をかける場合など)
+ *
+ * バックエンドは MANABA_BASE_URL をスタンドインのURLにして起動しておくこと。
+ */
+public final class LoadTestMain {
+
+    private static final DateTimeFormatter LOG_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private LoadTestMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !List.of("run", "standin").contains(args[0])) {
+            System.err.println(LoadTestOptions.USAGE);
+            System.exit(2);
+        }
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(List.of(args).subList(1, args.length).toArray(String[]::new));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadTestOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        if ("standin".equals(args[0])) {
+            ManabaStandIn standIn = startStandIn(options, options.standInPort() > 0 ? options.standInPort() : 8090);
+            log("Ctrl+C で終了します。");
+            Runtime.getRuntime().addShutdownHook(new Thread(standIn::close));
+            Thread.currentThread().join();
+            return;
+        }
+
+        ManabaStandIn standIn = options.standInPort() > 0 ? startStandIn(options, options.standInPort()) : null;
+        try {
+            run(options);
+        } finally {
+            if (standIn != null) {
+                standIn.close();
+            }
+        }
+    }
+
+    private static void run(LoadTestOptions options) throws InterruptedException, IOException {
+        SyncApiClient client = new SyncApiClient(options.apiBaseUrl(), options.apiKey(), options.metricsApiKey(), options.standInUrl());
+        if (options.mix().usesStoredCookies() && options.users() < options.maxConcurrency()) {
+            log("警告: --users (" + options.users() + ") が最大同時実行数 (" + options.maxConcurrency()
+                    + ") より少ないため、Cookie保存済みユーザーの空き待ちが発生します。");
+        }
+
+        LoadRunner runner = new LoadRunner(options, client);
+        log("Cookie保存済みユーザーを用意しています (" + options.users() + "人, 並列数 " + options.warmupConcurrency() + ")...");
+        int prepared = runner.warmUp();
+        if (options.mix().usesStoredCookies() && prepared == 0) {
+            throw new IllegalStateException("Cookie保存済みユーザーを用意できませんでした。バックエンドの MANABA_BASE_URL とログを確認してください。");
+        }
+        log("用意できたユーザー: " + prepared);
+
+        List<LoadRunner.StepResult> results = new ArrayList<>();
+        for (int concurrency : options.steps()) {
+            log("同時実行 " + concurrency + " で " + options.stepDuration() + " 実行します...");
+            PrometheusSnapshot before = scrape(client);
+            ResourceSampler sampler = new ResourceSampler(client, options.backendPid());
+            try {
+                sampler.start();
+                LoadRunner.StepResult result = runner.runStep(concurrency, sampler, before);
+                results.add(result);
+                log(String.format("  完了/分=%.1f 成功=%d 失敗=%d タイムアウト=%d", result.throughputPerMinute(),
+                        result.succeeded(), result.failed(), result.timedOut()));
+            } finally {
+                sampler.close();
+            }
+        }
+        log("スタンドイン: " + safeStandInStats(client));
+
+        String report = new LoadReport(options, prepared, results).render();
+        System.out.println();
+        System.out.println(report);
+        if (options.reportPath() != null) {
+            if (options.reportPath().getParent() != null) {
+                Files.createDirectories(options.reportPath().getParent());
+            }
+            Files.writeString(options.reportPath(), report, StandardCharsets.UTF_8);
+            log("レポートを書き出しました: " + options.reportPath());
+        }
+    }
+
+    private static ManabaStandIn startStandIn(LoadTestOptions options, int port) throws IOException {
+        ManabaStandIn standIn = new ManabaStandIn(port, options.password(), options.mfaDelay(), options.pageLatency(),
+                options.sessionTtl(), options.pagePaddingKb());
+        standIn.start();
+        log("manabaスタンドインを起動しました: http://localhost:" + standIn.port()
+                + " (バックエンドは MANABA_BASE_URL=http://localhost:" + standIn.port() + " で起動してください)");
+        return standIn;
+    }
+
+    // 段階の開始時点のメトリクス (ヒストグラムの差分の基準)。取得できない場合は空
+    private static PrometheusSnapshot scrape(SyncApiClient client) throws InterruptedException {
+        try {
+            return PrometheusSnapshot.parse(client.prometheus());
+        } catch (IOException e) {
+            log("メトリクスを取得できませんでした: " + e.getMessage());
+            return PrometheusSnapshot.empty();
+        }
+    }
+
+    private static String safeStandInStats(SyncApiClient client) throws InterruptedException {
+        try {
+            return client.standInStats();
+        } catch (IOException e) {
+            return "取得できませんでした (" + e.getMessage() + ")";
+        }
+    }
+
+    static void log(String message) {
+        System.err.println(LocalTime.now().format(LOG_TIME) + " " + message);
+    }
+}
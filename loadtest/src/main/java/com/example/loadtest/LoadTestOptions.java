@@ -0,0 +1,148 @@
+package com.example.loadtest;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 負荷試験の設定。コマンドライン引数 (--name=value または --name value) から生成する。
+ * 時間は ISO-8601 の Duration (例: PT30S) で指定する。
+ */
+public record LoadTestOptions(
+        String apiBaseUrl,
+        String apiKey,
+        String metricsApiKey,
+        int standInPort,
+        String standInUrl,
+        ScenarioMix mix,
+        int users,
+        List<Integer> steps,
+        Duration stepDuration,
+        Duration thinkTime,
+        Duration pollInterval,
+        Duration jobTimeout,
+        int warmupConcurrency,
+        String password,
+        Duration mfaDelay,
+        Duration pageLatency,
+        Duration sessionTtl,
+        int pagePaddingKb,
+        long backendPid,
+        Path reportPath
+) {
+
+    static final String USAGE = """
+            使い方:
+              java -jar schedy-loadtest.jar run [オプション]      manabaスタンドインを起動し、同期APIに負荷をかける
+              java -jar schedy-loadtest.jar standin [オプション]  manabaスタンドインのみを起動する
+
+            オプション (既定値):
+              --api-base=http://localhost:8080      バックエンドのURL
+              --api-key=$SECURITY_SYNC_API_KEY      X-API-Key
+              --metrics-key=$SECURITY_METRICS_API_KEY /actuator/prometheus 用のキー (省略時は --api-key)
+              --standin-port=8090                   スタンドインを起動するポート。0 なら起動せず --standin-url を使う
+              --standin-url=http://localhost:8090   スタンドインのURL (バックエンドの MANABA_BASE_URL と同じにする)
+              --mix=cookie-valid=70,cookie-expired=20,new-user=10  シナリオの比率
+              --users=50                            Cookie保存済みユーザーの数 (最大同時実行数以上にする)
+              --steps=1,2,5,10,20,40                段階ごとの同時実行ユーザー数
+              --step-duration=PT60S                 1段階の長さ
+              --think-time=PT2S                     1ユーザーがジョブの完了から次のジョブを開始するまでの時間
+              --poll-interval=PT0.5S                ステータスの確認間隔
+              --job-timeout=PT5M                    1ジョブの待ち時間の上限
+              --warmup-concurrency=4                Cookie保存済みユーザーを作る事前ログインの並列数
+              --password=loadtest                   スタンドインが受け付けるパスワード
+              --mfa-delay=PT2S                      MFAコードを表示してから承認されるまでの時間
+              --page-latency=PT0.15S                スタンドインの各ページの応答遅延
+              --session-ttl=PT90M                   スタンドインのセッションの有効期限
+              --page-padding-kb=80                  マイページに付け足すバイト数 (実際のページの大きさに近づける)
+              --backend-pid=                        バックエンドのPID。指定するとRSSとNMTのサマリも記録する
+              --report=                             結果を書き出すファイル (省略時は標準出力のみ)
+            """;
+
+    private static final Set<String> OPTION_NAMES = Set.of(
+            "api-base", "api-key", "metrics-key", "standin-port", "standin-url", "mix", "users", "steps",
+            "step-duration", "think-time", "poll-interval", "job-timeout", "warmup-concurrency", "password",
+            "mfa-delay", "page-latency", "session-ttl", "page-padding-kb", "backend-pid", "report");
+
+    static LoadTestOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("不明な引数です: " + arg);
+            }
+            int eq = arg.indexOf('=');
+            String name = eq > 0 ? arg.substring(2, eq) : arg.substring(2);
+            if (!OPTION_NAMES.contains(name)) {
+                throw new IllegalArgumentException("不明なオプションです: " + arg);
+            }
+            if (eq > 0) {
+                values.put(name, arg.substring(eq + 1));
+            } else if (i + 1 < args.length) {
+                values.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("値がありません: " + arg);
+            }
+        }
+
+        String apiKey = values.getOrDefault("api-key", envOrEmpty("SECURITY_SYNC_API_KEY"));
+        String metricsKey = values.getOrDefault("metrics-key", envOrEmpty("SECURITY_METRICS_API_KEY"));
+        int standInPort = Integer.parseInt(values.getOrDefault("standin-port", "8090"));
+        String standInUrl = values.getOrDefault("standin-url",
+                "http://localhost:" + (standInPort > 0 ? standInPort : 8090));
+        String backendPid = values.getOrDefault("backend-pid", "");
+        String report = values.getOrDefault("report", "");
+
+        return new LoadTestOptions(
+                stripTrailingSlash(values.getOrDefault("api-base", "http://localhost:8080")),
+                apiKey,
+                metricsKey.isBlank() ? apiKey : metricsKey,
+                standInPort,
+                stripTrailingSlash(standInUrl),
+                ScenarioMix.parse(values.getOrDefault("mix", "cookie-valid=70,cookie-expired=20,new-user=10")),
+                Integer.parseInt(values.getOrDefault("users", "50")),
+                parseSteps(values.getOrDefault("steps", "1,2,5,10,20,40")),
+                Duration.parse(values.getOrDefault("step-duration", "PT60S")),
+                Duration.parse(values.getOrDefault("think-time", "PT2S")),
+                Duration.parse(values.getOrDefault("poll-interval", "PT0.5S")),
+                Duration.parse(values.getOrDefault("job-timeout", "PT5M")),
+                Integer.parseInt(values.getOrDefault("warmup-concurrency", "4")),
+                values.getOrDefault("password", "loadtest"),
+                Duration.parse(values.getOrDefault("mfa-delay", "PT2S")),
+                Duration.parse(values.getOrDefault("page-latency", "PT0.15S")),
+                Duration.parse(values.getOrDefault("session-ttl", "PT90M")),
+                Integer.parseInt(values.getOrDefault("page-padding-kb", "80")),
+                backendPid.isBlank() ? -1 : Long.parseLong(backendPid),
+                report.isBlank() ? null : Path.of(report)
+        );
+    }
+
+    int maxConcurrency() {
+        return steps.stream().mapToInt(Integer::intValue).max().orElse(0);
+    }
+
+    private static List<Integer> parseSteps(String value) {
+        List<Integer> steps = new ArrayList<>();
+        for (String part : value.split(",")) {
+            int step = Integer.parseInt(part.trim());
+            if (step <= 0) {
+                throw new IllegalArgumentException("同時実行数は1以上を指定してください: " + value);
+            }
+            steps.add(step);
+        }
+        return List.copyOf(steps);
+    }
+
+    private static String envOrEmpty(String name) {
+        String value = System.getenv(name);
+        return value == null ? "" : value;
+    }
+
+    private static String stripTrailingSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 負荷試験用のmanabaスタンドイン。JDK組み込みのHTTPサーバーで、ログイン (MFA・サインイン状態の維持を含む) と
+ * マイページ・コース・課題一覧のページを返す。バックエンドは manaba.base-url をこのサーバーに向けて起動する。
+ *
+ * - パスワードは1つだけ受け付ける (それ以外は passwordError を表示する)
+ * - セッションはCookie (sessionid) で管理し、有効期限は最後のアクセスから sessionTtl
+ * - /__admin/expire?user=ユーザー名 でそのユーザーのセッションを失効させる (Cookie期限切れのシナリオ用)
+ * - 各ページの応答は pageLatency だけ遅らせる
+ */
+public final class ManabaStandIn implements AutoCloseable {
+
+    private static final String SESSION_COOKIE = "sessionid";
+    private static final Pattern COURSE_PATH = Pattern.compile("/ct/course_(\\d+)(?:_(report|survey|query))?");
+
+    private record Session(String username, long expiresAtMillis) {}
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final StandInPages pages;
+    private final String password;
+    private final Duration mfaDelay;
+    private final Duration pageLatency;
+    private final Duration sessionTtl;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, String> pendingLogins = new ConcurrentHashMap<>(); // MFA待ちのトークン -> ユーザー名
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong pageViews = new AtomicLong();
+    private final AtomicLong rejectedSessions = new AtomicLong();
+
+    public ManabaStandIn(int port, String password, Duration mfaDelay, Duration pageLatency, Duration sessionTtl, int pagePaddingKb) throws IOException {
+        this.password = password;
+        this.mfaDelay = mfaDelay;
+        this.pageLatency = pageLatency;
+        this.sessionTtl = sessionTtl;
+        this.pages = new StandInPages(pagePaddingKb);
+        this.server = HttpServer.create(new InetSocketAddress(port), 512);
+        // 応答遅延を sleep で再現するため、同時接続数に合わせてスレッドを増やす
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "manaba-standin");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /** ログイン完了数・ページ表示数・無効なセッションでのアクセス数 */
+    public String stats() {
+        return "logins=" + logins.get() + " pageViews=" + pageViews.get() + " rejectedSessions=" + rejectedSessions.get()
+                + " activeSessions=" + sessions.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseForm(exchange.getRequestURI().getRawQuery());
+
+            if (path.startsWith("/__admin/")) {
+                handleAdmin(exchange, path, query);
+                return;
+            }
+            simulateLatency();
+
+            switch (path) {
+                case "/ct/login" -> sendHtml(exchange, 200, pages.usernamePage(null));
+                case "/ct/login/username" -> handleUsername(exchange, readForm(exchange));
+                case "/ct/login/password" -> handlePassword(exchange, readForm(exchange));
+                case "/ct/login/kmsi" -> handleStaySignedIn(exchange, "POST".equals(method) ? readForm(exchange) : query);
+                default -> handleAuthenticated(exchange, path);
+            }
+        } catch (RuntimeException e) {
+            sendText(exchange, 500, "error: " + e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleUsername(HttpExchange exchange, Map<String, String> form) throws IOException {
+        String username = form.getOrDefault("loginfmt", "").trim();
+        if (username.isEmpty()) {
+            sendHtml(exchange, 200, pages.usernamePage("アカウントを入力してください。"));
+            return;
+        }
+        sendHtml(exchange, 200, pages.passwordPage(username, null));
+    }
+
+    private void handlePassword(HttpExchange exchange, Map<String, String> form) throws IOException {
+        String username = form.getOrDefault("loginfmt", "");
+        if (!password.equals(form.get("passwd"))) {
+            sendHtml(exchange, 200, pages.passwordPage(username, "アカウントまたはパスワードが正しくありません。"));
+            return;
+        }
+        String pendingToken = UUID.randomUUID().toString();
+        pendingLogins.put(pendingToken, username);
+        String code = String.valueOf(10 + ThreadLocalRandom.current().nextInt(90));
+        sendHtml(exchange, 200, pages.mfaPage(pendingToken, code, Math.max(1, mfaDelay.toSeconds())));
+    }
+
+    private void handleStaySignedIn(HttpExchange exchange, Map<String, String> form) throws IOException {
+        String pendingToken = form.get("pending");
+        if (pendingToken == null || !pendingLogins.containsKey(pendingToken)) {
+            redirect(exchange, "/ct/login");
+            return;
+        }
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendHtml(exchange, 200, pages.staySignedInPage(pendingToken));
+            return;
+        }
+        String username = pendingLogins.remove(pendingToken);
+        String sessionId = UUID.randomUUID().toString();
+        sessions.put(sessionId, new Session(username, System.currentTimeMillis() + sessionTtl.toMillis()));
+        logins.incrementAndGet();
+        setSessionCookie(exchange, sessionId);
+        redirect(exchange, "/ct/home");
+    }
+
+    private void handleAuthenticated(HttpExchange exchange, String path) throws IOException {
+        String sessionId = sessionIdOf(exchange);
+        Session session = sessionId == null ? null : sessions.get(sessionId);
+        if (session == null || session.expiresAtMillis() < System.currentTimeMillis()) {
+            // manaba と同じく、ログインしていなければログイン画面へリダイレクトする
+            rejectedSessions.incrementAndGet();
+            redirect(exchange, "/ct/login");
+            return;
+        }
+        // アクセスのたびにセッションを延長し、新しい有効期限をSet-Cookieで返す
+        // (同時に失効させられた場合は延長しない)
+        if (sessions.computeIfPresent(sessionId, (id, current) ->
+                new Session(current.username(), System.currentTimeMillis() + sessionTtl.toMillis())) == null) {
+            rejectedSessions.incrementAndGet();
+            redirect(exchange, "/ct/login");
+            return;
+        }
+        setSessionCookie(exchange, sessionId);
+        pageViews.incrementAndGet();
+
+        if ("/ct/home".equals(path)) {
+            sendHtml(exchange, 200, pages.homePage(session.username()));
+            return;
+        }
+        if ("/ct/home_course".equals(path)) {
+            sendHtml(exchange, 200, pages.homeCoursePage(session.username()));
+            return;
+        }
+        Matcher matcher = COURSE_PATH.matcher(path);
+        if (matcher.matches() && StandInPages.isValidCourseId(Integer.parseInt(matcher.group(1)))) {
+            int courseId = Integer.parseInt(matcher.group(1));
+            String kind = matcher.group(2);
+            sendHtml(exchange, 200, kind == null ? pages.coursePage(courseId) : pages.assignmentListPage(courseId, kind));
+            return;
+        }
+        sendText(exchange, 404, "not found");
+    }
+
+    private void handleAdmin(HttpExchange exchange, String path, Map<String, String> query) throws IOException {
+        if ("/__admin/expire".equals(path)) {
+            String username = query.get("user");
+            int removed = 0;
+            for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+                if (entry.getValue().username().equals(username) && sessions.remove(entry.getKey(), entry.getValue())) {
+                    removed++;
+                }
+            }
+            sendText(exchange, 200, "expired=" + removed);
+        } else if ("/__admin/stats".equals(path)) {
+            sendText(exchange, 200, stats());
+        } else {
+            sendText(exchange, 404, "not found");
+        }
+    }
+
+    private void simulateLatency() {
+        if (pageLatency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(pageLatency.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void setSessionCookie(HttpExchange exchange, String sessionId) {
+        exchange.getResponseHeaders().add("Set-Cookie",
+                SESSION_COOKIE + "=" + sessionId + "; Path=/; Max-Age=" + sessionTtl.toSeconds() + "; HttpOnly");
+    }
+
+    private static String sessionIdOf(HttpExchange exchange) {
+        for (String header : exchange.getRequestHeaders().getOrDefault("Cookie", List.of())) {
+            for (String part : header.split(";")) {
+                String[] pair = part.trim().split("=", 2);
+                if (pair.length == 2 && SESSION_COOKIE.equals(pair[0])) {
+                    return pair[1];
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, String> readForm(HttpExchange exchange) throws IOException {
+        return parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> parseForm(String encoded) {
+        Map<String, String> values = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return values;
+        }
+        for (String pair : encoded.split("&")) {
+            String[] kv = pair.split("=", 2);
+            values.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8),
+                    kv.length == 2 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8) : "");
+        }
+        return values;
+    }
+
+    private static void redirect(HttpExchange exchange, String location) throws IOException {
+        exchange.getResponseHeaders().set("Location", location);
+        exchange.sendResponseHeaders(302, -1);
+    }
+
+    private static void sendHtml(HttpExchange exchange, int status, String html) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        send(exchange, status, html);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        send(exchange, status, text);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * /actuator/prometheus の1回分の取得結果 (テキスト形式) を解析したもの。
+ * ヒストグラムのパーセンタイルは、2回の取得の差分 (その間に記録された分) のバケットから線形補間で求める。
+ */
+final class PrometheusSnapshot {
+
+    record Sample(String name, Map<String, String> labels, double value) {}
+
+    private final List<Sample> samples;
+
+    private PrometheusSnapshot(List<Sample> samples) {
+        this.samples = samples;
+    }
+
+    static PrometheusSnapshot empty() {
+        return new PrometheusSnapshot(List.of());
+    }
+
+    static PrometheusSnapshot parse(String text) {
+        List<Sample> samples = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            Sample sample = parseLine(line.trim());
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        return new PrometheusSnapshot(samples);
+    }
+
+    /**
+     * 指定した名前・ラベル条件に一致する値の合計。一致するものがなければ NaN
+     */
+    double sum(String name, Predicate<Map<String, String>> labelFilter) {
+        double total = 0;
+        boolean found = false;
+        for (Sample sample : samples) {
+            if (sample.name.equals(name) && labelFilter.test(sample.labels)) {
+                total += sample.value;
+                found = true;
+            }
+        }
+        return found ? total : Double.NaN;
+    }
+
+    double sum(String name) {
+        return sum(name, labels -> true);
+    }
+
+    /**
+     * ヒストグラムで使われているラベルの値の一覧 (例: stage の一覧)
+     */
+    Set<String> labelValues(String name, String label) {
+        Set<String> values = new TreeSet<>();
+        for (Sample sample : samples) {
+            if (sample.name.equals(name) && sample.labels.containsKey(label)) {
+                values.add(sample.labels.get(label));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * baseline からこのスナップショットまでに記録された分のパーセンタイル (秒)。
+     * 件数が0なら NaN
+     */
+    double histogramPercentile(PrometheusSnapshot baseline, String histogram, Predicate<Map<String, String>> labelFilter, double percentile) {
+        TreeMap<Double, Double> buckets = bucketDelta(baseline, histogram, labelFilter);
+        if (buckets.isEmpty()) {
+            return Double.NaN;
+        }
+        double total = buckets.lastEntry().getValue();
+        if (total <= 0) {
+            return Double.NaN;
+        }
+        double target = percentile / 100.0 * total;
+        double previousBound = 0;
+        double previousCount = 0;
+        for (Map.Entry<Double, Double> bucket : buckets.entrySet()) {
+            if (bucket.getValue() >= target) {
+                if (bucket.getKey().isInfinite()) {
+                    return previousBound; // 最大のバケットを超えた分は上限値で近似する
+                }
+                double inBucket = bucket.getValue() - previousCount;
+                double fraction = inBucket <= 0 ? 1 : (target - previousCount) / inBucket;
+                return previousBound + (bucket.getKey() - previousBound) * fraction;
+            }
+            previousBound = bucket.getKey();
+            previousCount = bucket.getValue();
+        }
+        return previousBound;
+    }
+
+    /**
+     * baseline からこのスナップショットまでに記録された件数
+     */
+    double countDelta(PrometheusSnapshot baseline, String histogram, Predicate<Map<String, String>> labelFilter) {
+        double now = sum(histogram + "_count", labelFilter);
+        double before = baseline.sum(histogram + "_count", labelFilter);
+        return (Double.isNaN(now) ? 0 : now) - (Double.isNaN(before) ? 0 : before);
+    }
+
+    private TreeMap<Double, Double> bucketDelta(PrometheusSnapshot baseline, String histogram, Predicate<Map<String, String>> labelFilter) {
+        TreeMap<Double, Double> buckets = cumulativeBuckets(histogram, labelFilter);
+        TreeMap<Double, Double> before = baseline.cumulativeBuckets(histogram, labelFilter);
+        buckets.replaceAll((bound, count) -> count - before.getOrDefault(bound, 0.0));
+        return buckets;
+    }
+
+    // 上限 (le) ごとの累積件数。同じ le のラベル違い (例: 全 stage) は合計する
+    private TreeMap<Double, Double> cumulativeBuckets(String histogram, Predicate<Map<String, String>> labelFilter) {
+        TreeMap<Double, Double> buckets = new TreeMap<>();
+        for (Sample sample : samples) {
+            if (sample.name.equals(histogram + "_bucket") && labelFilter.test(sample.labels)) {
+                String le = sample.labels.get("le");
+                double bound = "+Inf".equals(le) ? Double.POSITIVE_INFINITY : Double.parseDouble(le);
+                buckets.merge(bound, sample.value, Double::sum);
+            }
+        }
+        return buckets;
+    }
+
+    private static Sample parseLine(String line) {
+        int brace = line.indexOf('{');
+        int space;
+        String name;
+        Map<String, String> labels = new HashMap<>();
+        if (brace >= 0 && brace < line.indexOf(' ')) {
+            name = line.substring(0, brace);
+            int end = parseLabels(line, brace + 1, labels);
+            space = end + 1;
+        } else {
+            space = line.indexOf(' ');
+            if (space < 0) {
+                return null;
+            }
+            name = line.substring(0, space);
+        }
+        String[] rest = line.substring(space).trim().split("\\s+");
+        try {
+            return new Sample(name, labels, Double.parseDouble(rest[0]));
+        } catch (NumberFormatException e) {
+            return null; // NaN 以外の特殊な値は使わないため無視する
+        }
+    }
+
+    // name="value",... を読み、閉じ括弧の位置を返す
+    private static int parseLabels(String line, int pos, Map<String, String> labels) {
+        while (pos < line.length() && line.charAt(pos) != '}') {
+            int eq = line.indexOf('=', pos);
+            String key = line.substring(pos, eq).trim();
+            StringBuilder value = new StringBuilder();
+            int i = eq + 2; // ="
+            while (line.charAt(i) != '"') {
+                char c = line.charAt(i);
+                if (c == '\\') {
+                    char next = line.charAt(++i);
+                    value.append(next == 'n' ? '\n' : next);
+                } else {
+                    value.append(c);
+                }
+                i++;
+            }
+            labels.put(key, value.toString());
+            pos = i + 1;
+            if (pos < line.length() && line.charAt(pos) == ',') {
+                pos++;
+            }
+        }
+        return pos;
+    }
+}
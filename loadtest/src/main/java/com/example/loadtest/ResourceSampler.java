@@ -0,0 +1,169 @@
+package com.example.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 1段階の実行中に、バックエンドのメトリクス (/actuator/prometheus) とプロセスのRSSを1秒ごとに取得し、
+ * 最大値・平均値を集計する。メトリクスを取得できない場合は該当の項目を NaN のままにする。
+ */
+final class ResourceSampler implements AutoCloseable {
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 1_000;
+    private static final Pattern VM_RSS = Pattern.compile("VmRSS:\\s+(\\d+) kB");
+    private static final Pattern NMT_TOTAL = Pattern.compile("Total: reserved=(\\d+)KB, committed=(\\d+)KB");
+
+    /** 1段階分の集計結果。メモリはバイト */
+    record Resources(
+            int samples,
+            double executorQueueMax,
+            double executorQueueMean,
+            double executorActiveMax,
+            double hikariActiveMax,
+            double hikariPendingMax,
+            double hikariMax,
+            double heapUsedMax,
+            double nonHeapUsedMax,
+            double directBufferMax,
+            double chromeActiveMax,
+            double chromeRssMax,
+            double processRssMax,
+            double nativeCommitted
+    ) {}
+
+    private final SyncApiClient client;
+    private final long backendPid;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "resource-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private int samples;
+    private double queueSum;
+    private double queueMax = Double.NaN;
+    private double activeMax = Double.NaN;
+    private double hikariActiveMax = Double.NaN;
+    private double hikariPendingMax = Double.NaN;
+    private double hikariMax = Double.NaN;
+    private double heapMax = Double.NaN;
+    private double nonHeapMax = Double.NaN;
+    private double directMax = Double.NaN;
+    private double chromeActiveMax = Double.NaN;
+    private double chromeRssMax = Double.NaN;
+    private double processRssMax = Double.NaN;
+    private volatile PrometheusSnapshot latest = PrometheusSnapshot.empty();
+
+    ResourceSampler(SyncApiClient client, long backendPid) {
+        this.client = client;
+        this.backendPid = backendPid;
+    }
+
+    void start() {
+        scheduler.scheduleAtFixedRate(this::sample, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** 最後に取得したメトリクス */
+    PrometheusSnapshot latest() {
+        return latest;
+    }
+
+    /**
+     * 取得を止めて、それまでの集計結果を返します。
+     */
+    synchronized Resources finish() {
+        scheduler.shutdownNow();
+        return new Resources(samples, queueMax, samples == 0 ? Double.NaN : queueSum / samples, activeMax,
+                hikariActiveMax, hikariPendingMax, hikariMax, heapMax, nonHeapMax, directMax,
+                chromeActiveMax, chromeRssMax, processRssMax, nativeCommittedBytes());
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized void sample() {
+        try {
+            PrometheusSnapshot snapshot = PrometheusSnapshot.parse(client.prometheus());
+            latest = snapshot;
+            double queue = snapshot.sum("schedy_sync_executor_queue");
+            samples++;
+            queueSum += Double.isNaN(queue) ? 0 : queue;
+            queueMax = max(queueMax, queue);
+            activeMax = max(activeMax, snapshot.sum("schedy_sync_executor_active"));
+            hikariActiveMax = max(hikariActiveMax, snapshot.sum("hikaricp_connections_active"));
+            hikariPendingMax = max(hikariPendingMax, snapshot.sum("hikaricp_connections_pending"));
+            hikariMax = max(hikariMax, snapshot.sum("hikaricp_connections_max"));
+            heapMax = max(heapMax, snapshot.sum("jvm_memory_used_bytes", area("heap")));
+            nonHeapMax = max(nonHeapMax, snapshot.sum("jvm_memory_used_bytes", area("nonheap")));
+            directMax = max(directMax, snapshot.sum("jvm_buffer_memory_used_bytes", labels -> "direct".equals(labels.get("id"))));
+            chromeActiveMax = max(chromeActiveMax, snapshot.sum("schedy_chrome_active"));
+            chromeRssMax = max(chromeRssMax, snapshot.sum("schedy_chrome_rss_bytes"));
+        } catch (IOException e) {
+            // メトリクスを取得できなくても負荷試験は続ける
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        processRssMax = max(processRssMax, processRssBytes());
+    }
+
+    private double processRssBytes() {
+        if (backendPid <= 0) {
+            return Double.NaN;
+        }
+        try {
+            Matcher matcher = VM_RSS.matcher(Files.readString(Path.of("/proc", String.valueOf(backendPid), "status")));
+            return matcher.find() ? Long.parseLong(matcher.group(1)) * 1024.0 : Double.NaN;
+        } catch (IOException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Native Memory Tracking のサマリ (コミット済みの合計)。
+     * バックエンドを -XX:NativeMemoryTracking=summary で起動し、同じホストで jcmd が使える場合のみ取得できる
+     */
+    private double nativeCommittedBytes() {
+        if (backendPid <= 0) {
+            return Double.NaN;
+        }
+        try {
+            Process process = new ProcessBuilder("jcmd", String.valueOf(backendPid), "VM.native_memory", "summary")
+                    .redirectErrorStream(true)
+                    .start();
+            String output = new String(process.getInputStream().readAllBytes());
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return Double.NaN;
+            }
+            Matcher matcher = NMT_TOTAL.matcher(output);
+            return matcher.find() ? Long.parseLong(matcher.group(2)) * 1024.0 : Double.NaN;
+        } catch (IOException e) {
+            return Double.NaN;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Double.NaN;
+        }
+    }
+
+    private static Predicate<Map<String, String>> area(String area) {
+        return labels -> area.equals(labels.get("area"));
+    }
+
+    private static double max(double current, double value) {
+        if (Double.isNaN(value)) {
+            return current;
+        }
+        return Double.isNaN(current) ? value : Math.max(current, value);
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.loadtest;
+
+/**
+ * 1回の同期ジョブで再現する利用者の状態。
+ */
+public enum Scenario {
+    /** 保存済みCookieが有効 (Jsoupのみで取得でき、Chromeは起動しない) */
+    COOKIE_VALID("cookie-valid"),
+    /** 保存済みCookieがmanaba側で失効している (Cookie認証に失敗してからChromeでログインし直す) */
+    COOKIE_EXPIRED("cookie-expired"),
+    /** 初めて同期するユーザー (Cookieがなく、Chromeでログインしてから資格情報を保存する) */
+    NEW_USER("new-user");
+
+    private final String label;
+
+    Scenario(String label) {
+        this.label = label;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    /** Cookie保存済みのユーザーを使うシナリオかどうか */
+    public boolean needsStoredCookies() {
+        return this != NEW_USER;
+    }
+
+    static Scenario fromLabel(String label) {
+        for (Scenario scenario : values()) {
+            if (scenario.label.equals(label)) {
+                return scenario;
+            }
+        }
+        throw new IllegalArgumentException("不明なシナリオです: " + label);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * シナリオの比率 (例: cookie-valid=70,cookie-expired=20,new-user=10)。重みの合計は100でなくてもよい。
+ */
+public record ScenarioMix(Map<Scenario, Integer> weights) {
+
+    public ScenarioMix {
+        int total = weights.values().stream().mapToInt(Integer::intValue).sum();
+        if (total <= 0) {
+            throw new IllegalArgumentException("シナリオの重みの合計は1以上にしてください: " + weights);
+        }
+        weights = Map.copyOf(weights);
+    }
+
+    static ScenarioMix parse(String value) {
+        Map<Scenario, Integer> weights = new EnumMap<>(Scenario.class);
+        for (String part : value.split(",")) {
+            String[] pair = part.trim().split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("シナリオの比率は名前=重みで指定してください: " + part);
+            }
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("重みは0以上を指定してください: " + part);
+            }
+            weights.put(Scenario.fromLabel(pair[0].trim()), weight);
+        }
+        return new ScenarioMix(weights);
+    }
+
+    /**
+     * 重みに従ってシナリオを1つ選びます。
+     */
+    public Scenario next() {
+        int total = weights.values().stream().mapToInt(Integer::intValue).sum();
+        int pick = ThreadLocalRandom.current().nextInt(total);
+        for (Scenario scenario : Scenario.values()) {
+            pick -= weights.getOrDefault(scenario, 0);
+            if (pick < 0) {
+                return scenario;
+            }
+        }
+        throw new IllegalStateException("シナリオを選択できませんでした: " + weights);
+    }
+
+    /** Cookie保存済みのユーザーを使うシナリオが含まれるかどうか */
+    public boolean usesStoredCookies() {
+        return weights.entrySet().stream().anyMatch(e -> e.getKey().needsStoredCookies() && e.getValue() > 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Scenario scenario : Scenario.values()) {
+            if (weights.getOrDefault(scenario, 0) > 0) {
+                if (!sb.isEmpty()) {
+                    sb.append(',');
+                }
+                sb.append(scenario.label()).append('=').append(weights.get(scenario));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.loadtest;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * manabaスタンドインが返すHTML。バックエンドのスクレイピング (ScrapingService / ManabaScrapingOrchestrator) が
+ * 参照する要素・クラス名だけを実際のページと同じ構造で再現する。
+ * コースはユーザーに依存しない共通のカタログから、ユーザー名をシードにして決定的に割り当てる。
+ */
+final class StandInPages {
+
+    private static final int CATALOG_SIZE = 60;
+    private static final String[] DAYS = {"月", "火", "水", "木", "金", "土"};
+    private static final String[] CAMPUSES = {"衣笠", "BKC", "OIC"};
+    private static final DateTimeFormatter DEADLINE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    private static final ZoneId JAPAN_ZONE = ZoneId.of("Asia/Tokyo");
+
+    private final String padding;
+
+    StandInPages(int paddingKb) {
+        this.padding = paddingKb > 0 ? "<!-- " + "x".repeat(paddingKb * 1024) + " -->" : "";
+    }
+
+    // --- ログイン (Microsoftのサインイン画面を模したもの) ---
+
+    String usernamePage(String error) {
+        return page("Sign in to your account", """
+                <form method="post" action="/ct/login/username">
+                  <div>サインイン</div>
+                  %s
+                  <input type="email" id="i0116" name="loginfmt">
+                  <input type="submit" id="idSIButton9" value="次へ">
+                </form>
+                """.formatted(error == null ? "" : "<div id=\"usernameError\">" + escape(error) + "</div>"));
+    }
+
+    String passwordPage(String username, String error) {
+        return page("Sign in to your account", """
+                <form method="post" action="/ct/login/password">
+                  <div>パスワードの入力</div>
+                  %s
+                  <input type="hidden" name="loginfmt" value="%s">
+                  <input type="password" id="i0118" name="passwd">
+                  <input type="submit" id="idSIButton9" value="サインイン">
+                </form>
+                """.formatted(error == null ? "" : "<div id=\"passwordError\">" + escape(error) + "</div>", escape(username)));
+    }
+
+    /** 認証アプリでの承認を待つ画面。delaySeconds 後に承認されたものとしてKMSIの画面に進む */
+    String mfaPage(String pendingToken, String code, long delaySeconds) {
+        String refresh = "<meta http-equiv=\"refresh\" content=\"" + delaySeconds + ";url=/ct/login/kmsi?pending=" + pendingToken + "\">";
+        return page("Approve sign in request", refresh, """
+                <div>サインイン要求を承認</div>
+                <div id="idRichContext_DisplaySign">%s</div>
+                """.formatted(code));
+    }
+
+    String staySignedInPage(String pendingToken) {
+        return page("Stay signed in?", """
+                <form method="post" action="/ct/login/kmsi">
+                  <div>サインイン状態の維持</div>
+                  <input type="hidden" name="pending" value="%s">
+                  <input type="submit" id="idSIButton9" value="はい">
+                </form>
+                """.formatted(pendingToken));
+    }
+
+    // --- ログイン後のページ ---
+
+    String homePage(String username) {
+        return page("manaba - home", "<div id=\"home\">" + escape(username) + " さん、ようこそ</div>");
+    }
+
+    /** マイページ (コース一覧の曜日表示)。時間割と「未提出の課題あり」のアイコンを含む */
+    String homeCoursePage(String username) {
+        List<Enrollment> enrollments = enrollmentsOf(username);
+        StringBuilder rows = new StringBuilder();
+        for (int period = 1; period <= 7; period++) {
+            rows.append("<tr><td class=\"period\">").append(period).append("</td>");
+            for (int day = 0; day < DAYS.length; day++) {
+                Enrollment found = null;
+                for (Enrollment enrollment : enrollments) {
+                    if (enrollment.day == day && enrollment.period == period) {
+                        found = enrollment;
+                    }
+                }
+                if (found == null) {
+                    rows.append("<td class=\"course course-empty\"></td>");
+                } else {
+                    rows.append("<td class=\"course course-cell\">").append(courseBlock(found.courseId)).append("</td>");
+                }
+            }
+            rows.append("</tr>\n");
+        }
+        return page("manaba - マイページ", """
+                <div id="courselistweekly">
+                  <table class="stdlist">
+                    <thead><tr><th></th><th>月</th><th>火</th><th>水</th><th>木</th><th>金</th><th>土</th></tr></thead>
+                    <tbody>
+                %s
+                    </tbody>
+                  </table>
+                </div>
+                """.formatted(rows) + padding);
+    }
+
+    String coursePage(int courseId) {
+        Course course = course(courseId);
+        StringBuilder menus = new StringBuilder();
+        menus.append(menu("report", "レポート", courseId, course.reports));
+        menus.append(menu("survey", "アンケート", courseId, course.surveys));
+        menus.append(menu("query", "小テスト", courseId, course.queries));
+        return page("manaba - " + course.name, """
+                <div id="coursename">%s</div>
+                <ul class="course-menu">
+                %s
+                </ul>
+                """.formatted(escape(course.name), menus));
+    }
+
+    /** 課題の一覧。kind は report / survey / query */
+    String assignmentListPage(int courseId, String kind) {
+        Course course = course(courseId);
+        int unsubmitted = switch (kind) {
+            case "report" -> course.reports;
+            case "survey" -> course.surveys;
+            default -> course.queries;
+        };
+        LocalDateTime base = LocalDateTime.now(JAPAN_ZONE).withHour(23).withMinute(59).withSecond(0).withNano(0);
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < unsubmitted + 2; i++) {
+            boolean submitted = i >= unsubmitted; // 提出済みの行も混ぜる
+            String href = "course_" + courseId + "_" + kind + "_" + (i + 1);
+            String title = course.name + " 第" + (i + 1) + "回";
+            String titleCell = "report".equals(kind)
+                    ? "<td><h3 class=\"report-title\"><a href=\"" + href + "\">" + escape(title) + "</a></h3></td>"
+                    : "<td class=\"query-title\"><a href=\"" + href + "\">" + escape(title) + "</a></td>";
+            rows.append("<tr>").append(titleCell)
+                    .append("<td class=\"center\"><span class=\"deadline\">").append(submitted ? "提出済み" : "未提出").append("</span></td>")
+                    .append("<td class=\"center\">").append(base.plusDays(i + 1L).format(DEADLINE_FORMAT)).append("</td>")
+                    .append("</tr>\n");
+        }
+        return page("manaba - " + course.name, """
+                <table class="stdlist">
+                  <tr><th>タイトル</th><th>状態</th><th>受付終了日時</th></tr>
+                %s
+                </table>
+                """.formatted(rows));
+    }
+
+    static boolean isValidCourseId(int courseId) {
+        return courseId >= 0 && courseId < CATALOG_SIZE;
+    }
+
+    private String courseBlock(int courseId) {
+        Course course = course(courseId);
+        boolean hasDeadline = course.reports + course.surveys + course.queries > 0;
+        return """
+                <div class="courselistweekly-c" onclick="location.href='course_%d'">
+                  <a href="course_%d">%s</a>
+                  <div class="coursestatus"><img src="/icon-coursedeadline-%s.png"></div>
+                  <div class="couraselocationinfo couraselocationinfoV2">%s:%s</div>
+                </div>""".formatted(courseId, courseId, escape(course.name), hasDeadline ? "on" : "off",
+                course.campus, escape(course.room));
+    }
+
+    private String menu(String kind, String label, int courseId, int unsubmitted) {
+        String badge = unsubmitted > 0 ? "<span class=\"my-unreadcount\">" + unsubmitted + "</span>" : "";
+        return "<li class=\"course-menu-" + kind + "\"><a href=\"course_" + courseId + "_" + kind + "\">" + label + "</a>" + badge + "</li>\n";
+    }
+
+    private record Course(String name, String campus, String room, int reports, int surveys, int queries) {}
+
+    private record Enrollment(int courseId, int day, int period) {}
+
+    private static Course course(int courseId) {
+        Random random = new Random(courseId * 7919L);
+        boolean busy = random.nextInt(3) == 0; // 3コースに1つは未提出の課題がある
+        return new Course(
+                "負荷試験科目" + courseId,
+                CAMPUSES[courseId % CAMPUSES.length],
+                "教室" + (100 + courseId),
+                busy ? 1 + random.nextInt(3) : 0,
+                busy && random.nextBoolean() ? 1 : 0,
+                busy && random.nextBoolean() ? 1 : 0
+        );
+    }
+
+    /** ユーザーの履修コース (月〜金の1〜5限から10〜14コマ) */
+    private static List<Enrollment> enrollmentsOf(String username) {
+        Random random = new Random(username.hashCode());
+        int count = 10 + random.nextInt(5);
+        List<Enrollment> enrollments = new ArrayList<>();
+        boolean[] used = new boolean[5 * 5];
+        while (enrollments.size() < count) {
+            int slot = random.nextInt(used.length);
+            if (!used[slot]) {
+                used[slot] = true;
+                enrollments.add(new Enrollment(random.nextInt(CATALOG_SIZE), slot / 5, 1 + slot % 5));
+            }
+        }
+        return enrollments;
+    }
+
+    private static String page(String title, String body) {
+        return page(title, "", body);
+    }
+
+    private static String page(String title, String head, String body) {
+        return "<!DOCTYPE html>\n<html lang=\"ja\"><head><meta charset=\"UTF-8\">" + head + "<title>" + escape(title) + "</title></head>\n<body>\n"
+                + body + "\n</body></html>\n";
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 同期API (/api/sync/**) とmanabaスタンドインの管理用エンドポイントを呼び出すクライアント。
+ * 各リクエストの応答時間は呼び出し側で計測できるよう、結果に含めて返す。
+ */
+final class SyncApiClient {
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    /** ジョブのステータス (JobStatusResponse のうち負荷試験で使う項目のみ) */
+    record JobStatus(String status, String stage, String error, long latencyMillis) {
+
+        boolean isFinished() {
+            return "SUCCESS".equals(status) || "FAILED".equals(status);
+        }
+    }
+
+    /** 同期ジョブの開始結果。受け付けられなかった場合は jobId が null */
+    record StartedJob(String jobId, int httpStatus, long latencyMillis) {}
+
+    private final HttpClient httpClient;
+    private final String apiBaseUrl;
+    private final String apiKey;
+    private final String metricsApiKey;
+    private final String standInUrl;
+
+    SyncApiClient(String apiBaseUrl, String apiKey, String metricsApiKey, String standInUrl) {
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        this.apiBaseUrl = apiBaseUrl;
+        this.apiKey = apiKey;
+        this.metricsApiKey = metricsApiKey;
+        this.standInUrl = standInUrl;
+    }
+
+    /**
+     * POST /api/sync/start
+     */
+    StartedJob startSync(String username, String password) throws IOException, InterruptedException {
+        String body = "{\"username\":\"" + jsonEscape(username) + "\",\"password\":\"" + jsonEscape(password)
+                + "\",\"rememberMe\":true}";
+        HttpRequest request = apiRequest("/api/sync/start")
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        long start = System.nanoTime();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        long latency = elapsedMillis(start);
+        String jobId = response.statusCode() == 202 ? jsonField(response.body(), "jobId") : null;
+        return new StartedJob(jobId, response.statusCode(), latency);
+    }
+
+    /**
+     * GET /api/sync/status/{jobId}
+     */
+    JobStatus status(String jobId) throws IOException, InterruptedException {
+        HttpRequest request = apiRequest("/api/sync/status/" + jobId).GET().build();
+        long start = System.nanoTime();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        long latency = elapsedMillis(start);
+        if (response.statusCode() != 200) {
+            return new JobStatus("HTTP_" + response.statusCode(), null, response.body(), latency);
+        }
+        String body = response.body();
+        return new JobStatus(jsonField(body, "status"), jsonField(body, "stage"), jsonField(body, "error"), latency);
+    }
+
+    /**
+     * GET /api/sync/status/{jobId}/result の応答時間 (ミリ秒)。200以外の場合は IOException
+     */
+    long fetchResult(String jobId) throws IOException, InterruptedException {
+        HttpRequest request = apiRequest("/api/sync/status/" + jobId + "/result").GET().build();
+        long start = System.nanoTime();
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        long latency = elapsedMillis(start);
+        if (response.statusCode() != 200) {
+            throw new IOException("結果の取得に失敗しました: HTTP " + response.statusCode());
+        }
+        return latency;
+    }
+
+    /**
+     * GET /actuator/prometheus の本文
+     */
+    String prometheus() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiBaseUrl + "/actuator/prometheus"))
+                .timeout(REQUEST_TIMEOUT)
+                .header("X-API-Key", metricsApiKey)
+                .GET()
+                .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("メトリクスの取得に失敗しました: HTTP " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    /**
+     * スタンドインでユーザーのセッションを失効させます。
+     */
+    void expireSessions(String username) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(standInUrl + "/__admin/expire?user="
+                        + URLEncoder.encode(username, StandardCharsets.UTF_8)))
+                .timeout(REQUEST_TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("セッションの失効に失敗しました: HTTP " + response.statusCode());
+        }
+    }
+
+    String standInStats() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(standInUrl + "/__admin/stats")).timeout(REQUEST_TIMEOUT).GET().build();
+        return httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+    private HttpRequest.Builder apiRequest(String path) {
+        return HttpRequest.newBuilder(URI.create(apiBaseUrl + path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("X-API-Key", apiKey);
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    // 応答はフラットなJSONのため、文字列の項目だけを正規表現で取り出す (JSONライブラリに依存しない)
+    private static String jsonField(String json, String field) {
+        Matcher matcher = Pattern.compile("\"" + Pattern.quote(field) + "\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"").matcher(json);
+        return matcher.find() ? matcher.group(1).replace("\\\"", "\"").replace("\\\\", "\\") : null;
+    }
+
+    private static String jsonEscape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}